@@ -25,5 +25,25 @@ JAVA_OPTS_VECTOR="--add-modules jdk.incubator.vector -XX:+EnableVectorReboxing -
 JAVA_OPTS_GC="-Xmx16g -Xmn16g -XX:-AlwaysPreTouch -XX:+UseTransparentHugePages -XX:-UseCompressedOops"
 #JAVA_OPTS_GC="-XX:+UnlockExperimentalVMOptions -XX:+UseEpsilonGC -Xmx8g -Xmn8g"
 # -XX:-LoadCachedCode -XX:CacheDataStore=application.cds
-JAVA_OPTS="--enable-preview  -XX:+UnlockExperimentalVMOptions  ${JAVA_OPTS_GC} ${JAVA_OPTS_VECTOR} ${JAVA_OPTS_COMPILE} -XX:+UseTransparentHugePages -XX:-UseCountedLoopSafepoints -XX:+TrustFinalNonStaticFields"
-time java $JAVA_OPTS --class-path target/average-1.0.0-SNAPSHOT.jar dev.morling.onebrc.CalculateAverage_tkowalcz2Unsafe
+JAVA_OPTS="--enable-preview --enable-native-access=ALL-UNNAMED -XX:+UnlockExperimentalVMOptions  ${JAVA_OPTS_GC} ${JAVA_OPTS_VECTOR} ${JAVA_OPTS_COMPILE} -XX:+UseTransparentHugePages -XX:-UseCountedLoopSafepoints -XX:+TrustFinalNonStaticFields"
+# Measures pump factor, table size, parsing mode and statistics layout candidates on this host and saves the best in ~/.tkowalcz/tuning.properties,
+# later runs pick it up automatically
+if [ "$1" = "--autotune" ]; then
+  java $JAVA_OPTS --class-path target/average-1.0.0-SNAPSHOT.jar dev.morling.onebrc.Autotuner
+  exit $?
+fi
+
+# Converts measurements.txt into dictionary encoded measurements.bin once, --binary then aggregates that instead
+if [ "$1" = "--to-binary" ]; then
+  java $JAVA_OPTS --class-path target/average-1.0.0-SNAPSHOT.jar dev.morling.onebrc.BinaryMeasurements measurements.txt measurements.bin
+  exit $?
+fi
+if [ "$1" = "--binary" ]; then
+  time java $JAVA_OPTS --class-path target/average-1.0.0-SNAPSHOT.jar dev.morling.onebrc.CalculateAverage_tkowalczBinary measurements.bin
+  exit $?
+fi
+
+# Paths or globs given as arguments are aggregated into a single result instead of measurements.txt. Quote globs
+# (e.g. './calculate_average_tkowalcz.sh "data/*.txt.gz"') so that they reach the program instead of being expanded by
+# the shell, which would also work but can exceed the argument limit for many files.
+time java $JAVA_OPTS --class-path target/average-1.0.0-SNAPSHOT.jar dev.morling.onebrc.CalculateAverage_tkowalcz2Unsafe "$@"
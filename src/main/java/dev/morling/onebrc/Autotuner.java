@@ -0,0 +1,141 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finds the best {@link TuningProfile} for this host and saves it in the profile file, where
+ * {@link CalculateAverage_tkowalcz2Unsafe} picks it up on the next run.
+ * <p>
+ * Profile is read into static final fields, so every candidate is measured in a fresh JVM started with the same JVM
+ * arguments as this one. Each calibration run processes a sample from the beginning of the input a few times on a
+ * single thread and reports the fastest pass.
+ * <p>
+ * Usage: {@code Autotuner [file]}, sample size and number of passes can be changed with
+ * {@code -Dtkowalcz.autotune.sampleSize=<bytes>} and {@code -Dtkowalcz.autotune.passes=<n>}.
+ */
+public class Autotuner {
+
+    private static final String FILE = "measurements.txt";
+
+    private static final long DEFAULT_SAMPLE_SIZE = 64 * 1024 * 1024;
+    private static final int DEFAULT_PASSES = 5;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        String fileName = args.length > 0 ? args[0] : FILE;
+        long sampleSize = Long.getLong("tkowalcz.autotune.sampleSize", DEFAULT_SAMPLE_SIZE);
+        int passes = Integer.getInteger("tkowalcz.autotune.passes", DEFAULT_PASSES);
+
+        TuningProfile best = null;
+        long bestNanos = Long.MAX_VALUE;
+        for (TuningProfile candidate : TuningProfile.candidates()) {
+            long nanos = calibrate(candidate, fileName, sampleSize, passes);
+            System.out.println(STR."\{candidate}: \{TimeUnit.NANOSECONDS.toMillis(nanos)}ms");
+
+            if (nanos < bestNanos) {
+                best = candidate;
+                bestNanos = nanos;
+            }
+        }
+
+        Path profilePath = TuningProfile.profilePath();
+        String hostKey = TuningProfile.hostKey();
+        TuningProfile.store(profilePath, hostKey, best);
+        System.out.println(STR."Saved \{best} for \{hostKey} in \{profilePath}");
+    }
+
+    private static long calibrate(TuningProfile candidate, String fileName, long sampleSize, int passes) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(ProcessHandle.current().info().command().orElse("java"));
+        for (String argument : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+            // Candidate settings must not be overridden by the ones this JVM was started with
+            if (!argument.startsWith("-Dtkowalcz.pumpFactor=")
+                    && !argument.startsWith("-Dtkowalcz.tableSize=")
+                    && !argument.startsWith("-Dtkowalcz.packedParsing=")
+                    && !argument.startsWith("-Dtkowalcz.statistics=")) {
+                command.add(argument);
+            }
+        }
+        command.addAll(candidate.asSystemProperties());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(Calibration.class.getName());
+        command.add(fileName);
+        command.add(Long.toString(sampleSize));
+        command.add(Integer.toString(passes));
+
+        Process process = new ProcessBuilder(command)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+
+        String result;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+            result = reader.readLine();
+        }
+
+        if (process.waitFor() != 0 || result == null) {
+            throw new IllegalStateException(STR."Calibration of \{candidate} failed with exit code \{process.exitValue()}");
+        }
+
+        return Long.parseLong(result.trim());
+    }
+
+    /**
+     * Entry point of calibration JVM, prints duration of the fastest pass in nanoseconds.
+     */
+    static class Calibration {
+
+        public static void main(String[] args) throws IOException {
+            String fileName = args[0];
+            long sampleSize = Long.parseLong(args[1]);
+            int passes = Integer.parseInt(args[2]);
+
+            try (Arena arena = Arena.ofShared()) {
+                MemorySegment inputData = MemoryMapping.map(fileName, arena);
+                MemorySegment sample = sample(inputData, sampleSize);
+
+                long bestNanos = Long.MAX_VALUE;
+                for (int i = 0; i < passes; i++) {
+                    try (Arena hashMapArena = Arena.ofConfined()) {
+                        long start = System.nanoTime();
+                        new CalculateAverage_tkowalcz2Unsafe.WorkerThread(null, hashMapArena, start).execute(hashMapArena, sample);
+                        bestNanos = Math.min(bestNanos, System.nanoTime() - start);
+                    }
+                }
+
+                System.out.println(bestNanos);
+            }
+        }
+
+        private static MemorySegment sample(MemorySegment inputData, long sampleSize) {
+            if (sampleSize >= inputData.byteSize()) {
+                return inputData;
+            }
+
+            return inputData.asSlice(0, CalculateAverage_tkowalcz.findPastNewline(inputData, sampleSize));
+        }
+    }
+}
@@ -0,0 +1,327 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Reads gzip files made of many independently compressed members, each of which tells its compressed size in a
+ * {@code BC} extra field (BGZF, as written by {@code bgzip} or {@code create_measurements_fast.sh <rows> --bgzf}).
+ * Member boundaries are found by reading headers alone, consecutive members are grouped into batches of about
+ * {@code -Dtkowalcz.bgzf.batchSize} uncompressed bytes (8MB by default) and each worker inflates the batches it claims
+ * into its own off-heap buffer with {@link Inflater}, so decompression runs on all workers, right before parsing.
+ * <p>
+ * Members do not end on row boundaries. Batch owns the rows following newlines it contains (and the first one of the
+ * file), so it skips everything up to its first newline and inflates as much of the next batch as it takes to reach
+ * the newline ending its last row. Rows are followed by at least {@link MappedWindows#ROW_MARGIN} bytes of the buffer.
+ * <p>
+ * {@link #open(Path, int)} falls back to a {@link StreamReader} with a single {@link GZIPInputStream} for other gzip
+ * files, which still parses on all workers. Uncompressed size of every member is checked, its CRC is not.
+ */
+public class BgzfReader implements BlockReader {
+
+    static final long DEFAULT_BATCH_SIZE = 8 * 1024 * 1024;
+
+    // Fixed part of the header: magic, compression method, flags, mtime, extra flags and OS
+    private static final int HEADER_SIZE = 10;
+    private static final int TRAILER_SIZE = 8;
+    private static final int FLAG_HCRC = 2;
+    private static final int FLAG_EXTRA = 4;
+    private static final int FLAG_NAME = 8;
+    private static final int FLAG_COMMENT = 16;
+
+    private static final ValueLayout.OfShort SHORT_LE = ValueLayout.JAVA_SHORT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+    private static final ValueLayout.OfInt INT_LE = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+    // Inflater does not accept buffers of closeable shared arenas, mapping and buffers are released when the reader is
+    // garbage collected
+    private final Arena arena = Arena.ofAuto();
+    private final MemorySegment compressed;
+
+    // Members, their compressed payloads and uncompressed sizes
+    private final long[] payloadOffsets;
+    private final int[] payloadSizes;
+    private final int[] uncompressedSizes;
+
+    // Index of the first member of each batch, followed by number of members
+    private final int[] batches;
+    private final long bufferSize;
+    private final AtomicInteger cursor = new AtomicInteger();
+    private final AtomicLong inflatedBytes = new AtomicLong();
+
+    private final Buffer[] buffers;
+
+    public BgzfReader(Path path, int workerCount, long batchSize) throws IOException {
+        this.compressed = MemoryMapping.map(path.toString(), arena);
+
+        List<long[]> members = new ArrayList<>();
+        long offset = 0;
+        while (offset < compressed.byteSize()) {
+            long[] member = member(compressed, offset);
+            if (member == null) {
+                throw new IOException(STR."Member at \{offset} of \{path} has no BGZF block size");
+            }
+            members.add(member);
+            offset += member[0];
+        }
+
+        this.payloadOffsets = new long[members.size()];
+        this.payloadSizes = new int[members.size()];
+        this.uncompressedSizes = new int[members.size()];
+        List<Integer> batchStarts = new ArrayList<>();
+        long batchBytes = batchSize;
+        long maxBatch = 0;
+        long maxMember = 0;
+        for (int i = 0; i < members.size(); i++) {
+            payloadOffsets[i] = members.get(i)[1];
+            payloadSizes[i] = (int) members.get(i)[2];
+            uncompressedSizes[i] = (int) members.get(i)[3];
+            maxMember = Math.max(maxMember, uncompressedSizes[i]);
+
+            if (batchBytes >= batchSize) {
+                batchStarts.add(i);
+                batchBytes = 0;
+            }
+            batchBytes += uncompressedSizes[i];
+            maxBatch = Math.max(maxBatch, batchBytes);
+        }
+        batchStarts.add(members.size());
+        this.batches = batchStarts.stream().mapToInt(Integer::intValue).toArray();
+
+        // Continuation of the last row takes part of a member, one more byte is needed for a missing final newline
+        this.bufferSize = maxBatch + maxMember + 1 + MappedWindows.ROW_MARGIN;
+        this.buffers = new Buffer[workerCount];
+    }
+
+    /**
+     * Reader of given gzip file, configured with system properties. Files that are not BGZF are inflated by a single
+     * thread feeding a {@link StreamReader}.
+     */
+    public static BlockReader open(Path path, int workerCount) throws IOException {
+        if (isBgzf(path)) {
+            return new BgzfReader(path, workerCount, Long.getLong("tkowalcz.bgzf.batchSize", DEFAULT_BATCH_SIZE));
+        }
+
+        return new StreamReader(
+                Channels.newChannel(new GZIPInputStream(Files.newInputStream(path), 64 * 1024)),
+                Integer.getInteger("tkowalcz.stream.blocks", 2 * workerCount + 2),
+                Long.getLong("tkowalcz.stream.blockSize", StreamReader.DEFAULT_BLOCK_SIZE));
+    }
+
+    /**
+     * Whether first member of the file has a BGZF block size.
+     */
+    public static boolean isBgzf(Path path) throws IOException {
+        try (Arena arena = Arena.ofConfined()) {
+            MemorySegment data = MemoryMapping.map(path.toString(), arena);
+            return data.byteSize() > 0 && member(data, 0) != null;
+        }
+    }
+
+    // Total size, payload offset, payload size and uncompressed size of the member at given offset, null when it has no
+    // BGZF block size
+    private static long[] member(MemorySegment data, long offset) throws IOException {
+        if (offset + HEADER_SIZE + 2 > data.byteSize()
+                || data.get(ValueLayout.JAVA_BYTE, offset) != (byte) 0x1f
+                || data.get(ValueLayout.JAVA_BYTE, offset + 1) != (byte) 0x8b
+                || data.get(ValueLayout.JAVA_BYTE, offset + 2) != 8) {
+            throw new IOException(STR."No gzip member at \{offset}");
+        }
+
+        int flags = data.get(ValueLayout.JAVA_BYTE, offset + 3);
+        if ((flags & FLAG_EXTRA) == 0) {
+            return null;
+        }
+
+        int extraSize = Short.toUnsignedInt(data.get(SHORT_LE, offset + HEADER_SIZE));
+        long extraEnd = offset + HEADER_SIZE + 2 + extraSize;
+        long size = -1;
+        for (long field = offset + HEADER_SIZE + 2; field + 4 <= extraEnd;) {
+            int fieldSize = Short.toUnsignedInt(data.get(SHORT_LE, field + 2));
+            if (data.get(ValueLayout.JAVA_BYTE, field) == 'B' && data.get(ValueLayout.JAVA_BYTE, field + 1) == 'C' && fieldSize == 2) {
+                size = Short.toUnsignedInt(data.get(SHORT_LE, field + 4)) + 1;
+            }
+            field += 4 + fieldSize;
+        }
+        if (size < 0) {
+            return null;
+        }
+
+        long payload = extraEnd;
+        for (int flag : new int[]{ FLAG_NAME, FLAG_COMMENT }) {
+            if ((flags & flag) != 0) {
+                while (data.get(ValueLayout.JAVA_BYTE, payload++) != 0) {
+                }
+            }
+        }
+        if ((flags & FLAG_HCRC) != 0) {
+            payload += 2;
+        }
+
+        long payloadSize = offset + size - TRAILER_SIZE - payload;
+        if (payloadSize < 0 || offset + size > data.byteSize()) {
+            throw new IOException(STR."Member at \{offset} is truncated");
+        }
+
+        return new long[]{ size, payload, payloadSize, Integer.toUnsignedLong(data.get(INT_LE, offset + size - 4)) };
+    }
+
+    @Override
+    public Block next(int worker) {
+        int batch = cursor.getAndIncrement();
+        if (batch >= batches.length - 1) {
+            return null;
+        }
+
+        Buffer buffer = buffers[worker];
+        if (buffer == null) {
+            buffer = new Buffer(arena.allocate(bufferSize, PreadReader.ALIGNMENT));
+            buffers[worker] = buffer;
+        }
+
+        try {
+            buffer.inflate(batch);
+        }
+        catch (DataFormatException e) {
+            throw new UncheckedIOException(new IOException(STR."Batch \{batch} is corrupted", e));
+        }
+        return buffer;
+    }
+
+    @Override
+    public String summary() {
+        return STR."BGZF, \{payloadOffsets.length} members in \{batches.length - 1} batches: \{compressed.byteSize() >> 20}MB inflated to \{inflatedBytes.get() >> 20}MB by workers";
+    }
+
+    @Override
+    public void close() {
+        for (Buffer buffer : buffers) {
+            if (buffer != null) {
+                buffer.inflater.end();
+            }
+        }
+    }
+
+    /**
+     * Buffer of a worker, reused for every batch it claims.
+     */
+    private final class Buffer implements Block {
+
+        private final MemorySegment data;
+        private final Inflater inflater = new Inflater(true);
+        private MemorySegment rows;
+
+        Buffer(MemorySegment data) {
+            this.data = data;
+        }
+
+        void inflate(int batch) throws DataFormatException {
+            long size = 0;
+            for (int member = batches[batch]; member < batches[batch + 1]; member++) {
+                size += inflateMember(member, size);
+            }
+
+            long firstNewline = indexOfNewline(0, size);
+            if (batch > 0 && firstNewline < 0) {
+                // Part of a row that started in the previous batch
+                rows = data.asSlice(0, 0);
+                return;
+            }
+
+            // Last row ends at the first newline of following members
+            long batchEnd = size;
+            long rowsEnd;
+            int member = batches[batch + 1];
+            while (true) {
+                long newline = indexOfNewline(batchEnd, size);
+                if (newline >= 0) {
+                    rowsEnd = newline + 1;
+                    break;
+                }
+                if (member == payloadOffsets.length) {
+                    // Last row of the file may come without a newline
+                    if (size > 0 && data.get(ValueLayout.JAVA_BYTE, size - 1) != '\n') {
+                        data.set(ValueLayout.JAVA_BYTE, size++, (byte) '\n');
+                    }
+                    rowsEnd = size;
+                    break;
+                }
+                if (size + uncompressedSizes[member] + 1 + MappedWindows.ROW_MARGIN > data.byteSize()) {
+                    throw new IllegalStateException(STR."Row at the end of batch \{batch} is longer than a member");
+                }
+
+                size += inflateMember(member++, size);
+            }
+
+            long rowsStart = batch == 0 ? 0 : firstNewline + 1;
+            rows = data.asSlice(rowsStart, Math.max(rowsEnd - rowsStart, 0));
+        }
+
+        private long indexOfNewline(long from, long to) {
+            for (long position = from; position < to; position++) {
+                if (data.get(ValueLayout.JAVA_BYTE, position) == '\n') {
+                    return position;
+                }
+            }
+
+            return -1;
+        }
+
+        private int inflateMember(int member, long offset) throws DataFormatException {
+            inflater.reset();
+            inflater.setInput(compressed.asSlice(payloadOffsets[member], payloadSizes[member]).asByteBuffer());
+
+            ByteBuffer target = data.asSlice(offset, uncompressedSizes[member]).asByteBuffer();
+            while (!inflater.finished()) {
+                if (inflater.inflate(target) == 0 && (inflater.needsInput() || !target.hasRemaining())) {
+                    break;
+                }
+            }
+            if (!inflater.finished() || target.position() != uncompressedSizes[member]) {
+                throw new DataFormatException(STR."Member \{member} inflated to \{target.position()} bytes instead of \{uncompressedSizes[member]}");
+            }
+
+            inflatedBytes.addAndGet(target.position());
+            return target.position();
+        }
+
+        @Override
+        public MemorySegment rows() {
+            return rows;
+        }
+
+        @Override
+        public void close() {
+            // Reused by the next batch of the worker
+        }
+    }
+}
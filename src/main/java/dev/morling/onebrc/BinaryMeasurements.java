@@ -0,0 +1,245 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Dictionary encoded binary form of {@code measurements.txt}, for repeated runs over the same data that should not pay
+ * for parsing (see {@code DistributeMicrobenchmark}, which this grew out of). All numbers are little endian:
+ * <ul>
+ * <li>64 byte header: magic {@code 1BRC.BIN}, int version, int rows per block, long row count, long offset of the
+ * first block, long offset of the dictionary, int station count, zeros,</li>
+ * <li>blocks of {@code rows per block} short station ids followed by as many short temperatures in tenths of a degree,
+ * the last block padded with zeros,</li>
+ * <li>dictionary: for every station id in order a short length and UTF-8 bytes of its name.</li>
+ * </ul>
+ * Each half of a block is a multiple of 32 bytes, so it can be read with 256-bit vector loads without a tail loop.
+ * Dictionary comes after the blocks so that the converter writes the file in one pass. Convert with
+ * {@code calculate_average_tkowalcz.sh --to-binary}.
+ */
+public final class BinaryMeasurements {
+
+    // "1BRC.BIN"
+    static final long MAGIC = 0x4E49422E43524231L;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 64;
+    static final int DEFAULT_BLOCK_ROWS = 16 * 1024;
+
+    // Station ids are shorts
+    static final int MAX_STATIONS = Short.MAX_VALUE + 1;
+
+    private static final ValueLayout.OfShort SHORT_LE = ValueLayout.JAVA_SHORT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+    private static final ValueLayout.OfInt INT_LE = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+    private static final ValueLayout.OfLong LONG_LE = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+    private final MemorySegment blocks;
+    private final int blockRows;
+    private final long rowCount;
+    private final List<String> stations;
+
+    private BinaryMeasurements(MemorySegment blocks, int blockRows, long rowCount, List<String> stations) {
+        this.blocks = blocks;
+        this.blockRows = blockRows;
+        this.rowCount = rowCount;
+        this.stations = stations;
+    }
+
+    /**
+     * Maps given binary file, which stays mapped until the arena is closed.
+     */
+    public static BinaryMeasurements open(Path path, Arena arena) throws IOException {
+        MemorySegment data = MemoryMapping.map(path.toString(), arena);
+        if (data.byteSize() < HEADER_SIZE || data.get(LONG_LE, 0) != MAGIC) {
+            throw new IOException(STR."\{path} is not a binary measurements file");
+        }
+        int version = data.get(INT_LE, 8);
+        if (version != VERSION) {
+            throw new IOException(STR."\{path} has version \{version}, only \{VERSION} is supported");
+        }
+
+        int blockRows = data.get(INT_LE, 12);
+        long rowCount = data.get(LONG_LE, 16);
+        long blocksOffset = data.get(LONG_LE, 24);
+        long dictionaryOffset = data.get(LONG_LE, 32);
+        int stationCount = data.get(INT_LE, 40);
+
+        List<String> stations = new ArrayList<>(stationCount);
+        long offset = dictionaryOffset;
+        for (int i = 0; i < stationCount; i++) {
+            int length = Short.toUnsignedInt(data.get(SHORT_LE, offset));
+            byte[] name = data.asSlice(offset + 2, length).toArray(ValueLayout.JAVA_BYTE);
+            stations.add(new String(name, StandardCharsets.UTF_8));
+            offset += 2 + length;
+        }
+
+        return new BinaryMeasurements(data.asSlice(blocksOffset, dictionaryOffset - blocksOffset), blockRows, rowCount, stations);
+    }
+
+    public int blockCount() {
+        return (int) ((rowCount + blockRows - 1) / blockRows);
+    }
+
+    /**
+     * Station ids of given block, followed by their temperatures at {@link #temperaturesOffset()}.
+     */
+    public MemorySegment block(int block) {
+        return blocks.asSlice((long) block * blockBytes(), blockBytes());
+    }
+
+    /**
+     * Number of rows in given block, the last one is padded to full size.
+     */
+    public int rows(int block) {
+        return (int) Math.min(blockRows, rowCount - (long) block * blockRows);
+    }
+
+    public long temperaturesOffset() {
+        return 2L * blockRows;
+    }
+
+    public List<String> stations() {
+        return stations;
+    }
+
+    public long rowCount() {
+        return rowCount;
+    }
+
+    private long blockBytes() {
+        return 4L * blockRows;
+    }
+
+    /**
+     * Converts text measurements into the binary form, returns number of rows.
+     */
+    public static long convert(Path text, Path binary, int blockRows) throws IOException {
+        if (blockRows <= 0 || blockRows % 16 != 0) {
+            throw new IllegalArgumentException(STR."Rows per block \{blockRows} must be a positive multiple of 16");
+        }
+
+        Map<String, Integer> ids = new HashMap<>();
+        List<byte[]> names = new ArrayList<>();
+        ByteBuffer block = ByteBuffer.allocateDirect(4 * blockRows).order(ByteOrder.LITTLE_ENDIAN);
+        long rowCount = 0;
+        int rowsInBlock = 0;
+
+        try (Arena arena = Arena.ofConfined();
+                FileChannel output = FileChannel.open(binary, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            MemorySegment input = MemoryMapping.map(text.toString(), arena);
+            output.position(HEADER_SIZE);
+
+            long position = 0;
+            while (position < input.byteSize()) {
+                long separator = position;
+                while (input.get(ValueLayout.JAVA_BYTE, separator) != ';') {
+                    separator++;
+                }
+
+                byte[] name = input.asSlice(position, separator - position).toArray(ValueLayout.JAVA_BYTE);
+                Integer id = ids.get(new String(name, StandardCharsets.UTF_8));
+                if (id == null) {
+                    if (names.size() == MAX_STATIONS) {
+                        throw new IllegalStateException(STR."More than \{MAX_STATIONS} stations in \{text}");
+                    }
+                    id = names.size();
+                    ids.put(new String(name, StandardCharsets.UTF_8), id);
+                    names.add(name);
+                }
+
+                // -99.9 to 99.9 with exactly one fractional digit
+                position = separator + 1;
+                boolean negative = input.get(ValueLayout.JAVA_BYTE, position) == '-';
+                if (negative) {
+                    position++;
+                }
+                int temperature = 0;
+                byte character;
+                // Last row may end at the end of file without a newline
+                while (position < input.byteSize() && (character = input.get(ValueLayout.JAVA_BYTE, position++)) != '\n') {
+                    if (character != '.') {
+                        temperature = temperature * 10 + (character - '0');
+                    }
+                }
+
+                block.putShort(2 * rowsInBlock, id.shortValue());
+                block.putShort(2 * (blockRows + rowsInBlock), (short) (negative ? -temperature : temperature));
+                rowCount++;
+                if (++rowsInBlock == blockRows) {
+                    writeFully(output, block.clear());
+                    rowsInBlock = 0;
+                }
+            }
+
+            if (rowsInBlock > 0) {
+                for (int i = rowsInBlock; i < blockRows; i++) {
+                    block.putShort(2 * i, (short) 0);
+                    block.putShort(2 * (blockRows + i), (short) 0);
+                }
+                writeFully(output, block.clear());
+            }
+
+            long dictionaryOffset = output.position();
+            for (byte[] name : names) {
+                ByteBuffer entry = ByteBuffer.allocate(2 + name.length).order(ByteOrder.LITTLE_ENDIAN);
+                entry.putShort((short) name.length).put(name);
+                writeFully(output, entry.flip());
+            }
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putLong(MAGIC)
+                    .putInt(VERSION)
+                    .putInt(blockRows)
+                    .putLong(rowCount)
+                    .putLong(HEADER_SIZE)
+                    .putLong(dictionaryOffset)
+                    .putInt(names.size());
+            output.position(0);
+            writeFully(output, header.clear());
+        }
+
+        return rowCount;
+    }
+
+    private static void writeFully(FileChannel output, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            output.write(buffer);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        Path text = Path.of(args.length > 0 ? args[0] : "measurements.txt");
+        Path binary = Path.of(args.length > 1 ? args[1] : "measurements.bin");
+
+        long start = System.nanoTime();
+        long rows = convert(text, binary, DEFAULT_BLOCK_ROWS);
+        System.out.println(STR."Converted \{rows} rows of \{text} into \{binary} in \{TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)}ms");
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Buffers passed between a reader thread and workers: free ones wait for the reader to fill them, ready ones for a
+ * worker to process them. Reader must end with {@link #finish(Throwable)} however it stops, even when it fails, as the
+ * end of input marker is what releases workers waiting in {@link #next()}.
+ */
+final class BlockHandoff<B extends BlockReader.Block> {
+
+    private final BlockingQueue<B> free;
+
+    // One more slot for the end of input marker
+    private final BlockingQueue<B> ready;
+    private final B endOfInput;
+
+    private volatile Throwable failure;
+
+    BlockHandoff(int capacity, B endOfInput) {
+        this.free = new ArrayBlockingQueue<>(capacity);
+        this.ready = new ArrayBlockingQueue<>(capacity + 1);
+        this.endOfInput = endOfInput;
+    }
+
+    /**
+     * Returns a buffer to the reader, called when it is created and when a worker closes the block.
+     */
+    void release(B buffer) {
+        free.add(buffer);
+    }
+
+    B takeFree() throws InterruptedException {
+        return free.take();
+    }
+
+    B pollFree() {
+        return free.poll();
+    }
+
+    void publish(B buffer) throws InterruptedException {
+        ready.put(buffer);
+    }
+
+    /**
+     * Called by the reader when it will not publish more buffers, with the exception that stopped it or null.
+     */
+    void finish(Throwable failure) {
+        this.failure = failure;
+        ready.add(endOfInput);
+    }
+
+    /**
+     * Next buffer for a worker or null at the end of input, rethrows failure of the reader.
+     */
+    B next() {
+        B buffer;
+        try {
+            buffer = ready.take();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+
+        if (buffer == endOfInput) {
+            // Leave the marker for other workers
+            ready.add(endOfInput);
+            if (failure instanceof IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            if (failure != null) {
+                throw new IllegalStateException("Reader failed", failure);
+            }
+
+            return null;
+        }
+
+        return buffer;
+    }
+}
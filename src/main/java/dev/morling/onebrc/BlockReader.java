@@ -0,0 +1,75 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.IOException;
+import java.lang.foreign.MemorySegment;
+
+/**
+ * Source of newline aligned blocks of rows, used by workers instead of a mapping of the whole input. Selected with
+ * {@code -Dtkowalcz.input}:
+ * <ul>
+ * <li>{@code mmap} - the default, whole file is mapped at once unless {@code -Dtkowalcz.mmapWindow} is set, see
+ * {@link MappedWindows},</li>
+ * <li>{@code pread} - blocks are read into off-heap buffers, see {@link PreadReader},</li>
+ * <li>{@code io_uring} - many reads are kept in flight with {@code io_uring}, see {@link IoUringReader},</li>
+ * <li>{@code stdin} - input is streamed from the standard input instead of the file, see {@link StreamReader}.</li>
+ * </ul>
+ */
+public interface BlockReader extends AutoCloseable {
+
+    /**
+     * Returns next block for given worker or null when the whole input was read. Block must be closed by the worker
+     * when its rows are processed.
+     */
+    Block next(int worker);
+
+    /**
+     * Reader for the input selected with system properties, null when the whole file should be mapped at once.
+     */
+    static BlockReader open(String fileName, int workerCount) throws IOException {
+        String input = System.getProperty("tkowalcz.input", "mmap");
+        return switch (input) {
+            case "mmap" -> {
+                long windowSize = MappedWindows.configuredWindowSize();
+                yield windowSize > 0 ? new MappedWindows(fileName, windowSize, Boolean.getBoolean("tkowalcz.mmapWindow.dropCache")) : null;
+            }
+            case "pread" -> PreadReader.open(fileName, workerCount);
+            case "io_uring" -> IoUringReader.open(fileName, workerCount);
+            case "stdin" -> StreamReader.stdin(workerCount);
+            default -> throw new IllegalArgumentException(STR."Unknown input \{input}, expected mmap, pread, io_uring or stdin");
+        };
+    }
+
+    /**
+     * What the reader did: bytes read, time, system calls and CPU time of its threads. Null when there is nothing to
+     * report.
+     */
+    default String summary() {
+        return null;
+    }
+
+    @Override
+    void close() throws IOException;
+
+    interface Block extends AutoCloseable {
+
+        MemorySegment rows();
+
+        @Override
+        void close();
+    }
+}
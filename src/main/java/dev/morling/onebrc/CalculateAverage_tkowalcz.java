@@ -19,27 +19,22 @@ import jdk.incubator.vector.*;
 import jdk.incubator.vector.Vector;
 
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.lang.foreign.Arena;
 import java.lang.foreign.MemorySegment;
 import java.lang.foreign.ValueLayout;
 import java.nio.ByteOrder;
-import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.util.*;
 import java.util.concurrent.*;
-import java.util.function.Function;
-import java.util.stream.Collectors;
-
-import static java.util.Arrays.stream;
+import java.util.stream.IntStream;
 
 /**
  * This solution has two (conscious) assumptions about the input data:
  * <ol>
  * <li>The measurements can be numbers in one of four forms: -XX.X, XX.X, -X.X, X.X</li>
- * <li>The city name fits into vector register (has at most 32 bytes). This is a soft requirement: I check for this
- * condition and will execute fallback if that is not the case, but I did not code the fallback.
+ * <li>The city name has at most 128 bytes. Names that do not fit into vector register (16, 32 or 64 bytes depending on
+ * the CPU) take a slower path that hashes and compares them using chained vector loads.
  * </li>
  * </ol>
  * <p>
@@ -52,7 +47,11 @@ public class CalculateAverage_tkowalcz {
 
     private static final String FILE = "measurements.txt";
 
-    private static final VectorSpecies<Byte> SPECIES = ByteVector.SPECIES_256;
+    // Widest species intrinsified on this CPU, see preferredSpecies()
+    static final VectorSpecies<Byte> SPECIES = preferredSpecies();
+    private static final VectorSpecies<Short> SHORT_SPECIES = SPECIES.vectorShape().withLanes(short.class);
+    private static final VectorSpecies<Integer> INT_SPECIES = SPECIES.vectorShape().withLanes(int.class);
+
     private static final Vector<Byte> ZERO = ByteVector.zero(SPECIES);
 
     private static final Vector<Byte> DELIMITER_VECTOR = SPECIES.broadcast(';');
@@ -60,20 +59,13 @@ public class CalculateAverage_tkowalcz {
     // Used to identify positions where vector containing temperature measurement has '-', '.' and '\n' characters.
     private static final Vector<Byte> ASCII_ZERO = SPECIES.broadcast('0');
 
-    static final VectorMask<Byte>[] CITY_LOOKUP_MASK = createMasks32();
+    static final VectorMask<Byte>[] CITY_LOOKUP_MASK = createCityMasks(SPECIES);
 
     // Values used to multiply digits of temperature measurement to get proper int. E.g. -12.3 will be multiplied by
     // 10th element (0, -100, -10, 0, -1) giving '-' * 0 + '1' * -100 + '2' * -10 + '.' * 0 + '3' * -1 = -123.
     // There are four combinations of possible mask results from comparing (less than) vector containing temperature
     // measurement with ASCII_ZERO. Hence, only four entries are populated.
-    private static final ShortVector[] STOI_MUL_LOOKUP = {
-            ShortVector.fromArray(ShortVector.SPECIES_256, new short[]{ 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0 }, 0),
-            ShortVector.fromArray(ShortVector.SPECIES_256, new short[]{ 0, -100, -10, 0, -1, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0 }, 0),
-            ShortVector.fromArray(ShortVector.SPECIES_256, new short[]{ 10, 0, 1, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0 }, 0),
-            ShortVector.fromArray(ShortVector.SPECIES_256, new short[]{ 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0 }, 0),
-            ShortVector.fromArray(ShortVector.SPECIES_256, new short[]{ 100, 10, 0, 1, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0 }, 0),
-            ShortVector.fromArray(ShortVector.SPECIES_256, new short[]{ 0, -10, 0, -1, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0 }, 0)
-    };
+    private static final ShortVector[] STOI_MUL_LOOKUP = createStoiMulLookup(SHORT_SPECIES);
 
     // We also need to know the size of temperature measurement in characters, lookup table works the same way as STOI_MUL_LOOKUP.
     private static final int[] STOI_SIZE_LOOKUP = { 0, 6, 4, 0, 5, 5 };
@@ -85,6 +77,15 @@ public class CalculateAverage_tkowalcz {
     // Mask to calculate "hashCode % TABLE_SIZE" without division (%).
     public static final int TABLE_SIZE_MASK = 0x400000 - 1;
 
+    static final VectorHash VECTOR_HASH = VectorHash.configured();
+
+    // City names longer than a vector are handled by a slow path that chains vector loads.
+    static final int MAX_CITY_NAME_SIZE = 128;
+
+    // Pumped loops stop this far from the end of their range, so that a row with the longest city name and its temperature
+    // can still be loaded with full vectors. Remaining rows are handled by the tail code.
+    static final int LOOP_END_MARGIN = MAX_CITY_NAME_SIZE + 2 * SPECIES.length();
+
     public static void main(String[] args) throws IOException, InterruptedException, ExecutionException {
 //        try (Arena arena = Arena.ofShared()) {
         long start = System.nanoTime();
@@ -94,25 +95,18 @@ public class CalculateAverage_tkowalcz {
         MemorySegment inputData = mmapDataFile(FILE, arena);
         List<MemorySegment> memorySegments = divideAlongNewlines(inputData, availableProcessors);
 
-        CompletionService<List<StatisticsAggregate>> completionService = new ExecutorCompletionService<>(
+        CompletionService<StatisticsAggregate[]> completionService = new ExecutorCompletionService<>(
                 Executors.newFixedThreadPool(
                         availableProcessors,
                         new DaemonThreadFactory()));
         memorySegments.forEach(slice -> completionService.submit(() -> execute(slice)));
 
-        TreeMap<String, StatisticsAggregate> results = new TreeMap<>();
+        List<StatisticsAggregate[]> dataTables = new ArrayList<>(memorySegments.size());
         for (int i = 0; i < memorySegments.size(); i++) {
-            List<StatisticsAggregate> result = completionService.take().get();
-            for (StatisticsAggregate statisticsAggregate : result) {
-                StatisticsAggregate node = statisticsAggregate;
-                do {
-                    results.merge(node.cityAsString(), node, StatisticsAggregate::merge);
-                    node = node.getNext();
-                } while (node != null);
-            }
+            dataTables.add(completionService.take().get());
         }
 
-        System.out.println(results);
+        System.out.println(results(mergeTables(dataTables)));
         long runtime = System.nanoTime() - start;
         System.out.println(STR."Runtime: \{TimeUnit.NANOSECONDS.toMillis(runtime)}ms");
 //        }
@@ -141,7 +135,10 @@ public class CalculateAverage_tkowalcz {
         return result;
     }
 
-    public static List<StatisticsAggregate> execute(MemorySegment inputData) {
+    /**
+     * Aggregates given newline aligned input into a table of chains indexed by hash of the city name.
+     */
+    public static StatisticsAggregate[] execute(MemorySegment inputData) {
         StatisticsAggregate[] dataTable = new StatisticsAggregate[TABLE_SIZE];
         long dataSize = inputData.byteSize();
 
@@ -154,120 +151,150 @@ public class CalculateAverage_tkowalcz {
         DoubleCursor doubleCursor = executeDoublePumped(inputData, dataTable, offset1, offset2, end1, end2);
         offset1 = executeSinglePumped(inputData, dataTable, doubleCursor.offset1(), end1);
         offset2 = executeSinglePumped(inputData, dataTable, doubleCursor.offset2(), end2);
-        Map<String, StatisticsAggregate> tailResults1 = executeScalar(inputData, offset1, end1);
-        Map<String, StatisticsAggregate> tailResults2 = executeScalar(inputData, offset2, end2);
-
-        List<StatisticsAggregate> result = filterEmptyEntries(dataTable);
-        result.addAll(tailResults1.values());
-        result.addAll(tailResults2.values());
+        executeTail(inputData, dataTable, offset1, end1);
+        executeTail(inputData, dataTable, offset2, end2);
 
-        return result;
+        return dataTable;
     }
 
-    // I'm really tired at this point
-    static Map<String, StatisticsAggregate> executeScalar(MemorySegment inputData, long offset, long end) {
-        // Why getting byte data from a memory segment is so hard?
-        byte[] inputDataArray = new byte[(int) (end - offset)];
-        for (int i = 0; i < inputDataArray.length; i++) {
-            inputDataArray[i] = inputData.get(ValueLayout.JAVA_BYTE, offset + i);
-        }
-
-        String inputString = new String(inputDataArray, StandardCharsets.UTF_8);
-        if (inputString.isEmpty()) {
-            return Collections.emptyMap();
-        }
+    /**
+     * Processes the last rows of a cursor range, the ones that pumped loops left out because full vector loads could run
+     * past the end of the data. Loads are masked to the range, so the bytes past the end are seen as zeros. This does not
+     * change the result: the delimiter and the first three characters of the measurement are always within a row and
+     * multipliers past the measurement are zero. Parsing is the same as in the pumped loops.
+     */
+    static void executeTail(MemorySegment inputData, StatisticsAggregate[] dataTable, long offset, long end) {
+        while (offset < end) {
+            VectorMask<Byte> inRange = SPECIES.indexInRange(offset, end);
+            Vector<Byte> byteVector = ByteVector.fromMemorySegment(SPECIES, inputData, offset, ByteOrder.nativeOrder(), inRange);
+            int firstDelimiter = byteVector.compare(VectorOperators.EQ, DELIMITER_VECTOR).firstTrue();
+
+            StatisticsAggregate statisticsAggregate;
+            if (firstDelimiter < SPECIES.length()) {
+                VectorMask<Byte> hashMask = CITY_LOOKUP_MASK[firstDelimiter];
+                Vector<Byte> hashInput = ZERO.blend(byteVector, hashMask);
+
+                int perfectHash32 = VECTOR_HASH.hash(hashInput);
+                int index = perfectHash32 & TABLE_SIZE_MASK;
+
+                statisticsAggregate = dataTable[index];
+                if (statisticsAggregate == null) {
+                    byte[] city = new byte[SPECIES.length()];
+                    hashInput.reinterpretAsBytes().intoArray(city, 0, hashMask);
+
+                    statisticsAggregate = new StatisticsAggregate(city, hashMask.trueCount());
+                    dataTable[index] = statisticsAggregate;
+                }
+                else {
+                    ByteVector cityVector = ByteVector.fromArray(SPECIES, statisticsAggregate.getCity(), 0);
+                    if (!cityVector.compare(VectorOperators.EQ, hashInput).allTrue()) {
+                        statisticsAggregate = findCityInChain(statisticsAggregate, hashInput, hashMask);
+                    }
+                }
+            }
+            else {
+                statisticsAggregate = findLongCity(inputData, dataTable, offset);
+                firstDelimiter = statisticsAggregate.getCityLength();
+            }
+            offset += firstDelimiter + 1;
 
-        String[] lines = inputString.split("\n");
-        return stream(lines)
-                .map(line -> {
-                    String[] cityAndTemperature = line.split(";");
+            inRange = SPECIES.indexInRange(offset, end);
+            byteVector = ByteVector.fromMemorySegment(SPECIES, inputData, offset, ByteOrder.nativeOrder(), inRange);
+            VectorMask<Byte> mask = byteVector.compare(VectorOperators.LT, ASCII_ZERO);
+            int lookupIndex = (int) (mask.toLong() & 0x07);
 
-                    byte[] cityBytes = cityAndTemperature[0].getBytes(StandardCharsets.UTF_8);
-                    StatisticsAggregate aggregate = new StatisticsAggregate(cityBytes, cityBytes.length);
+            long value = byteVector
+                    .sub(ASCII_ZERO)
+                    .castShape(SHORT_SPECIES, 0)
+                    .mul(STOI_MUL_LOOKUP[lookupIndex])
+                    .reduceLanesToLong(VectorOperators.ADD);
 
-                    long temperature = (long) (Float.parseFloat(cityAndTemperature[1]) * 10);
-                    return aggregate.accept(temperature);
-                })
-                .collect(Collectors.toMap(StatisticsAggregate::cityAsString, Function.identity(), StatisticsAggregate::merge));
+            statisticsAggregate.accept(value);
+            offset += STOI_SIZE_LOOKUP[lookupIndex];
+        }
     }
 
     public static DoubleCursor executeDoublePumped(MemorySegment inputData, StatisticsAggregate[] dataTable, long offset1, long end1, long offset2, long end2) {
-        end1 -= 2L * SPECIES.length();
-        end2 -= 2L * SPECIES.length();
+        end1 -= LOOP_END_MARGIN;
+        end2 -= LOOP_END_MARGIN;
 
         while (offset1 < end1 && offset2 < end2) {
             Vector<Byte> byteVector1 = SPECIES.fromMemorySegment(inputData, offset1, ByteOrder.nativeOrder());
             // System.out.println(toString(byteVector1));
             int firstDelimiter1 = byteVector1.compare(VectorOperators.EQ, DELIMITER_VECTOR).firstTrue();
-            offset1 += firstDelimiter1 + 1;
 
             Vector<Byte> byteVector2 = SPECIES.fromMemorySegment(inputData, offset2, ByteOrder.nativeOrder());
             int firstDelimiter2 = byteVector2.compare(VectorOperators.EQ, DELIMITER_VECTOR).firstTrue();
-            offset2 += firstDelimiter2 + 1;
 
-            if (firstDelimiter1 == 32) {
-                // Slow path - need to reimplement all logic in a scalar way, but it does not have to exact -
-                // this string will always hit this path
-                // System.out.println("Unsupported city name exceeding \{SPECIES.length()} bytes. Starts with \{toString(byteVector1)}");
-            }
-
-            VectorMask<Byte> hashMask1 = CITY_LOOKUP_MASK[firstDelimiter1];
-            Vector<Byte> hashInput1 = ZERO.blend(byteVector1, hashMask1);
+            StatisticsAggregate statisticsAggregate_1;
+            if (firstDelimiter1 < SPECIES.length()) {
+                VectorMask<Byte> hashMask1 = CITY_LOOKUP_MASK[firstDelimiter1];
+                Vector<Byte> hashInput1 = ZERO.blend(byteVector1, hashMask1);
 
-            int perfectHash32_1 = hashInput1.reinterpretAsInts().reduceLanes(VectorOperators.ADD);
-            int index1 = perfectHash32_1 & TABLE_SIZE_MASK;
+                int perfectHash32_1 = VECTOR_HASH.hash(hashInput1);
+                int index1 = perfectHash32_1 & TABLE_SIZE_MASK;
 
-            StatisticsAggregate statisticsAggregate_1 = dataTable[index1];
-            if (statisticsAggregate_1 == null) {
-                byte[] city = new byte[SPECIES.length()];
-                hashInput1.reinterpretAsBytes().intoArray(city, 0, hashMask1);
+                statisticsAggregate_1 = dataTable[index1];
+                if (statisticsAggregate_1 == null) {
+                    byte[] city = new byte[SPECIES.length()];
+                    hashInput1.reinterpretAsBytes().intoArray(city, 0, hashMask1);
 
-                statisticsAggregate_1 = new StatisticsAggregate(city, hashMask1.trueCount());
-                dataTable[index1] = statisticsAggregate_1;
-            }
-            else {
-                ByteVector cityVector = ByteVector.fromArray(ByteVector.SPECIES_256, statisticsAggregate_1.getCity(), 0);
-                if (!cityVector.compare(VectorOperators.EQ, hashInput1).allTrue()) {
-                    // Very slow path: linked list of collisions
-                    statisticsAggregate_1 = findCityInChain(statisticsAggregate_1, hashInput1, hashMask1);
+                    statisticsAggregate_1 = new StatisticsAggregate(city, hashMask1.trueCount());
+                    dataTable[index1] = statisticsAggregate_1;
+                }
+                else {
+                    ByteVector cityVector = ByteVector.fromArray(SPECIES, statisticsAggregate_1.getCity(), 0);
+                    if (!cityVector.compare(VectorOperators.EQ, hashInput1).allTrue()) {
+                        // Very slow path: linked list of collisions
+                        statisticsAggregate_1 = findCityInChain(statisticsAggregate_1, hashInput1, hashMask1);
+                    }
                 }
             }
-
-            if (firstDelimiter2 == 32) {
-                // Slow path - need to reimplement all logic in a scalar way, but it does not have to exact -
-                // this string will always hit this path
-                // System.out.println("Unsupported city name exceeding \{SPECIES.length()} bytes. Starts with \{toString(byteVector2)}");
+            else {
+                // Slow path: city name does not fit into vector register, it is hashed and compared using chained loads
+                statisticsAggregate_1 = findLongCity(inputData, dataTable, offset1);
+                firstDelimiter1 = statisticsAggregate_1.getCityLength();
             }
+            offset1 += firstDelimiter1 + 1;
 
-            VectorMask<Byte> hashMask2 = CITY_LOOKUP_MASK[firstDelimiter2];
-            Vector<Byte> hashInput2 = ZERO.blend(byteVector2, hashMask2);
+            StatisticsAggregate statisticsAggregate_2;
+            if (firstDelimiter2 < SPECIES.length()) {
+                VectorMask<Byte> hashMask2 = CITY_LOOKUP_MASK[firstDelimiter2];
+                Vector<Byte> hashInput2 = ZERO.blend(byteVector2, hashMask2);
 
-            int perfectHash32_2 = hashInput2.reinterpretAsInts().reduceLanes(VectorOperators.ADD);
-            int index2 = perfectHash32_2 & TABLE_SIZE_MASK;
+                int perfectHash32_2 = VECTOR_HASH.hash(hashInput2);
+                int index2 = perfectHash32_2 & TABLE_SIZE_MASK;
 
-            StatisticsAggregate statisticsAggregate_2 = dataTable[index2];
-            if (statisticsAggregate_2 == null) {
-                byte[] city = new byte[SPECIES.length()];
-                hashInput2.reinterpretAsBytes().intoArray(city, 0, hashMask2);
+                statisticsAggregate_2 = dataTable[index2];
+                if (statisticsAggregate_2 == null) {
+                    byte[] city = new byte[SPECIES.length()];
+                    hashInput2.reinterpretAsBytes().intoArray(city, 0, hashMask2);
 
-                statisticsAggregate_2 = new StatisticsAggregate(city, hashMask2.trueCount());
-                dataTable[index2] = statisticsAggregate_2;
+                    statisticsAggregate_2 = new StatisticsAggregate(city, hashMask2.trueCount());
+                    dataTable[index2] = statisticsAggregate_2;
+                }
+                else {
+                    ByteVector cityVector = ByteVector.fromArray(SPECIES, statisticsAggregate_2.getCity(), 0);
+                    if (!cityVector.compare(VectorOperators.EQ, hashInput2).allTrue()) {
+                        // Very slow path: linked list of collisions
+                        statisticsAggregate_2 = findCityInChain(statisticsAggregate_2, hashInput2, hashMask2);
+                    }
+                }
             }
             else {
-                ByteVector cityVector = ByteVector.fromArray(ByteVector.SPECIES_256, statisticsAggregate_2.getCity(), 0);
-                if (!cityVector.compare(VectorOperators.EQ, hashInput2).allTrue()) {
-                    // Very slow path: linked list of collisions
-                    statisticsAggregate_2 = findCityInChain(statisticsAggregate_2, hashInput2, hashMask2);
-                }
+                statisticsAggregate_2 = findLongCity(inputData, dataTable, offset2);
+                firstDelimiter2 = statisticsAggregate_2.getCityLength();
             }
+            offset2 += firstDelimiter2 + 1;
 
-            // byteVector1 = SPECIES.fromMemorySegment(inputData, offset1, ByteOrder.nativeOrder());
+            // Temperature is loaded again as it may not be part of the city vector (long city names).
+            byteVector1 = SPECIES.fromMemorySegment(inputData, offset1, ByteOrder.nativeOrder());
             VectorMask<Byte> mask1 = byteVector1.compare(VectorOperators.LT, ASCII_ZERO);
-            int lookupIndex1 = (int) ((mask1.toLong() >> (firstDelimiter1 + 1)) & 0x07);
+            int lookupIndex1 = (int) (mask1.toLong() & 0x07);
 
             long value = byteVector1
                     .sub(ASCII_ZERO)
-                    .castShape(ShortVector.SPECIES_256, 0)
+                    .castShape(SHORT_SPECIES, 0)
                     .mul(STOI_MUL_LOOKUP[lookupIndex1])
                     .reduceLanesToLong(VectorOperators.ADD);
 
@@ -275,13 +302,13 @@ public class CalculateAverage_tkowalcz {
             offset1 += STOI_SIZE_LOOKUP[lookupIndex1];
             // System.out.println(offset1);
 
-            // byteVector2 = SPECIES.fromMemorySegment(inputData, offset2, ByteOrder.nativeOrder());
+            byteVector2 = SPECIES.fromMemorySegment(inputData, offset2, ByteOrder.nativeOrder());
             VectorMask<Byte> mask2 = byteVector2.compare(VectorOperators.LT, ASCII_ZERO);
-            int lookupIndex2 = (int) ((mask2.toLong() >> (firstDelimiter2 + 1)) & 0x07);
+            int lookupIndex2 = (int) (mask2.toLong() & 0x07);
 
             value = byteVector2
                     .sub(ASCII_ZERO)
-                    .castShape(ShortVector.SPECIES_256, 0)
+                    .castShape(SHORT_SPECIES, 0)
                     .mul(STOI_MUL_LOOKUP[lookupIndex2])
                     .reduceLanesToLong(VectorOperators.ADD);
 
@@ -296,47 +323,48 @@ public class CalculateAverage_tkowalcz {
     }
 
     public static long executeSinglePumped(MemorySegment inputData, StatisticsAggregate[] dataTable, long offset1, long end1) {
-        end1 -= 2 * SPECIES.length();
+        end1 -= LOOP_END_MARGIN;
         while (offset1 < end1) {
             Vector<Byte> byteVector1 = SPECIES.fromMemorySegment(inputData, offset1, ByteOrder.nativeOrder());
             int firstDelimiter1 = byteVector1.compare(VectorOperators.EQ, DELIMITER_VECTOR).firstTrue();
-            offset1 += firstDelimiter1 + 1;
 
-            if (firstDelimiter1 == 32) {
-                // Slow path - need to reimplement all logic in a scalar way, but it does not have to exact -
-                // this string will always hit this path
-                // System.out.println("Unsupported city name exceeding \{SPECIES.length()} bytes. Starts with \{toString(byteVector1)}");
-            }
-
-            VectorMask<Byte> hashMask1 = CITY_LOOKUP_MASK[firstDelimiter1];
-            Vector<Byte> hashInput1 = ZERO.blend(byteVector1, hashMask1);
+            StatisticsAggregate statisticsAggregate_1;
+            if (firstDelimiter1 < SPECIES.length()) {
+                VectorMask<Byte> hashMask1 = CITY_LOOKUP_MASK[firstDelimiter1];
+                Vector<Byte> hashInput1 = ZERO.blend(byteVector1, hashMask1);
 
-            int perfectHash32_1 = hashInput1.reinterpretAsInts().reduceLanes(VectorOperators.ADD);
-            int index1 = perfectHash32_1 & TABLE_SIZE_MASK;
+                int perfectHash32_1 = VECTOR_HASH.hash(hashInput1);
+                int index1 = perfectHash32_1 & TABLE_SIZE_MASK;
 
-            StatisticsAggregate statisticsAggregate_1 = dataTable[index1];
-            if (statisticsAggregate_1 == null) {
-                byte[] city = new byte[SPECIES.length()];
-                hashInput1.reinterpretAsBytes().intoArray(city, 0, hashMask1);
+                statisticsAggregate_1 = dataTable[index1];
+                if (statisticsAggregate_1 == null) {
+                    byte[] city = new byte[SPECIES.length()];
+                    hashInput1.reinterpretAsBytes().intoArray(city, 0, hashMask1);
 
-                statisticsAggregate_1 = new StatisticsAggregate(city, hashMask1.trueCount());
-                dataTable[index1] = statisticsAggregate_1;
+                    statisticsAggregate_1 = new StatisticsAggregate(city, hashMask1.trueCount());
+                    dataTable[index1] = statisticsAggregate_1;
+                }
+                else {
+                    ByteVector cityVector = ByteVector.fromArray(SPECIES, statisticsAggregate_1.getCity(), 0);
+                    if (!cityVector.compare(VectorOperators.EQ, hashInput1).allTrue()) {
+                        // Very slow path: linked list of collisions
+                        statisticsAggregate_1 = findCityInChain(statisticsAggregate_1, hashInput1, hashMask1);
+                    }
+                }
             }
             else {
-                ByteVector cityVector = ByteVector.fromArray(ByteVector.SPECIES_256, statisticsAggregate_1.getCity(), 0);
-                if (!cityVector.compare(VectorOperators.EQ, hashInput1).allTrue()) {
-                    // Very slow path: linked list of collisions
-                    statisticsAggregate_1 = findCityInChain(statisticsAggregate_1, hashInput1, hashMask1);
-                }
+                statisticsAggregate_1 = findLongCity(inputData, dataTable, offset1);
+                firstDelimiter1 = statisticsAggregate_1.getCityLength();
             }
+            offset1 += firstDelimiter1 + 1;
 
-            // byteVector1 = SPECIES.fromMemorySegment(inputData, offset1, ByteOrder.nativeOrder());
+            byteVector1 = SPECIES.fromMemorySegment(inputData, offset1, ByteOrder.nativeOrder());
             VectorMask<Byte> mask1 = byteVector1.compare(VectorOperators.LT, ASCII_ZERO);
-            int lookupIndex1 = (int) ((mask1.toLong() >> (firstDelimiter1 + 1)) & 0x07);
+            int lookupIndex1 = (int) (mask1.toLong() & 0x07);
 
             long value = byteVector1
                     .sub(ASCII_ZERO)
-                    .castShape(ShortVector.SPECIES_256, 0)
+                    .castShape(SHORT_SPECIES, 0)
                     .mul(STOI_MUL_LOOKUP[lookupIndex1])
                     .reduceLanesToLong(VectorOperators.ADD);
 
@@ -347,21 +375,68 @@ public class CalculateAverage_tkowalcz {
         return offset1;
     }
 
-    private static List<StatisticsAggregate> filterEmptyEntries(StatisticsAggregate[] dataTable) {
-        List<StatisticsAggregate> result = new ArrayList<>(500);
-        for (StatisticsAggregate statisticsAggregate : dataTable) {
-            if (statisticsAggregate != null) {
-                result.add(statisticsAggregate);
+    /**
+     * Combines tables of all workers into the first one, pairwise in rounds like
+     * {@code CalculateAverage_tkowalcz2Unsafe.mergeTables}: log2(n) rounds of merges of disjoint pairs run in parallel.
+     */
+    static StatisticsAggregate[] mergeTables(List<StatisticsAggregate[]> dataTables) {
+        for (int stride = 1; stride < dataTables.size(); stride *= 2) {
+            int distance = stride;
+            IntStream.range(0, (dataTables.size() + 2 * distance - 1) / (2 * distance))
+                    .map(pair -> pair * 2 * distance)
+                    .filter(target -> target + distance < dataTables.size())
+                    .parallel()
+                    .forEach(target -> mergeTable(dataTables.get(target), dataTables.get(target + distance)));
+        }
+
+        return dataTables.getFirst();
+    }
+
+    /**
+     * Adds cities of other table to the given one. Both tables hash the same way, so a city is in the chain with the same
+     * index in both and is matched on its raw name bytes, nothing is decoded.
+     */
+    static void mergeTable(StatisticsAggregate[] dataTable, StatisticsAggregate[] other) {
+        for (int index = 0; index < other.length; index++) {
+            for (StatisticsAggregate otherNode = other[index]; otherNode != null; otherNode = otherNode.getNext()) {
+                StatisticsAggregate node = dataTable[index];
+                while (node != null && !node.sameCity(otherNode)) {
+                    node = node.getNext();
+                }
+
+                if (node == null) {
+                    // Node of the other table is still linked to its chain, so it gets a copy
+                    node = new StatisticsAggregate(otherNode.getCity(), otherNode.getCityLength());
+                    if (dataTable[index] == null) {
+                        dataTable[index] = node;
+                    }
+                    else {
+                        dataTable[index].attachLast(node);
+                    }
+                }
+                node.mergeFrom(otherNode);
+            }
+        }
+    }
+
+    /**
+     * Results of all cities of a table, name of each one is decoded once.
+     */
+    static TreeMap<String, StatisticsAggregate> results(StatisticsAggregate[] dataTable) {
+        TreeMap<String, StatisticsAggregate> results = new TreeMap<>();
+        for (StatisticsAggregate head : dataTable) {
+            for (StatisticsAggregate node = head; node != null; node = node.getNext()) {
+                results.put(node.cityAsString(), node);
             }
         }
 
-        return result;
+        return results;
     }
 
     static StatisticsAggregate findCityInChain(StatisticsAggregate startingNode, Vector<Byte> hashInput, VectorMask<Byte> hashMask) {
         StatisticsAggregate node = startingNode.getNext();
         while (node != null) {
-            ByteVector cityVector = ByteVector.fromArray(ByteVector.SPECIES_256, node.getCity(), 0);
+            ByteVector cityVector = ByteVector.fromArray(SPECIES, node.getCity(), 0);
             if (!cityVector.compare(VectorOperators.EQ, hashInput).allTrue()) {
                 node = node.getNext();
             }
@@ -375,6 +450,100 @@ public class CalculateAverage_tkowalcz {
         return startingNode.attachLast(new StatisticsAggregate(city, hashMask.trueCount()));
     }
 
+    static StatisticsAggregate findLongCity(MemorySegment inputData, StatisticsAggregate[] dataTable, long offset) {
+        long lengthAndHash = hashLongCity(inputData, offset);
+        int cityLength = (int) (lengthAndHash >>> 32);
+        int index = (int) lengthAndHash & TABLE_SIZE_MASK;
+
+        StatisticsAggregate node = dataTable[index];
+        if (node == null) {
+            node = newLongCity(inputData, offset, cityLength);
+            dataTable[index] = node;
+            return node;
+        }
+
+        while (true) {
+            // Short city names are never longer than a vector, so comparing lengths first keeps us within their arrays
+            if (node.getCityLength() == cityLength
+                    && longCityEquals(MemorySegment.ofArray(node.getCity()), 0, inputData, offset, cityLength)) {
+                return node;
+            }
+
+            if (node.getNext() == null) {
+                return node.attachLast(newLongCity(inputData, offset, cityLength));
+            }
+
+            node = node.getNext();
+        }
+    }
+
+    private static StatisticsAggregate newLongCity(MemorySegment inputData, long offset, int cityLength) {
+        byte[] city = new byte[MAX_CITY_NAME_SIZE];
+        MemorySegment.copy(inputData, ValueLayout.JAVA_BYTE, offset, city, 0, cityLength);
+        return new StatisticsAggregate(city, cityLength);
+    }
+
+    /**
+     * Slow path for city names that do not fit into a single vector. Looks for the delimiter using chained loads of
+     * up to {@link #MAX_CITY_NAME_SIZE} bytes, sums them as int lanes and hashes the sum with {@link #VECTOR_HASH}.
+     *
+     * @return city name length in upper 32 bits and hash in lower 32 bits.
+     */
+    static long hashLongCity(MemorySegment inputData, long offset) {
+        Vector<Integer> hashAccumulator = IntVector.zero(INT_SPECIES);
+        for (int chunkOffset = 0; chunkOffset < MAX_CITY_NAME_SIZE; chunkOffset += SPECIES.length()) {
+            // Masked load so that we never read past the end of the input, this is not a hot path
+            VectorMask<Byte> inRange = SPECIES.indexInRange(offset + chunkOffset, inputData.byteSize());
+            Vector<Byte> chunk = ByteVector.fromMemorySegment(SPECIES, inputData, offset + chunkOffset, ByteOrder.nativeOrder(), inRange);
+
+            int delimiter = chunk.compare(VectorOperators.EQ, DELIMITER_VECTOR).firstTrue();
+            if (delimiter < SPECIES.length()) {
+                chunk = ZERO.blend(chunk, CITY_LOOKUP_MASK[delimiter]);
+                hashAccumulator = hashAccumulator.add(chunk.reinterpretAsInts());
+
+                long cityLength = chunkOffset + delimiter;
+                return (cityLength << 32) | (VECTOR_HASH.hash(hashAccumulator.reinterpretAsBytes()) & 0xFFFFFFFFL);
+            }
+
+            hashAccumulator = hashAccumulator.add(chunk.reinterpretAsInts());
+        }
+
+        throw new IllegalStateException(STR."Unsupported city name exceeding \{MAX_CITY_NAME_SIZE} bytes at offset \{offset}");
+    }
+
+    /**
+     * Same hash as {@link #hashLongCity} but for a name of known length that is not followed by a delimiter, e.g. one
+     * already stored in a table.
+     */
+    static int hashLongCityName(MemorySegment segment, long offset, int cityLength) {
+        Vector<Integer> hashAccumulator = IntVector.zero(INT_SPECIES);
+        for (int chunkOffset = 0; chunkOffset < cityLength; chunkOffset += SPECIES.length()) {
+            VectorMask<Byte> inCity = SPECIES.indexInRange(chunkOffset, cityLength);
+            Vector<Byte> chunk = ByteVector.fromMemorySegment(SPECIES, segment, offset + chunkOffset, ByteOrder.nativeOrder(), inCity);
+            hashAccumulator = hashAccumulator.add(chunk.reinterpretAsInts());
+        }
+
+        return VECTOR_HASH.hash(hashAccumulator.reinterpretAsBytes());
+    }
+
+    /**
+     * Compares city name stored in a table with the one in input data using chained vector loads. Caller must check that
+     * lengths are equal.
+     */
+    static boolean longCityEquals(MemorySegment table, long tableOffset, MemorySegment inputData, long offset, int cityLength) {
+        for (int chunkOffset = 0; chunkOffset < cityLength; chunkOffset += SPECIES.length()) {
+            VectorMask<Byte> inCity = SPECIES.indexInRange(chunkOffset, cityLength);
+            Vector<Byte> expected = ByteVector.fromMemorySegment(SPECIES, table, tableOffset + chunkOffset, ByteOrder.nativeOrder(), inCity);
+            Vector<Byte> actual = ByteVector.fromMemorySegment(SPECIES, inputData, offset + chunkOffset, ByteOrder.nativeOrder(), inCity);
+
+            if (!expected.compare(VectorOperators.EQ, actual).allTrue()) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
     public static long findPastNewline(MemorySegment inputData, long position) {
         while (inputData.get(ValueLayout.JAVA_BYTE, position) != '\n') {
             position++;
@@ -393,19 +562,58 @@ public class CalculateAverage_tkowalcz {
     }
 
     private static MemorySegment mmapDataFile(String fileName, Arena arena) throws IOException {
-        try (RandomAccessFile file = new RandomAccessFile(fileName, "r");
-                FileChannel channel = file.getChannel()) {
-            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), arena);
+        return MemoryMapping.map(fileName, arena);
+    }
+
+    /**
+     * Picks vector species for city names based on what is intrinsified on this CPU, so hosts without AVX-2 get 128-bit
+     * vectors instead of slow Java code emulating 256-bit ones. AVX-512 is not picked automatically: 64-byte entries
+     * make the tables twice as large and on the challenge data set both engines were slower with them (see
+     * {@code VectorSpeciesMicrobenchmark}). Width can be forced with {@code -Dtkowalcz.vectorBits=128|256|512}.
+     */
+    static VectorSpecies<Byte> preferredSpecies() {
+        int preferredBits = Math.min(VectorSpecies.ofPreferred(byte.class).vectorBitSize(), 256);
+        int bits = Integer.getInteger("tkowalcz.vectorBits", preferredBits);
+
+        // Temperature parsing needs at least 5 short lanes
+        return VectorShape.forBitSize(Math.max(bits, 128)).withLanes(byte.class);
+    }
+
+    // Element n selects first n lanes of a vector, there is one element for every possible delimiter position.
+    static VectorMask<Byte>[] createCityMasks(VectorSpecies<Byte> species) {
+        VectorMask<Byte>[] result = new VectorMask[species.length() + 1];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = species.indexInRange(0, i);
         }
+
+        return result;
+    }
+
+    static ShortVector[] createStoiMulLookup(VectorSpecies<Short> species) {
+        short[][] multipliers = {
+                {},
+                { 0, -100, -10, 0, -1 },
+                { 10, 0, 1 },
+                {},
+                { 100, 10, 0, 1 },
+                { 0, -10, 0, -1 }
+        };
+
+        ShortVector[] result = new ShortVector[multipliers.length];
+        for (int i = 0; i < multipliers.length; i++) {
+            result[i] = ShortVector.fromArray(species, Arrays.copyOf(multipliers[i], species.length()), 0);
+        }
+
+        return result;
     }
 
     public static VectorMask<Byte>[] createMasks32() {
         VectorMask<Byte>[] result = new VectorMask[33];
-        result[0] = SPECIES.maskAll(false);
+        result[0] = ByteVector.SPECIES_256.maskAll(false);
 
         int maskSource = 0x1;
         for (int i = 1; i < 33; i++) {
-            result[i] = VectorMask.fromLong(SPECIES, maskSource);
+            result[i] = VectorMask.fromLong(ByteVector.SPECIES_256, maskSource);
             maskSource <<= 1;
             maskSource += 1;
         }
@@ -453,6 +661,10 @@ public class CalculateAverage_tkowalcz {
             return city;
         }
 
+        public int getCityLength() {
+            return cityLength;
+        }
+
         public short getCityId() {
             return cityId;
         }
@@ -486,6 +698,21 @@ public class CalculateAverage_tkowalcz {
             return next;
         }
 
+        public boolean sameCity(StatisticsAggregate other) {
+            return cityLength == other.cityLength && Arrays.equals(city, 0, cityLength, other.city, 0, cityLength);
+        }
+
+        /**
+         * Adds statistics of other aggregate of the same city to this one.
+         */
+        public void mergeFrom(StatisticsAggregate other) {
+            min = Math.min(min, other.min);
+            max = Math.max(max, other.max);
+
+            sum += other.sum;
+            count += other.count;
+        }
+
         public static StatisticsAggregate merge(StatisticsAggregate one, StatisticsAggregate other) {
             StatisticsAggregate result = new StatisticsAggregate(one.city, one.cityLength);
             result.min = Math.min(one.min, other.min);
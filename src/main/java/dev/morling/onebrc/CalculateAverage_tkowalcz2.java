@@ -19,13 +19,11 @@ import jdk.incubator.vector.Vector;
 import jdk.incubator.vector.*;
 
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.lang.foreign.Arena;
 import java.lang.foreign.MemorySegment;
 import java.lang.foreign.ValueLayout;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.*;
@@ -36,8 +34,8 @@ import static java.util.Arrays.stream;
  * This solution has two (conscious) assumptions about the input data:
  * <ol>
  * <li>The measurements can be numbers in one of four forms: -XX.X, XX.X, -X.X, X.X</li>
- * <li>The city name fits into vector register (has at most 32 bytes). This is a soft requirement: I check for this
- * condition and will execute fallback if that is not the case, but I did not code the fallback.
+ * <li>The city name has at most 128 bytes. Names that do not fit into vector register (32 bytes) take a slower path
+ * that hashes and compares them using up to four chained vector loads.
  * </li>
  * </ol>
  * <p>
@@ -83,6 +81,8 @@ public class CalculateAverage_tkowalcz2 {
     // Mask to calculate "hashCode % TABLE_SIZE" without division (%).
     public static final int TABLE_SIZE_MASK = TABLE_SIZE - 1;
 
+    static final VectorHash VECTOR_HASH = VectorHash.configured();
+
     // public static final int TABLE_ENTRY_SIZE = 228;
     public static final int TABLE_ENTRY_SIZE = 48;
 
@@ -206,65 +206,77 @@ public class CalculateAverage_tkowalcz2 {
         while (offset1 < end1 && offset2 < end2 && offset3 < end3) {
             Vector<Byte> byteVector1 = SPECIES.fromMemorySegment(inputData, offset1, ByteOrder.nativeOrder());
             int firstDelimiter1 = byteVector1.compare(VectorOperators.EQ, DELIMITER_VECTOR).firstTrue();
-            if (firstDelimiter1 == 32) {
-                offset1 = findPastNewline(inputData, offset1);
-                continue;
-            }
-            offset1 += firstDelimiter1 + 1;
-
             Vector<Byte> byteVector2 = SPECIES.fromMemorySegment(inputData, offset2, ByteOrder.nativeOrder());
             int firstDelimiter2 = byteVector2.compare(VectorOperators.EQ, DELIMITER_VECTOR).firstTrue();
-            if (firstDelimiter2 == 32) {
-                offset2 = findPastNewline(inputData, offset2);
-                continue;
-            }
-            offset2 += firstDelimiter2 + 1;
-
             Vector<Byte> byteVector3 = SPECIES.fromMemorySegment(inputData, offset3, ByteOrder.nativeOrder());
             int firstDelimiter3 = byteVector3.compare(VectorOperators.EQ, DELIMITER_VECTOR).firstTrue();
-            if (firstDelimiter3 == 32) {
-                offset3 = findPastNewline(inputData, offset3);
-                continue;
-            }
-            offset3 += firstDelimiter3 + 1;
 
-            VectorMask<Byte> hashMask1 = CITY_LOOKUP_MASK[firstDelimiter1];
-            Vector<Byte> hashInput1 = ZERO.blend(byteVector1, hashMask1);
-            VectorMask<Byte> hashMask2 = CITY_LOOKUP_MASK[firstDelimiter2];
-            Vector<Byte> hashInput2 = ZERO.blend(byteVector2, hashMask2);
-            VectorMask<Byte> hashMask3 = CITY_LOOKUP_MASK[firstDelimiter3];
-            Vector<Byte> hashInput3 = ZERO.blend(byteVector3, hashMask3);
-
-            int perfectHash32_1 = hashInput1.reinterpretAsInts().reduceLanes(VectorOperators.ADD);
-            int index1 = perfectHash32_1 & TABLE_SIZE_MASK;
-            // int cityNameOffset1 = (index1 << 8) + (index1 << 5); // 2715559 - 130346832
-            int cityNameOffset1 = (index1 << 5) + (index1 << 4);
-
-            ByteVector cityVector1 = ByteVector.fromMemorySegment(SPECIES, hashMap.hashMapData, cityNameOffset1, ByteOrder.nativeOrder());
-            if (!cityVector1.compare(VectorOperators.EQ, hashInput1).allTrue()) {
-                cityNameOffset1 = hashMiss(hashMap, cityNameOffset1, index1, hashInput1, firstDelimiter2);
+            int cityNameOffset1;
+            if (firstDelimiter1 < SPECIES.length()) {
+                VectorMask<Byte> hashMask1 = CITY_LOOKUP_MASK[firstDelimiter1];
+                Vector<Byte> hashInput1 = ZERO.blend(byteVector1, hashMask1);
+
+                int perfectHash32_1 = VECTOR_HASH.hash(hashInput1);
+                int index1 = perfectHash32_1 & TABLE_SIZE_MASK;
+                // int cityNameOffset1 = (index1 << 8) + (index1 << 5); // 2715559 - 130346832
+                cityNameOffset1 = (index1 << 5) + (index1 << 4);
+
+                ByteVector cityVector1 = ByteVector.fromMemorySegment(SPECIES, hashMap.hashMapData, cityNameOffset1, ByteOrder.nativeOrder());
+                if (!cityVector1.compare(VectorOperators.EQ, hashInput1).allTrue()) {
+                    cityNameOffset1 = hashMiss(hashMap, cityNameOffset1, index1, hashInput1, firstDelimiter1);
+                }
             }
+            else {
+                // Slow path: city name does not fit into vector register
+                cityNameOffset1 = hashMap.findLongCity(inputData, offset1);
+                firstDelimiter1 = hashMap.getLongCityLength(cityNameOffset1);
+            }
+            offset1 += firstDelimiter1 + 1;
+
+            int cityNameOffset2;
+            if (firstDelimiter2 < SPECIES.length()) {
+                VectorMask<Byte> hashMask2 = CITY_LOOKUP_MASK[firstDelimiter2];
+                Vector<Byte> hashInput2 = ZERO.blend(byteVector2, hashMask2);
 
-            int perfectHash32_2 = hashInput2.reinterpretAsInts().reduceLanes(VectorOperators.ADD);
-            int index2 = perfectHash32_2 & TABLE_SIZE_MASK;
-            int cityNameOffset2 = (index2 << 5) + (index2 << 4);
+                int perfectHash32_2 = VECTOR_HASH.hash(hashInput2);
+                int index2 = perfectHash32_2 & TABLE_SIZE_MASK;
+                cityNameOffset2 = (index2 << 5) + (index2 << 4);
 
-            ByteVector cityVector2 = ByteVector.fromMemorySegment(SPECIES, hashMap.hashMapData, cityNameOffset2, ByteOrder.nativeOrder());
-            if (!cityVector2.compare(VectorOperators.EQ, hashInput2).allTrue()) {
-                cityNameOffset2 = hashMiss(hashMap, cityNameOffset2, index2, hashInput2, firstDelimiter2);
+                ByteVector cityVector2 = ByteVector.fromMemorySegment(SPECIES, hashMap.hashMapData, cityNameOffset2, ByteOrder.nativeOrder());
+                if (!cityVector2.compare(VectorOperators.EQ, hashInput2).allTrue()) {
+                    cityNameOffset2 = hashMiss(hashMap, cityNameOffset2, index2, hashInput2, firstDelimiter2);
+                }
             }
+            else {
+                cityNameOffset2 = hashMap.findLongCity(inputData, offset2);
+                firstDelimiter2 = hashMap.getLongCityLength(cityNameOffset2);
+            }
+            offset2 += firstDelimiter2 + 1;
 
-            int perfectHash32_3 = hashInput3.reinterpretAsInts().reduceLanes(VectorOperators.ADD);
-            int index3 = perfectHash32_3 & TABLE_SIZE_MASK;
-            int cityNameOffset3 = (index3 << 5) + (index3 << 4);
+            int cityNameOffset3;
+            if (firstDelimiter3 < SPECIES.length()) {
+                VectorMask<Byte> hashMask3 = CITY_LOOKUP_MASK[firstDelimiter3];
+                Vector<Byte> hashInput3 = ZERO.blend(byteVector3, hashMask3);
 
-            ByteVector cityVector3 = ByteVector.fromMemorySegment(SPECIES, hashMap.hashMapData, cityNameOffset3, ByteOrder.nativeOrder());
-            if (!cityVector3.compare(VectorOperators.EQ, hashInput3).allTrue()) {
-                cityNameOffset3 = hashMiss(hashMap, cityNameOffset3, index3, hashInput3, firstDelimiter3);
+                int perfectHash32_3 = VECTOR_HASH.hash(hashInput3);
+                int index3 = perfectHash32_3 & TABLE_SIZE_MASK;
+                cityNameOffset3 = (index3 << 5) + (index3 << 4);
+
+                ByteVector cityVector3 = ByteVector.fromMemorySegment(SPECIES, hashMap.hashMapData, cityNameOffset3, ByteOrder.nativeOrder());
+                if (!cityVector3.compare(VectorOperators.EQ, hashInput3).allTrue()) {
+                    cityNameOffset3 = hashMiss(hashMap, cityNameOffset3, index3, hashInput3, firstDelimiter3);
+                }
+            }
+            else {
+                cityNameOffset3 = hashMap.findLongCity(inputData, offset3);
+                firstDelimiter3 = hashMap.getLongCityLength(cityNameOffset3);
             }
+            offset3 += firstDelimiter3 + 1;
 
+            // Temperature is loaded again as it may not be part of the city vector (long city names).
+            byteVector1 = SPECIES.fromMemorySegment(inputData, offset1, ByteOrder.nativeOrder());
             VectorMask<Byte> mask1 = byteVector1.compare(VectorOperators.LT, ASCII_ZERO);
-            int lookupIndex1 = (int) ((mask1.toLong() >> (firstDelimiter1 + 1)) & 0x07);
+            int lookupIndex1 = (int) (mask1.toLong() & 0x07);
             long value = byteVector1
                     .sub(ASCII_ZERO)
                     .castShape(ShortVector.SPECIES_256, 0)
@@ -274,8 +286,9 @@ public class CalculateAverage_tkowalcz2 {
             hashMap.addMeasurement(cityNameOffset1, (int) value);
             offset1 += STOI_SIZE_LOOKUP[lookupIndex1];
 
+            byteVector2 = SPECIES.fromMemorySegment(inputData, offset2, ByteOrder.nativeOrder());
             VectorMask<Byte> mask2 = byteVector2.compare(VectorOperators.LT, ASCII_ZERO);
-            int lookupIndex2 = (int) ((mask2.toLong() >> (firstDelimiter2 + 1)) & 0x07);
+            int lookupIndex2 = (int) (mask2.toLong() & 0x07);
             value = byteVector2
                     .sub(ASCII_ZERO)
                     .castShape(ShortVector.SPECIES_256, 0)
@@ -284,8 +297,9 @@ public class CalculateAverage_tkowalcz2 {
             hashMap.addMeasurement(cityNameOffset2, (int) value);
             offset2 += STOI_SIZE_LOOKUP[lookupIndex2];
 
+            byteVector3 = SPECIES.fromMemorySegment(inputData, offset3, ByteOrder.nativeOrder());
             VectorMask<Byte> mask3 = byteVector3.compare(VectorOperators.LT, ASCII_ZERO);
-            int lookupIndex3 = (int) ((mask3.toLong() >> (firstDelimiter3 + 1)) & 0x07);
+            int lookupIndex3 = (int) (mask3.toLong() & 0x07);
             value = byteVector3
                     .sub(ASCII_ZERO)
                     .castShape(ShortVector.SPECIES_256, 0)
@@ -381,10 +395,7 @@ public class CalculateAverage_tkowalcz2 {
     }
 
     private static MemorySegment mmapDataFile(String fileName, Arena arena) throws IOException {
-        try (RandomAccessFile file = new RandomAccessFile(fileName, "r");
-                FileChannel channel = file.getChannel()) {
-            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), arena);
-        }
+        return MemoryMapping.map(fileName, arena);
     }
 
     public static VectorMask<Byte>[] createMasks32() {
@@ -538,11 +549,21 @@ public class CalculateAverage_tkowalcz2 {
         private static final int MAX_OFFSET = 36;
         private static final int SUM_OFFSET = 40;
 
+        // Long city names live after the main table in entries with the same statistics layout followed by the name,
+        // see CalculateAverage_tkowalcz2Unsafe.UnsafeRawHashMap.
+        private static final int LONG_CITY_TABLE_SIZE = 0x1000;
+        private static final int LONG_CITY_TABLE_SIZE_MASK = LONG_CITY_TABLE_SIZE - 1;
+        private static final int LONG_CITY_ENTRY_SIZE = TABLE_ENTRY_SIZE + CalculateAverage_tkowalcz.MAX_CITY_NAME_SIZE;
+        private static final int LONG_CITY_TABLE_OFFSET = TABLE_SIZE * TABLE_ENTRY_SIZE;
+        private static final int LONG_CITY_NAME_LENGTH_OFFSET = 0;
+        private static final int LONG_CITY_NAME_OFFSET = TABLE_ENTRY_SIZE;
+
         final MemorySegment hashMapData;
 
         public RawHashMap2(Arena arena) {
             hashMapData = arena.allocate(TABLE_SIZE * (32 // City name
-                    + 16));
+                    + 16)
+                    + LONG_CITY_TABLE_SIZE * LONG_CITY_ENTRY_SIZE);
         }
 
         private void installNewCity(int mapEntryOffset, int delimiterPosition, Vector<Byte> hashInput) {
@@ -550,6 +571,35 @@ public class CalculateAverage_tkowalcz2 {
             // hashMapData.set(ValueLayout.JAVA_INT, mapEntryOffset + CITY_NAME_SIZE_OFFSET, delimiterPosition);
         }
 
+        int findLongCity(MemorySegment inputData, long offset) {
+            long lengthAndHash = CalculateAverage_tkowalcz.hashLongCity(inputData, offset);
+            int cityLength = (int) (lengthAndHash >>> 32);
+            int index = (int) lengthAndHash & LONG_CITY_TABLE_SIZE_MASK;
+
+            for (int i = 0; i < LONG_CITY_TABLE_SIZE; i++) {
+                int mapEntryOffset = LONG_CITY_TABLE_OFFSET + index * LONG_CITY_ENTRY_SIZE;
+                int entryLength = hashMapData.get(ValueLayout.JAVA_INT, mapEntryOffset + LONG_CITY_NAME_LENGTH_OFFSET);
+                if (entryLength == 0) {
+                    MemorySegment.copy(inputData, offset, hashMapData, mapEntryOffset + LONG_CITY_NAME_OFFSET, cityLength);
+                    hashMapData.set(ValueLayout.JAVA_INT, mapEntryOffset + LONG_CITY_NAME_LENGTH_OFFSET, cityLength);
+                    return mapEntryOffset;
+                }
+
+                if (entryLength == cityLength
+                        && CalculateAverage_tkowalcz.longCityEquals(hashMapData, mapEntryOffset + LONG_CITY_NAME_OFFSET, inputData, offset, cityLength)) {
+                    return mapEntryOffset;
+                }
+
+                index = (index + 1) & LONG_CITY_TABLE_SIZE_MASK;
+            }
+
+            throw new IllegalStateException(STR."More than \{LONG_CITY_TABLE_SIZE} city names exceeding vector size");
+        }
+
+        int getLongCityLength(int mapEntryOffset) {
+            return hashMapData.get(ValueLayout.JAVA_INT, mapEntryOffset + LONG_CITY_NAME_LENGTH_OFFSET);
+        }
+
         // public void addMeasurement(int mapEntryOffset, Vector<Byte> value) {
         public void addMeasurement(int mapEntryOffset, int value) {
             int min = hashMapData.get(ValueLayout.JAVA_INT, mapEntryOffset + MIN_OFFSET);
@@ -15,27 +15,32 @@
  */
 package dev.morling.onebrc;
 
+import com.sun.management.OperatingSystemMXBean;
 import jdk.incubator.vector.*;
 
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.lang.foreign.Arena;
 import java.lang.foreign.MemorySegment;
 import java.lang.foreign.ValueLayout;
+import java.lang.management.ManagementFactory;
 import java.nio.ByteOrder;
-import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
 import java.util.TreeMap;
 import java.util.concurrent.*;
+import java.util.stream.IntStream;
 
 /**
  * This solution has two (conscious) assumptions about the input data:
  * <ol>
  * <li>The measurements can be numbers in one of four forms: -XX.X, XX.X, -X.X, X.X</li>
- * <li>The city name fits into vector register (has at most 32 bytes). This is a soft requirement: I check for this
- * condition and will execute fallback if that is not the case, but I did not code the fallback.
+ * <li>The city name has at most 128 bytes. Names that do not fit into vector register (16, 32 or 64 bytes depending on
+ * the CPU) take a slower path that hashes and compares them using chained vector loads.
  * </li>
  * </ol>
  * <p>
@@ -51,7 +56,9 @@ public class CalculateAverage_tkowalcz2Unsafe {
     public static final long ATOI_PREDICATE = 0x2E_2E_2E_2E_2E_2E_2E_2EL;
     private static final String FILE = "measurements.txt";
 
-    private static final VectorSpecies<Byte> SPECIES = ByteVector.SPECIES_256;
+    // Same species as the single threaded engine, see CalculateAverage_tkowalcz.preferredSpecies()
+    private static final VectorSpecies<Byte> SPECIES = CalculateAverage_tkowalcz.SPECIES;
+    private static final VectorSpecies<Short> SHORT_SPECIES = SPECIES.vectorShape().withLanes(short.class);
     private static final Vector<Byte> ZERO = ByteVector.zero(SPECIES);
 
     private static final Vector<Byte> DELIMITER_VECTOR = SPECIES.broadcast(';');
@@ -60,159 +67,656 @@ public class CalculateAverage_tkowalcz2Unsafe {
     private static final Vector<Byte> ASCII_ZERO = SPECIES.broadcast('0');
     private static final Vector<Byte> ASCII_DOT = SPECIES.broadcast('.');
 
-    static final VectorMask<Byte>[] CITY_LOOKUP_MASK = createMasks32();
+    static final VectorMask<Byte>[] CITY_LOOKUP_MASK = CalculateAverage_tkowalcz.createCityMasks(SPECIES);
 
     // Values used to multiply digits of temperature measurement to get proper int. E.g. -12.3 will be multiplied by
     // 10th element (0, -100, -10, 0, -1) giving '-' * 0 + '1' * -100 + '2' * -10 + '.' * 0 + '3' * -1 = -123.
     // There are four combinations of possible mask results from comparing (less than) vector containing temperature
     // measurement with ASCII_ZERO. Hence, only four entries are populated.
-    private static final ShortVector[] STOI_MUL_LOOKUP = {
-            ShortVector.fromArray(ShortVector.SPECIES_256, new short[]{ 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0 }, 0),
-            ShortVector.fromArray(ShortVector.SPECIES_256, new short[]{ 0, -100, -10, 0, -1, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0 }, 0),
-            ShortVector.fromArray(ShortVector.SPECIES_256, new short[]{ 10, 0, 1, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0 }, 0),
-            ShortVector.fromArray(ShortVector.SPECIES_256, new short[]{ 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0 }, 0),
-            ShortVector.fromArray(ShortVector.SPECIES_256, new short[]{ 100, 10, 0, 1, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0 }, 0),
-            ShortVector.fromArray(ShortVector.SPECIES_256, new short[]{ 0, -10, 0, -1, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0 }, 0)
-    };
+    private static final ShortVector[] STOI_MUL_LOOKUP = CalculateAverage_tkowalcz.createStoiMulLookup(SHORT_SPECIES);
 
     // We also need to know the size of temperature measurement in characters, lookup table works the same way as STOI_MUL_LOOKUP.
     private static final int[] STOI_SIZE_LOOKUP = { 0, 6, 4, 0, 5, 5 };
 
+    // Pump factor, table size, parsing mode and statistics layout, see TuningProfile. Found by Autotuner for this host or
+    // set explicitly.
+    static final TuningProfile TUNING = TuningProfile.current();
+
     // We will use very large table for hash map to reduce collisions. There is little downside in increasing it as
     // we pay only cost of a reference (so 0x400000 size uses 32m of memory * thread count).
-    public static final int TABLE_SIZE = 0x80000;
+    public static final int TABLE_SIZE = TUNING.tableSize();
 
     // Mask to calculate "hashCode % TABLE_SIZE" without division (%).
     public static final int TABLE_SIZE_MASK = TABLE_SIZE - 1;
 
+    static final VectorHash VECTOR_HASH = VectorHash.configured();
+
+    // Pumped loop stops this far from the end of its range, so that a row with the longest city name and its temperature
+    // can still be loaded with full vectors.
+    static final int LOOP_END_MARGIN = CalculateAverage_tkowalcz.MAX_CITY_NAME_SIZE + SPECIES.length() + 8;
+
+    // Triple pumped loop parses three measurements at once with 256-bit shuffles. These are emulated (slowly) by
+    // hosts without AVX-2, so when the selected species is narrower each measurement is parsed on its own.
+    static final boolean PACKED_TEMPERATURE_PARSING = SPECIES.vectorBitSize() >= 256 && TUNING.packedParsing();
+
+    static final int PUMP_FACTOR = TUNING.pumpFactor();
+
+    // Window ends on a row boundary, so it can be a row longer. Half of what packed counters take leaves room for that.
+    // Scheduler slices are smaller and are processed as a single window.
+    static final long FLUSH_WINDOW_SIZE = UnsafeRawHashMap.MAX_UNFLUSHED_BYTES / 2;
+
+    // Prints page faults taken by workers, peak RSS, CPU time and what the Prefetcher or BlockReader did, to see whether
+    // prefetching, mapping windows (see MappedWindows) or reading the input instead of mapping it pay off
+    static final boolean PRINT_PAGE_FAULTS = Boolean.getBoolean("tkowalcz.printPageFaults");
+
+    // Where workers keep statistics: "aos" next to city names in entries of UnsafeRawHashMap, "soa" in a StatisticsStore
+    // indexed by city ids of a SplitRawHashMap, "buffered" in SampleBuffers of such map drained into the store when the
+    // worker is done, "batched" in the store updated a vector of rows at a time by StatisticsBatch. All but the first
+    // run single pumped loops.
+    static final String STATISTICS = TUNING.statistics();
+    static final boolean STATISTICS_STORE = !STATISTICS.equals("aos");
+
+    // Samples buffered per city before they are folded into vectors, with -Dtkowalcz.statistics=buffered
+    static final int SAMPLE_BUFFER_SIZE = Integer.getInteger("tkowalcz.sampleBuffer", 32);
+
     public static void main(String[] args) throws IOException, InterruptedException, ExecutionException {
         Arena arena = Arena.ofShared();
         long start = System.nanoTime();
-        int availableProcessors = 8;// Runtime.getRuntime().availableProcessors();
+        int workerCount = ChunkScheduler.workerCount();
+
+        WorkerThread[] workerThreads = new WorkerThread[workerCount];
+        Prefetcher prefetcher = null;
+        // Paths or globs given as arguments are aggregated into a single result instead of measurements.txt
+        BlockReader blockReader = args.length > 0 ? MultiFileReader.open(workerCount, args) : BlockReader.open(FILE, workerCount);
+        // Parser and aggregator threads replace the workers, it splits slices of the mapped file only
+        ParsePipeline pipeline = ParsePipeline.configured();
+        if (pipeline != null && blockReader != null) {
+            blockReader.close();
+            throw new IllegalArgumentException("-Dtkowalcz.pipeline splits mapped measurements.txt only, it cannot be combined with paths, -Dtkowalcz.input or -Dtkowalcz.mmapWindow");
+        }
+        if (pipeline != null) {
+            System.out.println(pipeline.aggregate(mmapDataFile(FILE, arena), arena));
+            System.exit(0);
+        }
+        // Sidecar index only describes measurements.txt, standard input may be anything
+        boolean indexed = InputIndex.ENABLED && args.length == 0 && !"stdin".equals(System.getProperty("tkowalcz.input"));
+        InputIndex index = indexed ? InputIndex.load(Path.of(FILE)) : null;
+        MemorySegment inputData = null;
+        if (blockReader != null) {
+            for (int i = 0; i < workerThreads.length; i++) {
+                workerThreads[i] = new WorkerThread(blockReader, i, arena, start);
+            }
+        }
+        else {
+            inputData = mmapDataFile(FILE, arena);
+            ChunkScheduler scheduler = index != null ? new ChunkScheduler(inputData, workerCount, index) : new ChunkScheduler(inputData, workerCount);
+            prefetcher = Prefetcher.start(inputData, scheduler, workerCount);
+            for (int i = 0; i < workerThreads.length; i++) {
+                workerThreads[i] = new WorkerThread(scheduler, prefetcher, i, arena, start);
+            }
+        }
 
-        MemorySegment inputData = mmapDataFile(FILE, arena);
-        List<MemorySegment> memorySegments = divideAlongNewlines(inputData, availableProcessors);
-        WorkerThread[] workerThreads = new WorkerThread[availableProcessors];
-        for (int i = 0; i < workerThreads.length; i++) {
-            workerThreads[i] = new WorkerThread(memorySegments.removeFirst(), arena, start);
-            workerThreads[i].start();
+        if (index != null) {
+            for (WorkerThread workerThread : workerThreads) {
+                if (STATISTICS_STORE) {
+                    workerThread.getSplitMap().preload(index);
+                }
+                else {
+                    workerThread.getHashMap().preload(index);
+                }
+            }
+        }
+        for (WorkerThread workerThread : workerThreads) {
+            workerThread.start();
         }
 
-        TreeMap<String, StatisticsAggregate> results = new TreeMap<>();
         for (WorkerThread workerThread : workerThreads) {
             workerThread.join();
-            List<StatisticsAggregate> statistics = workerThread.getStatistics();
-            statistics.forEach(aggregate -> results.merge(aggregate.getCityName(), aggregate, StatisticsAggregate::merge));
+        }
+
+        String prefetchSummary = prefetcher != null ? prefetcher.stop() : null;
+        String inputSummary = null;
+        if (blockReader != null) {
+            blockReader.close();
+            inputSummary = blockReader.summary();
+        }
+        for (WorkerThread workerThread : workerThreads) {
+            if (workerThread.getFailure() != null) {
+                throw new IllegalStateException(STR."Worker \{workerThread.workerIndex} failed", workerThread.getFailure());
+            }
+        }
+
+        // Merging installs cities in the target tables, so histogram of the workers is taken before
+        long[] probeHistogram = !STATISTICS_STORE && Boolean.getBoolean("tkowalcz.printProbeHistogram") ? sumProbeHistograms(workerThreads) : null;
+
+        UnsafeRawHashMap mergedTable = null;
+        SplitRawHashMap mergedMap = null;
+        TreeMap<String, StatisticsAggregate> results;
+        if (STATISTICS_STORE) {
+            mergedMap = workerThreads[0].getSplitMap();
+            for (int i = 1; i < workerThreads.length; i++) {
+                mergedMap.mergeFrom(workerThreads[i].getSplitMap());
+            }
+            results = mergedMap.getStore().asResults(mergedMap.cityNames());
+        }
+        else {
+            // Every station is now in a single table, so its name is decoded once and no aggregates are merged
+            mergedTable = mergeTables(Arrays.stream(workerThreads).map(WorkerThread::getHashMap).toList());
+            results = new TreeMap<>();
+            for (StatisticsAggregate aggregate : mergedTable.asStatistics()) {
+                results.put(aggregate.getCityName(), aggregate);
+            }
         }
 
         System.out.println(results);
+
+        // Written after the results are printed, it is for the next run
+        String indexSummary = index != null ? index.summary() : null;
+        if (indexed && index == null) {
+            long indexStart = System.nanoTime();
+            MemorySegment indexedData = inputData != null ? inputData : mmapDataFile(FILE, arena);
+            if (mergedTable != null) {
+                InputIndex.write(Path.of(FILE), indexedData, mergedTable);
+            }
+            else {
+                InputIndex.write(Path.of(FILE), indexedData, mergedMap);
+            }
+            indexSummary = STR."index: written to \{InputIndex.sidecar(Path.of(FILE))} in \{TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - indexStart)}ms";
+        }
+
+        if (probeHistogram != null) {
+            printProbeHistogram(probeHistogram);
+        }
+        if (PRINT_PAGE_FAULTS) {
+            printPageFaults(workerThreads, prefetchSummary, inputSummary, indexSummary, start);
+        }
         System.exit(0);
         long runtime = System.nanoTime() - start;
         // System.out.println(STR."Runtime: \{TimeUnit.NANOSECONDS.toMillis(runtime)}ms");
     }
 
-    static List<MemorySegment> divideAlongNewlines(MemorySegment inputData, int numberOfParts) {
-        List<MemorySegment> result = new ArrayList<>();
+    /**
+     * Combines tables of all workers into the first one. Tables are merged pairwise in rounds (tree reduction): first
+     * round merges table 1 into 0, 3 into 2 and so on in parallel, second one merges 2 into 0, 6 into 4... so with n
+     * workers there are log2(n) rounds instead of n - 1 serial merges. Pairs of a round touch disjoint tables.
+     */
+    static UnsafeRawHashMap mergeTables(List<UnsafeRawHashMap> hashMaps) {
+        for (int stride = 1; stride < hashMaps.size(); stride *= 2) {
+            int distance = stride;
+            IntStream.range(0, (hashMaps.size() + 2 * distance - 1) / (2 * distance))
+                    .map(pair -> pair * 2 * distance)
+                    .filter(target -> target + distance < hashMaps.size())
+                    .parallel()
+                    .forEach(target -> hashMaps.get(target).mergeFrom(hashMaps.get(target + distance)));
+        }
+
+        return hashMaps.getFirst();
+    }
+
+    private static long[] sumProbeHistograms(WorkerThread[] workerThreads) {
+        long[] histogram = new long[workerThreads[0].getProbeHistogram().length];
+        for (WorkerThread workerThread : workerThreads) {
+            long[] workerHistogram = workerThread.getProbeHistogram();
+            for (int i = 0; i < histogram.length; i++) {
+                histogram[i] += workerHistogram[i];
+            }
+        }
+
+        return histogram;
+    }
 
-        long startingOffset = 0;
-        long sliceSize = inputData.byteSize() / numberOfParts;
-        do {
-            long endingOffset = findPastNewline(inputData, startingOffset + sliceSize - 1);
-            result.add(inputData.asSlice(startingOffset, endingOffset - startingOffset));
+    private static void printProbeHistogram(long[] histogram) {
+        System.err.println("Probe length histogram (probes: cities):");
+        for (int i = 0; i < histogram.length; i++) {
+            if (histogram[i] != 0) {
+                System.err.println(STR."\{i}: \{histogram[i]}");
+            }
+        }
+    }
 
-            startingOffset = endingOffset;
-        } while (startingOffset < inputData.byteSize() - sliceSize);
+    private static void printPageFaults(WorkerThread[] workerThreads, String prefetchSummary, String inputSummary, String indexSummary, long start) {
+        long minorFaults = 0;
+        long majorFaults = 0;
+        for (WorkerThread workerThread : workerThreads) {
+            minorFaults += workerThread.minorFaults;
+            majorFaults += workerThread.majorFaults;
+        }
 
-        if (inputData.byteSize() - startingOffset > 0) {
-            result.add(inputData.asSlice(startingOffset, inputData.byteSize() - startingOffset));
+        System.err.println(STR."Workers: \{minorFaults} minor and \{majorFaults} major faults, peak RSS \{peakResidentSetSize()}");
+        if (prefetchSummary != null) {
+            System.err.println(prefetchSummary);
+        }
+        if (inputSummary != null) {
+            System.err.println(inputSummary);
+        }
+        if (indexSummary != null) {
+            System.err.println(indexSummary);
         }
 
-        return result;
+        long cpuNanos = ManagementFactory.getPlatformMXBean(OperatingSystemMXBean.class).getProcessCpuTime();
+        System.err.println(STR."Wall time \{TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)}ms, process CPU \{TimeUnit.NANOSECONDS.toMillis(cpuNanos)}ms");
+    }
+
+    private static String peakResidentSetSize() {
+        try {
+            return Files.readAllLines(Path.of("/proc/self/status")).stream()
+                    .filter(line -> line.startsWith("VmHWM:"))
+                    .map(line -> line.substring("VmHWM:".length()).trim())
+                    .findFirst()
+                    .orElse("unknown");
+        }
+        catch (IOException e) {
+            return "unknown";
+        }
     }
 
     public static class WorkerThread extends Thread {
 
         private final MemorySegment memorySegment;
+        private final ChunkScheduler scheduler;
+        private final BlockReader blockReader;
+        private final Prefetcher prefetcher;
+        private final int workerIndex;
         private final long startTimestamp;
 
+        // Reused for all slices processed by this worker, only one of them is used (see STATISTICS_STORE)
         private final UnsafeRawHashMap hashMap;
-        private List<StatisticsAggregate> statistics;
+        private final SplitRawHashMap splitMap;
+
+        // Input added to packed counters of the hash map since they were last flushed
+        private long unflushedBytes;
+
+        // Taken by this thread while it was running, only counted with -Dtkowalcz.printPageFaults=true
+        private long minorFaults;
+        private long majorFaults;
+
+        // Read by main after the thread is joined
+        private Throwable failure;
 
         public WorkerThread(MemorySegment memorySegment, Arena arena, long startTimestamp) {
+            this(memorySegment, null, null, null, 0, arena, startTimestamp);
+        }
+
+        public WorkerThread(ChunkScheduler scheduler, int workerIndex, Arena arena, long startTimestamp) {
+            this(null, scheduler, null, null, workerIndex, arena, startTimestamp);
+        }
+
+        public WorkerThread(ChunkScheduler scheduler, Prefetcher prefetcher, int workerIndex, Arena arena, long startTimestamp) {
+            this(null, scheduler, null, prefetcher, workerIndex, arena, startTimestamp);
+        }
+
+        public WorkerThread(BlockReader blockReader, int workerIndex, Arena arena, long startTimestamp) {
+            this(null, null, blockReader, null, workerIndex, arena, startTimestamp);
+        }
+
+        private WorkerThread(
+                             MemorySegment memorySegment,
+                             ChunkScheduler scheduler,
+                             BlockReader blockReader,
+                             Prefetcher prefetcher,
+                             int workerIndex,
+                             Arena arena,
+                             long startTimestamp) {
             this.memorySegment = memorySegment;
+            this.scheduler = scheduler;
+            this.blockReader = blockReader;
+            this.prefetcher = prefetcher;
+            this.workerIndex = workerIndex;
             this.startTimestamp = startTimestamp;
-            this.hashMap = new UnsafeRawHashMap(arena);
+            // Tables are zeroed when allocated, the unused one is not allocated at all
+            this.hashMap = STATISTICS_STORE ? null : new UnsafeRawHashMap(arena);
+            this.splitMap = STATISTICS_STORE ? newSplitMap(arena) : null;
 
             setDaemon(true);
         }
 
+        private static SplitRawHashMap newSplitMap(Arena arena) {
+            StatisticsStore store = new StatisticsStore(SplitRawHashMap.MAX_CITIES);
+            return switch (STATISTICS) {
+                case "buffered" -> new SplitRawHashMap(arena, store, new SampleBuffers(SplitRawHashMap.MAX_CITIES, SAMPLE_BUFFER_SIZE));
+                case "batched" -> new SplitRawHashMap(arena, store, new StatisticsBatch(store));
+                default -> new SplitRawHashMap(arena, store);
+            };
+        }
+
         @Override
         public void run() {
             System.out.println(STR."Start lag: \{TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTimestamp)}ms");
+            long[] faultsAtStart = PRINT_PAGE_FAULTS ? Prefetcher.threadPageFaults() : null;
+
+            try {
+                processInput();
+                if (splitMap != null) {
+                    // Drains sample buffers in parallel, before the maps are merged
+                    splitMap.flush();
+                }
+            }
+            catch (Throwable e) {
+                // Rethrown by main after all workers are joined, so that partial results are not printed
+                failure = e;
+            }
+            finally {
+                if (prefetcher != null) {
+                    prefetcher.finish(workerIndex);
+                }
+            }
+
+            if (faultsAtStart != null) {
+                long[] faultsAtEnd = Prefetcher.threadPageFaults();
+                minorFaults = faultsAtEnd[0] - faultsAtStart[0];
+                majorFaults = faultsAtEnd[1] - faultsAtStart[1];
+            }
+        }
 
-            execute(Arena.ofConfined(), memorySegment);
+        private void processInput() {
+            if (scheduler != null) {
+                MemorySegment slice;
+                while ((slice = scheduler.nextSlice(workerIndex)) != null) {
+                    process(slice);
+                }
+            }
+            else if (blockReader != null) {
+                // City names are copied into the hash map, nothing refers to a block after it is processed. Blocks are
+                // processed in scheduler sized slices, with a few large calls hot loops are compiled much later.
+                while (true) {
+                    try (BlockReader.Block block = blockReader.next(workerIndex)) {
+                        if (block == null) {
+                            break;
+                        }
+
+                        ChunkScheduler slices = new ChunkScheduler(block.rows(), 1, block.rows().byteSize());
+                        MemorySegment slice;
+                        while ((slice = slices.nextSlice(0)) != null) {
+                            process(slice);
+                        }
+                    }
+                }
+            }
+            else {
+                process(memorySegment);
+            }
+        }
 
-            statistics = hashMap.asStatistics();
+        /**
+         * Exception that stopped this worker, null when it processed all of its input.
+         */
+        public Throwable getFailure() {
+            return failure;
         }
 
         public List<StatisticsAggregate> execute(Arena arena, MemorySegment inputData) {
-            long start = System.currentTimeMillis();
+            process(inputData);
+            return hashMap != null ? hashMap.asStatistics() : splitMap.asStatistics();
+        }
+
+        /**
+         * Adds all rows of given newline aligned input to the hash map of this worker. Input is processed in windows, so
+         * that packed counters can be flushed before they overflow (see {@link UnsafeRawHashMap#MAX_UNFLUSHED_BYTES}) and
+         * the table can be compacted in between.
+         */
+        void process(MemorySegment inputData) {
+            if (splitMap != null) {
+                // Store has 64-bit sums and counts, so there is nothing to flush and split map is never compacted
+                if (prefetcher != null) {
+                    prefetcher.advance(workerIndex, inputData);
+                }
+
+                long tail = executeSinglePumped(inputData, splitMap, 0, inputData.byteSize());
+                executeTail(inputData, splitMap, tail, inputData.byteSize());
+                return;
+            }
+
+            long offset = 0;
+            while (offset < inputData.byteSize()) {
+                long end = offset + FLUSH_WINDOW_SIZE >= inputData.byteSize()
+                        ? inputData.byteSize()
+                        : CalculateAverage_tkowalcz.findPastNewline(inputData, offset + FLUSH_WINDOW_SIZE - 1);
+
+                if (unflushedBytes + (end - offset) > UnsafeRawHashMap.MAX_UNFLUSHED_BYTES) {
+                    hashMap.flush();
+                    unflushedBytes = 0;
+                }
+
+                MemorySegment window = inputData.asSlice(offset, end - offset);
+                if (prefetcher != null) {
+                    prefetcher.advance(workerIndex, window);
+                }
+
+                processWindow(window);
+                unflushedBytes += end - offset;
+                hashMap.compactOrExpand(end - offset);
+                offset = end;
+            }
+        }
+
+        private void processWindow(MemorySegment inputData) {
+            if (PUMP_FACTOR == 1) {
+                long tail = executeSinglePumped(inputData, hashMap, 0, inputData.byteSize());
+                executeTail(inputData, hashMap, tail, inputData.byteSize());
+                return;
+            }
 
             long stride = inputData.byteSize() / 3;
 
             long offset1 = 0;
-            long end1 = stride - ByteVector.SPECIES_256.vectorByteSize();
+            long end1 = stride - LOOP_END_MARGIN;
 
-            long offset2 = CalculateAverage_tkowalcz.findPastNewline(inputData, end1);
-            long end2 = stride + stride - ByteVector.SPECIES_256.vectorByteSize();
+            long offset2 = findRowStart(inputData, end1);
+            long end2 = stride + stride - LOOP_END_MARGIN;
 
-            long offset3 = CalculateAverage_tkowalcz.findPastNewline(inputData, end2);
-            long end3 = stride + stride + stride - ByteVector.SPECIES_256.vectorByteSize();
+            long offset3 = findRowStart(inputData, Math.max(end2, offset2));
+            long end3 = stride + stride + stride - LOOP_END_MARGIN;
             //
             // long offset4 = CalculateAverage_tkowalcz.findPastNewline(inputData, end3);
             // long end4 = stride + stride + stride + stride - ByteVector.SPECIES_256.vectorByteSize();
 
-            Cursor doubleCursor = executeTriplePumped(inputData, hashMap, offset1, end1, offset2, end2, offset3, end3 /* , offset4, end4 */);
-            // offset1 = executeSinglePumped(inputData, dataTable, doubleCursor.offset1(), end1);
-            // offset2 = executeSinglePumped(inputData, dataTable, doubleCursor.offset2(), end2);
-            // Map<String, StatisticsAggregate> tailResults1 = executeScalar(inputData, offset1, end1);
-            // Map<String, StatisticsAggregate> tailResults2 = executeScalar(inputData, offset2, end2);
+            Cursor cursor = executeTriplePumped(inputData, hashMap, offset1, end1, offset2, end2, offset3, end3 /* , offset4, end4 */);
 
-            List<StatisticsAggregate> result = hashMap.asStatistics();
-            // result.addAll(tailResults1.values());
-            // result.addAll(tailResults2.values());
+            // Cursors stop together when the first one reaches its end, remaining rows of each range are processed
+            // one at a time and the last ones with masked loads.
+            long tail1 = executeSinglePumped(inputData, hashMap, cursor.offset1(), offset2);
+            long tail2 = executeSinglePumped(inputData, hashMap, cursor.offset2(), offset3);
+            long tail3 = executeSinglePumped(inputData, hashMap, cursor.offset3(), inputData.byteSize());
+            executeTail(inputData, hashMap, tail1, offset2);
+            executeTail(inputData, hashMap, tail2, offset3);
+            executeTail(inputData, hashMap, tail3, inputData.byteSize());
+        }
 
-            // long end = System.currentTimeMillis();
-            // System.out.println(STR."Worker \{Thread.currentThread().getName()}finished in:\{end - start} ms ");
-            return result;
+        // Small inputs put cursor ends before the beginning of the data (or past its end), so they are clamped to it.
+        private static long findRowStart(MemorySegment inputData, long position) {
+            if (position >= inputData.byteSize()) {
+                return inputData.byteSize();
+            }
+
+            return CalculateAverage_tkowalcz.findPastNewline(inputData, Math.max(position, 0));
+        }
+
+        public static long executeSinglePumped(MemorySegment inputData, UnsafeRawHashMap hashMap, long offset, long end) {
+            // Table is only compacted or expanded between windows, see UnsafeRawHashMap.compactOrExpand()
+            int tableOffset = hashMap.tableOffset;
+            int tableSeed = hashMap.tableSeed;
+            int tableShift = hashMap.tableShift;
+            int tableMask = hashMap.tableMask;
+
+            end -= LOOP_END_MARGIN;
+            while (offset < end) {
+                Vector<Byte> byteVector = SPECIES.fromMemorySegment(inputData, offset, ByteOrder.nativeOrder());
+                int firstDelimiter = byteVector.compare(VectorOperators.EQ, DELIMITER_VECTOR).firstTrue();
+
+                int cityNameOffset;
+                if (firstDelimiter < SPECIES.length()) {
+                    VectorMask<Byte> hashMask = CITY_LOOKUP_MASK[firstDelimiter];
+                    Vector<Byte> hashInput = ZERO.blend(byteVector, hashMask);
+
+                    int perfectHash32 = VECTOR_HASH.hash(hashInput);
+                    int index = (perfectHash32 * tableSeed >>> tableShift) & tableMask;
+                    cityNameOffset = tableOffset + index * UnsafeRawHashMap.ENTRY_SIZE;
+
+                    ByteVector cityVector = ByteVector.fromMemorySegment(SPECIES, hashMap.hashMapData, cityNameOffset, ByteOrder.nativeOrder());
+                    if (!cityVector.compare(VectorOperators.EQ, hashInput).allTrue()) {
+                        cityNameOffset = hashMiss(hashMap, cityNameOffset, perfectHash32, hashInput, firstDelimiter);
+                    }
+                }
+                else {
+                    cityNameOffset = hashMap.findLongCity(inputData, offset);
+                    firstDelimiter = hashMap.getLongCityLength(cityNameOffset);
+                }
+                offset += firstDelimiter + 1;
+
+                byteVector = SPECIES.fromMemorySegment(inputData, offset, ByteOrder.nativeOrder());
+                VectorMask<Byte> mask = byteVector.compare(VectorOperators.LT, ASCII_ZERO);
+                int lookupIndex = (int) (mask.toLong() & 0x07);
+
+                long value = byteVector
+                        .sub(ASCII_ZERO)
+                        .castShape(SHORT_SPECIES, 0)
+                        .mul(STOI_MUL_LOOKUP[lookupIndex])
+                        .reduceLanesToLong(VectorOperators.ADD);
+
+                hashMap.addMeasurement(cityNameOffset, (int) value);
+                offset += STOI_SIZE_LOOKUP[lookupIndex];
+            }
+
+            return offset;
+        }
+
+        /**
+         * Same as {@link #executeSinglePumped} but loads are masked to the range, so it can process rows up to the very
+         * end of the data without reading past it and without copying them anywhere. Bytes past the end are seen as
+         * zeros, which does not change the hash (city is masked anyway) nor the measurement (only first three
+         * characters decide on the multipliers).
+         */
+        public static void executeTail(MemorySegment inputData, UnsafeRawHashMap hashMap, long offset, long end) {
+            // Table is only compacted or expanded between windows, see UnsafeRawHashMap.compactOrExpand()
+            int tableOffset = hashMap.tableOffset;
+            int tableSeed = hashMap.tableSeed;
+            int tableShift = hashMap.tableShift;
+            int tableMask = hashMap.tableMask;
+
+            while (offset < end) {
+                VectorMask<Byte> inRange = SPECIES.indexInRange(offset, end);
+                Vector<Byte> byteVector = ByteVector.fromMemorySegment(SPECIES, inputData, offset, ByteOrder.nativeOrder(), inRange);
+                int firstDelimiter = byteVector.compare(VectorOperators.EQ, DELIMITER_VECTOR).firstTrue();
+
+                int cityNameOffset;
+                if (firstDelimiter < SPECIES.length()) {
+                    VectorMask<Byte> hashMask = CITY_LOOKUP_MASK[firstDelimiter];
+                    Vector<Byte> hashInput = ZERO.blend(byteVector, hashMask);
+
+                    int perfectHash32 = VECTOR_HASH.hash(hashInput);
+                    int index = (perfectHash32 * tableSeed >>> tableShift) & tableMask;
+                    cityNameOffset = tableOffset + index * UnsafeRawHashMap.ENTRY_SIZE;
+
+                    ByteVector cityVector = ByteVector.fromMemorySegment(SPECIES, hashMap.hashMapData, cityNameOffset, ByteOrder.nativeOrder());
+                    if (!cityVector.compare(VectorOperators.EQ, hashInput).allTrue()) {
+                        cityNameOffset = hashMiss(hashMap, cityNameOffset, perfectHash32, hashInput, firstDelimiter);
+                    }
+                }
+                else {
+                    cityNameOffset = hashMap.findLongCity(inputData, offset);
+                    firstDelimiter = hashMap.getLongCityLength(cityNameOffset);
+                }
+                offset += firstDelimiter + 1;
+
+                inRange = SPECIES.indexInRange(offset, end);
+                byteVector = ByteVector.fromMemorySegment(SPECIES, inputData, offset, ByteOrder.nativeOrder(), inRange);
+                VectorMask<Byte> mask = byteVector.compare(VectorOperators.LT, ASCII_ZERO);
+                int lookupIndex = (int) (mask.toLong() & 0x07);
+
+                long value = byteVector
+                        .sub(ASCII_ZERO)
+                        .castShape(SHORT_SPECIES, 0)
+                        .mul(STOI_MUL_LOOKUP[lookupIndex])
+                        .reduceLanesToLong(VectorOperators.ADD);
+
+                hashMap.addMeasurement(cityNameOffset, (int) value);
+                offset += STOI_SIZE_LOOKUP[lookupIndex];
+            }
+        }
+
+        /**
+         * Same as {@link #executeSinglePumped} over a {@link SplitRawHashMap}: the home slot holds hash of the city and
+         * its id, name is compared only when the hash matches and statistics are updated in a record found by id.
+         */
+        public static long executeSinglePumped(MemorySegment inputData, SplitRawHashMap hashMap, long offset, long end) {
+            long[] slots = hashMap.slots;
+
+            end -= LOOP_END_MARGIN;
+            while (offset < end) {
+                Vector<Byte> byteVector = SPECIES.fromMemorySegment(inputData, offset, ByteOrder.nativeOrder());
+                int firstDelimiter = byteVector.compare(VectorOperators.EQ, DELIMITER_VECTOR).firstTrue();
+
+                int cityId;
+                if (firstDelimiter < SPECIES.length()) {
+                    VectorMask<Byte> hashMask = CITY_LOOKUP_MASK[firstDelimiter];
+                    Vector<Byte> hashInput = ZERO.blend(byteVector, hashMask);
+
+                    int hash = SplitRawHashMap.HASH.hash(hashInput);
+                    long slot = slots[hash & SplitRawHashMap.SLOT_MASK];
+                    cityId = (int) slot - 1;
+                    // Empty slot has the tag of hash 0, it must not reach the name comparison with id -1
+                    if (slot == 0 || (int) (slot >>> 32) != hash || !hashMap.nameEquals(cityId, hashInput)) {
+                        cityId = hashMap.findCity(hash, hashInput, firstDelimiter);
+                    }
+                }
+                else {
+                    cityId = hashMap.findLongCity(inputData, offset);
+                    firstDelimiter = hashMap.getNameLength(cityId);
+                }
+                offset += firstDelimiter + 1;
+
+                byteVector = SPECIES.fromMemorySegment(inputData, offset, ByteOrder.nativeOrder());
+                VectorMask<Byte> mask = byteVector.compare(VectorOperators.LT, ASCII_ZERO);
+                int lookupIndex = (int) (mask.toLong() & 0x07);
+
+                long value = byteVector
+                        .sub(ASCII_ZERO)
+                        .castShape(SHORT_SPECIES, 0)
+                        .mul(STOI_MUL_LOOKUP[lookupIndex])
+                        .reduceLanesToLong(VectorOperators.ADD);
+
+                hashMap.addMeasurement(cityId, (int) value);
+                offset += STOI_SIZE_LOOKUP[lookupIndex];
+            }
+
+            return offset;
         }
 
-        // I'm really tired at this point
-        // static Map<String, StatisticsAggregate> executeScalar(MemorySegment inputData, long offset, long end) {
-        // // Why getting byte data from a memory segment is so hard?
-        // byte[] inputDataArray = new byte[(int) (end - offset)];
-        // for (int i = 0; i < inputDataArray.length; i++) {
-        // inputDataArray[i] = inputData.get(ValueLayout.JAVA_BYTE, offset + i);
-        // }
-        //
-        // String inputString = new String(inputDataArray, StandardCharsets.UTF_8);
-        // if (inputString.isEmpty()) {
-        // return Collections.emptyMap();
-        // }
-        //
-        // String[] lines = inputString.split("\n");
-        // return Arrays.stream(lines)
-        // .map(line -> {
-        // String[] cityAndTemperature = line.split(";");
-        //
-        // byte[] cityBytes = cityAndTemperature[0].getBytes(StandardCharsets.UTF_8);
-        // StatisticsAggregate aggregate = new StatisticsAggregate(cityBytes, cityBytes.length);
-        //
-        // long temperature = (long) (Float.parseFloat(cityAndTemperature[1]) * 10);
-        // return aggregate.accept(temperature);
-        // })
-        // .collect(Collectors.toMap(StatisticsAggregate::cityAsString, Function.identity(), StatisticsAggregate::merge));
-        // }
+        /**
+         * Same as {@link #executeTail} over a {@link SplitRawHashMap}.
+         */
+        public static void executeTail(MemorySegment inputData, SplitRawHashMap hashMap, long offset, long end) {
+            while (offset < end) {
+                VectorMask<Byte> inRange = SPECIES.indexInRange(offset, end);
+                Vector<Byte> byteVector = ByteVector.fromMemorySegment(SPECIES, inputData, offset, ByteOrder.nativeOrder(), inRange);
+                int firstDelimiter = byteVector.compare(VectorOperators.EQ, DELIMITER_VECTOR).firstTrue();
+
+                int cityId;
+                if (firstDelimiter < SPECIES.length()) {
+                    Vector<Byte> hashInput = ZERO.blend(byteVector, CITY_LOOKUP_MASK[firstDelimiter]);
+                    cityId = hashMap.findCity(SplitRawHashMap.HASH.hash(hashInput), hashInput, firstDelimiter);
+                }
+                else {
+                    cityId = hashMap.findLongCity(inputData, offset);
+                    firstDelimiter = hashMap.getNameLength(cityId);
+                }
+                offset += firstDelimiter + 1;
+
+                inRange = SPECIES.indexInRange(offset, end);
+                byteVector = ByteVector.fromMemorySegment(SPECIES, inputData, offset, ByteOrder.nativeOrder(), inRange);
+                VectorMask<Byte> mask = byteVector.compare(VectorOperators.LT, ASCII_ZERO);
+                int lookupIndex = (int) (mask.toLong() & 0x07);
+
+                long value = byteVector
+                        .sub(ASCII_ZERO)
+                        .castShape(SHORT_SPECIES, 0)
+                        .mul(STOI_MUL_LOOKUP[lookupIndex])
+                        .reduceLanesToLong(VectorOperators.ADD);
+
+                hashMap.addMeasurement(cityId, (int) value);
+                offset += STOI_SIZE_LOOKUP[lookupIndex];
+            }
+        }
 
         public static final VectorShuffle<Byte>[] SHUFFLE_1 = new VectorShuffle[]{
                 null,
@@ -231,8 +735,8 @@ public class CalculateAverage_tkowalcz2Unsafe {
                 null,
                 VectorShuffle.fromValues(ByteVector.SPECIES_256, 31, 31, 31, 31, 31, 9, 10, 12, 31, 31, 31, 31, 31, 31, 31, 31, 31, 31, 31, 31, 31, 31, 31, 31, 31, 31,
                         31, 31, 31, 31, 31, 31), // - 1 2 . 3
-                VectorShuffle.fromValues(ByteVector.SPECIES_256, 31, 31, 31, 31, 31, 9, 8, 10, 31, 31, 31, 31, 31, 31, 31, 31, 31, 31, 31, 31, 31, 31, 31, 31, 31, 31, 31,
-                        31, 31, 31, 31, 31), // 2 . 3
+                VectorShuffle.fromValues(ByteVector.SPECIES_256, 31, 31, 31, 31, 31, 31, 8, 10, 31, 31, 31, 31, 31, 31, 31, 31, 31, 31, 31, 31, 31, 31, 31, 31, 31, 31,
+                        31, 31, 31, 31, 31, 31), // 2 . 3
                 null,
                 VectorShuffle.fromValues(ByteVector.SPECIES_256, 31, 31, 31, 31, 31, 8, 9, 11, 31, 31, 31, 31, 31, 31, 31, 31, 31, 31, 31, 31, 31, 31, 31, 31, 31, 31, 31,
                         31, 31, 31, 31, 31), // 1 2 . 3
@@ -270,92 +774,105 @@ public class CalculateAverage_tkowalcz2Unsafe {
          * long offset4,
          * long end4
          */) {
+            // Table is only compacted or expanded between windows, see UnsafeRawHashMap.compactOrExpand()
+            int tableOffset = hashMap.tableOffset;
+            int tableSeed = hashMap.tableSeed;
+            int tableShift = hashMap.tableShift;
+            int tableMask = hashMap.tableMask;
+
             while (offset1 < end1 && offset2 < end2 && offset3 < end3/* && offset4 < end4 */) {
                 Vector<Byte> byteVector1 = SPECIES.fromMemorySegment(inputData, offset1, ByteOrder.nativeOrder());
                 // System.out.println(toString(byteVector1));
                 int firstDelimiter1 = byteVector1.compare(VectorOperators.EQ, DELIMITER_VECTOR).firstTrue();
-                if (firstDelimiter1 == 32) {
-                    offset1 = findPastNewline(inputData, offset1);
-                    continue;
-                }
-                offset1 += firstDelimiter1 + 1;
-
                 Vector<Byte> byteVector2 = SPECIES.fromMemorySegment(inputData, offset2, ByteOrder.nativeOrder());
                 int firstDelimiter2 = byteVector2.compare(VectorOperators.EQ, DELIMITER_VECTOR).firstTrue();
-                if (firstDelimiter2 == 32) {
-                    offset2 = findPastNewline(inputData, offset2);
-                    continue;
-                }
-                offset2 += firstDelimiter2 + 1;
                 Vector<Byte> byteVector3 = SPECIES.fromMemorySegment(inputData, offset3, ByteOrder.nativeOrder());
                 int firstDelimiter3 = byteVector3.compare(VectorOperators.EQ, DELIMITER_VECTOR).firstTrue();
-                if (firstDelimiter3 == 32) {
-                    offset3 = findPastNewline(inputData, offset3);
-                    continue;
-                }
-                offset3 += firstDelimiter3 + 1;
 
                 /*
                  * Vector<Byte> byteVector4 = SPECIES.fromMemorySegment(inputData, offset4, ByteOrder.nativeOrder());
                  * int firstDelimiter4 = byteVector4.compare(VectorOperators.EQ, DELIMITER_VECTOR).firstTrue();
-                 * if (firstDelimiter4 == 32) {
-                 * offset4 = findPastNewline(inputData, offset4);
-                 * continue;
-                 * }
-                 * offset4 += firstDelimiter4 + 1;
-                 *
                  */
-                VectorMask<Byte> hashMask1 = CITY_LOOKUP_MASK[firstDelimiter1];
-                Vector<Byte> hashInput1 = ZERO.blend(byteVector1, hashMask1);
-                VectorMask<Byte> hashMask2 = CITY_LOOKUP_MASK[firstDelimiter2];
-                Vector<Byte> hashInput2 = ZERO.blend(byteVector2, hashMask2);
-                VectorMask<Byte> hashMask3 = CITY_LOOKUP_MASK[firstDelimiter3];
-                Vector<Byte> hashInput3 = ZERO.blend(byteVector3, hashMask3);
-                // VectorMask<Byte> hashMask4 = CITY_LOOKUP_MASK[firstDelimiter4];
-                // Vector<Byte> hashInput4 = ZERO.blend(byteVector4, hashMask4);
 
-                int perfectHash32_1 = hashInput1.reinterpretAsInts().reduceLanes(VectorOperators.ADD);
-                int index1 = perfectHash32_1 & TABLE_SIZE_MASK;
-                int cityNameOffset1 = (index1 << 5) + (index1 << 4);
-
-                ByteVector cityVector1 = ByteVector.fromMemorySegment(SPECIES, hashMap.hashMapData, cityNameOffset1, ByteOrder.nativeOrder());
-                if (!cityVector1.compare(VectorOperators.EQ, hashInput1).allTrue()) {
-                    cityNameOffset1 = hashMiss(hashMap, cityNameOffset1, index1, hashInput1, firstDelimiter2);
+                // City names that do not fit into vector register are resolved by a slow path that chains vector
+                // loads. It returns offset of the map entry and stays in line with other cursors.
+                int cityNameOffset1;
+                if (firstDelimiter1 < SPECIES.length()) {
+                    VectorMask<Byte> hashMask1 = CITY_LOOKUP_MASK[firstDelimiter1];
+                    Vector<Byte> hashInput1 = ZERO.blend(byteVector1, hashMask1);
+
+                    int perfectHash32_1 = VECTOR_HASH.hash(hashInput1);
+                    int index1 = (perfectHash32_1 * tableSeed >>> tableShift) & tableMask;
+                    cityNameOffset1 = tableOffset + index1 * UnsafeRawHashMap.ENTRY_SIZE;
+
+                    ByteVector cityVector1 = ByteVector.fromMemorySegment(SPECIES, hashMap.hashMapData, cityNameOffset1, ByteOrder.nativeOrder());
+                    if (!cityVector1.compare(VectorOperators.EQ, hashInput1).allTrue()) {
+                        cityNameOffset1 = hashMiss(hashMap, cityNameOffset1, perfectHash32_1, hashInput1, firstDelimiter1);
+                    }
+                }
+                else {
+                    cityNameOffset1 = hashMap.findLongCity(inputData, offset1);
+                    firstDelimiter1 = hashMap.getLongCityLength(cityNameOffset1);
                 }
+                offset1 += firstDelimiter1 + 1;
 
                 // long v1 = inputData.get(ValueLayout.JAVA_LONG_UNALIGNED, offset1);
                 // long resultMask1 = (((ATOI_PREDICATE ^ v1) ^ ATOI_MASK) + 0x01_01_01_01_01_01_01_01L) & ATOI_NOT_MASK;
                 // int p1 = Long.numberOfTrailingZeros(resultMask1) / 8;
                 // long n1 = convertIntoNumber(p1, v1);
 
-                int perfectHash32_2 = hashInput2.reinterpretAsInts().reduceLanes(VectorOperators.ADD);
-                int index2 = perfectHash32_2 & TABLE_SIZE_MASK;
-                int cityNameOffset2 = (index2 << 5) + (index2 << 4);
+                int cityNameOffset2;
+                if (firstDelimiter2 < SPECIES.length()) {
+                    VectorMask<Byte> hashMask2 = CITY_LOOKUP_MASK[firstDelimiter2];
+                    Vector<Byte> hashInput2 = ZERO.blend(byteVector2, hashMask2);
+
+                    int perfectHash32_2 = VECTOR_HASH.hash(hashInput2);
+                    int index2 = (perfectHash32_2 * tableSeed >>> tableShift) & tableMask;
+                    cityNameOffset2 = tableOffset + index2 * UnsafeRawHashMap.ENTRY_SIZE;
 
-                ByteVector cityVector2 = ByteVector.fromMemorySegment(SPECIES, hashMap.hashMapData, cityNameOffset2, ByteOrder.nativeOrder());
-                if (!cityVector2.compare(VectorOperators.EQ, hashInput2).allTrue()) {
-                    cityNameOffset2 = hashMiss(hashMap, cityNameOffset2, index2, hashInput2, firstDelimiter2);
+                    ByteVector cityVector2 = ByteVector.fromMemorySegment(SPECIES, hashMap.hashMapData, cityNameOffset2, ByteOrder.nativeOrder());
+                    if (!cityVector2.compare(VectorOperators.EQ, hashInput2).allTrue()) {
+                        cityNameOffset2 = hashMiss(hashMap, cityNameOffset2, perfectHash32_2, hashInput2, firstDelimiter2);
+                    }
                 }
+                else {
+                    cityNameOffset2 = hashMap.findLongCity(inputData, offset2);
+                    firstDelimiter2 = hashMap.getLongCityLength(cityNameOffset2);
+                }
+                offset2 += firstDelimiter2 + 1;
 
                 // long v2 = inputData.get(ValueLayout.JAVA_LONG_UNALIGNED, offset2);
                 // long resultMask2 = (((ATOI_PREDICATE ^ v2) ^ ATOI_MASK) + 0x01_01_01_01_01_01_01_01L) & ATOI_NOT_MASK;
                 // int p2 = Long.numberOfTrailingZeros(resultMask2) / 8;
                 // long n2 = convertIntoNumber(p2, v2);
 
-                int perfectHash32_3 = hashInput3.reinterpretAsInts().reduceLanes(VectorOperators.ADD);
-                int index3 = perfectHash32_3 & TABLE_SIZE_MASK;
-                int cityNameOffset3 = (index3 << 5) + (index3 << 4);
+                int cityNameOffset3;
+                if (firstDelimiter3 < SPECIES.length()) {
+                    VectorMask<Byte> hashMask3 = CITY_LOOKUP_MASK[firstDelimiter3];
+                    Vector<Byte> hashInput3 = ZERO.blend(byteVector3, hashMask3);
+
+                    int perfectHash32_3 = VECTOR_HASH.hash(hashInput3);
+                    int index3 = (perfectHash32_3 * tableSeed >>> tableShift) & tableMask;
+                    cityNameOffset3 = tableOffset + index3 * UnsafeRawHashMap.ENTRY_SIZE;
 
-                ByteVector cityVector3 = ByteVector.fromMemorySegment(SPECIES, hashMap.hashMapData, cityNameOffset3, ByteOrder.nativeOrder());
-                if (!cityVector3.compare(VectorOperators.EQ, hashInput3).allTrue()) {
-                    cityNameOffset3 = hashMiss(hashMap, cityNameOffset3, index3, hashInput3, firstDelimiter3);
+                    ByteVector cityVector3 = ByteVector.fromMemorySegment(SPECIES, hashMap.hashMapData, cityNameOffset3, ByteOrder.nativeOrder());
+                    if (!cityVector3.compare(VectorOperators.EQ, hashInput3).allTrue()) {
+                        cityNameOffset3 = hashMiss(hashMap, cityNameOffset3, perfectHash32_3, hashInput3, firstDelimiter3);
+                    }
                 }
+                else {
+                    cityNameOffset3 = hashMap.findLongCity(inputData, offset3);
+                    firstDelimiter3 = hashMap.getLongCityLength(cityNameOffset3);
+                }
+                offset3 += firstDelimiter3 + 1;
                 //
                 // long v3 = inputData.get(ValueLayout.JAVA_LONG_UNALIGNED, offset3);
                 // long resultMask3 = (((ATOI_PREDICATE ^ v3) ^ ATOI_MASK) + 0x01_01_01_01_01_01_01_01L) & ATOI_NOT_MASK;
                 // int p3 = Long.numberOfTrailingZeros(resultMask3) / 8;
                 // long n3 = convertIntoNumber(p3, v3);
                 //
+                // VectorMask<Byte> hashMask4 = CITY_LOOKUP_MASK[firstDelimiter4];
+                // Vector<Byte> hashInput4 = ZERO.blend(byteVector4, hashMask4);
                 // int perfectHash32_4 = hashInput4.reinterpretAsInts().reduceLanes(VectorOperators.ADD);
                 // int index4 = perfectHash32_4 & TABLE_SIZE_MASK;
                 // int cityNameOffset4 = (index4 << 5) + (index4 << 4);
@@ -406,36 +923,48 @@ public class CalculateAverage_tkowalcz2Unsafe {
                 //
                 //
 
-                long long1 = inputData.get(ValueLayout.JAVA_LONG_UNALIGNED, offset1);
-                long long2 = inputData.get(ValueLayout.JAVA_LONG_UNALIGNED, offset2);
-                long long3 = inputData.get(ValueLayout.JAVA_LONG_UNALIGNED, offset3);
-
-                ByteVector byteVector = LongVector.fromArray(LongVector.SPECIES_256, new long[]{ long1, long2, long3, 0x30_30_30_30_30_30_30_30L }, 0)
-                        .reinterpretAsBytes();
-                long allData = byteVector.compare(VectorOperators.LT, ASCII_ZERO).toLong();
-
-                int lookupIndex1 = (int) (allData & 0x7);
-                int lookupIndex2 = (int) ((allData >> 8) & 0x7);
-                int lookupIndex3 = (int) ((allData >> 16) & 0x7);
-
-                Vector<Byte> sub = byteVector.sub((byte) '0');
-                Vector<Short> aaaa = sub.rearrange(SHUFFLE_1[lookupIndex1])
-                        .add(sub.rearrange(SHUFFLE_2[lookupIndex2]))
-                        .add(sub.rearrange(SHUFFLE_3[lookupIndex3]))
-                        .castShape(ShortVector.SPECIES_256, 0)
-                        .mul(ATOI_MUL);
-
-                Vector<Short> s1 = aaaa.rearrange(ATOI_SHUFFLE_1);
-                Vector<Short> s2 = aaaa.rearrange(ATOI_SHUFFLE_2);
-                ShortVector result = (ShortVector) aaaa.add(s1).add(s2);
-
-                hashMap.addMeasurement(cityNameOffset1, result.lane(0));
-                hashMap.addMeasurement(cityNameOffset2, result.lane(1));
-                hashMap.addMeasurement(cityNameOffset3, result.lane(2));
-
-                offset1 += STOI_SIZE_LOOKUP[lookupIndex1];
-                offset2 += STOI_SIZE_LOOKUP[lookupIndex2];
-                offset3 += STOI_SIZE_LOOKUP[lookupIndex3];
+                if (PACKED_TEMPERATURE_PARSING) {
+                    long long1 = inputData.get(ValueLayout.JAVA_LONG_UNALIGNED, offset1);
+                    long long2 = inputData.get(ValueLayout.JAVA_LONG_UNALIGNED, offset2);
+                    long long3 = inputData.get(ValueLayout.JAVA_LONG_UNALIGNED, offset3);
+
+                    ByteVector byteVector = LongVector.fromArray(LongVector.SPECIES_256, new long[]{ long1, long2, long3, 0x30_30_30_30_30_30_30_30L }, 0)
+                            .reinterpretAsBytes();
+                    long allData = byteVector.compare(VectorOperators.LT, PACKED_ASCII_ZERO).toLong();
+
+                    int lookupIndex1 = (int) (allData & 0x7);
+                    int lookupIndex2 = (int) ((allData >> 8) & 0x7);
+                    int lookupIndex3 = (int) ((allData >> 16) & 0x7);
+
+                    Vector<Byte> sub = byteVector.sub((byte) '0');
+                    Vector<Short> aaaa = sub.rearrange(SHUFFLE_1[lookupIndex1])
+                            .add(sub.rearrange(SHUFFLE_2[lookupIndex2]))
+                            .add(sub.rearrange(SHUFFLE_3[lookupIndex3]))
+                            .castShape(ShortVector.SPECIES_256, 0)
+                            .mul(ATOI_MUL);
+
+                    Vector<Short> s1 = aaaa.rearrange(ATOI_SHUFFLE_1);
+                    Vector<Short> s2 = aaaa.rearrange(ATOI_SHUFFLE_2);
+                    ShortVector result = (ShortVector) aaaa.add(s1).add(s2);
+
+                    // Lowest bit of the lookup index is set when the measurement starts with '-'
+                    int sign1 = -(lookupIndex1 & 1);
+                    int sign2 = -(lookupIndex2 & 1);
+                    int sign3 = -(lookupIndex3 & 1);
+
+                    hashMap.addMeasurement(cityNameOffset1, (result.lane(1) ^ sign1) - sign1);
+                    hashMap.addMeasurement(cityNameOffset2, (result.lane(5) ^ sign2) - sign2);
+                    hashMap.addMeasurement(cityNameOffset3, (result.lane(9) ^ sign3) - sign3);
+
+                    offset1 += STOI_SIZE_LOOKUP[lookupIndex1];
+                    offset2 += STOI_SIZE_LOOKUP[lookupIndex2];
+                    offset3 += STOI_SIZE_LOOKUP[lookupIndex3];
+                }
+                else {
+                    offset1 = parseMeasurement(inputData, hashMap, cityNameOffset1, offset1);
+                    offset2 = parseMeasurement(inputData, hashMap, cityNameOffset2, offset2);
+                    offset3 = parseMeasurement(inputData, hashMap, cityNameOffset3, offset3);
+                }
 
                 // byteVector1 = SPECIES.fromMemorySegment(inputData, offset1, ByteOrder.nativeOrder());
                 // VectorMask<Byte> mask1 = byteVector1.compare(VectorOperators.LT, ASCII_ZERO);
@@ -471,24 +1000,32 @@ public class CalculateAverage_tkowalcz2Unsafe {
             return new Cursor(offset1, offset2, offset3);
         }
 
+        // Packed parsing always works on 256-bit vectors, regardless of the species selected for city names
+        private static final Vector<Byte> PACKED_ASCII_ZERO = ByteVector.SPECIES_256.broadcast('0');
+
+        private static long parseMeasurement(MemorySegment inputData, UnsafeRawHashMap hashMap, int cityNameOffset, long offset) {
+            Vector<Byte> byteVector = SPECIES.fromMemorySegment(inputData, offset, ByteOrder.nativeOrder());
+            VectorMask<Byte> mask = byteVector.compare(VectorOperators.LT, ASCII_ZERO);
+            int lookupIndex = (int) (mask.toLong() & 0x07);
+
+            long value = byteVector
+                    .sub(ASCII_ZERO)
+                    .castShape(SHORT_SPECIES, 0)
+                    .mul(STOI_MUL_LOOKUP[lookupIndex])
+                    .reduceLanesToLong(VectorOperators.ADD);
+
+            hashMap.addMeasurement(cityNameOffset, (int) value);
+            return offset + STOI_SIZE_LOOKUP[lookupIndex];
+        }
+
         public static final ShortVector ATOI_MUL = ShortVector.fromArray(
                 ShortVector.SPECIES_256,
                 new short[]{ 0, 100, 10, 1, 0, 100, 10, 1, 0, 100, 10, 1, 0, 0, 0, 0 },
                 0);
 
-        private static int hashMiss(UnsafeRawHashMap hashMap, int cityNameOffset, int index, Vector<Byte> hashInput, int delimiterPosition) {
-            boolean isZero = hashMap.hashMapData.get(ValueLayout.JAVA_BYTE, cityNameOffset) == 0;
-            if (isZero) {
-                hashMap.installNewCity(cityNameOffset, delimiterPosition, hashInput);
-            }
-            else {
-                System.out.println(toString(hashInput));
-                System.out.println("conflict");
-                // index = (index + 1) & TABLE_SIZE_MASK;
-                //
-            }
-            //
-            return cityNameOffset;
+        private static int hashMiss(UnsafeRawHashMap hashMap, int cityNameOffset, int hash, Vector<Byte> hashInput, int delimiterPosition) {
+            // Home entry is either empty or taken by another city, both cases are resolved by probing
+            return hashMap.findCity(hash, hashInput, delimiterPosition);
         }
 
         public static String toString(Vector<Byte> data) {
@@ -496,8 +1033,16 @@ public class CalculateAverage_tkowalcz2Unsafe {
             return new String(array, StandardCharsets.UTF_8).replace('\n', ' ');
         }
 
-        public List<StatisticsAggregate> getStatistics() {
-            return statistics;
+        public UnsafeRawHashMap getHashMap() {
+            return hashMap;
+        }
+
+        public SplitRawHashMap getSplitMap() {
+            return splitMap;
+        }
+
+        public long[] getProbeHistogram() {
+            return hashMap.getProbeHistogram();
         }
 
     }
@@ -517,40 +1062,15 @@ public class CalculateAverage_tkowalcz2Unsafe {
         return position + 1;
     }
 
-    private static MemorySegment mmapDataFile(String fileName, Arena arena, long offset, long size) {
-        try (RandomAccessFile file = new RandomAccessFile(fileName, "r");
-                FileChannel channel = file.getChannel()) {
-            return channel.map(FileChannel.MapMode.READ_ONLY, offset, size, arena);
-        }
-        catch (IOException e) {
-            throw new RuntimeException(e);
-        }
-    }
-
     private static MemorySegment mmapDataFile(String fileName, Arena arena) {
-        try (RandomAccessFile file = new RandomAccessFile(fileName, "r");
-                FileChannel channel = file.getChannel()) {
-            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), arena);
+        try {
+            return MemoryMapping.map(fileName, arena);
         }
         catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
-    public static VectorMask<Byte>[] createMasks32() {
-        VectorMask<Byte>[] result = new VectorMask[33];
-        result[0] = SPECIES.maskAll(false);
-
-        int maskSource = 0x1;
-        for (int i = 1; i < 33; i++) {
-            result[i] = VectorMask.fromLong(SPECIES, maskSource);
-            maskSource <<= 1;
-            maskSource += 1;
-        }
-
-        return result;
-    }
-
     static class DaemonThreadFactory implements ThreadFactory {
 
         @Override
@@ -567,10 +1087,10 @@ public class CalculateAverage_tkowalcz2Unsafe {
         private int min;
         private int max;
 
-        private int sum;
-        private int count;
+        private long sum;
+        private long count;
 
-        public StatisticsAggregate(String cityName, int min, int max, int sum, int count) {
+        public StatisticsAggregate(String cityName, int min, int max, long sum, long count) {
             this.cityName = cityName;
             this.min = min;
             this.max = max;
@@ -582,8 +1102,8 @@ public class CalculateAverage_tkowalcz2Unsafe {
             int min = Math.min(one.min, other.min);
             int max = Math.max(one.max, other.max);
 
-            int sum = one.sum + other.sum;
-            int count = one.count + other.count;
+            long sum = one.sum + other.sum;
+            long count = one.count + other.count;
 
             return new StatisticsAggregate(one.cityName, min, max, sum, count);
         }
@@ -605,8 +1125,8 @@ public class CalculateAverage_tkowalcz2Unsafe {
     /*
      * HashMap entry layout.
      * - Each column is a BYTE (not bit).
-     * - AVX-2 vector is 32 bytes.
-     * - There are 8 int-s in a vector.
+     * - City name takes one vector, so 16, 32 or 64 bytes depending on the selected species. Statistics follow it, so
+     * the offsets below are relative to the vector size. Picture shows AVX-2 (32 bytes).
      *
      * 0 1 2 3
      * 0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1
@@ -616,23 +1136,117 @@ public class CalculateAverage_tkowalcz2Unsafe {
      * | Min | Max | Count | Sum |
      * +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
      *
+     * City names that do not fit into a vector are kept in a separate region after the main table. These entries have
+     * the same statistics at the same offsets, so addMeasurement works for both:
+     *
+     * +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+     * | Len | (unused) |
+     * +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+     * | Min | Max | Count | Sum |
+     * +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+     * | City name (up to 128 bytes) |
+     * +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+     *
+     * Count and sum are packed into one long, so the hot path updates both with a single add. Halves are 32-bit and
+     * would overflow on large inputs, so before that can happen worker flushes them into 64-bit sum and count of the
+     * entry kept in a cold region after all tables (one slot per entry of the main and dense tables, then one per long
+     * city entry). Statistics are the sum of both places:
+     *
+     * +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+     * | Sum | Count |
+     * +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+     *
+     * Collisions in the main table are resolved with quadratic (triangular) probing: n-th probe moves n entries further
+     * so every entry of a power of two table is eventually visited. Hot path compares the home entry only.
+     *
+     * Main table is large to avoid collisions, which scatters a few hundred cities over megabytes (and as many pages).
+     * Once the set of cities stops growing they are moved to a dense table of up to DENSE_TABLE_SIZE entries placed
+     * right after the main one, so that they fit into L1/L2 and a handful of pages. Its index comes from the upper bits
+     * of the hash multiplied by a seed, chosen so that cities do not leave their home entries more often than in the main
+     * table. City that is not in the dense table is looked up in (or added to) the main table by the slow path and the
+     * next time the table is checked all cities go back to the main table. Entries only move between windows of input,
+     * while the hot loop holds no entry offsets.
      */
     public static class UnsafeRawHashMap {
 
-        private static final int CITY_NAME_SIZE_OFFSET = 44;
+        static final int CITY_NAME_SIZE = SPECIES.vectorByteSize();
+
+        private static final int CITY_NAME_SIZE_OFFSET = CITY_NAME_SIZE + 12;
+
+        private static final int MIN_OFFSET = CITY_NAME_SIZE;
+        private static final int MAX_OFFSET = CITY_NAME_SIZE + 4;
+        private static final int COUNT_OFFSET = CITY_NAME_SIZE + 8;
+        private static final int SUM_OFFSET = CITY_NAME_SIZE + 12;
+
+        static final int ENTRY_SIZE = CITY_NAME_SIZE + 16;
+
+        // Long city names are rare, so there is a small table for them with linear probing. With 16 byte vectors quite a
+        // few real station names do not fit, so the table is larger.
+        static final int LONG_CITY_TABLE_SIZE = CITY_NAME_SIZE < 32 ? 0x10000 : 0x1000;
+        static final int LONG_CITY_TABLE_SIZE_MASK = LONG_CITY_TABLE_SIZE - 1;
+        static final int LONG_CITY_ENTRY_SIZE = ENTRY_SIZE + CalculateAverage_tkowalcz.MAX_CITY_NAME_SIZE;
+        // Largest dense table (768KB with 256-bit vectors) still fits into L2. It is never more than a quarter full.
+        static final int DENSE_TABLE_SIZE = 0x4000;
+        static final int DENSE_TABLE_OFFSET = CalculateAverage_tkowalcz2Unsafe.TABLE_SIZE * ENTRY_SIZE;
+        private static final int MIN_DENSE_TABLE_SIZE = 0x40;
+        private static final int MAX_DENSE_SEEDS = 4096;
 
-        private static final int MIN_OFFSET = 32;
-        private static final int MAX_OFFSET = 36;
-        private static final int COUNT_OFFSET = 40;
-        private static final int SUM_OFFSET = 44;
+        // Cities are moved to the dense table when no new one was seen in that much input
+        public static final long COMPACT_AFTER_BYTES = 16 * 1024 * 1024;
+
+        static final int LONG_CITY_TABLE_OFFSET = DENSE_TABLE_OFFSET + DENSE_TABLE_SIZE * ENTRY_SIZE;
+
+        private static final int LONG_CITY_NAME_LENGTH_OFFSET = 0;
+        private static final int LONG_CITY_NAME_OFFSET = ENTRY_SIZE;
+
+        static final int WIDE_TABLE_OFFSET = LONG_CITY_TABLE_OFFSET + LONG_CITY_TABLE_SIZE * LONG_CITY_ENTRY_SIZE;
+        static final int WIDE_ENTRY_SIZE = 16;
+
+        private static final int WIDE_SUM_OFFSET = 0;
+        private static final int WIDE_COUNT_OFFSET = 8;
+
+        // Packed sum stays within int for 2^31 / 999 rows with the largest absolute value. Such rows are at least 7 bytes
+        // long ("a;99.9\n"), so it is safe for about 15MB of input. Packed count takes rows of at least 6 bytes, so it is
+        // not a concern.
+        static final long MAX_UNFLUSHED_BYTES = 8 * 1024 * 1024;
+
+        // Probing gives up after that many entries. Long probe sequences mean the hash function is not a good fit for the
+        // data, and we prefer to fail loudly rather than silently degrade into linear search.
+        static final int DEFAULT_MAX_PROBE_LENGTH = 512;
 
         public final MemorySegment hashMapData;
         // final long hashMapDataUnsafe;
 
         final ArrayList<Integer> cityIndex = new ArrayList<>(500);
 
+        private final int maxProbeLength;
+
+        // Table used by the hot path, either the main or the dense one. Index of an entry is
+        // (hash * tableSeed >>> tableShift) & tableMask, which is just the lower bits of the hash for the main table.
+        int tableOffset = 0;
+        int tableSeed = 1;
+        int tableShift = 0;
+        int tableMask = TABLE_SIZE_MASK;
+
+        // Set when a city was added to the main table while the dense one was in use
+        private boolean denseTableMissed;
+
+        private int citiesSeen;
+        private long bytesWithoutNewCity;
+        private long compactAfterBytes = COMPACT_AFTER_BYTES;
+
+        // Element n counts cities installed n probes away from their home entry.
+        private final long[] probeHistogram;
+
         public UnsafeRawHashMap(Arena arena) {
-            int tableSize = CalculateAverage_tkowalcz2Unsafe.TABLE_SIZE * (32 /* City name */ + 16);
+            this(arena, Integer.getInteger("tkowalcz.maxProbeLength", DEFAULT_MAX_PROBE_LENGTH));
+        }
+
+        public UnsafeRawHashMap(Arena arena, int maxProbeLength) {
+            this.maxProbeLength = maxProbeLength;
+            this.probeHistogram = new long[maxProbeLength + 1];
+
+            int tableSize = WIDE_TABLE_OFFSET + (TABLE_SIZE + DENSE_TABLE_SIZE + LONG_CITY_TABLE_SIZE) * WIDE_ENTRY_SIZE;
 
             hashMapData = arena.allocate(tableSize);
             // hashMapDataUnsafe = UnsafeAccess.UNSAFE.allocateMemory(tableSize);
@@ -652,6 +1266,328 @@ public class CalculateAverage_tkowalcz2Unsafe {
             cityIndex.add(mapEntryOffset);
         }
 
+        /**
+         * Slow path taken when the home entry of a city does not contain it. Probes the table comparing whole city vector
+         * at each step and installs the city in the first empty entry. When the dense table is used and the city is not
+         * there, it is looked up in the main table instead.
+         *
+         * @return offset of the entry that can be passed to {@link #addMeasurement(int, int)}.
+         */
+        public int findCity(int hash, Vector<Byte> hashInput, int delimiterPosition) {
+            if (tableOffset == DENSE_TABLE_OFFSET) {
+                int mapEntryOffset = findDenseCity(hash, hashInput);
+                if (mapEntryOffset >= 0) {
+                    return mapEntryOffset;
+                }
+
+                denseTableMissed = true;
+            }
+
+            int index = hash & TABLE_SIZE_MASK;
+            for (int probe = 0; probe <= maxProbeLength; probe++) {
+                int mapEntryOffset = index * ENTRY_SIZE;
+
+                // City names are never empty and UTF-8 does not use zero bytes, so first byte tells if entry is taken
+                if (hashMapData.get(ValueLayout.JAVA_BYTE, mapEntryOffset) == 0) {
+                    installNewCity(mapEntryOffset, delimiterPosition, hashInput);
+                    probeHistogram[probe]++;
+                    return mapEntryOffset;
+                }
+
+                ByteVector cityVector = ByteVector.fromMemorySegment(SPECIES, hashMapData, mapEntryOffset, ByteOrder.nativeOrder());
+                if (cityVector.compare(VectorOperators.EQ, hashInput).allTrue()) {
+                    return mapEntryOffset;
+                }
+
+                index = (index + probe + 1) & TABLE_SIZE_MASK;
+            }
+
+            throw new IllegalStateException(
+                    STR."City \{WorkerThread.toString(hashInput).trim()} not found within \{maxProbeLength} probes, consider increasing -Dtkowalcz.maxProbeLength");
+        }
+
+        // Dense table is at most a quarter full, so probing always ends at an empty entry
+        private int findDenseCity(int hash, Vector<Byte> hashInput) {
+            int index = (hash * tableSeed >>> tableShift) & tableMask;
+            for (int probe = 0;; probe++) {
+                int mapEntryOffset = DENSE_TABLE_OFFSET + index * ENTRY_SIZE;
+                if (hashMapData.get(ValueLayout.JAVA_BYTE, mapEntryOffset) == 0) {
+                    return -1;
+                }
+
+                ByteVector cityVector = ByteVector.fromMemorySegment(SPECIES, hashMapData, mapEntryOffset, ByteOrder.nativeOrder());
+                if (cityVector.compare(VectorOperators.EQ, hashInput).allTrue()) {
+                    return mapEntryOffset;
+                }
+
+                index = (index + probe + 1) & tableMask;
+            }
+        }
+
+        /**
+         * Called by worker between windows of input. Moves cities to the dense table when none was added for
+         * {@link #COMPACT_AFTER_BYTES} and they fit there at least as well as in the main table, or back to the main table
+         * when a city was missing from the dense one.
+         */
+        public void compactOrExpand(long windowSize) {
+            if (citiesSeen != cityIndex.size()) {
+                citiesSeen = cityIndex.size();
+                bytesWithoutNewCity = 0;
+            }
+            else {
+                bytesWithoutNewCity += windowSize;
+            }
+
+            if (tableOffset == DENSE_TABLE_OFFSET) {
+                if (denseTableMissed) {
+                    expand();
+                }
+            }
+            else if (bytesWithoutNewCity >= compactAfterBytes) {
+                // Looking for a seed is not free, so each failed attempt doubles the wait for the next one
+                if (!compact()) {
+                    compactAfterBytes *= 2;
+                }
+                bytesWithoutNewCity = 0;
+            }
+        }
+
+        boolean compact() {
+            List<Integer> cities = new ArrayList<>();
+            for (int i = 0; i < cityIndex.size(); i++) {
+                if (cityIndex.get(i) < LONG_CITY_TABLE_OFFSET) {
+                    cities.add(cityIndex.get(i));
+                }
+            }
+
+            if (cities.size() * 4 > DENSE_TABLE_SIZE) {
+                return false;
+            }
+
+            // Busiest cities are moved first, so that they get their home entries
+            cities.sort(Comparator.comparingLong(this::rowCount).reversed());
+            int[] hashes = new int[cities.size()];
+            long[] rows = new long[cities.size()];
+            long displacedRows = 0;
+            for (int i = 0; i < cities.size(); i++) {
+                int mapEntryOffset = cities.get(i);
+                hashes[i] = VECTOR_HASH.hash(ByteVector.fromMemorySegment(SPECIES, hashMapData, mapEntryOffset, ByteOrder.nativeOrder()));
+                rows[i] = rowCount(mapEntryOffset);
+                if (mapEntryOffset != (hashes[i] & TABLE_SIZE_MASK) * ENTRY_SIZE) {
+                    displacedRows += rows[i];
+                }
+            }
+
+            // Row of a city that is not in its home entry costs more than a cache miss (the slow path is a call that
+            // boxes the city vector), so the dense table must not send more rows there than the main one does. Dense
+            // index is taken from the upper bits of the hash multiplied by a seed, and seeds are tried until one fits.
+            for (int size = Math.max(MIN_DENSE_TABLE_SIZE, Integer.highestOneBit(cities.size() * 4 - 1) << 1); size <= DENSE_TABLE_SIZE; size <<= 1) {
+                int shift = Integer.SIZE - Integer.numberOfTrailingZeros(size);
+                int[] taken = new int[size];
+                for (int attempt = 1; attempt <= MAX_DENSE_SEEDS; attempt++) {
+                    int seed = attempt * 0x9E3779B9 | 1;
+                    if (displacedRows(hashes, rows, seed, shift, taken, attempt) <= displacedRows) {
+                        moveToDenseTable(cities, seed, shift, size - 1);
+                        return true;
+                    }
+                }
+            }
+
+            return false;
+        }
+
+        // Simulates placement done by moveEntry, entries of the table are taken when they hold the attempt number
+        private static long displacedRows(int[] hashes, long[] rows, int seed, int shift, int[] taken, int attempt) {
+            int mask = taken.length - 1;
+            long displacedRows = 0;
+            for (int i = 0; i < hashes.length; i++) {
+                int index = (hashes[i] * seed >>> shift) & mask;
+                if (taken[index] == attempt) {
+                    displacedRows += rows[i];
+                }
+                for (int probe = 0; taken[index] == attempt; probe++) {
+                    index = (index + probe + 1) & mask;
+                }
+                taken[index] = attempt;
+            }
+
+            return displacedRows;
+        }
+
+        private void moveToDenseTable(List<Integer> cities, int seed, int shift, int mask) {
+            cityIndex.removeIf(mapEntryOffset -> mapEntryOffset < LONG_CITY_TABLE_OFFSET);
+            for (int mapEntryOffset : cities) {
+                cityIndex.add(moveEntry(mapEntryOffset, DENSE_TABLE_OFFSET, seed, shift, mask));
+            }
+
+            tableOffset = DENSE_TABLE_OFFSET;
+            tableSeed = seed;
+            tableShift = shift;
+            tableMask = mask;
+            denseTableMissed = false;
+        }
+
+        private long rowCount(int mapEntryOffset) {
+            return hashMapData.get(ValueLayout.JAVA_LONG, wideOffset(mapEntryOffset) + WIDE_COUNT_OFFSET)
+                    + packedCount(hashMapData.get(ValueLayout.JAVA_LONG, mapEntryOffset + COUNT_OFFSET));
+        }
+
+        void expand() {
+            for (int i = 0; i < cityIndex.size(); i++) {
+                int mapEntryOffset = cityIndex.get(i);
+                // Cities that missed the dense table are in the main one already
+                if (mapEntryOffset >= DENSE_TABLE_OFFSET && mapEntryOffset < LONG_CITY_TABLE_OFFSET) {
+                    cityIndex.set(i, moveEntry(mapEntryOffset, 0, 1, 0, TABLE_SIZE_MASK));
+                }
+            }
+
+            tableOffset = 0;
+            tableSeed = 1;
+            tableShift = 0;
+            tableMask = TABLE_SIZE_MASK;
+            denseTableMissed = false;
+        }
+
+        // Moves entry with its wide counters to the first empty entry of the probe sequence in the given table
+        private int moveEntry(int mapEntryOffset, int targetTableOffset, int seed, int shift, int targetTableMask) {
+            Vector<Byte> city = ByteVector.fromMemorySegment(SPECIES, hashMapData, mapEntryOffset, ByteOrder.nativeOrder());
+            int index = (VECTOR_HASH.hash(city) * seed >>> shift) & targetTableMask;
+            for (int probe = 0;; probe++) {
+                int targetOffset = targetTableOffset + index * ENTRY_SIZE;
+                if (hashMapData.get(ValueLayout.JAVA_BYTE, targetOffset) == 0) {
+                    MemorySegment.copy(hashMapData, mapEntryOffset, hashMapData, targetOffset, ENTRY_SIZE);
+                    hashMapData.asSlice(mapEntryOffset, ENTRY_SIZE).fill((byte) 0);
+
+                    int wideOffset = wideOffset(mapEntryOffset);
+                    MemorySegment.copy(hashMapData, wideOffset, hashMapData, wideOffset(targetOffset), WIDE_ENTRY_SIZE);
+                    hashMapData.asSlice(wideOffset, WIDE_ENTRY_SIZE).fill((byte) 0);
+                    return targetOffset;
+                }
+
+                index = (index + probe + 1) & targetTableMask;
+            }
+        }
+
+        /**
+         * Installs cities of the index before any input is processed. Cities that fit into a vector go to the dense table
+         * when the index has its seed, in the order {@link #compact()} placed them, so each one gets the same entry as in
+         * the run that wrote the index. Table then starts in the state it would reach after compaction.
+         */
+        public void preload(InputIndex index) {
+            boolean dense = index.denseSeed() != 0;
+            for (byte[] city : index.cities()) {
+                // Padding covers masked loads of the last chunk of the name
+                MemorySegment name = MemorySegment.ofArray(Arrays.copyOf(city, city.length + CITY_NAME_SIZE));
+                if (city.length >= CITY_NAME_SIZE) {
+                    findLongCity(name, 0, city.length, CalculateAverage_tkowalcz.hashLongCityName(name, 0, city.length));
+                    continue;
+                }
+
+                Vector<Byte> hashInput = ByteVector.fromMemorySegment(SPECIES, name, 0, ByteOrder.nativeOrder());
+                if (dense) {
+                    installInDenseTable(hashInput, city.length, index.denseSeed(), index.denseShift(), index.denseMask());
+                }
+                else {
+                    findCity(VECTOR_HASH.hash(hashInput), hashInput, city.length);
+                }
+            }
+
+            if (dense) {
+                tableOffset = DENSE_TABLE_OFFSET;
+                tableSeed = index.denseSeed();
+                tableShift = index.denseShift();
+                tableMask = index.denseMask();
+                denseTableMissed = false;
+            }
+            citiesSeen = cityIndex.size();
+        }
+
+        // Same placement as moveEntry
+        private void installInDenseTable(Vector<Byte> city, int delimiterPosition, int seed, int shift, int mask) {
+            int index = (VECTOR_HASH.hash(city) * seed >>> shift) & mask;
+            for (int probe = 0;; probe++) {
+                int mapEntryOffset = DENSE_TABLE_OFFSET + index * ENTRY_SIZE;
+                if (hashMapData.get(ValueLayout.JAVA_BYTE, mapEntryOffset) == 0) {
+                    installNewCity(mapEntryOffset, delimiterPosition, city);
+                    return;
+                }
+
+                index = (index + probe + 1) & mask;
+            }
+        }
+
+        /**
+         * Moves cities to the dense table if they fit there, so that their order in {@link #cityIndex} is the order
+         * in which they were placed (see {@link InputIndex}). Statistics stay where they were.
+         */
+        void compactForIndex() {
+            if (tableOffset == DENSE_TABLE_OFFSET && denseTableMissed) {
+                expand();
+            }
+            if (tableOffset != DENSE_TABLE_OFFSET) {
+                compact();
+            }
+        }
+
+        List<byte[]> cityNames() {
+            List<byte[]> result = new ArrayList<>(cityIndex.size());
+            for (int i = 0; i < cityIndex.size(); i++) {
+                int mapEntryOffset = cityIndex.get(i);
+                if (mapEntryOffset < LONG_CITY_TABLE_OFFSET) {
+                    Vector<Byte> city = ByteVector.fromMemorySegment(SPECIES, hashMapData, mapEntryOffset, ByteOrder.nativeOrder());
+                    result.add(hashMapData.asSlice(mapEntryOffset, city.compare(VectorOperators.EQ, 0).firstTrue()).toArray(ValueLayout.JAVA_BYTE));
+                }
+                else {
+                    result.add(hashMapData.asSlice(mapEntryOffset + LONG_CITY_NAME_OFFSET, getLongCityLength(mapEntryOffset)).toArray(ValueLayout.JAVA_BYTE));
+                }
+            }
+
+            return result;
+        }
+
+        public long[] getProbeHistogram() {
+            return probeHistogram;
+        }
+
+        /**
+         * Slow path for city names longer than a vector. Returns offset of the entry that can be passed to
+         * {@link #addMeasurement(int, int)}.
+         */
+        public int findLongCity(MemorySegment inputData, long offset) {
+            long lengthAndHash = CalculateAverage_tkowalcz.hashLongCity(inputData, offset);
+            return findLongCity(inputData, offset, (int) (lengthAndHash >>> 32), (int) lengthAndHash);
+        }
+
+        private int findLongCity(MemorySegment inputData, long offset, int cityLength, int hash) {
+            int index = hash & LONG_CITY_TABLE_SIZE_MASK;
+
+            for (int i = 0; i < LONG_CITY_TABLE_SIZE; i++) {
+                int mapEntryOffset = LONG_CITY_TABLE_OFFSET + index * LONG_CITY_ENTRY_SIZE;
+                int entryLength = hashMapData.get(ValueLayout.JAVA_INT, mapEntryOffset + LONG_CITY_NAME_LENGTH_OFFSET);
+                if (entryLength == 0) {
+                    MemorySegment.copy(inputData, offset, hashMapData, mapEntryOffset + LONG_CITY_NAME_OFFSET, cityLength);
+                    hashMapData.set(ValueLayout.JAVA_INT, mapEntryOffset + LONG_CITY_NAME_LENGTH_OFFSET, cityLength);
+                    hashMapData.set(ValueLayout.JAVA_INT, mapEntryOffset + MIN_OFFSET, Integer.MAX_VALUE);
+                    hashMapData.set(ValueLayout.JAVA_INT, mapEntryOffset + MAX_OFFSET, Integer.MIN_VALUE);
+                    cityIndex.add(mapEntryOffset);
+                    return mapEntryOffset;
+                }
+
+                if (entryLength == cityLength
+                        && CalculateAverage_tkowalcz.longCityEquals(hashMapData, mapEntryOffset + LONG_CITY_NAME_OFFSET, inputData, offset, cityLength)) {
+                    return mapEntryOffset;
+                }
+
+                index = (index + 1) & LONG_CITY_TABLE_SIZE_MASK;
+            }
+
+            throw new IllegalStateException(STR."More than \{LONG_CITY_TABLE_SIZE} city names exceeding vector size");
+        }
+
+        public int getLongCityLength(int mapEntryOffset) {
+            return hashMapData.get(ValueLayout.JAVA_INT, mapEntryOffset + LONG_CITY_NAME_LENGTH_OFFSET);
+        }
+
         public void addMeasurement(int mapEntryOffset, int value) {
             int min = hashMapData.get(ValueLayout.JAVA_INT, mapEntryOffset + MIN_OFFSET);
             int max = hashMapData.get(ValueLayout.JAVA_INT, mapEntryOffset + MAX_OFFSET);
@@ -661,8 +1597,9 @@ public class CalculateAverage_tkowalcz2Unsafe {
             // int min = UnsafeAccess.UNSAFE.getInt(baseOffset + MIN_OFFSET);
             // int max = UnsafeAccess.UNSAFE.getInt(baseOffset + MAX_OFFSET);
             // long countSum = UnsafeAccess.UNSAFE.getLong(baseOffset + COUNT_OFFSET);
-            countSum += value;
-            countSum += 0x00000001_00000000L;
+
+            // Count lives in the lower half so that negative values do not borrow from it
+            countSum += ((long) value << 32) + 1;
 
             if (value < min) {
                 hashMapData.set(ValueLayout.JAVA_INT, mapEntryOffset + MIN_OFFSET, value);
@@ -677,6 +1614,88 @@ public class CalculateAverage_tkowalcz2Unsafe {
             // UnsafeAccess.UNSAFE.putLong(baseOffset + COUNT_OFFSET, countSum);
         }
 
+        /**
+         * Adds statistics of all cities from other table to this one. Cities are matched on raw name bytes using the same
+         * lookups as the hot path, so no Strings are created.
+         */
+        public void mergeFrom(UnsafeRawHashMap other) {
+            for (int i = 0; i < other.cityIndex.size(); i++) {
+                int otherEntryOffset = other.cityIndex.get(i);
+
+                int mapEntryOffset;
+                if (otherEntryOffset < LONG_CITY_TABLE_OFFSET) {
+                    Vector<Byte> city = ByteVector.fromMemorySegment(SPECIES, other.hashMapData, otherEntryOffset, ByteOrder.nativeOrder());
+                    mapEntryOffset = findCity(VECTOR_HASH.hash(city), city, city.compare(VectorOperators.EQ, 0).firstTrue());
+                }
+                else {
+                    int cityLength = other.getLongCityLength(otherEntryOffset);
+                    long cityOffset = otherEntryOffset + LONG_CITY_NAME_OFFSET;
+                    int hash = CalculateAverage_tkowalcz.hashLongCityName(other.hashMapData, cityOffset, cityLength);
+                    mapEntryOffset = findLongCity(other.hashMapData, cityOffset, cityLength, hash);
+                }
+
+                mergeStatistics(mapEntryOffset, other.hashMapData, otherEntryOffset);
+            }
+        }
+
+        private void mergeStatistics(int mapEntryOffset, MemorySegment otherData, int otherEntryOffset) {
+            int min = Math.min(
+                    hashMapData.get(ValueLayout.JAVA_INT, mapEntryOffset + MIN_OFFSET),
+                    otherData.get(ValueLayout.JAVA_INT, otherEntryOffset + MIN_OFFSET));
+            int max = Math.max(
+                    hashMapData.get(ValueLayout.JAVA_INT, mapEntryOffset + MAX_OFFSET),
+                    otherData.get(ValueLayout.JAVA_INT, otherEntryOffset + MAX_OFFSET));
+
+            hashMapData.set(ValueLayout.JAVA_INT, mapEntryOffset + MIN_OFFSET, min);
+            hashMapData.set(ValueLayout.JAVA_INT, mapEntryOffset + MAX_OFFSET, max);
+
+            // Merged totals can overflow packed halves even if tables of each worker did not, so they go to the wide area
+            int otherWideOffset = wideOffset(otherEntryOffset);
+            long countSum = otherData.get(ValueLayout.JAVA_LONG, otherEntryOffset + COUNT_OFFSET);
+            addWide(
+                    wideOffset(mapEntryOffset),
+                    otherData.get(ValueLayout.JAVA_LONG, otherWideOffset + WIDE_SUM_OFFSET) + packedSum(countSum),
+                    otherData.get(ValueLayout.JAVA_LONG, otherWideOffset + WIDE_COUNT_OFFSET) + packedCount(countSum));
+        }
+
+        /**
+         * Moves packed count and sum of every city into its 64-bit counterparts in the wide area. Must be called before
+         * {@link #MAX_UNFLUSHED_BYTES} of input are added since the last flush.
+         */
+        public void flush() {
+            for (int i = 0; i < cityIndex.size(); i++) {
+                int mapEntryOffset = cityIndex.get(i);
+                long countSum = hashMapData.get(ValueLayout.JAVA_LONG, mapEntryOffset + COUNT_OFFSET);
+                if (countSum != 0) {
+                    addWide(wideOffset(mapEntryOffset), packedSum(countSum), packedCount(countSum));
+                    hashMapData.set(ValueLayout.JAVA_LONG, mapEntryOffset + COUNT_OFFSET, 0L);
+                }
+            }
+        }
+
+        private void addWide(int wideOffset, long sum, long count) {
+            hashMapData.set(ValueLayout.JAVA_LONG, wideOffset + WIDE_SUM_OFFSET, hashMapData.get(ValueLayout.JAVA_LONG, wideOffset + WIDE_SUM_OFFSET) + sum);
+            hashMapData.set(ValueLayout.JAVA_LONG, wideOffset + WIDE_COUNT_OFFSET, hashMapData.get(ValueLayout.JAVA_LONG, wideOffset + WIDE_COUNT_OFFSET) + count);
+        }
+
+        private static int wideOffset(int mapEntryOffset) {
+            if (mapEntryOffset < LONG_CITY_TABLE_OFFSET) {
+                return WIDE_TABLE_OFFSET + mapEntryOffset / ENTRY_SIZE * WIDE_ENTRY_SIZE;
+            }
+
+            int longCityIndex = (mapEntryOffset - LONG_CITY_TABLE_OFFSET) / LONG_CITY_ENTRY_SIZE;
+            return WIDE_TABLE_OFFSET + (TABLE_SIZE + DENSE_TABLE_SIZE + longCityIndex) * WIDE_ENTRY_SIZE;
+        }
+
+        // Sum is kept in the upper half, arithmetic shift restores its sign
+        private static long packedSum(long countSum) {
+            return countSum >> 32;
+        }
+
+        private static long packedCount(long countSum) {
+            return countSum & 0xFFFFFFFFL;
+        }
+
         public List<StatisticsAggregate> asStatistics() {
             List<StatisticsAggregate> result = new ArrayList<>(cityIndex.size());
             for (int i = 0; i < cityIndex.size(); i++) {
@@ -695,11 +1714,379 @@ public class CalculateAverage_tkowalcz2Unsafe {
             //
             int min = hashMapData.get(ValueLayout.JAVA_INT, mapEntryOffset + MIN_OFFSET);
             int max = hashMapData.get(ValueLayout.JAVA_INT, mapEntryOffset + MAX_OFFSET);
-            int sum = hashMapData.get(ValueLayout.JAVA_INT, mapEntryOffset + SUM_OFFSET);
-            int count = hashMapData.get(ValueLayout.JAVA_INT, mapEntryOffset + COUNT_OFFSET);
+            long countSum = hashMapData.get(ValueLayout.JAVA_LONG, mapEntryOffset + COUNT_OFFSET);
+            int wideOffset = wideOffset(mapEntryOffset);
+            long sum = hashMapData.get(ValueLayout.JAVA_LONG, wideOffset + WIDE_SUM_OFFSET) + packedSum(countSum);
+            long count = hashMapData.get(ValueLayout.JAVA_LONG, wideOffset + WIDE_COUNT_OFFSET) + packedCount(countSum);
             //
-            String cityName = hashMapData.getUtf8String(mapEntryOffset);
+            String cityName;
+            if (mapEntryOffset < LONG_CITY_TABLE_OFFSET) {
+                cityName = hashMapData.getUtf8String(mapEntryOffset);
+            }
+            else {
+                byte[] city = hashMapData.asSlice(mapEntryOffset + LONG_CITY_NAME_OFFSET, getLongCityLength(mapEntryOffset)).toArray(ValueLayout.JAVA_BYTE);
+                cityName = new String(city, StandardCharsets.UTF_8);
+            }
             return new StatisticsAggregate(cityName, min, max, sum, count);
         }
     }
+
+    /*
+     * Hot/cold split variant of UnsafeRawHashMap. Its 48 byte entries (with 256-bit vectors) straddle cache lines and
+     * every update brings the name into the cache along with the statistics. Here the three parts live apart:
+     *
+     * Slots, long[] indexed by the lower bits of the hash, 8 bytes each so a cache line holds 8 of them:
+     *
+     * +-+-+-+-+-+-+-+-+
+     * | Hash |Id + 1 |
+     * +-+-+-+-+-+-+-+-+
+     *
+     * Statistics, dense array of 16 byte records indexed by city id (order of insertion), four per cache line. Count and
+     * sum are packed and flushed into 64-bit wide counters as in UnsafeRawHashMap:
+     *
+     * +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+     * | Min | Max | Count | Sum |
+     * +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+     *
+     * Names, append-only arena. Names that fit into a vector take one vector padded with zeros, so they are compared with
+     * a single load, longer ones take as many bytes as they have. Arena is read only when the hash in the slot matches,
+     * which with few hundred cities is a few kilobytes instead of a few hundred cache lines spread over the table.
+     *
+     * Slots are kept at most a quarter full and probed like the main table of UnsafeRawHashMap.
+     *
+     * Statistics can be kept in a StatisticsStore (arrays of min, max, sum and count indexed by the same id) instead of
+     * the records, see -Dtkowalcz.statistics=soa. Cities are merged by name once, statistics with a sweep over the arrays.
+     * Measurements can also go through SampleBuffers (-Dtkowalcz.statistics=buffered) or a StatisticsBatch
+     * (-Dtkowalcz.statistics=batched), flush() moves what they hold into the store.
+     */
+    public static class SplitRawHashMap {
+
+        public static final int MAX_CITIES = 0x4000;
+        static final int SLOT_COUNT = MAX_CITIES * 4;
+        static final int SLOT_MASK = SLOT_COUNT - 1;
+
+        static final VectorHash HASH = VectorHash.configured();
+
+        static final int CITY_NAME_SIZE = SPECIES.vectorByteSize();
+        static final int STATISTICS_SIZE = 16;
+
+        private static final int MIN_OFFSET = 0;
+        private static final int MAX_OFFSET = 4;
+        private static final int COUNT_OFFSET = 8;
+
+        // Packed sum of a city stays within int for 2^31 / 999 rows with the largest absolute value. Unlike
+        // UnsafeRawHashMap, whose callers flush it every MAX_UNFLUSHED_BYTES of input, records are flushed by the map
+        // itself after that many rows of all cities.
+        static final int MAX_UNFLUSHED_ROWS = Integer.MAX_VALUE / 999;
+
+        final long[] slots = new long[SLOT_COUNT];
+        final MemorySegment statistics;
+        private final StatisticsStore store;
+        private final SampleBuffers buffers;
+        private final StatisticsBatch batch;
+        private final MemorySegment names;
+        private final int[] nameOffsets = new int[MAX_CITIES];
+        private final int[] nameLengths = new int[MAX_CITIES];
+        private final long[] wideSums = new long[MAX_CITIES];
+        private final long[] wideCounts = new long[MAX_CITIES];
+
+        private int cityCount;
+        private int namesEnd;
+        private int unflushedRows;
+
+        public SplitRawHashMap(Arena arena) {
+            this(arena, null);
+        }
+
+        /**
+         * Map that keeps statistics in given store instead of its own records, store must have room for
+         * {@link #MAX_CITIES}.
+         */
+        public SplitRawHashMap(Arena arena, StatisticsStore store) {
+            this(arena, store, null, null);
+        }
+
+        /**
+         * Map that adds measurements to given sample buffers (when not null) and drains them into given store on
+         * {@link #flush()}. Both must have room for {@link #MAX_CITIES}.
+         */
+        public SplitRawHashMap(Arena arena, StatisticsStore store, SampleBuffers buffers) {
+            this(arena, store, buffers, null);
+        }
+
+        /**
+         * Map that adds measurements to given store in batches.
+         */
+        public SplitRawHashMap(Arena arena, StatisticsStore store, StatisticsBatch batch) {
+            this(arena, store, null, batch);
+        }
+
+        private SplitRawHashMap(Arena arena, StatisticsStore store, SampleBuffers buffers, StatisticsBatch batch) {
+            if (store != null && store.length() <= MAX_CITIES) {
+                throw new IllegalArgumentException(STR."Store of \{store.length()} stations cannot hold \{MAX_CITIES} cities");
+            }
+            if ((buffers != null || batch != null) && store == null) {
+                throw new IllegalArgumentException("Sample buffers and batches need a store to be drained into");
+            }
+
+            this.store = store;
+            this.buffers = buffers;
+            this.batch = batch;
+            this.statistics = store == null ? arena.allocate((long) MAX_CITIES * STATISTICS_SIZE, 64) : null;
+            // Enough for all cities with the longest names
+            this.names = arena.allocate((long) MAX_CITIES * (CalculateAverage_tkowalcz.MAX_CITY_NAME_SIZE + CITY_NAME_SIZE), 64);
+        }
+
+        boolean nameEquals(int cityId, Vector<Byte> hashInput) {
+            return ByteVector.fromMemorySegment(SPECIES, names, nameOffsets[cityId], ByteOrder.nativeOrder())
+                    .compare(VectorOperators.EQ, hashInput)
+                    .allTrue();
+        }
+
+        int getNameLength(int cityId) {
+            return nameLengths[cityId];
+        }
+
+        /**
+         * Slow path taken when the home slot does not hold the city, probes slots comparing hash first and name second.
+         *
+         * @return id of the city that can be passed to {@link #addMeasurement(int, int)}.
+         */
+        public int findCity(int hash, Vector<Byte> hashInput, int delimiterPosition) {
+            int index = hash & SLOT_MASK;
+            for (int probe = 0;; probe++) {
+                long slot = slots[index];
+                if (slot == 0) {
+                    int cityId = installNewCity(index, hash, delimiterPosition);
+                    hashInput.intoMemorySegment(names, nameOffsets[cityId], ByteOrder.nativeOrder());
+                    return cityId;
+                }
+
+                int cityId = (int) slot - 1;
+                if ((int) (slot >>> 32) == hash && nameLengths[cityId] < CITY_NAME_SIZE && nameEquals(cityId, hashInput)) {
+                    return cityId;
+                }
+
+                index = (index + probe + 1) & SLOT_MASK;
+            }
+        }
+
+        /**
+         * Slow path for city names longer than a vector, they share slots with the short ones.
+         */
+        public int findLongCity(MemorySegment inputData, long offset) {
+            long lengthAndHash = CalculateAverage_tkowalcz.hashLongCity(inputData, offset);
+            return findLongCity(inputData, offset, (int) (lengthAndHash >>> 32), (int) lengthAndHash);
+        }
+
+        private int findLongCity(MemorySegment inputData, long offset, int cityLength, int hash) {
+            int index = hash & SLOT_MASK;
+            for (int probe = 0;; probe++) {
+                long slot = slots[index];
+                if (slot == 0) {
+                    int cityId = installNewCity(index, hash, cityLength);
+                    MemorySegment.copy(inputData, offset, names, nameOffsets[cityId], cityLength);
+                    return cityId;
+                }
+
+                int cityId = (int) slot - 1;
+                if ((int) (slot >>> 32) == hash
+                        && nameLengths[cityId] == cityLength
+                        && CalculateAverage_tkowalcz.longCityEquals(names, nameOffsets[cityId], inputData, offset, cityLength)) {
+                    return cityId;
+                }
+
+                index = (index + probe + 1) & SLOT_MASK;
+            }
+        }
+
+        /**
+         * Id of the city with given name, the city is added when this map does not have it.
+         */
+        int findCity(byte[] city) {
+            // Padding covers masked loads of the last chunk of the name, short names are zero padded like hash input
+            MemorySegment name = MemorySegment.ofArray(Arrays.copyOf(city, city.length + CITY_NAME_SIZE));
+            if (city.length >= CITY_NAME_SIZE) {
+                return findLongCity(name, 0, city.length, CalculateAverage_tkowalcz.hashLongCityName(name, 0, city.length));
+            }
+
+            Vector<Byte> hashInput = ByteVector.fromMemorySegment(SPECIES, name, 0, ByteOrder.nativeOrder());
+            return findCity(HASH.hash(hashInput), hashInput, city.length);
+        }
+
+        /**
+         * Installs cities of the index in its order, so that all workers give every city the same id and their stores
+         * are merged without mapping ids.
+         */
+        public void preload(InputIndex index) {
+            for (byte[] city : index.cities()) {
+                findCity(city);
+            }
+        }
+
+        byte[] cityName(int cityId) {
+            return names.asSlice(nameOffsets[cityId], nameLengths[cityId]).toArray(ValueLayout.JAVA_BYTE);
+        }
+
+        private int installNewCity(int index, int hash, int nameLength) {
+            if (cityCount == MAX_CITIES) {
+                throw new IllegalStateException(STR."More than \{MAX_CITIES} cities");
+            }
+
+            int cityId = cityCount++;
+            nameOffsets[cityId] = namesEnd;
+            nameLengths[cityId] = nameLength;
+            // Short names take a whole vector, long ones are followed by padding for masked loads of their last chunk
+            namesEnd += Math.max(CITY_NAME_SIZE, nameLength + CITY_NAME_SIZE);
+
+            // Store starts with empty statistics of all ids
+            if (buffers != null) {
+                buffers.clear(cityId);
+            }
+            else if (store == null) {
+                statistics.set(ValueLayout.JAVA_INT, (long) cityId * STATISTICS_SIZE + MIN_OFFSET, Integer.MAX_VALUE);
+                statistics.set(ValueLayout.JAVA_INT, (long) cityId * STATISTICS_SIZE + MAX_OFFSET, Integer.MIN_VALUE);
+            }
+            slots[index] = ((long) hash << 32) | (cityId + 1);
+            return cityId;
+        }
+
+        public void addMeasurement(int cityId, int value) {
+            if (buffers != null) {
+                buffers.add(cityId, value);
+                return;
+            }
+            if (batch != null) {
+                batch.add(cityId, value);
+                return;
+            }
+            if (store != null) {
+                store.add(cityId, value);
+                return;
+            }
+
+            long offset = (long) cityId * STATISTICS_SIZE;
+            int min = statistics.get(ValueLayout.JAVA_INT, offset + MIN_OFFSET);
+            int max = statistics.get(ValueLayout.JAVA_INT, offset + MAX_OFFSET);
+            long countSum = statistics.get(ValueLayout.JAVA_LONG, offset + COUNT_OFFSET);
+
+            // Same packing as UnsafeRawHashMap.addMeasurement
+            countSum += ((long) value << 32) + 1;
+
+            if (value < min) {
+                statistics.set(ValueLayout.JAVA_INT, offset + MIN_OFFSET, value);
+            }
+            if (value > max) {
+                statistics.set(ValueLayout.JAVA_INT, offset + MAX_OFFSET, value);
+            }
+
+            statistics.set(ValueLayout.JAVA_LONG, offset + COUNT_OFFSET, countSum);
+            if (++unflushedRows == MAX_UNFLUSHED_ROWS) {
+                flush();
+            }
+        }
+
+        /**
+         * Moves packed count and sum of every city into its 64-bit counters, see {@link UnsafeRawHashMap#flush()}, or
+         * samples of the buffers or rows of the batch into the store.
+         */
+        public void flush() {
+            if (buffers != null) {
+                buffers.drainInto(store, cityCount);
+                return;
+            }
+            if (batch != null) {
+                batch.flush();
+                return;
+            }
+            if (store != null) {
+                return;
+            }
+
+            for (int cityId = 0; cityId < cityCount; cityId++) {
+                long offset = (long) cityId * STATISTICS_SIZE + COUNT_OFFSET;
+                long countSum = statistics.get(ValueLayout.JAVA_LONG, offset);
+                wideSums[cityId] += countSum >> 32;
+                wideCounts[cityId] += countSum & 0xFFFFFFFFL;
+                statistics.set(ValueLayout.JAVA_LONG, offset, 0L);
+            }
+            unflushedRows = 0;
+        }
+
+        public int cityCount() {
+            return cityCount;
+        }
+
+        public List<StatisticsAggregate> asStatistics() {
+            flush();
+            if (store != null) {
+                return new ArrayList<>(store.asResults(cityNames()).values());
+            }
+
+            List<StatisticsAggregate> result = new ArrayList<>(cityCount);
+            for (int cityId = 0; cityId < cityCount; cityId++) {
+                long offset = (long) cityId * STATISTICS_SIZE;
+                result.add(new StatisticsAggregate(
+                        new String(cityName(cityId), StandardCharsets.UTF_8),
+                        statistics.get(ValueLayout.JAVA_INT, offset + MIN_OFFSET),
+                        statistics.get(ValueLayout.JAVA_INT, offset + MAX_OFFSET),
+                        wideSums[cityId],
+                        wideCounts[cityId]));
+            }
+
+            return result;
+        }
+
+        /**
+         * Names of all cities, position in the list is their id.
+         */
+        public List<String> cityNames() {
+            List<String> cityNames = new ArrayList<>(cityCount);
+            for (int cityId = 0; cityId < cityCount; cityId++) {
+                cityNames.add(new String(cityName(cityId), StandardCharsets.UTF_8));
+            }
+
+            return cityNames;
+        }
+
+        public StatisticsStore getStore() {
+            return store;
+        }
+
+        /**
+         * Adds cities and statistics of another map with a statistics store to this one. Cities of the other map are
+         * looked up by name (and added when missing), when they all have the same ids here (e.g. both maps were
+         * preloaded from an index) stores are merged directly, otherwise through a map of ids.
+         */
+        public void mergeFrom(SplitRawHashMap other) {
+            if (store == null || other.store == null) {
+                throw new IllegalStateException("Only maps with a statistics store can be merged");
+            }
+            flush();
+            other.flush();
+
+            int[] otherIds = null;
+            for (int otherId = 0; otherId < other.cityCount; otherId++) {
+                int cityId = findCity(other.cityName(otherId));
+                if (cityId != otherId && otherIds == null) {
+                    otherIds = new int[store.length()];
+                    Arrays.fill(otherIds, other.store.emptyId());
+                    for (int sameId = 0; sameId < otherId; sameId++) {
+                        otherIds[sameId] = sameId;
+                    }
+                }
+                if (otherIds != null) {
+                    otherIds[cityId] = otherId;
+                }
+            }
+
+            // Cities this map has and the other one does not have ids past its last city, with empty statistics there
+            if (otherIds == null) {
+                store.mergeFrom(other.store);
+            }
+            else {
+                store.mergeFrom(other.store, otherIds);
+            }
+        }
+    }
 }
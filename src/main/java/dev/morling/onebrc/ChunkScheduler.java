@@ -0,0 +1,252 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.IOException;
+import java.lang.foreign.MemorySegment;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out newline aligned pieces of the input to worker threads, so that a slow core (or a page fault storm on one
+ * part of the file) does not keep the whole job waiting for a single straggler.
+ * <p>
+ * Input is divided into chunks of {@code -Dtkowalcz.chunkSize} bytes (4MB by default) claimed from an atomic cursor, same
+ * as {@code SEGMENT_SIZE} counter of {@code CalculateAverage_artsiomkorzun}. Worker processes its chunk in slices. When
+ * no chunks are left, idle workers steal the second half of what remains of the busiest chunk, so the run ends with
+ * all workers finishing at roughly the same time.
+ * <p>
+ * Chunk and slice boundaries are moved past the next newline, so every row is processed exactly once. Slices end on
+ * multiples of {@link #SLICE_SIZE}, so with an {@link InputIndex} all boundaries but those of stolen halves are looked
+ * up instead of scanned for.
+ */
+public class ChunkScheduler {
+
+    static final long DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;
+
+    // Worker claims this much of its chunk at a time, so that thieves can take the rest
+    static final long SLICE_SIZE = 256 * 1024;
+
+    private final MemorySegment inputData;
+    private final long chunkSize;
+    private final AtomicLong cursor = new AtomicLong();
+
+    // Entry n is the first row start at or after n * SLICE_SIZE, null when there is no index
+    private final long[] rowStarts;
+
+    // Chunk currently processed by each worker, read by thieves
+    private final Chunk[] chunks;
+
+    public ChunkScheduler(MemorySegment inputData, int workerCount) {
+        this(inputData, workerCount, Long.getLong("tkowalcz.chunkSize", DEFAULT_CHUNK_SIZE));
+    }
+
+    public ChunkScheduler(MemorySegment inputData, int workerCount, long chunkSize) {
+        this(inputData, workerCount, chunkSize, null);
+    }
+
+    public ChunkScheduler(MemorySegment inputData, int workerCount, InputIndex index) {
+        this(inputData, workerCount, Long.getLong("tkowalcz.chunkSize", DEFAULT_CHUNK_SIZE), index.rowStarts());
+    }
+
+    ChunkScheduler(MemorySegment inputData, int workerCount, long chunkSize, long[] rowStarts) {
+        this.inputData = inputData;
+        this.chunkSize = chunkSize;
+        this.rowStarts = rowStarts;
+        this.chunks = new Chunk[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            chunks[i] = new Chunk();
+        }
+    }
+
+    /**
+     * Returns next newline aligned slice for given worker or null when the whole input was processed.
+     */
+    public MemorySegment nextSlice(int worker) {
+        Chunk chunk = chunks[worker];
+        while (true) {
+            MemorySegment slice = chunk.claim();
+            if (slice != null) {
+                return slice;
+            }
+
+            if (!claimChunk(chunk) && !stealHalf(chunk)) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Offset up to which chunks were handed out, input past it is still waiting for workers to claim it in file order.
+     */
+    public long handedOut() {
+        return Math.min(cursor.get(), inputData.byteSize());
+    }
+
+    private boolean claimChunk(Chunk chunk) {
+        long size = inputData.byteSize();
+        while (true) {
+            long position = cursor.getAndAdd(chunkSize);
+            if (position >= size) {
+                return false;
+            }
+
+            // Rows crossing the beginning of the chunk belong to the previous one. Chunk can be empty when it is
+            // covered by a single row.
+            long start = alignToRow(position);
+            long end = alignToRow(Math.min(position + chunkSize, size));
+            if (start < end) {
+                chunk.assign(start, end);
+                return true;
+            }
+        }
+    }
+
+    private boolean stealHalf(Chunk chunk) {
+        while (true) {
+            Chunk victim = null;
+            long victimRemaining = 0;
+            for (Chunk candidate : chunks) {
+                long remaining = candidate.remaining();
+                if (candidate != chunk && remaining > victimRemaining) {
+                    victim = candidate;
+                    victimRemaining = remaining;
+                }
+            }
+
+            // Not worth splitting ranges smaller than a slice, their owner will finish them before we start
+            if (victim == null || victimRemaining < 2 * SLICE_SIZE) {
+                return false;
+            }
+
+            long[] stolen = victim.splitHalf();
+            if (stolen != null) {
+                chunk.assign(stolen[0], stolen[1]);
+                return true;
+            }
+        }
+    }
+
+    // Moves position to the beginning of the row that starts at or after it
+    private long alignToRow(long position) {
+        if (position <= 0) {
+            return 0;
+        }
+        if (position >= inputData.byteSize()) {
+            return inputData.byteSize();
+        }
+        if (rowStarts != null && position % SLICE_SIZE == 0) {
+            return rowStarts[(int) (position / SLICE_SIZE)];
+        }
+
+        return CalculateAverage_tkowalcz.findPastNewline(inputData, position - 1);
+    }
+
+    // Next multiple of the slice size after position
+    private static long nextSliceBoundary(long position) {
+        return (position / SLICE_SIZE + 1) * SLICE_SIZE;
+    }
+
+    /**
+     * Number of workers: available processors limited by CPU quota of the cgroup we run in (both v1 and v2), can be set
+     * explicitly with {@code -Dtkowalcz.workers}.
+     */
+    public static int workerCount() {
+        Integer workers = Integer.getInteger("tkowalcz.workers");
+        if (workers != null) {
+            return workers;
+        }
+
+        int availableProcessors = Runtime.getRuntime().availableProcessors();
+        return Math.max(1, Math.min(availableProcessors, cgroupCpuLimit(Path.of("/sys/fs/cgroup"))));
+    }
+
+    static int cgroupCpuLimit(Path cgroupRoot) {
+        try {
+            Path cpuMax = cgroupRoot.resolve("cpu.max");
+            if (Files.isReadable(cpuMax)) {
+                // cgroup v2: "<quota> <period>" or "max <period>"
+                String[] quotaAndPeriod = Files.readString(cpuMax).trim().split("\\s+");
+                if (!quotaAndPeriod[0].equals("max")) {
+                    return cpuLimit(Long.parseLong(quotaAndPeriod[0]), Long.parseLong(quotaAndPeriod[1]));
+                }
+            }
+
+            Path quota = cgroupRoot.resolve("cpu").resolve("cpu.cfs_quota_us");
+            Path period = cgroupRoot.resolve("cpu").resolve("cpu.cfs_period_us");
+            if (Files.isReadable(quota) && Files.isReadable(period)) {
+                // cgroup v1: quota is -1 when unlimited
+                long quotaMicros = Long.parseLong(Files.readString(quota).trim());
+                if (quotaMicros > 0) {
+                    return cpuLimit(quotaMicros, Long.parseLong(Files.readString(period).trim()));
+                }
+            }
+        }
+        catch (IOException | RuntimeException e) {
+            // Unknown format, do not limit
+        }
+
+        return Integer.MAX_VALUE;
+    }
+
+    private static int cpuLimit(long quota, long period) {
+        return (int) Math.max(1, (quota + period - 1) / period);
+    }
+
+    /**
+     * Range of a chunk that was not claimed yet. Slices are claimed by the owner from the front and thieves take the
+     * back half, both under the lock of the chunk. Contention is low as the owner takes the lock once per slice.
+     */
+    private final class Chunk {
+
+        private long next;
+        private long end;
+
+        synchronized void assign(long start, long end) {
+            this.next = start;
+            this.end = end;
+        }
+
+        synchronized MemorySegment claim() {
+            if (next >= end) {
+                return null;
+            }
+
+            long sliceEnd = nextSliceBoundary(next) >= end ? end : alignToRow(nextSliceBoundary(next));
+            MemorySegment slice = inputData.asSlice(next, sliceEnd - next);
+            next = sliceEnd;
+
+            return slice;
+        }
+
+        synchronized long remaining() {
+            return end - next;
+        }
+
+        synchronized long[] splitHalf() {
+            // Rounded down to a slice boundary, remaining range is at least two slices long so it stays past next
+            long middle = alignToRow((next + (end - next) / 2) / SLICE_SIZE * SLICE_SIZE);
+            if (middle <= next || middle >= end) {
+                return null;
+            }
+
+            long[] stolen = { middle, end };
+            end = middle;
+            return stolen;
+        }
+    }
+}
@@ -16,7 +16,10 @@
 package dev.morling.onebrc;
 
 import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
@@ -25,10 +28,21 @@ import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 
 public class CreateMeasurementsFast {
 
     private static final Path MEASUREMENT_FILE = Path.of("./measurements.txt");
+    private static final Path COMPRESSED_MEASUREMENT_FILE = Path.of("./measurements.txt.gz");
+
+    // Uncompressed size of a BGZF member, small enough for the compressed one to fit in 64KB even if it does not compress
+    static final int BGZF_MEMBER_SIZE = 0xff00;
+
+    // Empty member marking the end of a BGZF file
+    static final byte[] BGZF_EOF = {
+            0x1f, (byte) 0x8b, 8, 4, 0, 0, 0, 0, 0, (byte) 0xff, 6, 0, 'B', 'C', 2, 0, 0x1b, 0, 3, 0, 0, 0, 0, 0, 0, 0, 0, 0
+    };
     static final Executor EXECUTOR_SERVICE = Executors.newWorkStealingPool();
 
     private record WeatherStation(String id, double meanTemperature) {
@@ -41,11 +55,16 @@ public class CreateMeasurementsFast {
     public static void main(String[] args) throws Exception {
         long start = System.currentTimeMillis();
 
-        if (args.length != 1) {
-            System.out.println("Usage: create_measurements.sh <number of records to create>");
+        if (args.length != 1 && !(args.length == 2 && args[1].equals("--bgzf"))) {
+            System.out.println("Usage: create_measurements.sh <number of records to create> [--bgzf]");
             System.exit(1);
         }
 
+        // With --bgzf measurements are written as measurements.txt.gz made of independently compressed members, see
+        // BgzfReader
+        boolean bgzf = args.length == 2;
+        Path measurementFile = bgzf ? COMPRESSED_MEASUREMENT_FILE : MEASUREMENT_FILE;
+
         int size = 0;
         try {
             size = Integer.parseInt(args[0]);
@@ -57,8 +76,8 @@ public class CreateMeasurementsFast {
         }
 
         try {
-            Files.deleteIfExists(MEASUREMENT_FILE);
-            Files.createFile(MEASUREMENT_FILE);
+            Files.deleteIfExists(measurementFile);
+            Files.createFile(measurementFile);
         }
         catch (Exception e) {
             // ignore
@@ -521,6 +540,23 @@ public class CreateMeasurementsFast {
                             .append(station.measurement())
                             .append('\n');
                 }
+                if (bgzf) {
+                    // Chunk is compressed in parallel with the others, members of a chunk are appended together
+                    ByteArrayOutputStream members = new ByteArrayOutputStream();
+                    try {
+                        writeBgzf(members, builder.toString().getBytes(StandardCharsets.UTF_8));
+                        synchronized (CreateMeasurementsFast.class) {
+                            try (OutputStream out = Files.newOutputStream(measurementFile, StandardOpenOption.APPEND)) {
+                                members.writeTo(out);
+                            }
+                        }
+                    }
+                    catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                    return;
+                }
+
                 try (BufferedWriter bw = Files.newBufferedWriter(MEASUREMENT_FILE, StandardOpenOption.APPEND)) {
                     bw.write(builder.toString());
                 }
@@ -531,7 +567,48 @@ public class CreateMeasurementsFast {
         }
 
         CompletableFuture.allOf(futures).join();
+        if (bgzf) {
+            Files.write(measurementFile, BGZF_EOF, StandardOpenOption.APPEND);
+        }
 
         System.out.printf("Created file with %,d measurements in %s ms%n", size, System.currentTimeMillis() - start);
     }
+
+    /**
+     * Writes data as BGZF members: gzip members of at most {@link #BGZF_MEMBER_SIZE} bytes, each with its total size
+     * in a {@code BC} extra field, so that readers can find and inflate them independently.
+     */
+    static void writeBgzf(OutputStream out, byte[] data) throws IOException {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        byte[] compressed = new byte[64 * 1024];
+        CRC32 crc = new CRC32();
+        try {
+            for (int offset = 0; offset < data.length; offset += BGZF_MEMBER_SIZE) {
+                int length = Math.min(BGZF_MEMBER_SIZE, data.length - offset);
+                deflater.reset();
+                deflater.setInput(data, offset, length);
+                deflater.finish();
+                int compressedLength = deflater.deflate(compressed);
+                crc.reset();
+                crc.update(data, offset, length);
+
+                // Header with extra field, deflated data, CRC and uncompressed size
+                int memberSize = 18 + compressedLength + 8;
+                out.write(new byte[]{ 0x1f, (byte) 0x8b, 8, 4, 0, 0, 0, 0, 0, (byte) 0xff, 6, 0, 'B', 'C', 2, 0 });
+                writeLittleEndian(out, memberSize - 1, 2);
+                out.write(compressed, 0, compressedLength);
+                writeLittleEndian(out, crc.getValue(), 4);
+                writeLittleEndian(out, length, 4);
+            }
+        }
+        finally {
+            deflater.end();
+        }
+    }
+
+    private static void writeLittleEndian(OutputStream out, long value, int bytes) throws IOException {
+        for (int i = 0; i < bytes; i++) {
+            out.write((int) (value >>> (8 * i)));
+        }
+    }
 }
@@ -0,0 +1,248 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import dev.morling.onebrc.CalculateAverage_tkowalcz2Unsafe.SplitRawHashMap;
+import dev.morling.onebrc.CalculateAverage_tkowalcz2Unsafe.UnsafeRawHashMap;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.foreign.MemorySegment;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sidecar file ({@code measurements.txt.idx}) with what a run learns about an input that does not change between
+ * runs, so that the next report over the same file skips it:
+ * <ul>
+ * <li>start of the first row at or after every multiple of {@link ChunkScheduler#SLICE_SIZE}, so chunk and slice
+ * boundaries are looked up instead of scanned for with {@code findPastNewline},</li>
+ * <li>names of all cities (position in the list is their id) in the order they were moved to the dense table, with the
+ * seed, shift and mask of that table. Workers install them before parsing (see {@link UnsafeRawHashMap#preload}), every
+ * city lands in the same entry as in the run that wrote the index and the hot loop never takes the insert path. Runs
+ * with statistics stores write their cities in order of ids without a dense table, {@link SplitRawHashMap#preload}
+ * gives them the same ids, so stores of all workers line up and are merged without a map of ids.</li>
+ * </ul>
+ * Index is keyed by size, modification time and inode of the input, and by the table size, vector size and vector hash
+ * it was written with. Index that does not match is ignored and written again at the end of the run.
+ * <p>
+ * Enabled with {@code -Dtkowalcz.index=true}, only used for the default input file.
+ */
+public final class InputIndex {
+
+    // "1BRC.IDX"
+    static final long MAGIC = 0x314252432E494458L;
+    static final int VERSION = 1;
+
+    static final boolean ENABLED = Boolean.getBoolean("tkowalcz.index");
+
+    private final long[] rowStarts;
+    private final List<byte[]> cities;
+    private final int denseSeed;
+    private final int denseShift;
+    private final int denseMask;
+
+    private long loadNanos;
+
+    InputIndex(long[] rowStarts, List<byte[]> cities, int denseSeed, int denseShift, int denseMask) {
+        this.rowStarts = rowStarts;
+        this.cities = cities;
+        this.denseSeed = denseSeed;
+        this.denseShift = denseShift;
+        this.denseMask = denseMask;
+    }
+
+    static Path sidecar(Path input) {
+        return input.resolveSibling(STR."\{input.getFileName()}.idx");
+    }
+
+    /**
+     * Index of given input, null when there is none or it was written for a different file or engine configuration.
+     */
+    static InputIndex load(Path input) throws IOException {
+        long start = System.nanoTime();
+        Path sidecar = sidecar(input);
+        if (!Files.isReadable(sidecar)) {
+            return null;
+        }
+
+        // Whole file is read at once, DataInputStream is slow before it is compiled and this runs once
+        try {
+            ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(sidecar));
+            if (in.getLong() != MAGIC || in.getInt() != VERSION) {
+                return null;
+            }
+
+            for (long part : key(input)) {
+                if (in.getLong() != part) {
+                    return null;
+                }
+            }
+            if (in.getInt() != CalculateAverage_tkowalcz2Unsafe.TABLE_SIZE
+                    || in.getInt() != UnsafeRawHashMap.CITY_NAME_SIZE
+                    || !new String(bytes(in), StandardCharsets.UTF_8).equals(CalculateAverage_tkowalcz2Unsafe.VECTOR_HASH.toString())
+                    || in.getLong() != ChunkScheduler.SLICE_SIZE) {
+                return null;
+            }
+
+            long[] rowStarts = new long[in.getInt()];
+            in.asLongBuffer().get(rowStarts);
+            in.position(in.position() + rowStarts.length * Long.BYTES);
+
+            int denseSeed = in.getInt();
+            int denseShift = in.getInt();
+            int denseMask = in.getInt();
+            int cityCount = in.getInt();
+            List<byte[]> cities = new ArrayList<>(cityCount);
+            for (int i = 0; i < cityCount; i++) {
+                cities.add(bytes(in));
+            }
+
+            InputIndex index = new InputIndex(rowStarts, cities, denseSeed, denseShift, denseMask);
+            index.loadNanos = System.nanoTime() - start;
+            return index;
+        }
+        catch (BufferUnderflowException | NegativeArraySizeException e) {
+            // Truncated or written by another version, will be replaced
+            return null;
+        }
+    }
+
+    // Unsigned short length followed by that many bytes, what DataOutputStream.writeUTF writes for ASCII
+    private static byte[] bytes(ByteBuffer in) {
+        byte[] bytes = new byte[Short.toUnsignedInt(in.getShort())];
+        in.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Writes index of given input with cities of the table that has all of them, e.g. the merged one. Moves cities of
+     * that table around (see {@link UnsafeRawHashMap#compactForIndex()}), so it must not be used for parsing afterwards.
+     * File is written next to the input and renamed, so a concurrent run never sees half of it.
+     */
+    static void write(Path input, MemorySegment inputData, UnsafeRawHashMap table) throws IOException {
+        table.compactForIndex();
+        if (table.tableOffset == UnsafeRawHashMap.DENSE_TABLE_OFFSET) {
+            write(input, inputData, table.cityNames(), table.tableSeed, table.tableShift, table.tableMask);
+        }
+        else {
+            write(input, inputData, table.cityNames(), 0, 0, 0);
+        }
+    }
+
+    /**
+     * Writes index of given input with cities of the split map that has all of them, e.g. the merged one.
+     */
+    static void write(Path input, MemorySegment inputData, SplitRawHashMap map) throws IOException {
+        List<byte[]> cities = new ArrayList<>(map.cityCount());
+        for (int cityId = 0; cityId < map.cityCount(); cityId++) {
+            cities.add(map.cityName(cityId));
+        }
+
+        write(input, inputData, cities, 0, 0, 0);
+    }
+
+    private static void write(Path input, MemorySegment inputData, List<byte[]> cities, int denseSeed, int denseShift, int denseMask) throws IOException {
+        Path sidecar = sidecar(input);
+        Path temporary = sidecar.resolveSibling(STR."\{sidecar.getFileName()}.\{ProcessHandle.current().pid()}");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+            out.writeLong(MAGIC);
+            out.writeInt(VERSION);
+            for (long part : key(input)) {
+                out.writeLong(part);
+            }
+            out.writeInt(CalculateAverage_tkowalcz2Unsafe.TABLE_SIZE);
+            out.writeInt(UnsafeRawHashMap.CITY_NAME_SIZE);
+            out.writeUTF(CalculateAverage_tkowalcz2Unsafe.VECTOR_HASH.toString());
+            out.writeLong(ChunkScheduler.SLICE_SIZE);
+
+            long[] rowStarts = rowStarts(inputData);
+            out.writeInt(rowStarts.length);
+            for (long rowStart : rowStarts) {
+                out.writeLong(rowStart);
+            }
+
+            // Zero seed means cities did not fit into the dense table and stay in the main one
+            out.writeInt(denseSeed);
+            out.writeInt(denseShift);
+            out.writeInt(denseMask);
+            out.writeInt(cities.size());
+            for (byte[] city : cities) {
+                out.writeShort(city.length);
+                out.write(city);
+            }
+        }
+
+        Files.move(temporary, sidecar, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Row starts of the grid used by ChunkScheduler, entry n is the first row start at or after n * SLICE_SIZE
+    static long[] rowStarts(MemorySegment inputData) {
+        long[] rowStarts = new long[(int) ((inputData.byteSize() + ChunkScheduler.SLICE_SIZE - 1) / ChunkScheduler.SLICE_SIZE)];
+        for (int i = 1; i < rowStarts.length; i++) {
+            rowStarts[i] = CalculateAverage_tkowalcz.findPastNewline(inputData, i * ChunkScheduler.SLICE_SIZE - 1);
+        }
+
+        return rowStarts;
+    }
+
+    private static long[] key(Path input) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(input, BasicFileAttributes.class);
+        long inode;
+        try {
+            inode = (Long) Files.getAttribute(input, "unix:ino");
+        }
+        catch (UnsupportedOperationException | IllegalArgumentException e) {
+            // Not a unix file system, size and modification time will have to do
+            inode = 0;
+        }
+
+        return new long[]{ attributes.size(), attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS), inode };
+    }
+
+    long[] rowStarts() {
+        return rowStarts;
+    }
+
+    List<byte[]> cities() {
+        return cities;
+    }
+
+    int denseSeed() {
+        return denseSeed;
+    }
+
+    int denseShift() {
+        return denseShift;
+    }
+
+    int denseMask() {
+        return denseMask;
+    }
+
+    String summary() {
+        return STR."index: \{cities.size()} cities\{denseSeed != 0 ? " in dense table" : ""}, \{rowStarts.length} row starts, loaded in \{TimeUnit.NANOSECONDS.toMicros(loadNanos)}us";
+    }
+}
@@ -0,0 +1,632 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.IOException;
+import java.lang.foreign.*;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads the input with {@code io_uring}, set up directly over {@link Linker}: a single ring thread keeps up to
+ * {@code depth} block reads in flight across the file, into buffers registered with the ring so the kernel does not
+ * pin and unpin their pages on every read. Completed blocks are stitched like those of {@link PreadReader} and handed
+ * to whichever worker asks first, in the order they complete.
+ * <p>
+ * Enabled with {@code -Dtkowalcz.input=io_uring}, which falls back to {@link PreadReader} (and its properties) when the
+ * kernel does not support {@code io_uring} or it is disabled, e.g. with {@code kernel.io_uring_disabled} or a seccomp
+ * filter of a container. Configured with:
+ * <ul>
+ * <li>{@code -Dtkowalcz.io_uring.depth} - number of buffers, which is also the maximum number of reads in flight, 8 by
+ * default,</li>
+ * <li>{@code -Dtkowalcz.io_uring.blockSize} - size of a read, 8MB by default,</li>
+ * <li>{@code -Dtkowalcz.io_uring.direct=true} - opens the file with {@code O_DIRECT}.</li>
+ * </ul>
+ * Linux only, structure layouts below are the same on x86_64 and aarch64. Run with
+ * {@code --enable-native-access=ALL-UNNAMED} to silence restricted method warnings.
+ */
+public class IoUringReader implements BlockReader {
+
+    public static final int DEFAULT_DEPTH = 8;
+
+    private static final int ALIGNMENT = PreadReader.ALIGNMENT;
+
+    // struct io_uring_params, followed by io_sqring_offsets at 40 and io_cqring_offsets at 80
+    private static final int PARAMS_SIZE = 120;
+    private static final int PARAMS_SQ_ENTRIES = 0;
+    private static final int PARAMS_CQ_ENTRIES = 4;
+    private static final int SQ_OFF_TAIL = 40 + 4;
+    private static final int SQ_OFF_RING_MASK = 40 + 8;
+    private static final int SQ_OFF_ARRAY = 40 + 24;
+    private static final int CQ_OFF_HEAD = 80;
+    private static final int CQ_OFF_TAIL = 80 + 4;
+    private static final int CQ_OFF_RING_MASK = 80 + 8;
+    private static final int CQ_OFF_CQES = 80 + 20;
+
+    // struct io_uring_sqe and io_uring_cqe
+    private static final int SQE_SIZE = 64;
+    private static final int SQE_OPCODE = 0;
+    private static final int SQE_FD = 4;
+    private static final int SQE_OFF = 8;
+    private static final int SQE_ADDR = 16;
+    private static final int SQE_LEN = 24;
+    private static final int SQE_USER_DATA = 32;
+    private static final int SQE_BUF_INDEX = 40;
+    private static final int CQE_SIZE = 16;
+    private static final int CQE_USER_DATA = 0;
+    private static final int CQE_RES = 8;
+
+    private static final byte IORING_OP_READ_FIXED = 4;
+    private static final byte IORING_OP_READ = 22;
+    private static final int IORING_ENTER_GETEVENTS = 1;
+    private static final int IORING_REGISTER_BUFFERS = 0;
+    private static final long IORING_OFF_SQ_RING = 0;
+    private static final long IORING_OFF_CQ_RING = 0x8000000L;
+    private static final long IORING_OFF_SQES = 0x10000000L;
+
+    private static final int EINTR = 4;
+    private static final int EAGAIN = 11;
+    private static final int EBUSY = 16;
+
+    private static final VarHandle INT = MethodHandles.memorySegmentViewVarHandle(ValueLayout.JAVA_INT);
+
+    private static String unavailableReason;
+    private static boolean probed;
+
+    private final int fd;
+    private final int ringFd;
+    private final long fileSize;
+    private final long blockSize;
+
+    // Rings and buffers, unmapped and freed on close
+    private final Arena arena = Arena.ofShared();
+    private final MemorySegment sqRing;
+    private final MemorySegment cqRing;
+    private final MemorySegment sqes;
+    private final int sqMask;
+    private final int cqMask;
+
+    // Offsets of ring fields within the mappings
+    private final int sqTail;
+    private final int cqHead;
+    private final int cqTail;
+    private final int cqes;
+
+    private final boolean registered;
+
+    private final Buffer[] buffers;
+    private final BlockHandoff<Buffer> handoff;
+    private final RingThread ringThread;
+
+    // Reads after a short one have to start aligned
+    private final boolean direct;
+
+    public IoUringReader(Path path, int depth, long blockSize, boolean direct) throws IOException {
+        if (blockSize < ALIGNMENT || blockSize % ALIGNMENT != 0 || blockSize > Integer.MAX_VALUE / 2) {
+            throw new IllegalArgumentException(STR."Block size \{blockSize} must be a multiple of \{ALIGNMENT} smaller than 1GB");
+        }
+        if (depth < 1) {
+            throw new IllegalArgumentException(STR."Depth \{depth} must be positive");
+        }
+
+        this.fileSize = Files.size(path);
+        this.blockSize = blockSize;
+        this.direct = direct;
+        this.fd = Native.open(path, direct);
+
+        MemorySegment params = arena.allocate(PARAMS_SIZE);
+        int ringFd = -1;
+        try {
+            ringFd = Native.setup(depth, params);
+            int sqEntries = params.get(ValueLayout.JAVA_INT, PARAMS_SQ_ENTRIES);
+            int cqEntries = params.get(ValueLayout.JAVA_INT, PARAMS_CQ_ENTRIES);
+
+            this.sqRing = Native.mmap(ringFd, params.get(ValueLayout.JAVA_INT, SQ_OFF_ARRAY) + sqEntries * 4L, IORING_OFF_SQ_RING, arena);
+            this.cqRing = Native.mmap(ringFd, params.get(ValueLayout.JAVA_INT, CQ_OFF_CQES) + cqEntries * (long) CQE_SIZE, IORING_OFF_CQ_RING, arena);
+            this.sqes = Native.mmap(ringFd, sqEntries * (long) SQE_SIZE, IORING_OFF_SQES, arena);
+        }
+        catch (IOException | RuntimeException e) {
+            if (ringFd >= 0) {
+                Native.close(ringFd);
+            }
+            Native.close(fd);
+            arena.close();
+            throw e;
+        }
+        this.ringFd = ringFd;
+
+        int sqArray = params.get(ValueLayout.JAVA_INT, SQ_OFF_ARRAY);
+        this.sqMask = sqRing.get(ValueLayout.JAVA_INT, params.get(ValueLayout.JAVA_INT, SQ_OFF_RING_MASK));
+        this.cqMask = cqRing.get(ValueLayout.JAVA_INT, params.get(ValueLayout.JAVA_INT, CQ_OFF_RING_MASK));
+        this.sqTail = params.get(ValueLayout.JAVA_INT, SQ_OFF_TAIL);
+        this.cqHead = params.get(ValueLayout.JAVA_INT, CQ_OFF_HEAD);
+        this.cqTail = params.get(ValueLayout.JAVA_INT, CQ_OFF_TAIL);
+        this.cqes = params.get(ValueLayout.JAVA_INT, CQ_OFF_CQES);
+
+        // Submission queue entry i always goes to slot i, so the indirection array is filled once
+        for (int i = 0; i <= sqMask; i++) {
+            sqRing.setAtIndex(ValueLayout.JAVA_INT, sqArray / 4 + i, i);
+        }
+
+        long bufferSize = blockSize + MappedWindows.ROW_MARGIN + 2 * ALIGNMENT;
+        this.buffers = new Buffer[depth];
+        this.handoff = new BlockHandoff<>(depth, new Buffer(-1, MemorySegment.NULL));
+        MemorySegment iovecs = arena.allocate(16L * depth, 8);
+        for (int i = 0; i < depth; i++) {
+            buffers[i] = new Buffer(i, arena.allocate(bufferSize, ALIGNMENT));
+            iovecs.set(ValueLayout.JAVA_LONG, 16L * i, buffers[i].data.address());
+            iovecs.set(ValueLayout.JAVA_LONG, 16L * i + 8, bufferSize);
+            handoff.release(buffers[i]);
+        }
+
+        // Registration fails when the buffers do not fit in RLIMIT_MEMLOCK of kernels before 5.12, plain reads work
+        this.registered = Native.register(ringFd, IORING_REGISTER_BUFFERS, iovecs, depth) == 0;
+
+        this.ringThread = new RingThread();
+        ringThread.start();
+    }
+
+    /**
+     * Reader configured with system properties, or {@link PreadReader} when {@code io_uring} is not available.
+     */
+    public static BlockReader open(String fileName, int workerCount) throws IOException {
+        String reason = unavailableReason();
+        if (reason != null) {
+            PreadReader fallback = PreadReader.open(fileName, workerCount);
+            fallback.fallbackReason = STR."io_uring unavailable: \{reason}";
+            return fallback;
+        }
+
+        return new IoUringReader(
+                Path.of(fileName),
+                Integer.getInteger("tkowalcz.io_uring.depth", Math.max(DEFAULT_DEPTH, 2 * workerCount)),
+                Long.getLong("tkowalcz.io_uring.blockSize", PreadReader.DEFAULT_BLOCK_SIZE),
+                Boolean.getBoolean("tkowalcz.io_uring.direct"));
+    }
+
+    /**
+     * Why {@code io_uring} cannot be used here, null when it can. Probed once by setting up and closing a small ring.
+     */
+    public static synchronized String unavailableReason() {
+        if (!probed) {
+            probed = true;
+            unavailableReason = probe();
+        }
+
+        return unavailableReason;
+    }
+
+    private static String probe() {
+        if (!System.getProperty("os.name", "").toLowerCase(Locale.ROOT).startsWith("linux")) {
+            return "not Linux";
+        }
+
+        try (Arena arena = Arena.ofConfined()) {
+            Native.close(Native.setup(1, arena.allocate(PARAMS_SIZE)));
+            return null;
+        }
+        catch (IOException | RuntimeException | LinkageError e) {
+            return e.getMessage();
+        }
+    }
+
+    @Override
+    public Block next(int worker) {
+        return handoff.next();
+    }
+
+    @Override
+    public String summary() {
+        long millis = Math.max(TimeUnit.NANOSECONDS.toMillis(ringThread.elapsedNanos), 1);
+        return STR."io_uring depth \{buffers.length}, \{blockSize >> 10}KB blocks, \{registered ? "registered" : "unregistered"} buffers: \{ringThread.bytes >> 20}MB in \{millis}ms (\{(ringThread.bytes >> 20) * 1000 / millis}MB/s), \{ringThread.reads} reads, \{ringThread.enterCalls} io_uring_enter calls, ring thread CPU \{TimeUnit.NANOSECONDS.toMillis(ringThread.cpuNanos)}ms";
+    }
+
+    @Override
+    public void close() throws IOException {
+        ringThread.interrupt();
+        try {
+            ringThread.join();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        // Closing the ring unregisters buffers, so they are freed after
+        Native.close(ringFd);
+        Native.close(fd);
+        arena.close();
+    }
+
+    private final class RingThread extends Thread {
+
+        // Owned by this thread, read after it is joined
+        private long bytes;
+        private long reads;
+        private long enterCalls;
+        private long elapsedNanos;
+        private long cpuNanos;
+
+        // Entries written to the submission queue and not yet passed to io_uring_enter
+        private int unsubmitted;
+
+        RingThread() {
+            setName("io_uring");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            Throwable failure = null;
+            try {
+                long next = 0;
+                int inFlight = 0;
+                while (true) {
+                    // Waits for a worker to return a buffer only when there is nothing else to wait for
+                    Buffer buffer;
+                    while (next < fileSize && (buffer = inFlight == 0 ? handoff.takeFree() : handoff.pollFree()) != null) {
+                        buffer.claim(next, Math.min(next + blockSize, fileSize));
+                        next += blockSize;
+                        inFlight++;
+                        prepareRead(buffer);
+                    }
+
+                    if (inFlight == 0) {
+                        break;
+                    }
+
+                    enter();
+                    inFlight -= reap();
+                }
+            }
+            catch (InterruptedException e) {
+                // Reader was closed
+                return;
+            }
+            catch (Throwable e) {
+                // Also failures of stitching, workers would wait for the next block forever
+                failure = e;
+            }
+            finally {
+                elapsedNanos = System.nanoTime() - start;
+                cpuNanos = ManagementFactory.getThreadMXBean().getCurrentThreadCpuTime();
+            }
+
+            handoff.finish(failure);
+        }
+
+        private void prepareRead(Buffer buffer) {
+            int tail = sqRing.get(ValueLayout.JAVA_INT, sqTail);
+            MemorySegment sqe = sqes.asSlice((long) (tail & sqMask) * SQE_SIZE, SQE_SIZE);
+            sqe.fill((byte) 0);
+            sqe.set(ValueLayout.JAVA_BYTE, SQE_OPCODE, registered ? IORING_OP_READ_FIXED : IORING_OP_READ);
+            sqe.set(ValueLayout.JAVA_INT, SQE_FD, fd);
+            // O_DIRECT reads have to start aligned, after a short one the partially read block is read again
+            buffer.readOffset = direct ? buffer.bytesRead & -ALIGNMENT : buffer.bytesRead;
+            sqe.set(ValueLayout.JAVA_LONG, SQE_OFF, buffer.readStart + buffer.readOffset);
+            sqe.set(ValueLayout.JAVA_LONG, SQE_ADDR, buffer.data.address() + buffer.readOffset);
+            sqe.set(ValueLayout.JAVA_INT, SQE_LEN, (int) (buffer.readLength - buffer.readOffset));
+            sqe.set(ValueLayout.JAVA_LONG, SQE_USER_DATA, buffer.index);
+            sqe.set(ValueLayout.JAVA_SHORT, SQE_BUF_INDEX, (short) buffer.index);
+
+            // Kernel reads the entry after it sees the new tail
+            INT.setRelease(sqRing, (long) sqTail, tail + 1);
+            unsubmitted++;
+            reads++;
+        }
+
+        private void enter() throws IOException {
+            while (true) {
+                enterCalls++;
+                int result = Native.enter(ringFd, unsubmitted, 1, IORING_ENTER_GETEVENTS);
+                if (result >= 0) {
+                    unsubmitted -= result;
+                    return;
+                }
+                if (-result != EINTR && -result != EAGAIN && -result != EBUSY) {
+                    throw new IOException(STR."io_uring_enter failed with errno \{-result}");
+                }
+            }
+        }
+
+        // Returns number of blocks that were read completely, resubmits the rest of short reads
+        private int reap() throws IOException, InterruptedException {
+            int completed = 0;
+            int head = cqRing.get(ValueLayout.JAVA_INT, cqHead);
+            int tail = (int) INT.getAcquire(cqRing, (long) cqTail);
+            for (; head != tail; head++) {
+                long cqe = cqes + (long) (head & cqMask) * CQE_SIZE;
+                Buffer buffer = buffers[(int) cqRing.get(ValueLayout.JAVA_LONG, cqe + CQE_USER_DATA)];
+                int result = cqRing.get(ValueLayout.JAVA_INT, cqe + CQE_RES);
+                if (result < 0) {
+                    throw new IOException(STR."Read of \{buffer.readLength} bytes at \{buffer.readStart} failed with errno \{-result}");
+                }
+
+                if (result > 0 && buffer.readOffset + result <= buffer.bytesRead) {
+                    throw new IOException(STR."Read at \{buffer.readStart + buffer.readOffset} returned \{result} bytes, no progress past \{buffer.readStart + buffer.bytesRead}");
+                }
+                buffer.bytesRead = Math.max(buffer.bytesRead, buffer.readOffset + result);
+                bytes += result;
+                if (result == 0 || buffer.bytesRead == buffer.readLength || buffer.readStart + buffer.bytesRead >= fileSize) {
+                    buffer.stitch();
+                    handoff.publish(buffer);
+                    completed++;
+                }
+                else {
+                    prepareRead(buffer);
+                }
+            }
+
+            // Kernel can reuse the entries once it sees the new head
+            INT.setRelease(cqRing, (long) cqHead, head);
+            return completed;
+        }
+    }
+
+    /**
+     * Registered buffer, returned to the ring thread when worker closes the block.
+     */
+    private final class Buffer implements Block {
+
+        private final int index;
+        private final MemorySegment data;
+
+        // Written by the ring thread before the buffer is handed to a worker
+        private long start;
+        private long end;
+        private long readStart;
+        private long readLength;
+        private long readOffset;
+        private long bytesRead;
+        private MemorySegment rows;
+
+        Buffer(int index, MemorySegment data) {
+            this.index = index;
+            this.data = data;
+        }
+
+        void claim(long start, long end) {
+            this.start = start;
+            this.end = end;
+            this.readStart = Math.max(start - 1, 0) & -ALIGNMENT;
+            this.readLength = ((Math.min(end + MappedWindows.ROW_MARGIN, fileSize) + ALIGNMENT - 1) & -ALIGNMENT) - readStart;
+            this.bytesRead = 0;
+        }
+
+        void stitch() {
+            MemorySegment read = data.asSlice(0, bytesRead);
+            boolean endOfFile = readStart + bytesRead >= fileSize;
+            long rowsStart = start == 0 ? 0 : MappedWindows.rowStart(read, start - readStart, endOfFile);
+            long rowsEnd = end == fileSize ? read.byteSize() : MappedWindows.rowStart(read, end - readStart, endOfFile);
+            rows = read.asSlice(rowsStart, Math.max(rowsEnd - rowsStart, 0));
+        }
+
+        @Override
+        public MemorySegment rows() {
+            return rows;
+        }
+
+        @Override
+        public void close() {
+            handoff.release(this);
+        }
+    }
+
+    /**
+     * Downcall handles, created on first use so that other inputs never touch the linker. There is no libc wrapper for
+     * {@code io_uring} calls, they go through {@code syscall}. Their numbers are shared by x86_64 and aarch64.
+     * {@link PreadReader} opens and reads {@code O_DIRECT} files through them as well.
+     */
+    static final class Native {
+
+        private static final Linker LINKER = Linker.nativeLinker();
+        private static final SymbolLookup LOOKUP = LINKER.defaultLookup();
+
+        private static final StructLayout CAPTURED_STATE = Linker.Option.captureStateLayout();
+        private static final VarHandle ERRNO = CAPTURED_STATE.varHandle(MemoryLayout.PathElement.groupElement("errno"));
+        private static final Linker.Option CAPTURE_ERRNO = Linker.Option.captureCallState("errno");
+
+        private static final long SYS_IO_URING_SETUP = 425;
+        private static final long SYS_IO_URING_ENTER = 426;
+        private static final long SYS_IO_URING_REGISTER = 427;
+
+        private static final int O_RDONLY = 0;
+        private static final int O_DIRECT = System.getProperty("os.arch").equals("aarch64") ? 0x10000 : 0x4000;
+        private static final int PROT_READ_WRITE = 0x3;
+        private static final int MAP_SHARED_POPULATE = 0x1 | 0x8000;
+        private static final long MAP_FAILED = -1;
+
+        private static final MethodHandle SETUP = downcall(
+                FunctionDescriptor.of(ValueLayout.JAVA_LONG, ValueLayout.JAVA_LONG, ValueLayout.JAVA_INT, ValueLayout.ADDRESS));
+        private static final MethodHandle ENTER = downcall(
+                FunctionDescriptor.of(
+                        ValueLayout.JAVA_LONG,
+                        ValueLayout.JAVA_LONG,
+                        ValueLayout.JAVA_INT,
+                        ValueLayout.JAVA_INT,
+                        ValueLayout.JAVA_INT,
+                        ValueLayout.JAVA_INT,
+                        ValueLayout.ADDRESS,
+                        ValueLayout.JAVA_LONG));
+        private static final MethodHandle REGISTER = downcall(
+                FunctionDescriptor.of(
+                        ValueLayout.JAVA_LONG,
+                        ValueLayout.JAVA_LONG,
+                        ValueLayout.JAVA_INT,
+                        ValueLayout.JAVA_INT,
+                        ValueLayout.ADDRESS,
+                        ValueLayout.JAVA_INT));
+
+        // open is variadic, the optional mode is not passed when opening for reading
+        private static final MethodHandle OPEN = LINKER.downcallHandle(
+                symbol("open"),
+                FunctionDescriptor.of(ValueLayout.JAVA_INT, ValueLayout.ADDRESS, ValueLayout.JAVA_INT),
+                CAPTURE_ERRNO);
+        private static final MethodHandle PREAD = LINKER.downcallHandle(
+                symbol("pread"),
+                FunctionDescriptor.of(ValueLayout.JAVA_LONG, ValueLayout.JAVA_INT, ValueLayout.ADDRESS, ValueLayout.JAVA_LONG, ValueLayout.JAVA_LONG),
+                CAPTURE_ERRNO);
+        private static final MethodHandle CLOSE = LINKER.downcallHandle(
+                symbol("close"),
+                FunctionDescriptor.of(ValueLayout.JAVA_INT, ValueLayout.JAVA_INT));
+        private static final MethodHandle MMAP = LINKER.downcallHandle(
+                symbol("mmap"),
+                FunctionDescriptor.of(
+                        ValueLayout.ADDRESS,
+                        ValueLayout.ADDRESS,
+                        ValueLayout.JAVA_LONG,
+                        ValueLayout.JAVA_INT,
+                        ValueLayout.JAVA_INT,
+                        ValueLayout.JAVA_INT,
+                        ValueLayout.JAVA_LONG),
+                CAPTURE_ERRNO);
+        private static final MethodHandle MUNMAP = LINKER.downcallHandle(
+                symbol("munmap"),
+                FunctionDescriptor.of(ValueLayout.JAVA_INT, ValueLayout.JAVA_LONG, ValueLayout.JAVA_LONG));
+
+        private static MemorySegment symbol(String name) {
+            return LOOKUP.find(name)
+                    .orElseThrow(() -> new IllegalStateException(STR."Symbol \{name} not found in standard libraries"));
+        }
+
+        // syscall is variadic past the number
+        private static MethodHandle downcall(FunctionDescriptor descriptor) {
+            return LINKER.downcallHandle(symbol("syscall"), descriptor, CAPTURE_ERRNO, Linker.Option.firstVariadicArg(1));
+        }
+
+        static int setup(int entries, MemorySegment params) throws IOException {
+            try (Arena arena = Arena.ofConfined()) {
+                MemorySegment errno = arena.allocate(CAPTURED_STATE);
+                long fd = (long) SETUP.invokeExact(errno, SYS_IO_URING_SETUP, entries, params);
+                if (fd < 0) {
+                    throw new IOException(STR."io_uring_setup failed with errno \{(int) ERRNO.get(errno)}");
+                }
+
+                return (int) fd;
+            }
+            catch (IOException e) {
+                throw e;
+            }
+            catch (Throwable e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        // Returns number of submitted entries or negated errno
+        static int enter(int ringFd, int toSubmit, int minComplete, int flags) {
+            try (Arena arena = Arena.ofConfined()) {
+                MemorySegment errno = arena.allocate(CAPTURED_STATE);
+                long result = (long) ENTER.invokeExact(errno, SYS_IO_URING_ENTER, ringFd, toSubmit, minComplete, flags, MemorySegment.NULL, 0L);
+                return result < 0 ? -(int) ERRNO.get(errno) : (int) result;
+            }
+            catch (Throwable e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        // Returns 0 or negated errno
+        static int register(int ringFd, int opcode, MemorySegment argument, int count) {
+            try (Arena arena = Arena.ofConfined()) {
+                MemorySegment errno = arena.allocate(CAPTURED_STATE);
+                long result = (long) REGISTER.invokeExact(errno, SYS_IO_URING_REGISTER, ringFd, opcode, argument, count);
+                return result < 0 ? -(int) ERRNO.get(errno) : 0;
+            }
+            catch (Throwable e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        static int open(Path path, boolean direct) throws IOException {
+            try (Arena arena = Arena.ofConfined()) {
+                MemorySegment errno = arena.allocate(CAPTURED_STATE);
+                int fd = (int) OPEN.invokeExact(errno, arena.allocateUtf8String(path.toString()), O_RDONLY | (direct ? O_DIRECT : 0));
+                if (fd < 0) {
+                    throw new IOException(STR."open of \{path} failed with errno \{(int) ERRNO.get(errno)}");
+                }
+
+                return fd;
+            }
+            catch (IOException e) {
+                throw e;
+            }
+            catch (Throwable e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        // Fills the buffer from given position of the file, returns number of bytes read (0 at its end)
+        static int pread(int fd, MemorySegment buffer, long position) throws IOException {
+            try (Arena arena = Arena.ofConfined()) {
+                MemorySegment errno = arena.allocate(CAPTURED_STATE);
+                long read = (long) PREAD.invokeExact(errno, fd, buffer, buffer.byteSize(), position);
+                if (read < 0) {
+                    throw new IOException(STR."pread at \{position} failed with errno \{(int) ERRNO.get(errno)}");
+                }
+
+                return (int) read;
+            }
+            catch (IOException e) {
+                throw e;
+            }
+            catch (Throwable e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        // Maps a ring shared with the kernel, unmapped when the arena is closed
+        static MemorySegment mmap(int ringFd, long length, long offset, Arena arena) throws IOException {
+            try (Arena local = Arena.ofConfined()) {
+                MemorySegment errno = local.allocate(CAPTURED_STATE);
+                MemorySegment address = (MemorySegment) MMAP.invokeExact(errno, MemorySegment.NULL, length, PROT_READ_WRITE, MAP_SHARED_POPULATE, ringFd, offset);
+                if (address.address() == MAP_FAILED) {
+                    throw new IOException(STR."mmap of io_uring ring at \{offset} failed with errno \{(int) ERRNO.get(errno)}");
+                }
+
+                return address.reinterpret(length, arena, segment -> munmap(segment.address(), length));
+            }
+            catch (IOException e) {
+                throw e;
+            }
+            catch (Throwable e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        static void munmap(long address, long length) {
+            try {
+                int ignored = (int) MUNMAP.invokeExact(address, length);
+            }
+            catch (Throwable e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        static void close(int fd) {
+            try {
+                int ignored = (int) CLOSE.invokeExact(fd);
+            }
+            catch (Throwable e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
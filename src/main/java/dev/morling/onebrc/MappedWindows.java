@@ -0,0 +1,167 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Alternative to mapping the whole input at once, for files larger than what page cache and RSS can hold. Workers
+ * claim fixed size windows of the file from an atomic cursor, map each one into a confined arena and unmap it as soon
+ * as its rows are processed, so at most {@code workers * window size} bytes of the input are mapped at any time.
+ * <p>
+ * Enabled with {@code -Dtkowalcz.mmapWindow=<bytes>}. Row crossing the end of a window belongs to that window, so each
+ * mapping extends {@link #ROW_MARGIN} bytes past it and the rows it ends with are stitched without copying. With
+ * {@code -Dtkowalcz.mmapWindow.dropCache=true} processed windows are also dropped from page cache, so that reading an
+ * archive does not evict everything else.
+ */
+public class MappedWindows implements BlockReader {
+
+    // Longer than any row: 100 UTF-8 characters of a city name, separator, temperature and newline
+    static final long ROW_MARGIN = 4096;
+
+    private final String fileName;
+    private final long fileSize;
+    private final long windowSize;
+    private final boolean dropCache;
+    private final AtomicLong cursor = new AtomicLong();
+
+    public MappedWindows(String fileName, long windowSize, boolean dropCache) throws IOException {
+        if (windowSize < ROW_MARGIN) {
+            throw new IllegalArgumentException(STR."Window size \{windowSize} is smaller than \{ROW_MARGIN} bytes");
+        }
+
+        this.fileName = fileName;
+        this.fileSize = Files.size(Path.of(fileName));
+        this.windowSize = windowSize;
+        this.dropCache = dropCache;
+    }
+
+    /**
+     * Window size configured with {@code -Dtkowalcz.mmapWindow}, 0 when the whole file should be mapped at once.
+     */
+    public static long configuredWindowSize() {
+        return Long.getLong("tkowalcz.mmapWindow", 0);
+    }
+
+    /**
+     * Maps next window of the input, returns null when the whole file was claimed. Returned window must be closed by
+     * the calling thread.
+     */
+    @Override
+    public Window next(int worker) {
+        while (true) {
+            long position = cursor.getAndAdd(windowSize);
+            if (position >= fileSize) {
+                return null;
+            }
+
+            Window window = map(position, Math.min(position + windowSize, fileSize));
+            if (window.rows().byteSize() > 0) {
+                return window;
+            }
+
+            window.close();
+        }
+    }
+
+    private Window map(long start, long end) {
+        // Byte before the window tells whether a row starts at its first byte
+        long mappingStart = Math.max(start - 1, 0);
+        long mappingEnd = Math.min(end + ROW_MARGIN, fileSize);
+
+        Arena arena = Arena.ofConfined();
+        try {
+            MemorySegment mapping = MemoryMapping.map(fileName, mappingStart, mappingEnd - mappingStart, arena);
+            boolean endOfFile = mappingEnd == fileSize;
+            long rowsStart = start == 0 ? 0 : rowStart(mapping, start - mappingStart, endOfFile);
+            long rowsEnd = end == fileSize ? mapping.byteSize() : rowStart(mapping, end - mappingStart, endOfFile);
+
+            MemorySegment rows = mapping.asSlice(rowsStart, Math.max(rowsEnd - rowsStart, 0));
+            return new Window(arena, rows, dropCache ? Path.of(fileName) : null, mappingStart, mappingEnd - mappingStart);
+        }
+        catch (IOException e) {
+            arena.close();
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void close() {
+    }
+
+    // Position of the first row starting at or after given offset, data has to contain the byte before it. When data
+    // ends with the file, its last row does not need a newline and the end of data is returned.
+    static long rowStart(MemorySegment data, long offset, boolean endOfFile) {
+        for (long position = offset - 1; position < data.byteSize(); position++) {
+            if (data.get(ValueLayout.JAVA_BYTE, position) == '\n') {
+                return position + 1;
+            }
+        }
+
+        if (endOfFile) {
+            return data.byteSize();
+        }
+        throw new IllegalStateException(STR."Row at \{offset} is longer than \{ROW_MARGIN} bytes");
+    }
+
+    /**
+     * Newline aligned rows of a window, unmapped on close.
+     */
+    public static final class Window implements Block {
+
+        private final Arena arena;
+        private final MemorySegment rows;
+
+        // Mapped range of the file, dropped from page cache on close when not null
+        private final Path dropFromCache;
+        private final long offset;
+        private final long size;
+
+        Window(Arena arena, MemorySegment rows, Path dropFromCache, long offset, long size) {
+            this.arena = arena;
+            this.rows = rows;
+            this.dropFromCache = dropFromCache;
+            this.offset = offset;
+            this.size = size;
+        }
+
+        @Override
+        public MemorySegment rows() {
+            return rows;
+        }
+
+        @Override
+        public void close() {
+            arena.close();
+
+            if (dropFromCache != null) {
+                try {
+                    MemoryMapping.dropFromPageCache(dropFromCache, offset, size);
+                }
+                catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,352 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.foreign.*;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.VarHandle;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Maps input files into memory either with {@link FileChannel#map} or by calling {@code mmap} of libc through
+ * {@link Linker}. The latter does not depend on JDK internals and lets us pass mapping flags and {@code madvise}
+ * hints that {@code FileChannel} has no API for.
+ * <p>
+ * Engines call {@link #map(String, Arena)}, which is configured with system properties:
+ * <ul>
+ * <li>{@code -Dtkowalcz.mmap=channel|native} - implementation, {@code channel} by default,</li>
+ * <li>{@code -Dtkowalcz.mmapHints=POPULATE,SEQUENTIAL,WILLNEED,HUGEPAGE} - {@link Hint}s for the native one, none by
+ * default.</li>
+ * </ul>
+ * Native mapping is unmapped when its arena is closed. Linux only, constants below are the same on x86_64 and aarch64.
+ * Run with {@code --enable-native-access=ALL-UNNAMED} to silence restricted method warnings.
+ */
+public final class MemoryMapping {
+
+    public static final int MADV_SEQUENTIAL = 2;
+    public static final int MADV_WILLNEED = 3;
+    public static final int MADV_DONTNEED = 4;
+    public static final int MADV_HUGEPAGE = 14;
+
+    private static final int O_RDONLY = 0;
+    private static final int PROT_READ = 0x1;
+    private static final int MAP_SHARED = 0x1;
+    private static final int MAP_POPULATE = 0x8000;
+    private static final int POSIX_FADV_SEQUENTIAL = 2;
+    private static final int POSIX_FADV_WILLNEED = 3;
+    private static final int POSIX_FADV_DONTNEED = 4;
+
+    public enum Hint {
+        // Pre-faults the whole mapping in mmap call instead of taking a minor fault per page in the parsing loop
+        POPULATE,
+        // Doubles kernel read-ahead of the file and lets it drop pages behind the reader sooner
+        SEQUENTIAL,
+        // Starts asynchronous read-ahead of the whole range
+        WILLNEED,
+        // Asks for transparent huge pages, only has effect where the kernel supports them for page cache
+        HUGEPAGE
+    }
+
+    private MemoryMapping() {
+    }
+
+    /**
+     * Maps the whole file with implementation and hints selected by system properties.
+     */
+    public static MemorySegment map(String fileName, Arena arena) throws IOException {
+        return map(fileName, 0, -1, arena);
+    }
+
+    /**
+     * Maps {@code size} bytes of the file starting at {@code offset}, with implementation and hints selected by system
+     * properties. Negative size maps everything past the offset.
+     */
+    public static MemorySegment map(String fileName, long offset, long size, Arena arena) throws IOException {
+        String implementation = System.getProperty("tkowalcz.mmap", "channel");
+        return switch (implementation) {
+            case "channel" -> mapWithChannel(Path.of(fileName), offset, size, arena);
+            case "native" -> mapNative(Path.of(fileName), offset, size, arena, hints(System.getProperty("tkowalcz.mmapHints", "")));
+            default -> throw new IllegalArgumentException(STR."Unknown mapping implementation \{implementation}, expected channel or native");
+        };
+    }
+
+    public static MemorySegment mapWithChannel(Path path, long offset, long size, Arena arena) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "r");
+                FileChannel channel = file.getChannel()) {
+            long length = size < 0 ? channel.size() - offset : size;
+            return channel.map(FileChannel.MapMode.READ_ONLY, offset, length, arena);
+        }
+    }
+
+    /**
+     * Maps file read only with {@code mmap}. Offset does not have to be page aligned, mapping starts at the page
+     * containing it and returned segment is sliced to the requested range.
+     */
+    public static MemorySegment mapNative(Path path, long offset, long size, Arena arena, Set<Hint> hints) throws IOException {
+        int fd = Libc.open(path);
+        try {
+            long length = size < 0 ? Libc.fileSize(fd) - offset : size;
+            if (length == 0) {
+                return MemorySegment.NULL;
+            }
+
+            long alignedOffset = offset & -Libc.PAGE_SIZE;
+            long mappedLength = offset - alignedOffset + length;
+            int flags = MAP_SHARED | (hints.contains(Hint.POPULATE) ? MAP_POPULATE : 0);
+
+            MemorySegment address = Libc.mmap(path, mappedLength, flags, fd, alignedOffset);
+            MemorySegment mapping = address.reinterpret(mappedLength, arena, segment -> Libc.munmap(segment.address(), mappedLength));
+
+            // Hints are advisory, kernels that do not support one return an error that we ignore
+            if (hints.contains(Hint.SEQUENTIAL)) {
+                Libc.fadvise(fd, alignedOffset, mappedLength, POSIX_FADV_SEQUENTIAL);
+                advise(mapping, MADV_SEQUENTIAL);
+            }
+            if (hints.contains(Hint.WILLNEED)) {
+                Libc.fadvise(fd, alignedOffset, mappedLength, POSIX_FADV_WILLNEED);
+                advise(mapping, MADV_WILLNEED);
+            }
+            if (hints.contains(Hint.HUGEPAGE)) {
+                advise(mapping, MADV_HUGEPAGE);
+            }
+
+            return mapping.asSlice(offset - alignedOffset, length);
+        }
+        finally {
+            // Mapping keeps its own reference to the file
+            Libc.close(fd);
+        }
+    }
+
+    /**
+     * Calls {@code madvise} on pages overlapping given segment of a mapping. Returns false when kernel rejected the
+     * advice.
+     */
+    public static boolean advise(MemorySegment segment, int advice) {
+        long start = segment.address() & -Libc.PAGE_SIZE;
+        long end = segment.address() + segment.byteSize();
+        return Libc.madvise(start, end - start, advice) == 0;
+    }
+
+    /**
+     * Drops clean pages of given range of the file from page cache. Pages still mapped by someone are left alone.
+     */
+    public static void dropFromPageCache(Path path, long offset, long length) throws IOException {
+        int fd = Libc.open(path);
+        try {
+            Libc.fadvise(fd, offset, length, POSIX_FADV_DONTNEED);
+        }
+        finally {
+            Libc.close(fd);
+        }
+    }
+
+    public static int pageSize() {
+        return Libc.PAGE_SIZE;
+    }
+
+    /**
+     * Parses comma separated, case insensitive names of {@link Hint}s.
+     */
+    public static Set<Hint> hints(String hints) {
+        Set<Hint> result = EnumSet.noneOf(Hint.class);
+        Arrays.stream(hints.split(","))
+                .map(String::trim)
+                .filter(hint -> !hint.isEmpty())
+                .forEach(hint -> {
+                    try {
+                        result.add(Hint.valueOf(hint.toUpperCase(Locale.ROOT)));
+                    }
+                    catch (IllegalArgumentException e) {
+                        throw new IllegalArgumentException(STR."Unknown mapping hint \{hint}, expected one of \{Arrays.toString(Hint.values())}");
+                    }
+                });
+
+        return result;
+    }
+
+    /**
+     * Downcall handles, created on first use of native mapping so that the default configuration never touches the
+     * linker.
+     */
+    private static final class Libc {
+
+        private static final Linker LINKER = Linker.nativeLinker();
+        private static final SymbolLookup LOOKUP = LINKER.defaultLookup();
+
+        private static final StructLayout CAPTURED_STATE = Linker.Option.captureStateLayout();
+        private static final VarHandle ERRNO = CAPTURED_STATE.varHandle(MemoryLayout.PathElement.groupElement("errno"));
+        private static final Linker.Option CAPTURE_ERRNO = Linker.Option.captureCallState("errno");
+
+        // open is variadic, the optional mode is not passed when opening for reading
+        private static final MethodHandle OPEN = downcall(
+                "open",
+                FunctionDescriptor.of(ValueLayout.JAVA_INT, ValueLayout.ADDRESS, ValueLayout.JAVA_INT),
+                CAPTURE_ERRNO);
+        private static final MethodHandle CLOSE = downcall(
+                "close",
+                FunctionDescriptor.of(ValueLayout.JAVA_INT, ValueLayout.JAVA_INT));
+        private static final MethodHandle LSEEK = downcall(
+                "lseek",
+                FunctionDescriptor.of(ValueLayout.JAVA_LONG, ValueLayout.JAVA_INT, ValueLayout.JAVA_LONG, ValueLayout.JAVA_INT),
+                CAPTURE_ERRNO);
+        private static final MethodHandle MMAP = downcall(
+                "mmap",
+                FunctionDescriptor.of(
+                        ValueLayout.ADDRESS,
+                        ValueLayout.ADDRESS,
+                        ValueLayout.JAVA_LONG,
+                        ValueLayout.JAVA_INT,
+                        ValueLayout.JAVA_INT,
+                        ValueLayout.JAVA_INT,
+                        ValueLayout.JAVA_LONG),
+                CAPTURE_ERRNO);
+        private static final MethodHandle MUNMAP = downcall(
+                "munmap",
+                FunctionDescriptor.of(ValueLayout.JAVA_INT, ValueLayout.JAVA_LONG, ValueLayout.JAVA_LONG));
+        private static final MethodHandle MADVISE = downcall(
+                "madvise",
+                FunctionDescriptor.of(ValueLayout.JAVA_INT, ValueLayout.JAVA_LONG, ValueLayout.JAVA_LONG, ValueLayout.JAVA_INT));
+        private static final MethodHandle POSIX_FADVISE = downcall(
+                "posix_fadvise",
+                FunctionDescriptor.of(ValueLayout.JAVA_INT, ValueLayout.JAVA_INT, ValueLayout.JAVA_LONG, ValueLayout.JAVA_LONG, ValueLayout.JAVA_INT));
+        private static final MethodHandle GETPAGESIZE = downcall(
+                "getpagesize",
+                FunctionDescriptor.of(ValueLayout.JAVA_INT));
+
+        private static final int SEEK_END = 2;
+        private static final long MAP_FAILED = -1;
+
+        static final int PAGE_SIZE = getPageSize();
+
+        private static MethodHandle downcall(String name, FunctionDescriptor descriptor, Linker.Option... options) {
+            MemorySegment symbol = LOOKUP.find(name)
+                    .orElseThrow(() -> new IllegalStateException(STR."Symbol \{name} not found in standard libraries"));
+            return LINKER.downcallHandle(symbol, descriptor, options);
+        }
+
+        static int open(Path path) throws IOException {
+            try (Arena arena = Arena.ofConfined()) {
+                MemorySegment errno = arena.allocate(CAPTURED_STATE);
+                int fd = (int) OPEN.invokeExact(errno, arena.allocateUtf8String(path.toString()), O_RDONLY);
+                if (fd < 0) {
+                    throw new IOException(STR."open of \{path} failed with errno \{(int) ERRNO.get(errno)}");
+                }
+
+                return fd;
+            }
+            catch (IOException e) {
+                throw e;
+            }
+            catch (Throwable e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        static long fileSize(int fd) throws IOException {
+            try (Arena arena = Arena.ofConfined()) {
+                MemorySegment errno = arena.allocate(CAPTURED_STATE);
+                long size = (long) LSEEK.invokeExact(errno, fd, 0L, SEEK_END);
+                if (size < 0) {
+                    throw new IOException(STR."lseek failed with errno \{(int) ERRNO.get(errno)}");
+                }
+
+                return size;
+            }
+            catch (IOException e) {
+                throw e;
+            }
+            catch (Throwable e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        static MemorySegment mmap(Path path, long length, int flags, int fd, long offset) throws IOException {
+            try (Arena arena = Arena.ofConfined()) {
+                MemorySegment errno = arena.allocate(CAPTURED_STATE);
+                MemorySegment address = (MemorySegment) MMAP.invokeExact(errno, MemorySegment.NULL, length, PROT_READ, flags, fd, offset);
+                if (address.address() == MAP_FAILED) {
+                    throw new IOException(STR."mmap of \{length} bytes of \{path} at \{offset} failed with errno \{(int) ERRNO.get(errno)}");
+                }
+
+                return address;
+            }
+            catch (IOException e) {
+                throw e;
+            }
+            catch (Throwable e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        static void munmap(long address, long length) {
+            int result;
+            try {
+                result = (int) MUNMAP.invokeExact(address, length);
+            }
+            catch (Throwable e) {
+                throw new IllegalStateException(e);
+            }
+
+            if (result != 0) {
+                throw new IllegalStateException(STR."munmap of \{length} bytes at \{address} failed");
+            }
+        }
+
+        static int madvise(long address, long length, int advice) {
+            try {
+                return (int) MADVISE.invokeExact(address, length, advice);
+            }
+            catch (Throwable e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        static int fadvise(int fd, long offset, long length, int advice) {
+            try {
+                return (int) POSIX_FADVISE.invokeExact(fd, offset, length, advice);
+            }
+            catch (Throwable e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        static void close(int fd) {
+            try {
+                int ignored = (int) CLOSE.invokeExact(fd);
+            }
+            catch (Throwable e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private static int getPageSize() {
+            try {
+                return (int) GETPAGESIZE.invokeExact();
+            }
+            catch (Throwable e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Aggregates many files into a single result: all of them form one queue of newline aligned windows (see
+ * {@link MappedWindows}), claimed by workers in order. Large files are processed by all workers at once, small ones
+ * take a window each and no thread pool is started per file. File is opened and its window mapped by the worker that
+ * claims it, while the others keep processing windows they already have.
+ * <p>
+ * Files ending with {@code .gz} are read with {@link BgzfReader#open(Path, int)} instead. Reader of a file is created
+ * when the first worker gets to it and closed when all workers moved past it.
+ * <p>
+ * Used when the engine is given paths or globs as arguments, e.g. {@code 'shards/2024-*.txt'} or
+ * {@code 'archive/**.txt'}. Window size is set with {@code -Dtkowalcz.mmapWindow} (16MB by default).
+ */
+public class MultiFileReader implements BlockReader {
+
+    static final long DEFAULT_WINDOW_SIZE = 16 * 1024 * 1024;
+
+    private final List<Path> paths;
+    private final int workerCount;
+    private final long windowSize;
+    private final long bytes;
+
+    // Created by the first worker that gets to the file, guarded by this
+    private final BlockReader[] readers;
+    private int closedReaders;
+
+    // Index of the first file that may still have windows to claim
+    private final AtomicInteger current = new AtomicInteger();
+
+    // File each worker took its last block from, readers of files before the lowest one are not used anymore
+    private final AtomicIntegerArray workerFiles;
+    private final AtomicLong blocks = new AtomicLong();
+
+    public MultiFileReader(List<Path> paths, int workerCount, long windowSize) throws IOException {
+        this.paths = List.copyOf(paths);
+        this.workerCount = workerCount;
+        this.windowSize = windowSize;
+        this.readers = new BlockReader[paths.size()];
+        this.workerFiles = new AtomicIntegerArray(workerCount);
+
+        long bytes = 0;
+        for (Path path : paths) {
+            bytes += Files.size(path);
+        }
+        this.bytes = bytes;
+    }
+
+    /**
+     * Reader of files given as paths or globs, see {@link #expand(String...)}.
+     */
+    public static MultiFileReader open(int workerCount, String... pathsOrGlobs) throws IOException {
+        long windowSize = MappedWindows.configuredWindowSize();
+        return new MultiFileReader(expand(pathsOrGlobs), workerCount, windowSize > 0 ? windowSize : DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * Regular files named by given paths or matching given globs, in order of arguments. Files matching a glob are
+     * sorted by name. Glob is matched against paths under the longest leading part without glob characters, so
+     * {@code **} crosses directories and {@code *} does not.
+     */
+    public static List<Path> expand(String... pathsOrGlobs) throws IOException {
+        List<Path> paths = new ArrayList<>();
+        for (String pathOrGlob : pathsOrGlobs) {
+            int firstGlobCharacter = indexOfGlobCharacter(pathOrGlob);
+            if (firstGlobCharacter < 0) {
+                paths.add(Path.of(pathOrGlob));
+                continue;
+            }
+
+            int baseEnd = pathOrGlob.lastIndexOf('/', firstGlobCharacter);
+            Path base = Path.of(baseEnd < 0 ? "." : pathOrGlob.substring(0, baseEnd + 1));
+            String pattern = baseEnd < 0 ? pathOrGlob : pathOrGlob.substring(baseEnd + 1);
+            PathMatcher matcher = FileSystems.getDefault().getPathMatcher(STR."glob:\{pattern}");
+
+            try (Stream<Path> candidates = Files.walk(base)) {
+                List<Path> matches = candidates
+                        .filter(Files::isRegularFile)
+                        .filter(path -> matcher.matches(base.relativize(path)))
+                        .sorted()
+                        .toList();
+                if (matches.isEmpty()) {
+                    throw new IllegalArgumentException(STR."No files match \{pathOrGlob}");
+                }
+                paths.addAll(matches);
+            }
+        }
+
+        return paths;
+    }
+
+    private static int indexOfGlobCharacter(String pathOrGlob) {
+        for (int i = 0; i < pathOrGlob.length(); i++) {
+            if ("*?[{".indexOf(pathOrGlob.charAt(i)) >= 0) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    @Override
+    public Block next(int worker) {
+        // Worker closed its previous block before asking for the next one
+        while (true) {
+            int file = current.get();
+            workerFiles.set(worker, file);
+            closeUnusedReaders();
+            if (file >= paths.size()) {
+                return null;
+            }
+
+            Block block = reader(file).next(worker);
+            if (block != null) {
+                blocks.incrementAndGet();
+                return block;
+            }
+
+            // All blocks of the file are claimed, whoever gets here first moves everyone to the next one
+            current.compareAndSet(file, file + 1);
+        }
+    }
+
+    private synchronized BlockReader reader(int file) {
+        if (readers[file] == null) {
+            Path path = paths.get(file);
+            try {
+                readers[file] = path.toString().endsWith(".gz")
+                        ? BgzfReader.open(path, workerCount)
+                        : new MappedWindows(path.toString(), windowSize, false);
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        return readers[file];
+    }
+
+    private synchronized void closeUnusedReaders() {
+        int lowestFile = Integer.MAX_VALUE;
+        for (int worker = 0; worker < workerCount; worker++) {
+            lowestFile = Math.min(lowestFile, workerFiles.get(worker));
+        }
+
+        for (; closedReaders < Math.min(lowestFile, readers.length); closedReaders++) {
+            close(readers[closedReaders]);
+            readers[closedReaders] = null;
+        }
+    }
+
+    private static void close(BlockReader reader) {
+        if (reader != null) {
+            try {
+                reader.close();
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    @Override
+    public String summary() {
+        return STR."\{paths.size()} files, \{bytes >> 20}MB in \{blocks.get()} blocks";
+    }
+
+    @Override
+    public synchronized void close() {
+        for (; closedReaders < readers.length; closedReaders++) {
+            close(readers[closedReaders]);
+            readers[closedReaders] = null;
+        }
+    }
+}
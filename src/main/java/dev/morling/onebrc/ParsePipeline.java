@@ -0,0 +1,399 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import dev.morling.onebrc.CalculateAverage_tkowalcz2Unsafe.DaemonThreadFactory;
+import dev.morling.onebrc.CalculateAverage_tkowalcz2Unsafe.SplitRawHashMap;
+import dev.morling.onebrc.CalculateAverage_tkowalcz2Unsafe.StatisticsAggregate;
+import dev.morling.onebrc.CalculateAverage_tkowalcz2Unsafe.WorkerThread;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.util.Arrays;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Splits the work of a worker between parser and aggregator threads, as {@code DistributeMicrobenchmark} suggests that
+ * adding already parsed (city id, temperature) pairs is much cheaper than the fused loop:
+ * <ul>
+ * <li>parsers take slices from a {@link ChunkScheduler} and look cities up in their own {@link SplitRawHashMap}, but
+ * instead of updating statistics they append {@code id << 16 | temperature} to a batch of the aggregator that owns the
+ * city (chosen by hash of its name), with ids numbered densely within the partition of the aggregator,</li>
+ * <li>every parser has a lock free single producer, single consumer {@link Ring} of batches to every aggregator,</li>
+ * <li>aggregators keep a {@link StatisticsStore} per parser indexed by those ids, sized for the cities of their
+ * partition instead of all of them, so hash lookups and statistics stay in separate caches.</li>
+ * </ul>
+ * Statistics of every parser are copied from the stores of aggregators into the store of its map by city id, maps are
+ * then merged by city name.
+ * Without aggregators parsers update their stores themselves, which is the fused single pumped loop of
+ * {@code -Dtkowalcz.statistics=soa}.
+ * <p>
+ * Enabled with {@code -Dtkowalcz.pipeline=<parsers>:<aggregators>}, only for mapped input.
+ */
+public final class ParsePipeline {
+
+    static final int BATCH_SIZE = 1024;
+    static final int RING_SLOTS = 16;
+
+    // Partition of a city is kept in a byte
+    static final int MAX_AGGREGATORS = Byte.MAX_VALUE + 1;
+
+    // Capacity of a store of an aggregator before it sees any city, doubled as more of them show up
+    private static final int INITIAL_PARTITION_SIZE = 256;
+
+    // Spins before parking, full or empty rings usually mean the other side is not running at all
+    private static final int SPINS = 128;
+    private static final long PARK_NANOS = 20_000;
+
+    private final int parserCount;
+    private final int aggregatorCount;
+
+    public ParsePipeline(int parserCount, int aggregatorCount) {
+        if (parserCount < 1 || aggregatorCount < 0) {
+            throw new IllegalArgumentException(STR."Pipeline needs a parser and no negative number of aggregators, got \{parserCount}:\{aggregatorCount}");
+        }
+        if (aggregatorCount > MAX_AGGREGATORS) {
+            throw new IllegalArgumentException(STR."Pipeline supports at most \{MAX_AGGREGATORS} aggregators, got \{aggregatorCount}");
+        }
+
+        this.parserCount = parserCount;
+        this.aggregatorCount = aggregatorCount;
+    }
+
+    /**
+     * Pipeline configured with {@code -Dtkowalcz.pipeline}, null when it is not set.
+     */
+    static ParsePipeline configured() {
+        String pipeline = System.getProperty("tkowalcz.pipeline");
+        if (pipeline == null) {
+            return null;
+        }
+
+        String[] threads = pipeline.split(":");
+        try {
+            if (threads.length != 2) {
+                throw new NumberFormatException();
+            }
+            return new ParsePipeline(Integer.parseInt(threads[0]), Integer.parseInt(threads[1]));
+        }
+        catch (NumberFormatException e) {
+            throw new IllegalArgumentException(STR."Unknown pipeline \{pipeline}, expected <parsers>:<aggregators>");
+        }
+    }
+
+    public TreeMap<String, StatisticsAggregate> aggregate(MemorySegment inputData, Arena arena) {
+        ChunkScheduler scheduler = new ChunkScheduler(inputData, parserCount);
+        ParserMap[] parsers = new ParserMap[parserCount];
+        Aggregator[] aggregators = new Aggregator[aggregatorCount];
+        for (int parser = 0; parser < parserCount; parser++) {
+            Ring[] rings = new Ring[aggregatorCount];
+            for (int aggregator = 0; aggregator < aggregatorCount; aggregator++) {
+                rings[aggregator] = new Ring();
+            }
+            parsers[parser] = new ParserMap(arena, rings);
+        }
+        for (int aggregator = 0; aggregator < aggregatorCount; aggregator++) {
+            aggregators[aggregator] = new Aggregator(aggregator, parsers);
+        }
+
+        CompletableFuture<?>[] threads = new CompletableFuture[parserCount + aggregatorCount];
+        ExecutorService executor = Executors.newFixedThreadPool(threads.length, new DaemonThreadFactory());
+        for (int parser = 0; parser < parserCount; parser++) {
+            int worker = parser;
+            threads[parser] = CompletableFuture.runAsync(() -> parsers[worker].parse(scheduler, worker), executor);
+        }
+        for (int aggregator = 0; aggregator < aggregatorCount; aggregator++) {
+            threads[parserCount + aggregator] = CompletableFuture.runAsync(aggregators[aggregator]::run, executor);
+        }
+
+        try {
+            CompletableFuture.allOf(threads).join();
+        }
+        finally {
+            executor.shutdownNow();
+        }
+
+        for (int parser = 0; parser < parserCount; parser++) {
+            parsers[parser].collect(aggregators, parser);
+        }
+        for (int parser = 1; parser < parserCount; parser++) {
+            parsers[0].mergeFrom(parsers[parser]);
+        }
+
+        return parsers[0].getStore().asResults(parsers[0].cityNames());
+    }
+
+    private static void idle(int attempt) {
+        if (attempt < SPINS) {
+            Thread.onSpinWait();
+        }
+        else {
+            LockSupport.parkNanos(PARK_NANOS);
+        }
+    }
+
+    /**
+     * Ring of {@link #RING_SLOTS} batches filled by one parser and emptied by one aggregator. Producer writes rows
+     * straight into the slot it claimed and publishes it with a release store of the tail, consumer reads slots up to
+     * the tail it acquired and frees them with a release store of the head. Counters are a padding apart, so that
+     * neither side invalidates the cache line of the other one.
+     */
+    static final class Ring {
+
+        private static final int HEAD = 16;
+        private static final int TAIL = 32;
+
+        private final int[][] batches = new int[RING_SLOTS][BATCH_SIZE];
+        private final int[] sizes = new int[RING_SLOTS];
+        private final AtomicLongArray counters = new AtomicLongArray(TAIL + 16);
+
+        private volatile boolean closed;
+        private volatile boolean failed;
+
+        // Producer side
+        private long tail;
+
+        /**
+         * Waits for a free slot and returns its batch.
+         */
+        int[] claim() {
+            for (int attempt = 0; tail - counters.getAcquire(HEAD) == RING_SLOTS; attempt++) {
+                if (failed) {
+                    throw new IllegalStateException("Aggregator failed");
+                }
+                idle(attempt);
+            }
+
+            return batches[(int) (tail % RING_SLOTS)];
+        }
+
+        void publish(int size) {
+            sizes[(int) (tail % RING_SLOTS)] = size;
+            counters.setRelease(TAIL, ++tail);
+        }
+
+        /**
+         * No more batches will be published, producer must not call {@link #claim()} afterwards.
+         */
+        void close() {
+            closed = true;
+        }
+
+        void fail() {
+            failed = true;
+        }
+
+        /**
+         * Passes the oldest published batch of given parser to the aggregator and frees its slot.
+         *
+         * @return false when there was none.
+         */
+        boolean poll(Aggregator aggregator, int parser) {
+            long head = counters.getPlain(HEAD);
+            if (head == counters.getAcquire(TAIL)) {
+                return false;
+            }
+
+            int slot = (int) (head % RING_SLOTS);
+            aggregator.add(parser, batches[slot], sizes[slot]);
+            counters.setRelease(HEAD, head + 1);
+            return true;
+        }
+
+        /**
+         * True when the producer closed the ring and the consumer took all batches, closed flag is read before the tail
+         * so that the last batch is not missed.
+         */
+        boolean drained() {
+            return closed && counters.getPlain(HEAD) == counters.getAcquire(TAIL);
+        }
+    }
+
+    /**
+     * Split map of a parser, measurements of a city go to the current batch of the aggregator that owns it. City ids
+     * are dense, so aggregator of a city and its id there are looked up in arrays filled in when a parser sees a new
+     * city.
+     */
+    static final class ParserMap extends SplitRawHashMap {
+
+        private final Ring[] rings;
+        private final int[][] batches;
+        private final int[] sizes;
+        private final byte[] partitions = new byte[MAX_CITIES];
+        private final int[] partitionIds = new int[MAX_CITIES];
+        private final int[] partitionSizes;
+        private int partitionedCities;
+
+        ParserMap(Arena arena, Ring[] rings) {
+            super(arena, new StatisticsStore(MAX_CITIES));
+            this.rings = rings;
+            this.batches = new int[rings.length][];
+            this.sizes = new int[rings.length];
+            this.partitionSizes = new int[rings.length];
+        }
+
+        void parse(ChunkScheduler scheduler, int worker) {
+            try {
+                for (int aggregator = 0; aggregator < rings.length; aggregator++) {
+                    batches[aggregator] = rings[aggregator].claim();
+                }
+
+                MemorySegment slice;
+                while ((slice = scheduler.nextSlice(worker)) != null) {
+                    long tail = WorkerThread.executeSinglePumped(slice, this, 0, slice.byteSize());
+                    WorkerThread.executeTail(slice, this, tail, slice.byteSize());
+                }
+
+                for (int aggregator = 0; aggregator < rings.length; aggregator++) {
+                    rings[aggregator].publish(sizes[aggregator]);
+                }
+            }
+            finally {
+                for (Ring ring : rings) {
+                    ring.close();
+                }
+            }
+        }
+
+        @Override
+        public void addMeasurement(int cityId, int value) {
+            if (rings.length == 0) {
+                super.addMeasurement(cityId, value);
+                return;
+            }
+
+            if (cityId >= partitionedCities) {
+                partitionNewCities();
+            }
+
+            int aggregator = partitions[cityId];
+            int size = sizes[aggregator];
+            batches[aggregator][size] = partitionIds[cityId] << 16 | (value & 0xFFFF);
+            if (++size == BATCH_SIZE) {
+                rings[aggregator].publish(size);
+                batches[aggregator] = rings[aggregator].claim();
+                size = 0;
+            }
+            sizes[aggregator] = size;
+        }
+
+        // Partition depends on the name only, so every parser sends a city to the same aggregator
+        private void partitionNewCities() {
+            for (; partitionedCities < cityCount(); partitionedCities++) {
+                int aggregator = Math.floorMod(Arrays.hashCode(cityName(partitionedCities)), rings.length);
+                partitions[partitionedCities] = (byte) aggregator;
+                partitionIds[partitionedCities] = partitionSizes[aggregator]++;
+            }
+        }
+
+        /**
+         * Copies statistics this parser sent to given aggregators into its store, after all of them finished.
+         */
+        void collect(Aggregator[] aggregators, int parser) {
+            StatisticsStore store = getStore();
+            for (int cityId = 0; cityId < partitionedCities; cityId++) {
+                StatisticsStore partition = aggregators[partitions[cityId]].stores[parser];
+                int id = partitionIds[cityId];
+                if (id < partition.length() && partition.count(id) != 0) {
+                    store.merge(cityId, partition.min(id), partition.max(id), partition.sum(id), partition.count(id));
+                }
+            }
+        }
+    }
+
+    /**
+     * Takes batches from rings of all parsers until every one of them is closed and drained. Store of a parser grows
+     * with the number of cities it sends here.
+     */
+    static final class Aggregator {
+
+        private final int index;
+        private final ParserMap[] parsers;
+        private final StatisticsStore[] stores;
+
+        Aggregator(int index, ParserMap[] parsers) {
+            this.index = index;
+            this.parsers = parsers;
+            this.stores = new StatisticsStore[parsers.length];
+            for (int parser = 0; parser < parsers.length; parser++) {
+                stores[parser] = new StatisticsStore(INITIAL_PARTITION_SIZE);
+            }
+        }
+
+        void run() {
+            try {
+                for (int attempt = 0;; attempt++) {
+                    boolean progress = false;
+                    boolean drained = true;
+                    for (int parser = 0; parser < parsers.length; parser++) {
+                        Ring ring = parsers[parser].rings[index];
+                        while (ring.poll(this, parser)) {
+                            progress = true;
+                        }
+                        drained &= ring.drained();
+                    }
+
+                    if (drained) {
+                        return;
+                    }
+                    if (progress) {
+                        attempt = 0;
+                    }
+                    else {
+                        idle(attempt);
+                    }
+                }
+            }
+            catch (RuntimeException | Error e) {
+                for (ParserMap parser : parsers) {
+                    parser.rings[index].fail();
+                }
+                throw e;
+            }
+        }
+
+        void add(int parser, int[] batch, int size) {
+            StatisticsStore store = stores[parser];
+            for (int row = 0; row < size; row++) {
+                int packed = batch[row];
+                int id = packed >>> 16;
+                // Last id is the empty station of the store
+                if (id >= store.emptyId()) {
+                    store = grow(parser, id);
+                }
+                store.add(id, (short) packed);
+            }
+        }
+
+        private StatisticsStore grow(int parser, int id) {
+            StatisticsStore store = stores[parser];
+            StatisticsStore grown = new StatisticsStore(Math.max(store.length() * 2, id + 1));
+            for (int i = 0; i < store.emptyId(); i++) {
+                if (store.count(i) != 0) {
+                    grown.merge(i, store.min(i), store.max(i), store.sum(i), store.count(i));
+                }
+            }
+
+            stores[parser] = grown;
+            return grown;
+        }
+    }
+}
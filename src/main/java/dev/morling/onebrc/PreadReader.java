@@ -0,0 +1,259 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reads the input with positional {@link FileChannel#read(ByteBuffer, long)} into large off-heap buffers instead of
+ * mapping it, so throughput is not capped by page fault granularity on network filesystems and cold NVMe.
+ * <p>
+ * Every worker has a reader thread and two buffers: reader fills one of them while the worker parses the other. Blocks
+ * are claimed from an atomic cursor like windows of {@link MappedWindows} and stitched the same way: each read starts
+ * a byte before its block and extends {@link MappedWindows#ROW_MARGIN} bytes past it. Rows handed to the worker are
+ * followed by at least that many bytes of the buffer, so vector loads past the last row stay within it.
+ * <p>
+ * Enabled with {@code -Dtkowalcz.input=pread}, block size is set with {@code -Dtkowalcz.pread.blockSize} (8MB by
+ * default). With {@code -Dtkowalcz.pread.direct=true} file is opened with {@code O_DIRECT} and reads bypass page cache.
+ * {@code FileChannel} can only open such a file through an internal JDK option, so it is opened and read with
+ * {@code open} and {@code pread} of libc (see {@link IoUringReader.Native}) instead.
+ */
+public class PreadReader implements BlockReader {
+
+    static final long DEFAULT_BLOCK_SIZE = 8 * 1024 * 1024;
+
+    // O_DIRECT needs buffer address, file position and read length aligned to the logical block size of the device
+    static final int ALIGNMENT = 4096;
+
+    private static final int BUFFERS_PER_WORKER = 2;
+
+    private final boolean direct;
+
+    // Only one of them is open, descriptor is used with O_DIRECT
+    private final FileChannel channel;
+    private final int fd;
+    private final long fileSize;
+    private final long blockSize;
+    private final AtomicLong cursor = new AtomicLong();
+
+    private final Arena arena = Arena.ofShared();
+    private final ReaderThread[] readers;
+
+    // Set when this reader was picked because io_uring is not available
+    String fallbackReason;
+
+    public PreadReader(Path path, int workerCount, long blockSize, boolean direct) throws IOException {
+        if (blockSize < ALIGNMENT || blockSize % ALIGNMENT != 0 || blockSize > Integer.MAX_VALUE / 2) {
+            throw new IllegalArgumentException(STR."Block size \{blockSize} must be a multiple of \{ALIGNMENT} smaller than 1GB");
+        }
+
+        this.direct = direct;
+        this.channel = direct ? null : FileChannel.open(path, StandardOpenOption.READ);
+        this.fd = direct ? IoUringReader.Native.open(path, true) : -1;
+        this.fileSize = Files.size(path);
+        this.blockSize = blockSize;
+
+        long bufferSize = blockSize + MappedWindows.ROW_MARGIN + 2 * ALIGNMENT;
+        this.readers = new ReaderThread[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            readers[i] = new ReaderThread(i, bufferSize);
+            readers[i].start();
+        }
+    }
+
+    public static PreadReader open(String fileName, int workerCount) throws IOException {
+        return new PreadReader(
+                Path.of(fileName),
+                workerCount,
+                Long.getLong("tkowalcz.pread.blockSize", DEFAULT_BLOCK_SIZE),
+                Boolean.getBoolean("tkowalcz.pread.direct"));
+    }
+
+    @Override
+    public Block next(int worker) {
+        return readers[worker].next();
+    }
+
+    @Override
+    public String summary() {
+        long bytes = 0;
+        long reads = 0;
+        long elapsedNanos = 0;
+        long cpuNanos = 0;
+        for (ReaderThread reader : readers) {
+            bytes += reader.bytes;
+            reads += reader.reads;
+            elapsedNanos = Math.max(elapsedNanos, reader.elapsedNanos);
+            cpuNanos += reader.cpuNanos;
+        }
+
+        long millis = Math.max(TimeUnit.NANOSECONDS.toMillis(elapsedNanos), 1);
+        String summary = STR."pread\{direct ? " O_DIRECT" : ""}, \{blockSize >> 10}KB blocks: \{bytes >> 20}MB in \{millis}ms (\{(bytes >> 20) * 1000 / millis}MB/s), \{reads} reads, reader threads CPU \{TimeUnit.NANOSECONDS.toMillis(cpuNanos)}ms";
+        return fallbackReason == null ? summary : STR."\{summary} (\{fallbackReason})";
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (ReaderThread reader : readers) {
+            reader.interrupt();
+        }
+
+        try {
+            for (ReaderThread reader : readers) {
+                reader.join();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (direct) {
+            IoUringReader.Native.close(fd);
+        }
+        else {
+            channel.close();
+        }
+        arena.close();
+    }
+
+    private final class ReaderThread extends Thread {
+
+        private final BlockHandoff<Buffer> handoff = new BlockHandoff<>(BUFFERS_PER_WORKER, new Buffer(MemorySegment.NULL, null));
+
+        // Owned by this thread, read after it is joined
+        private long bytes;
+        private long reads;
+        private long elapsedNanos;
+        private long cpuNanos;
+
+        ReaderThread(int worker, long bufferSize) {
+            for (int i = 0; i < BUFFERS_PER_WORKER; i++) {
+                handoff.release(new Buffer(arena.allocate(bufferSize, ALIGNMENT), handoff));
+            }
+
+            setName(STR."pread-\{worker}");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            Throwable failure = null;
+            try {
+                while (true) {
+                    Buffer buffer = handoff.takeFree();
+                    long position = cursor.getAndAdd(blockSize);
+                    if (position >= fileSize) {
+                        break;
+                    }
+
+                    read(buffer, position, Math.min(position + blockSize, fileSize));
+                    handoff.publish(buffer);
+                }
+            }
+            catch (InterruptedException e) {
+                // Reader was closed
+                return;
+            }
+            catch (Throwable e) {
+                // Also a row longer than the margin, the worker would wait for the next block forever
+                failure = e;
+            }
+            finally {
+                elapsedNanos = System.nanoTime() - start;
+                cpuNanos = ManagementFactory.getThreadMXBean().getCurrentThreadCpuTime();
+            }
+
+            handoff.finish(failure);
+        }
+
+        private void read(Buffer buffer, long start, long end) throws IOException {
+            long readStart = Math.max(start - 1, 0) & -ALIGNMENT;
+            long readEnd = (Math.min(end + MappedWindows.ROW_MARGIN, fileSize) + ALIGNMENT - 1) & -ALIGNMENT;
+
+            MemorySegment target = buffer.data.asSlice(0, readEnd - readStart);
+            long filled = 0;
+            // Read ends at the end of file, next one would not be aligned
+            while (filled < target.byteSize() && readStart + filled < fileSize) {
+                // O_DIRECT reads have to start aligned, after a short one the partially read block is read again
+                long offset = direct ? filled & -ALIGNMENT : filled;
+                reads++;
+                int read = read(target.asSlice(offset), readStart + offset);
+                if (read <= 0) {
+                    break;
+                }
+                if (offset + read <= filled) {
+                    throw new IOException(STR."Read at \{readStart + offset} returned \{read} bytes, no progress past \{readStart + filled}");
+                }
+                filled = offset + read;
+                bytes += read;
+            }
+
+            MemorySegment data = buffer.data.asSlice(0, filled);
+            boolean endOfFile = readStart + filled >= fileSize;
+            long rowsStart = start == 0 ? 0 : MappedWindows.rowStart(data, start - readStart, endOfFile);
+            long rowsEnd = end == fileSize ? data.byteSize() : MappedWindows.rowStart(data, end - readStart, endOfFile);
+            buffer.rows = data.asSlice(rowsStart, Math.max(rowsEnd - rowsStart, 0));
+        }
+
+        private int read(MemorySegment target, long position) throws IOException {
+            if (direct) {
+                return IoUringReader.Native.pread(fd, target, position);
+            }
+
+            return channel.read(target.asByteBuffer(), position);
+        }
+
+        Block next() {
+            return handoff.next();
+        }
+    }
+
+    /**
+     * Buffer of a reader, returned to it when worker closes the block.
+     */
+    private static final class Buffer implements Block {
+
+        private final MemorySegment data;
+        private final BlockHandoff<Buffer> handoff;
+        private MemorySegment rows;
+
+        Buffer(MemorySegment data, BlockHandoff<Buffer> handoff) {
+            this.data = data;
+            this.handoff = handoff;
+        }
+
+        @Override
+        public MemorySegment rows() {
+            return rows;
+        }
+
+        @Override
+        public void close() {
+            handoff.release(this);
+        }
+    }
+}
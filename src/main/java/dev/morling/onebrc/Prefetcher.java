@@ -0,0 +1,284 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.IOException;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Takes page faults of a fresh mapping off the parsing threads. {@link ChunkScheduler} hands chunks out in file order,
+ * so prefetch threads keep up to {@code distance} bytes past the input it has handed out so far faulted in: that is
+ * both the rest of the chunks workers claimed and the chunks they will claim next, while nothing is prefetched for a
+ * worker past the end of its own chunk, i.e. into the chunk of another one.
+ * <ul>
+ * <li>{@code -Dtkowalcz.prefetch=touch} - reads a byte of every page, so page tables are populated before the worker
+ * gets there. Helps with both cold and warm page cache.</li>
+ * <li>{@code -Dtkowalcz.prefetch=willneed} - calls {@code madvise(MADV_WILLNEED)}, which only starts reading the file
+ * into page cache. Helps with cold page cache, workers still take minor faults.</li>
+ * </ul>
+ * Distance is set with {@code -Dtkowalcz.prefetch.distance} (16MB by default) and number of prefetch threads with
+ * {@code -Dtkowalcz.prefetch.threads} (1 by default), each takes every n-th batch. Threads run with minimum priority,
+ * which is ignored by Linux unless JVM runs with {@code -XX:ThreadPriorityPolicy=1} as root.
+ * <p>
+ * Workers publish the offset of every window they start processing and record how far ahead of it the prefetcher was,
+ * or a stall when it was not prefetched yet. First window of a worker does not count, it starts together with the
+ * prefetcher.
+ */
+public class Prefetcher {
+
+    enum Mode {
+        TOUCH,
+        WILLNEED
+    }
+
+    static final long DEFAULT_DISTANCE = 16 * 1024 * 1024;
+
+    // Unit of work of a prefetch thread, threads take every n-th one
+    static final long BATCH_SIZE = 1024 * 1024;
+
+    // Counters of each worker (and each prefetch thread) are 128 bytes apart so that they do not share a cache line
+    private static final int STRIDE = 16;
+    private static final int CURSOR = 0;
+    private static final int STALLS = 1;
+    private static final int LEAD_SUM = 2;
+    private static final int LEAD_SAMPLES = 3;
+
+    private static final long NOT_STARTED = -1;
+    private static final long IDLE_PARK_NANOS = 50_000;
+
+    private final MemorySegment inputData;
+    private final ChunkScheduler scheduler;
+    private final Mode mode;
+    private final long distance;
+
+    // Offset of the window each worker processes and its stalls and lead, written by workers
+    private final AtomicLongArray workers;
+
+    // Offset of the next batch of each prefetch thread, batches before it are prefetched. Written by prefetch threads.
+    private final AtomicLongArray prefetched;
+
+    private final PrefetchThread[] threads;
+    private volatile boolean stopped;
+
+    Prefetcher(MemorySegment inputData, ChunkScheduler scheduler, int workerCount, Mode mode, long distance, int threadCount) {
+        this.inputData = inputData;
+        this.scheduler = scheduler;
+        this.mode = mode;
+        this.distance = distance;
+        this.workers = new AtomicLongArray(workerCount * STRIDE);
+        for (int i = 0; i < workerCount; i++) {
+            workers.set(i * STRIDE + CURSOR, NOT_STARTED);
+        }
+
+        this.threads = new PrefetchThread[Math.max(1, threadCount)];
+        this.prefetched = new AtomicLongArray(threads.length * STRIDE);
+        for (int i = 0; i < threads.length; i++) {
+            prefetched.set(i * STRIDE, i * BATCH_SIZE);
+            threads[i] = new PrefetchThread(i);
+        }
+    }
+
+    /**
+     * Starts prefetching ahead of chunks handed out by given scheduler to given number of workers as configured with
+     * {@code -Dtkowalcz.prefetch}, returns null when prefetching is disabled (the default).
+     */
+    public static Prefetcher start(MemorySegment inputData, ChunkScheduler scheduler, int workerCount) {
+        String mode = System.getProperty("tkowalcz.prefetch", "none");
+        if (mode.equals("none")) {
+            return null;
+        }
+
+        Prefetcher prefetcher = new Prefetcher(
+                inputData,
+                scheduler,
+                workerCount,
+                mode(mode),
+                Long.getLong("tkowalcz.prefetch.distance", DEFAULT_DISTANCE),
+                Integer.getInteger("tkowalcz.prefetch.threads", 1));
+        prefetcher.start();
+        return prefetcher;
+    }
+
+    private static Mode mode(String mode) {
+        try {
+            return Mode.valueOf(mode.toUpperCase(Locale.ROOT));
+        }
+        catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException(STR."Unknown prefetch mode \{mode}, expected none, touch or willneed");
+        }
+    }
+
+    void start() {
+        for (PrefetchThread thread : threads) {
+            thread.start();
+        }
+    }
+
+    /**
+     * Called by worker when it starts processing given window of the input.
+     */
+    public void advance(int worker, MemorySegment window) {
+        int slot = worker * STRIDE;
+        long offset = window.address() - inputData.address();
+        if (workers.getPlain(slot + CURSOR) != NOT_STARTED) {
+            long lead = prefetchedUpTo() - offset;
+            if (lead <= 0) {
+                workers.setRelease(slot + STALLS, workers.getPlain(slot + STALLS) + 1);
+            }
+            else {
+                workers.setRelease(slot + LEAD_SUM, workers.getPlain(slot + LEAD_SUM) + lead);
+                workers.setRelease(slot + LEAD_SAMPLES, workers.getPlain(slot + LEAD_SAMPLES) + 1);
+            }
+        }
+        workers.setRelease(slot + CURSOR, offset);
+    }
+
+    /**
+     * Called by worker when it has no more input to process.
+     */
+    public void finish(int worker) {
+        workers.setRelease(worker * STRIDE + CURSOR, NOT_STARTED);
+    }
+
+    /**
+     * How many bytes past the current window of given worker are prefetched, negative when worker is ahead.
+     */
+    public long lead(int worker) {
+        return prefetchedUpTo() - workers.getAcquire(worker * STRIDE + CURSOR);
+    }
+
+    /**
+     * Offset up to which the whole input is prefetched: batches are taken by threads in turns, so it is where the
+     * thread that is furthest behind will continue.
+     */
+    long prefetchedUpTo() {
+        long upTo = inputData.byteSize();
+        for (int i = 0; i < threads.length; i++) {
+            upTo = Math.min(upTo, prefetched.getAcquire(i * STRIDE));
+        }
+
+        return upTo;
+    }
+
+    /**
+     * Stops prefetch threads and returns summary of their work.
+     */
+    public String stop() throws InterruptedException {
+        stopped = true;
+
+        long bytes = 0;
+        long idleParks = 0;
+        long minorFaults = 0;
+        long majorFaults = 0;
+        for (PrefetchThread thread : threads) {
+            thread.join();
+            bytes += thread.bytes;
+            idleParks += thread.idleParks;
+            minorFaults += thread.minorFaults;
+            majorFaults += thread.majorFaults;
+        }
+
+        long stalls = 0;
+        long leadSum = 0;
+        long leadSamples = 0;
+        for (int slot = 0; slot < workers.length(); slot += STRIDE) {
+            stalls += workers.getAcquire(slot + STALLS);
+            leadSum += workers.getAcquire(slot + LEAD_SUM);
+            leadSamples += workers.getAcquire(slot + LEAD_SAMPLES);
+        }
+
+        long averageLead = leadSamples == 0 ? 0 : leadSum / leadSamples;
+        return STR."Prefetch \{mode} \{distance >> 10}KB ahead with \{threads.length} threads: \{bytes >> 20}MB prefetched, average lead \{averageLead >> 10}KB, \{stalls} stalls, \{idleParks} idle parks, \{minorFaults} minor and \{majorFaults} major faults";
+    }
+
+    /**
+     * Minor and major page faults taken so far by the calling thread, zeros where they are not available.
+     */
+    public static long[] threadPageFaults() {
+        try {
+            // minflt and majflt are the 10th and 12th field, fields after the command name start with the 3rd
+            String stat = Files.readString(Path.of("/proc/thread-self/stat"));
+            String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+            return new long[]{ Long.parseLong(fields[7]), Long.parseLong(fields[9]) };
+        }
+        catch (IOException | RuntimeException e) {
+            return new long[2];
+        }
+    }
+
+    private final class PrefetchThread extends Thread {
+
+        private final int index;
+
+        // Owned by this thread, read after it is joined
+        private long bytes;
+        private long idleParks;
+        private long minorFaults;
+        private long majorFaults;
+        private long sink;
+
+        PrefetchThread(int index) {
+            this.index = index;
+
+            setName(STR."prefetch-\{index}");
+            setDaemon(true);
+            setPriority(Thread.MIN_PRIORITY);
+        }
+
+        @Override
+        public void run() {
+            long[] faultsAtStart = threadPageFaults();
+
+            long next = prefetched.getPlain(index * STRIDE);
+            while (!stopped && next < inputData.byteSize()) {
+                if (next >= Math.min(scheduler.handedOut() + distance, inputData.byteSize())) {
+                    idleParks++;
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                    continue;
+                }
+
+                long end = Math.min(next + BATCH_SIZE, inputData.byteSize());
+                prefetch(next, end);
+                bytes += end - next;
+                next += threads.length * BATCH_SIZE;
+                prefetched.setRelease(index * STRIDE, Math.min(next, inputData.byteSize()));
+            }
+
+            long[] faultsAtEnd = threadPageFaults();
+            minorFaults = faultsAtEnd[0] - faultsAtStart[0];
+            majorFaults = faultsAtEnd[1] - faultsAtStart[1];
+        }
+
+        private void prefetch(long start, long end) {
+            if (mode == Mode.WILLNEED) {
+                MemoryMapping.advise(inputData.asSlice(start, end - start), MemoryMapping.MADV_WILLNEED);
+                return;
+            }
+
+            long sum = 0;
+            for (long offset = start & -IoUtil.BLOCK_SIZE; offset < end; offset += IoUtil.BLOCK_SIZE) {
+                sum += inputData.get(ValueLayout.JAVA_BYTE, Math.max(offset, start));
+            }
+            sink += sum;
+        }
+    }
+}
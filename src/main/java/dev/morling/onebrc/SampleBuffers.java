@@ -0,0 +1,162 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Accumulates measurements of a station by appending them to a buffer of raw samples and folding full buffers into
+ * vectors of per lane min, max and sum with {@code IntVector.min/max/add}, what {@link RawHashMapVectorsUnsafe} and
+ * {@code CalculateAverage_tkowalcz2.RawHashMap} explored. Hot path is a store and a compare instead of two compares,
+ * two conditional stores and an add, at the cost of a fold every {@code bufferSize} samples.
+ * <p>
+ * Record of a station id, {@code bufferSize + 3 * 8} ints of {@link #records}:
+ *
+ * <pre>
+ * +-----------------------------+------------+------------+------------+
+ * | Samples (bufferSize ints)   | Min lanes  | Max lanes  | Sum lanes  |
+ * +-----------------------------+------------+------------+------------+
+ * </pre>
+ *
+ * Number of buffered samples and of folded ones are kept apart in {@link #fills} and {@link #counts}. Int sum lanes of
+ * a station are moved to its 64-bit sum every {@link #SPILL_FOLDS} folds, long before a lane could overflow.
+ * {@link #drainInto} folds partially filled buffers with a mask, reduces lanes of every station and leaves all
+ * buffers empty.
+ */
+public final class SampleBuffers {
+
+    private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_256;
+
+    // Each fold adds bufferSize / 8 samples of at most 999 to a lane, so an int lane takes over 500k folds of 32 samples
+    private static final int SPILL_FOLDS = 0x10000;
+    private static final int MAX_BUFFER_SIZE = 128;
+
+    private final int bufferSize;
+    private final int stride;
+    private final int spillMask;
+
+    private final int[] records;
+    private final int[] fills;
+    private final int[] counts;
+    private final long[] wideSums;
+
+    public SampleBuffers(int capacity, int bufferSize) {
+        if (bufferSize < SPECIES.length() || bufferSize > MAX_BUFFER_SIZE || Integer.bitCount(bufferSize) != 1) {
+            throw new IllegalArgumentException(STR."Sample buffer of \{bufferSize} samples, expected a power of two from \{SPECIES.length()} to \{MAX_BUFFER_SIZE}");
+        }
+
+        this.bufferSize = bufferSize;
+        this.stride = bufferSize + 3 * SPECIES.length();
+        this.spillMask = bufferSize * SPILL_FOLDS - 1;
+        this.records = new int[capacity * stride];
+        this.fills = new int[capacity];
+        this.counts = new int[capacity];
+        this.wideSums = new long[capacity];
+    }
+
+    /**
+     * Resets lanes of a station that was not used before, see {@link #drainInto}.
+     */
+    public void clear(int id) {
+        int lanes = id * stride + bufferSize;
+        IntVector.broadcast(SPECIES, Integer.MAX_VALUE).intoArray(records, lanes);
+        IntVector.broadcast(SPECIES, Integer.MIN_VALUE).intoArray(records, lanes + SPECIES.length());
+        IntVector.zero(SPECIES).intoArray(records, lanes + 2 * SPECIES.length());
+        fills[id] = 0;
+        counts[id] = 0;
+        wideSums[id] = 0;
+    }
+
+    public void add(int id, int value) {
+        int record = id * stride;
+        int fill = fills[id];
+        records[record + fill] = value;
+
+        if (++fill == bufferSize) {
+            fold(record);
+            fill = 0;
+            if (((counts[id] += bufferSize) & spillMask) == 0) {
+                spill(id, record);
+            }
+        }
+        fills[id] = fill;
+    }
+
+    private void fold(int record) {
+        int lanes = record + bufferSize;
+        IntVector min = IntVector.fromArray(SPECIES, records, lanes);
+        IntVector max = IntVector.fromArray(SPECIES, records, lanes + SPECIES.length());
+        IntVector sum = IntVector.fromArray(SPECIES, records, lanes + 2 * SPECIES.length());
+
+        for (int sample = 0; sample < bufferSize; sample += SPECIES.length()) {
+            IntVector samples = IntVector.fromArray(SPECIES, records, record + sample);
+            min = min.min(samples);
+            max = max.max(samples);
+            sum = sum.add(samples);
+        }
+
+        min.intoArray(records, lanes);
+        max.intoArray(records, lanes + SPECIES.length());
+        sum.intoArray(records, lanes + 2 * SPECIES.length());
+    }
+
+    private void spill(int id, int record) {
+        int sumLanes = record + bufferSize + 2 * SPECIES.length();
+        wideSums[id] += IntVector.fromArray(SPECIES, records, sumLanes).reduceLanesToLong(VectorOperators.ADD);
+        IntVector.zero(SPECIES).intoArray(records, sumLanes);
+    }
+
+    /**
+     * Adds statistics of stations with ids below {@code stationCount} to given store: samples left in buffers are folded
+     * with a mask of the filled part and lanes are reduced. Buffers are empty afterwards.
+     */
+    public void drainInto(StatisticsStore store, int stationCount) {
+        for (int id = 0; id < stationCount; id++) {
+            int record = id * stride;
+            int lanes = record + bufferSize;
+            int fill = fills[id];
+
+            IntVector min = IntVector.fromArray(SPECIES, records, lanes);
+            IntVector max = IntVector.fromArray(SPECIES, records, lanes + SPECIES.length());
+            IntVector sum = IntVector.fromArray(SPECIES, records, lanes + 2 * SPECIES.length());
+            for (int sample = 0; sample < fill; sample += SPECIES.length()) {
+                VectorMask<Integer> filled = SPECIES.indexInRange(sample, fill);
+                IntVector samples = IntVector.fromArray(SPECIES, records, record + sample, filled);
+                min = min.lanewise(VectorOperators.MIN, samples, filled);
+                max = max.lanewise(VectorOperators.MAX, samples, filled);
+                sum = sum.add(samples, filled);
+            }
+
+            int count = counts[id] + fill;
+            if (count != 0) {
+                store.merge(
+                        id,
+                        min.reduceLanes(VectorOperators.MIN),
+                        max.reduceLanes(VectorOperators.MAX),
+                        wideSums[id] + sum.reduceLanesToLong(VectorOperators.ADD),
+                        count);
+            }
+            clear(id);
+        }
+    }
+
+    public int bufferSize() {
+        return bufferSize;
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShuffle;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Collects a vector of (station id, value) pairs and adds them to a {@link StatisticsStore} at once: min, max, sum and
+ * count of all stations of the batch are gathered with the ids as index map, updated and scattered back.
+ * <p>
+ * Scatter of a station that is twice in the batch would keep only one of the updates, so conflicts are found first:
+ * lane numbers are scattered to a scratch array at the ids and gathered back, a lane that does not read its own number
+ * shares the id with another one. Only then lanes are compared with every rotation of the batch and each combines
+ * values of all lanes with its id, so lanes of a station end up with the same statistics and it does not matter which
+ * of them is stored.
+ * <p>
+ * Sums of a batch are added to int counters kept here, gathers and scatters of longs with an int index map are not
+ * intrinsified (JDK 21). They are moved to 64-bit sums of the store before they could overflow and on {@link #flush()}.
+ */
+public final class StatisticsBatch {
+
+    private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+    private static final IntVector LANES = IntVector.zero(SPECIES).addIndex(1);
+    private static final VectorShuffle<Integer>[] ROTATIONS = rotations();
+
+    // Batch adds at most 999 per row to a station, flushed sums stay within an int
+    private static final int FLUSH_ROWS = 1 << 21;
+
+    private final StatisticsStore store;
+    private final int[] sums;
+    private final int[] owners;
+
+    private final int[] ids = new int[SPECIES.length()];
+    private final int[] values = new int[SPECIES.length()];
+    private int size;
+    private int unflushedRows;
+
+    public StatisticsBatch(StatisticsStore store) {
+        this.store = store;
+        this.sums = new int[store.length()];
+        this.owners = new int[store.length()];
+    }
+
+    @SuppressWarnings("unchecked")
+    private static VectorShuffle<Integer>[] rotations() {
+        VectorShuffle<Integer>[] rotations = new VectorShuffle[SPECIES.length()];
+        for (int rotation = 1; rotation < rotations.length; rotation++) {
+            rotations[rotation] = VectorShuffle.iota(SPECIES, rotation, 1, true);
+        }
+
+        return rotations;
+    }
+
+    public void add(int id, int value) {
+        ids[size] = id;
+        values[size] = value;
+        if (++size == SPECIES.length()) {
+            apply();
+            size = 0;
+        }
+    }
+
+    private void apply() {
+        IntVector id = IntVector.fromArray(SPECIES, ids, 0);
+        IntVector value = IntVector.fromArray(SPECIES, values, 0);
+
+        IntVector min = value;
+        IntVector max = value;
+        IntVector sum = value;
+        IntVector count = IntVector.broadcast(SPECIES, 1);
+
+        LANES.intoArray(owners, 0, ids, 0);
+        if (!IntVector.fromArray(SPECIES, owners, 0, ids, 0).eq(LANES).allTrue()) {
+            for (int rotation = 1; rotation < ROTATIONS.length; rotation++) {
+                VectorMask<Integer> same = id.eq(id.rearrange(ROTATIONS[rotation]));
+                IntVector rotated = value.rearrange(ROTATIONS[rotation]);
+                min = min.lanewise(VectorOperators.MIN, rotated, same);
+                max = max.lanewise(VectorOperators.MAX, rotated, same);
+                sum = sum.add(rotated, same);
+                count = count.add(1, same);
+            }
+        }
+
+        IntVector.fromArray(SPECIES, store.min, 0, ids, 0).min(min).intoArray(store.min, 0, ids, 0);
+        IntVector.fromArray(SPECIES, store.max, 0, ids, 0).max(max).intoArray(store.max, 0, ids, 0);
+        IntVector.fromArray(SPECIES, sums, 0, ids, 0).add(sum).intoArray(sums, 0, ids, 0);
+        IntVector.fromArray(SPECIES, store.count, 0, ids, 0).add(count).intoArray(store.count, 0, ids, 0);
+
+        unflushedRows += SPECIES.length();
+        if (unflushedRows >= FLUSH_ROWS) {
+            flushSums();
+        }
+    }
+
+    /**
+     * Adds rows of a partially filled batch one at a time and moves int sums into the store.
+     */
+    public void flush() {
+        for (int row = 0; row < size; row++) {
+            store.add(ids[row], values[row]);
+        }
+        size = 0;
+        flushSums();
+    }
+
+    private void flushSums() {
+        for (int id = 0; id < sums.length; id++) {
+            store.sum[id] += sums[id];
+            sums[id] = 0;
+        }
+        unflushedRows = 0;
+    }
+
+    public static int batchSize() {
+        return SPECIES.length();
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import dev.morling.onebrc.CalculateAverage_tkowalcz2Unsafe.StatisticsAggregate;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * Statistics of stations kept as a structure of arrays indexed by a dense station id (see
+ * {@link CalculateAverage_tkowalcz2Unsafe.SplitRawHashMap}), instead of next to the city name in a hash map entry.
+ * <p>
+ * Updating a station touches four arrays instead of one entry, but stores of all workers line up: merging them is a
+ * sweep of vector min, max and add over whole arrays, and results are read by index without looking up or boxing
+ * anything. Sum is 64-bit and count can take all rows a worker sees, so unlike the packed counters of
+ * {@link CalculateAverage_tkowalcz2Unsafe.UnsafeRawHashMap} nothing has to be flushed.
+ */
+public final class StatisticsStore {
+
+    private static final VectorSpecies<Integer> INT_SPECIES = IntVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Long> LONG_SPECIES = LongVector.SPECIES_PREFERRED;
+
+    final int[] min;
+    final int[] max;
+    final long[] sum;
+    final int[] count;
+
+    // Never added to, stores with different ids gather it for stations they do not have (see mergeFrom)
+    private final int emptyId;
+
+    public StatisticsStore(int capacity) {
+        // Whole number of int vectors (so of long ones too) with room for the empty station after the last one
+        int length = INT_SPECIES.loopBound(capacity + INT_SPECIES.length());
+        this.min = new int[length];
+        this.max = new int[length];
+        this.sum = new long[length];
+        this.count = new int[length];
+        this.emptyId = length - 1;
+
+        Arrays.fill(min, Integer.MAX_VALUE);
+        Arrays.fill(max, Integer.MIN_VALUE);
+    }
+
+    public void add(int id, int value) {
+        min[id] = Math.min(min[id], value);
+        max[id] = Math.max(max[id], value);
+        sum[id] += value;
+        count[id]++;
+    }
+
+    /**
+     * Adds statistics of many measurements of a station, e.g. folded by {@link SampleBuffers}.
+     */
+    public void merge(int id, int min, int max, long sum, int count) {
+        this.min[id] = Math.min(this.min[id], min);
+        this.max[id] = Math.max(this.max[id], max);
+        this.sum[id] += sum;
+        this.count[id] += count;
+    }
+
+    /**
+     * Adds statistics of a store that gives every station the same id as this one.
+     */
+    public void mergeFrom(StatisticsStore other) {
+        checkLength(other);
+        for (int i = 0; i < min.length; i += INT_SPECIES.length()) {
+            IntVector.fromArray(INT_SPECIES, min, i).min(IntVector.fromArray(INT_SPECIES, other.min, i)).intoArray(min, i);
+            IntVector.fromArray(INT_SPECIES, max, i).max(IntVector.fromArray(INT_SPECIES, other.max, i)).intoArray(max, i);
+            IntVector.fromArray(INT_SPECIES, count, i).add(IntVector.fromArray(INT_SPECIES, other.count, i)).intoArray(count, i);
+        }
+        for (int i = 0; i < sum.length; i += LONG_SPECIES.length()) {
+            LongVector.fromArray(LONG_SPECIES, sum, i).add(LongVector.fromArray(LONG_SPECIES, other.sum, i)).intoArray(sum, i);
+        }
+    }
+
+    /**
+     * Adds statistics of a store with its own ids, {@code otherIds[id]} is the id in the other store of the station
+     * with given id in this one, or {@link #emptyId()} of the other store when it does not have that station. Same sweep
+     * as {@link #mergeFrom(StatisticsStore)} with int arrays of the other store read by gathers.
+     */
+    public void mergeFrom(StatisticsStore other, int[] otherIds) {
+        checkLength(other);
+        if (otherIds.length != min.length) {
+            throw new IllegalArgumentException(STR."Expected \{min.length} ids, got \{otherIds.length}");
+        }
+
+        for (int i = 0; i < min.length; i += INT_SPECIES.length()) {
+            IntVector.fromArray(INT_SPECIES, min, i).min(IntVector.fromArray(INT_SPECIES, other.min, 0, otherIds, i)).intoArray(min, i);
+            IntVector.fromArray(INT_SPECIES, max, i).max(IntVector.fromArray(INT_SPECIES, other.max, 0, otherIds, i)).intoArray(max, i);
+            IntVector.fromArray(INT_SPECIES, count, i).add(IntVector.fromArray(INT_SPECIES, other.count, 0, otherIds, i)).intoArray(count, i);
+        }
+        // LongVector gather with an int index map is not intrinsified (JDK 21), it is an order of magnitude slower than this
+        for (int i = 0; i < sum.length; i++) {
+            sum[i] += other.sum[otherIds[i]];
+        }
+    }
+
+    private void checkLength(StatisticsStore other) {
+        if (other.min.length != min.length) {
+            throw new IllegalArgumentException(STR."Cannot merge store of \{other.min.length} stations into one of \{min.length}");
+        }
+    }
+
+    /**
+     * Results of stations with ids from zero to the number of given names. Stations without measurements are skipped.
+     */
+    public TreeMap<String, StatisticsAggregate> asResults(List<String> names) {
+        TreeMap<String, StatisticsAggregate> results = new TreeMap<>();
+        for (int id = 0; id < names.size(); id++) {
+            if (count[id] != 0) {
+                results.put(names.get(id), new StatisticsAggregate(names.get(id), min[id], max[id], sum[id], count[id]));
+            }
+        }
+
+        return results;
+    }
+
+    /**
+     * Number of ids, including padding and the empty station.
+     */
+    public int length() {
+        return min.length;
+    }
+
+    public int emptyId() {
+        return emptyId;
+    }
+
+    public int min(int id) {
+        return min[id];
+    }
+
+    public int max(int id) {
+        return max[id];
+    }
+
+    public long sum(int id) {
+        return sum[id];
+    }
+
+    public int count(int id) {
+        return count[id];
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads input that cannot be mapped or read at an offset, like a pipe ({@code zcat measurements.txt.gz | ...}), from
+ * any {@link ReadableByteChannel}. A reader thread fills a ring of off-heap blocks one after another, cuts each one at
+ * its last newline and copies the partial row that follows to the start of the next block (what
+ * {@code remainderBytes} of {@code CalculateAverage_gabrielreid} does). Blocks are handed to whichever worker asks
+ * first, so the reader only reads and copies less than a row per block while all workers parse.
+ * <p>
+ * Enabled with {@code -Dtkowalcz.input=stdin}, block size is set with {@code -Dtkowalcz.stream.blockSize} (8MB by
+ * default) and number of blocks with {@code -Dtkowalcz.stream.blocks} (two per worker and two more by default). Rows
+ * of a block are followed by at least {@link MappedWindows#ROW_MARGIN} bytes of it, so vector loads past the last row
+ * stay within the block.
+ */
+public class StreamReader implements BlockReader {
+
+    static final long DEFAULT_BLOCK_SIZE = 8 * 1024 * 1024;
+
+    private final ReadableByteChannel channel;
+    private final long blockSize;
+
+    private final Arena arena = Arena.ofShared();
+    private final BlockHandoff<Buffer> handoff;
+    private final ReaderThread readerThread;
+
+    public StreamReader(ReadableByteChannel channel, int blockCount, long blockSize) {
+        if (blockSize < MappedWindows.ROW_MARGIN || blockSize > Integer.MAX_VALUE / 2) {
+            throw new IllegalArgumentException(STR."Block size \{blockSize} must be between \{MappedWindows.ROW_MARGIN} bytes and 1GB");
+        }
+        if (blockCount < 2) {
+            throw new IllegalArgumentException(STR."At least 2 blocks are needed to carry rows over, got \{blockCount}");
+        }
+
+        this.channel = channel;
+        this.blockSize = blockSize;
+        this.handoff = new BlockHandoff<>(blockCount, new Buffer(MemorySegment.NULL));
+        for (int i = 0; i < blockCount; i++) {
+            handoff.release(new Buffer(arena.allocate(blockSize + MappedWindows.ROW_MARGIN, PreadReader.ALIGNMENT)));
+        }
+
+        this.readerThread = new ReaderThread();
+        readerThread.start();
+    }
+
+    /**
+     * Reader of the standard input configured with system properties.
+     */
+    public static StreamReader stdin(int workerCount) {
+        return new StreamReader(
+                new FileInputStream(FileDescriptor.in).getChannel(),
+                Integer.getInteger("tkowalcz.stream.blocks", 2 * workerCount + 2),
+                Long.getLong("tkowalcz.stream.blockSize", DEFAULT_BLOCK_SIZE));
+    }
+
+    @Override
+    public Block next(int worker) {
+        return handoff.next();
+    }
+
+    @Override
+    public String summary() {
+        long millis = Math.max(TimeUnit.NANOSECONDS.toMillis(readerThread.elapsedNanos), 1);
+        return STR."stream, \{blockSize >> 10}KB blocks: \{readerThread.bytes >> 20}MB in \{millis}ms (\{(readerThread.bytes >> 20) * 1000 / millis}MB/s), \{readerThread.reads} reads, waited \{readerThread.waits} times for workers to return a block, reader thread CPU \{TimeUnit.NANOSECONDS.toMillis(readerThread.cpuNanos)}ms";
+    }
+
+    @Override
+    public void close() throws IOException {
+        readerThread.interrupt();
+        try {
+            readerThread.join();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        channel.close();
+        arena.close();
+    }
+
+    private final class ReaderThread extends Thread {
+
+        // Owned by this thread, read after it is joined
+        private long bytes;
+        private long reads;
+        private long waits;
+        private long elapsedNanos;
+        private long cpuNanos;
+
+        ReaderThread() {
+            setName("stream-reader");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            Throwable failure = null;
+            try {
+                Buffer buffer = takeFree();
+                long carried = 0;
+                while (true) {
+                    long filled = fill(buffer, carried);
+                    boolean endOfStream = filled < blockSize;
+                    if (filled == 0) {
+                        handoff.release(buffer);
+                        break;
+                    }
+
+                    if (endOfStream) {
+                        // Last row may come without a newline
+                        if (buffer.data.get(ValueLayout.JAVA_BYTE, filled - 1) != '\n') {
+                            buffer.data.set(ValueLayout.JAVA_BYTE, filled++, (byte) '\n');
+                        }
+                        buffer.rows = buffer.data.asSlice(0, filled);
+                        handoff.publish(buffer);
+                        break;
+                    }
+
+                    long rowsEnd = lastRowEnd(buffer.data, filled);
+                    Buffer next = takeFree();
+                    carried = filled - rowsEnd;
+                    MemorySegment.copy(buffer.data, rowsEnd, next.data, 0, carried);
+
+                    buffer.rows = buffer.data.asSlice(0, rowsEnd);
+                    handoff.publish(buffer);
+                    buffer = next;
+                }
+            }
+            catch (InterruptedException e) {
+                // Reader was closed
+                return;
+            }
+            catch (Throwable e) {
+                // Also a row longer than a block, workers would wait for the next one forever
+                failure = e;
+            }
+            finally {
+                elapsedNanos = System.nanoTime() - start;
+                cpuNanos = ManagementFactory.getThreadMXBean().getCurrentThreadCpuTime();
+            }
+
+            handoff.finish(failure);
+        }
+
+        private Buffer takeFree() throws InterruptedException {
+            Buffer buffer = handoff.pollFree();
+            if (buffer == null) {
+                waits++;
+                buffer = handoff.takeFree();
+            }
+
+            return buffer;
+        }
+
+        // Reads until the block is full or the stream ends, returns number of bytes in the block
+        private long fill(Buffer buffer, long carried) throws IOException {
+            ByteBuffer target = buffer.data.asSlice(carried, blockSize - carried).asByteBuffer();
+            while (target.hasRemaining()) {
+                reads++;
+                int read = channel.read(target);
+                if (read < 0) {
+                    break;
+                }
+                bytes += read;
+            }
+
+            return carried + target.position();
+        }
+
+        private long lastRowEnd(MemorySegment data, long filled) {
+            for (long position = filled - 1; position >= 0; position--) {
+                if (data.get(ValueLayout.JAVA_BYTE, position) == '\n') {
+                    return position + 1;
+                }
+            }
+
+            throw new IllegalStateException(STR."Row is longer than block size \{blockSize}");
+        }
+    }
+
+    /**
+     * Block of the ring, returned to the reader when worker closes it.
+     */
+    private final class Buffer implements Block {
+
+        private final MemorySegment data;
+        private MemorySegment rows;
+
+        Buffer(MemorySegment data) {
+            this.data = data;
+        }
+
+        @Override
+        public MemorySegment rows() {
+            return rows;
+        }
+
+        @Override
+        public void close() {
+            handoff.release(this);
+        }
+    }
+}
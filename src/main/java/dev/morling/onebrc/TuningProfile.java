@@ -0,0 +1,194 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.stream.Stream;
+
+/**
+ * Settings of {@link CalculateAverage_tkowalcz2Unsafe} that were tuned by hand for one machine: how many cursors are
+ * interleaved in the main loop, size of the hash table, whether measurements of all cursors are parsed together
+ * with 256-bit shuffles and where workers keep statistics (aos, soa, buffered or batched, see
+ * {@code CalculateAverage_tkowalcz2Unsafe.STATISTICS}). Only the last one matters with statistics stores, they run
+ * single pumped loops over a table of fixed size.
+ * <p>
+ * Engine reads the profile once into static final fields, so JIT still sees constants. Values come from (first match
+ * wins):
+ * <ol>
+ * <li>{@code -Dtkowalcz.pumpFactor=1|3}, {@code -Dtkowalcz.tableSize=<power of two>},
+ * {@code -Dtkowalcz.packedParsing=true|false} and {@code -Dtkowalcz.statistics=aos|soa|buffered|batched},</li>
+ * <li>entry for this host in the profile file written by {@link Autotuner} ({@code ~/.tkowalcz/tuning.properties}, can
+ * be changed with {@code -Dtkowalcz.tuningProfile=<path>}),</li>
+ * <li>{@link #DEFAULT}.</li>
+ * </ol>
+ */
+public record TuningProfile(int pumpFactor, int tableSize, boolean packedParsing, String statistics) {
+
+    // Initialized before DEFAULT, which the constructor validates against it
+    static final List<String> STATISTICS_LAYOUTS = List.of("aos", "soa", "buffered", "batched");
+
+    public static final TuningProfile DEFAULT = new TuningProfile(3, 0x80000, true, "aos");
+
+    // Quad pumped loop only exists in UnalignedQuadMicrobenchmark and was slower there, double pumped only in the
+    // single threaded engine.
+    static final int[] PUMP_FACTORS = { 1, 3 };
+    static final int[] TABLE_SIZES = { 0x80000, 0x400000 };
+
+    public TuningProfile {
+        if (pumpFactor != 1 && pumpFactor != 3) {
+            throw new IllegalArgumentException(STR."Unsupported pump factor: \{pumpFactor}");
+        }
+        if (tableSize <= 0 || Integer.bitCount(tableSize) != 1) {
+            throw new IllegalArgumentException(STR."Table size must be a power of two: \{tableSize}");
+        }
+        if (!STATISTICS_LAYOUTS.contains(statistics)) {
+            throw new IllegalArgumentException(STR."Unknown statistics layout \{statistics}, expected aos, soa, buffered or batched");
+        }
+    }
+
+    public static TuningProfile current() {
+        TuningProfile profile = load(profilePath(), hostKey()).orElse(DEFAULT);
+
+        return new TuningProfile(
+                Integer.getInteger("tkowalcz.pumpFactor", profile.pumpFactor()),
+                Integer.decode(System.getProperty("tkowalcz.tableSize", Integer.toString(profile.tableSize()))),
+                Boolean.parseBoolean(System.getProperty("tkowalcz.packedParsing", Boolean.toString(profile.packedParsing()))),
+                System.getProperty("tkowalcz.statistics", profile.statistics()));
+    }
+
+    static List<TuningProfile> candidates() {
+        List<TuningProfile> result = new ArrayList<>();
+        for (int pumpFactor : PUMP_FACTORS) {
+            for (int tableSize : TABLE_SIZES) {
+                result.add(new TuningProfile(pumpFactor, tableSize, true, "aos"));
+                // Packed parsing only exists in the triple pumped loop
+                if (pumpFactor == 3) {
+                    result.add(new TuningProfile(pumpFactor, tableSize, false, "aos"));
+                }
+            }
+        }
+        // Statistics stores ignore the other settings, so each of them is measured once
+        for (String statistics : STATISTICS_LAYOUTS.subList(1, STATISTICS_LAYOUTS.size())) {
+            result.add(new TuningProfile(1, DEFAULT.tableSize(), true, statistics));
+        }
+
+        return result;
+    }
+
+    /**
+     * JVM arguments that make an engine started in another process use this profile.
+     */
+    List<String> asSystemProperties() {
+        return List.of(
+                STR."-Dtkowalcz.pumpFactor=\{pumpFactor}",
+                STR."-Dtkowalcz.tableSize=\{tableSize}",
+                STR."-Dtkowalcz.packedParsing=\{packedParsing}",
+                STR."-Dtkowalcz.statistics=\{statistics}");
+    }
+
+    static Path profilePath() {
+        String path = System.getProperty("tkowalcz.tuningProfile");
+        if (path != null) {
+            return Path.of(path);
+        }
+
+        return Path.of(System.getProperty("user.home"), ".tkowalcz", "tuning.properties");
+    }
+
+    /**
+     * Machines are told apart by CPU model and number of cores available to the JVM, e.g.
+     * {@code Intel(R) Xeon(R) Platinum 8375C CPU @ 2.90GHz/8}.
+     */
+    static String hostKey() {
+        String cpuModel = System.getProperty("os.arch");
+        try (Stream<String> lines = Files.lines(Path.of("/proc/cpuinfo"))) {
+            cpuModel = lines
+                    .filter(line -> line.startsWith("model name"))
+                    .map(line -> line.substring(line.indexOf(':') + 1).trim())
+                    .findFirst()
+                    .orElse(cpuModel);
+        }
+        catch (IOException | UncheckedIOException e) {
+            // Not Linux, architecture will have to do
+        }
+
+        return STR."\{cpuModel}/\{Runtime.getRuntime().availableProcessors()}";
+    }
+
+    static Optional<TuningProfile> load(Path profilePath, String hostKey) {
+        if (!Files.isReadable(profilePath)) {
+            return Optional.empty();
+        }
+
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(profilePath)) {
+            properties.load(reader);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        String prefix = propertyPrefix(hostKey);
+        String pumpFactor = properties.getProperty(prefix + "pumpFactor");
+        String tableSize = properties.getProperty(prefix + "tableSize");
+        String packedParsing = properties.getProperty(prefix + "packedParsing");
+        // Profiles written before statistics layouts were tuned measured the default one
+        String statistics = properties.getProperty(prefix + "statistics", DEFAULT.statistics());
+        if (pumpFactor == null || tableSize == null || packedParsing == null) {
+            return Optional.empty();
+        }
+
+        return Optional.of(new TuningProfile(Integer.parseInt(pumpFactor), Integer.parseInt(tableSize), Boolean.parseBoolean(packedParsing), statistics));
+    }
+
+    /**
+     * Saves profile for given host keeping entries of other hosts, so that one file can be shared by the whole fleet.
+     */
+    static void store(Path profilePath, String hostKey, TuningProfile profile) throws IOException {
+        Properties properties = new Properties();
+        if (Files.isReadable(profilePath)) {
+            try (Reader reader = Files.newBufferedReader(profilePath)) {
+                properties.load(reader);
+            }
+        }
+
+        String prefix = propertyPrefix(hostKey);
+        properties.setProperty(prefix + "pumpFactor", Integer.toString(profile.pumpFactor()));
+        properties.setProperty(prefix + "tableSize", Integer.toString(profile.tableSize()));
+        properties.setProperty(prefix + "packedParsing", Boolean.toString(profile.packedParsing()));
+        properties.setProperty(prefix + "statistics", profile.statistics());
+
+        if (profilePath.getParent() != null) {
+            Files.createDirectories(profilePath.getParent());
+        }
+        try (Writer writer = Files.newBufferedWriter(profilePath)) {
+            properties.store(writer, "Written by dev.morling.onebrc.Autotuner");
+        }
+    }
+
+    private static String propertyPrefix(String hostKey) {
+        return hostKey.replaceAll("[^A-Za-z0-9]+", "_") + ".";
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import jdk.incubator.vector.*;
+
+/**
+ * Hash of a city name that was loaded into a vector register, with all bytes past the name zeroed.
+ * <p>
+ * Engines keep selected strategy in a static final field, so JIT sees a constant receiver and inlines the call into
+ * the pumped loops. Strategy is selected with {@link #configured()}, {@code -Dtkowalcz.vectorHash=LANE_SUM|PRIME_MULTIPLY|XOR_FOLD}.
+ */
+public interface VectorHash {
+
+    int hash(Vector<Byte> hashInput);
+
+    /**
+     * Sum of int lanes. Cheapest, but bytes four positions apart can be swapped without changing the hash, e.g.
+     * "id12345" and "id52341" collide.
+     */
+    VectorHash LANE_SUM = new LaneSum();
+
+    /**
+     * Int lanes multiplied by distinct primes before the sum (idea from {@code HashCheck.hash}), so position of the
+     * bytes matters. {@code HashCheck} multiplied short lanes which wraps the result to 16 bits, int lanes do not.
+     * Upper half of the sum is folded into the lower so that small tables also see the high bits.
+     */
+    VectorHash PRIME_MULTIPLY = new PrimeMultiply();
+
+    /**
+     * XOR of long lanes folded to 32 bits (from {@code VectorisedHashMicrobenchmark}). As cheap as lane sum, but
+     * equal bytes eight positions apart cancel each other.
+     */
+    VectorHash XOR_FOLD = new XorFold();
+
+    /**
+     * Strategy set with {@code -Dtkowalcz.vectorHash}, prime multiply by default. Size of the table does not tell how
+     * well a hash fits the keys: lane sum has no collisions on the 413 stations of the challenge data set in a table of
+     * 0x80000 entries and lookup costs ~7.5ns vs ~10.5ns with prime multiply, but in the same table 41k weather
+     * stations or 10k "idN" keys average from 1.5 up to 80 probes per city while prime multiply stays below 0.7, which
+     * makes lookups 2-25x faster. See {@code VectorHashMicrobenchmark} for the numbers. Losing a few nanoseconds on
+     * known keys is cheaper than the worst case, data sets known to be small can still select
+     * {@code -Dtkowalcz.vectorHash=LANE_SUM}.
+     */
+    static VectorHash configured() {
+        return byName(System.getProperty("tkowalcz.vectorHash", "PRIME_MULTIPLY"));
+    }
+
+    static VectorHash byName(String strategy) {
+        return switch (strategy) {
+            case "LANE_SUM" -> LANE_SUM;
+            case "PRIME_MULTIPLY" -> PRIME_MULTIPLY;
+            case "XOR_FOLD" -> XOR_FOLD;
+            default -> throw new IllegalArgumentException(STR."Unknown vector hash strategy: \{strategy}");
+        };
+    }
+
+    final class LaneSum implements VectorHash {
+
+        @Override
+        public int hash(Vector<Byte> hashInput) {
+            return hashInput.reinterpretAsInts().reduceLanes(VectorOperators.ADD);
+        }
+
+        @Override
+        public String toString() {
+            return "LANE_SUM";
+        }
+    }
+
+    final class PrimeMultiply implements VectorHash {
+
+        private static final int[] PRIMES = {
+                0x01000193, 0x9E3779B1, 0x85EBCA77, 0xC2B2AE3D, 0x27D4EB2F, 0x165667B1, 0xD3A2647D, 0xFD7046D9,
+                0xCC9E2D51, 0x1B873593, 0xB55A4F1B, 0x68E31DB5, 0x1B56C4F5, 0x7FEB355B, 0x846CA697, 0xE6546B67
+        };
+
+        // One set of coefficients per vector shape, wider vectors use a prefix of the same primes
+        private static final IntVector HASH_COEFFICIENTS_128 = IntVector.fromArray(IntVector.SPECIES_128, PRIMES, 0);
+        private static final IntVector HASH_COEFFICIENTS_256 = IntVector.fromArray(IntVector.SPECIES_256, PRIMES, 0);
+        private static final IntVector HASH_COEFFICIENTS_512 = IntVector.fromArray(IntVector.SPECIES_512, PRIMES, 0);
+
+        @Override
+        public int hash(Vector<Byte> hashInput) {
+            // Shape of the input is a constant in the engines, so JIT keeps only one of the branches
+            IntVector coefficients = switch (hashInput.bitSize()) {
+                case 128 -> HASH_COEFFICIENTS_128;
+                case 256 -> HASH_COEFFICIENTS_256;
+                default -> HASH_COEFFICIENTS_512;
+            };
+
+            int hash = hashInput.reinterpretAsInts().mul(coefficients).reduceLanes(VectorOperators.ADD);
+            return hash ^ (hash >>> 15);
+        }
+
+        @Override
+        public String toString() {
+            return "PRIME_MULTIPLY";
+        }
+    }
+
+    final class XorFold implements VectorHash {
+
+        @Override
+        public int hash(Vector<Byte> hashInput) {
+            long hash = hashInput.reinterpretAsLongs().reduceLanesToLong(VectorOperators.XOR);
+            return (int) ((hash >> 32) ^ hash);
+        }
+
+        @Override
+        public String toString() {
+            return "XOR_FOLD";
+        }
+    }
+}
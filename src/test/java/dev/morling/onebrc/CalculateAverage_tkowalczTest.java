@@ -18,13 +18,33 @@ package dev.morling.onebrc;
 import jdk.incubator.vector.ByteVector;
 import jdk.incubator.vector.VectorMask;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.foreign.Arena;
 import java.lang.foreign.MemorySegment;
 import java.lang.foreign.ValueLayout;
+import java.nio.channels.Channels;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPOutputStream;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assumptions.assumeThat;
 
 class CalculateAverage_tkowalczTest {
 
@@ -199,20 +219,20 @@ class CalculateAverage_tkowalczTest {
     void shouldFindLastNodeInChain() {
         // Given
         CalculateAverage_tkowalcz.StatisticsAggregate node1 = new CalculateAverage_tkowalcz.StatisticsAggregate(
-                "Antananarivo                    ".getBytes(StandardCharsets.UTF_8),
+                paddedCity("Antananarivo"),
                 12);
 
         CalculateAverage_tkowalcz.StatisticsAggregate node2 = new CalculateAverage_tkowalcz.StatisticsAggregate(
-                "Conakry                         ".getBytes(StandardCharsets.UTF_8),
+                paddedCity("Conakry"),
                 7);
 
         CalculateAverage_tkowalcz.StatisticsAggregate node3 = new CalculateAverage_tkowalcz.StatisticsAggregate(
-                "Napier                          ".getBytes(StandardCharsets.UTF_8),
+                paddedCity("Napier"),
                 6);
 
         node1.attachLast(node2).attachLast(node3);
 
-        ByteVector hashInput = ByteVector.fromArray(ByteVector.SPECIES_256, node3.getCity(), 0);
+        ByteVector hashInput = ByteVector.fromArray(CalculateAverage_tkowalcz.SPECIES, node3.getCity(), 0);
         VectorMask<Byte> hashMask = CalculateAverage_tkowalcz.CITY_LOOKUP_MASK[6];
 
         // When
@@ -226,20 +246,20 @@ class CalculateAverage_tkowalczTest {
     void shouldFindNodeInTheMiddleOfTheChain() {
         // Given
         CalculateAverage_tkowalcz.StatisticsAggregate node1 = new CalculateAverage_tkowalcz.StatisticsAggregate(
-                "Antananarivo                    ".getBytes(StandardCharsets.UTF_8),
+                paddedCity("Antananarivo"),
                 12);
 
         CalculateAverage_tkowalcz.StatisticsAggregate node2 = new CalculateAverage_tkowalcz.StatisticsAggregate(
-                "Conakry                         ".getBytes(StandardCharsets.UTF_8),
+                paddedCity("Conakry"),
                 7);
 
         CalculateAverage_tkowalcz.StatisticsAggregate node3 = new CalculateAverage_tkowalcz.StatisticsAggregate(
-                "Napier                          ".getBytes(StandardCharsets.UTF_8),
+                paddedCity("Napier"),
                 6);
 
         node1.attachLast(node2).attachLast(node3);
 
-        ByteVector hashInput = ByteVector.fromArray(ByteVector.SPECIES_256, node2.getCity(), 0);
+        ByteVector hashInput = ByteVector.fromArray(CalculateAverage_tkowalcz.SPECIES, node2.getCity(), 0);
         VectorMask<Byte> hashMask = CalculateAverage_tkowalcz.CITY_LOOKUP_MASK[7];
 
         // When
@@ -253,22 +273,22 @@ class CalculateAverage_tkowalczTest {
     void shouldCreateNewNodeIfNotFound() {
         // Given
         CalculateAverage_tkowalcz.StatisticsAggregate node1 = new CalculateAverage_tkowalcz.StatisticsAggregate(
-                "Antananarivo                    ".getBytes(StandardCharsets.UTF_8),
+                paddedCity("Antananarivo"),
                 12);
 
         CalculateAverage_tkowalcz.StatisticsAggregate node2 = new CalculateAverage_tkowalcz.StatisticsAggregate(
-                "Conakry                         ".getBytes(StandardCharsets.UTF_8),
+                paddedCity("Conakry"),
                 7);
 
         CalculateAverage_tkowalcz.StatisticsAggregate node3 = new CalculateAverage_tkowalcz.StatisticsAggregate(
-                "Napier                          ".getBytes(StandardCharsets.UTF_8),
+                paddedCity("Napier"),
                 6);
 
         node1.attachLast(node2).attachLast(node3);
 
-        byte[] newCity = "Kansas City                          ".getBytes(StandardCharsets.UTF_8);
+        byte[] newCity = paddedCity("Kansas City");
 
-        ByteVector hashInput = ByteVector.fromArray(ByteVector.SPECIES_256, newCity, 0);
+        ByteVector hashInput = ByteVector.fromArray(CalculateAverage_tkowalcz.SPECIES, newCity, 0);
         VectorMask<Byte> hashMask = CalculateAverage_tkowalcz.CITY_LOOKUP_MASK[11];
 
         // When
@@ -283,4 +303,1109 @@ class CalculateAverage_tkowalczTest {
         assertThat(actual.cityAsString()).isEqualTo("Kansas City");
         assertThat(node3.getNext()).isSameAs(actual);
     }
+
+    @Test
+    void shouldFindLongCityNames() {
+        // Given
+        String longCity1 = "Llanfairpwllgwyngyllgogerychwyrndrobwllllantysiliogogogoch";
+        String longCity2 = "Taumatawhakatangihangakoauauotamateaturipukakapikimaungahoronukupokaiwhenuakitanatahu";
+        MemorySegment inputData = MemorySegment.ofArray(
+                (longCity1 + ";1.0\n" + longCity2 + ";2.0\n" + longCity1 + ";3.0\n").getBytes(StandardCharsets.UTF_8));
+        long offset2 = longCity1.length() + 5;
+        long offset3 = offset2 + longCity2.length() + 5;
+
+        CalculateAverage_tkowalcz.StatisticsAggregate[] dataTable = new CalculateAverage_tkowalcz.StatisticsAggregate[CalculateAverage_tkowalcz.TABLE_SIZE];
+
+        // When
+        CalculateAverage_tkowalcz.StatisticsAggregate actual1 = CalculateAverage_tkowalcz.findLongCity(inputData, dataTable, 0);
+        CalculateAverage_tkowalcz.StatisticsAggregate actual2 = CalculateAverage_tkowalcz.findLongCity(inputData, dataTable, offset2);
+        CalculateAverage_tkowalcz.StatisticsAggregate actual3 = CalculateAverage_tkowalcz.findLongCity(inputData, dataTable, offset3);
+
+        // Then
+        assertThat(actual1.cityAsString()).isEqualTo(longCity1);
+        assertThat(actual2.cityAsString()).isEqualTo(longCity2);
+        assertThat(actual3).isSameAs(actual1);
+    }
+
+    @Test
+    void shouldAggregateLongCityNamesInPumpedLoops() {
+        // Given
+        String longCity = "Ünïcødé station with a name that is much longer than a single vector register can hold.";
+        StringBuilder data = new StringBuilder();
+        for (int i = 0; i < 500; i++) {
+            data.append(longCity).append(i % 2 == 0 ? ";-12.3\n" : ";12.3\n");
+            data.append("Napier;4.5\n");
+            data.append("Petropavlovsk-Kamchatsky-Longer-Name;-5.9\n");
+        }
+        MemorySegment inputData = MemorySegment.ofArray(data.toString().getBytes(StandardCharsets.UTF_8));
+
+        // When
+        Map<String, CalculateAverage_tkowalcz.StatisticsAggregate> results = CalculateAverage_tkowalcz.results(CalculateAverage_tkowalcz.execute(inputData));
+
+        // Then
+        assertThat(results).containsOnlyKeys(longCity, "Napier", "Petropavlovsk-Kamchatsky-Longer-Name");
+        assertThat(results.get(longCity).toString()).isEqualTo("-12.3/0.0/12.3");
+        assertThat(results.get("Napier").toString()).isEqualTo("4.5/4.5/4.5");
+        assertThat(results.get("Petropavlovsk-Kamchatsky-Longer-Name").toString()).isEqualTo("-5.9/-5.9/-5.9");
+    }
+
+    @Test
+    void shouldMergeChainTablesOnRawCityNames() {
+        // Given
+        String longCity = "Ünïcødé station with a name that is much longer than a single vector register can hold.";
+        List<String> parts = new ArrayList<>();
+        StringBuilder all = new StringBuilder();
+        for (int part = 0; part < 3; part++) {
+            StringBuilder rows = new StringBuilder();
+            for (int i = 0; i < 2000; i++) {
+                rows.append(i % 13 == part ? longCity : STR."City\{(i + part * 100) % 300}").append(';').append(i % 2 == 0 ? "-" : "").append(i % 100).append(".5\n");
+            }
+            parts.add(rows.toString());
+            all.append(rows);
+        }
+        Map<String, String> expected = new TreeMap<>();
+        CalculateAverage_tkowalcz.results(CalculateAverage_tkowalcz.execute(segment(all.toString())))
+                .forEach((city, aggregate) -> expected.put(city, aggregate.toString()));
+
+        // When
+        List<CalculateAverage_tkowalcz.StatisticsAggregate[]> dataTables = new ArrayList<>();
+        for (String part : parts) {
+            dataTables.add(CalculateAverage_tkowalcz.execute(segment(part)));
+        }
+        Map<String, String> actual = new TreeMap<>();
+        CalculateAverage_tkowalcz.results(CalculateAverage_tkowalcz.mergeTables(dataTables))
+                .forEach((city, aggregate) -> actual.put(city, aggregate.toString()));
+
+        // Then
+        assertThat(actual).hasSize(301).isEqualTo(expected);
+    }
+
+    @Test
+    void shouldProcessTailUpToTheEndOfDataWithoutNewline() {
+        // Given
+        String localStringData = "Hamburg;12.0\nBulawayo;8.9\nHamburg;-0.4\nPetropavlovsk-Kamchatsky;-15.9\nToliara;34.9";
+        MemorySegment inputData = MemorySegment.ofArray(localStringData.getBytes(StandardCharsets.UTF_8));
+
+        CalculateAverage_tkowalcz.StatisticsAggregate[] dataTable = new CalculateAverage_tkowalcz.StatisticsAggregate[CalculateAverage_tkowalcz.TABLE_SIZE];
+
+        // When
+        CalculateAverage_tkowalcz.executeTail(inputData, dataTable, 0, inputData.byteSize());
+
+        // Then
+        Map<String, String> results = new TreeMap<>();
+        for (CalculateAverage_tkowalcz.StatisticsAggregate aggregate : dataTable) {
+            if (aggregate != null) {
+                results.put(aggregate.cityAsString(), aggregate.toString());
+            }
+        }
+
+        assertThat(results).containsExactly(
+                Map.entry("Bulawayo", "8.9/8.9/8.9"),
+                Map.entry("Hamburg", "-0.4/5.8/12.0"),
+                Map.entry("Petropavlovsk-Kamchatsky", "-15.9/-15.9/-15.9"),
+                Map.entry("Toliara", "34.9/34.9/34.9"));
+    }
+
+    @Test
+    void shouldProbeForCollidingCities() {
+        try (Arena arena = Arena.ofConfined()) {
+            // Given
+            CalculateAverage_tkowalcz2Unsafe.UnsafeRawHashMap hashMap = new CalculateAverage_tkowalcz2Unsafe.UnsafeRawHashMap(arena, 4);
+
+            ByteVector conakry = cityVector("Conakry");
+            ByteVector napier = cityVector("Napier");
+
+            // When
+            int conakryOffset = hashMap.findCity(7, conakry, 7);
+            int napierOffset = hashMap.findCity(7, napier, 6);
+
+            // Then
+            assertThat(conakryOffset).isEqualTo(7 * CalculateAverage_tkowalcz2Unsafe.UnsafeRawHashMap.ENTRY_SIZE);
+            assertThat(napierOffset).isEqualTo(8 * CalculateAverage_tkowalcz2Unsafe.UnsafeRawHashMap.ENTRY_SIZE);
+            assertThat(hashMap.findCity(7, napier, 6)).isEqualTo(napierOffset);
+            assertThat(hashMap.getProbeHistogram()).containsExactly(1, 1, 0, 0, 0);
+
+            hashMap.addMeasurement(conakryOffset, 323);
+            hashMap.addMeasurement(napierOffset, -146);
+            assertThat(hashMap.asStatistics()).extracting(Object::toString).containsExactly("32.3/32.3/32.3", "-14.6/-14.6/-14.6");
+        }
+    }
+
+    @Test
+    void shouldFailWhenProbeLengthIsExceeded() {
+        try (Arena arena = Arena.ofConfined()) {
+            // Given
+            CalculateAverage_tkowalcz2Unsafe.UnsafeRawHashMap hashMap = new CalculateAverage_tkowalcz2Unsafe.UnsafeRawHashMap(arena, 1);
+            hashMap.findCity(0, cityVector("Cairo"), 5);
+            hashMap.findCity(0, cityVector("Hanoi"), 5);
+
+            // When / Then
+            assertThatThrownBy(() -> hashMap.findCity(0, cityVector("Lyon"), 4))
+                    .isInstanceOf(IllegalStateException.class)
+                    .hasMessageContaining("Lyon");
+        }
+    }
+
+    @Test
+    void shouldMergeWorkerTablesOnRawCityNames() {
+        // Given
+        String longCity = "Llanfairpwllgwyngyllgogerychwyrndrobwllllantysiliogogogoch";
+        List<String> rows = List.of(
+                "Napier;4.5\nNapier;-1.5\n" + longCity + ";10.0\n",
+                "Napier;7.5\nConakry;31.2\n",
+                longCity + ";-20.0\nConakry;29.8\n",
+                "Napier;0.0\n");
+
+        // Tables are merged on pool threads
+        try (Arena arena = Arena.ofShared()) {
+            List<CalculateAverage_tkowalcz2Unsafe.UnsafeRawHashMap> hashMaps = new ArrayList<>();
+            for (String workerRows : rows) {
+                CalculateAverage_tkowalcz2Unsafe.WorkerThread worker = new CalculateAverage_tkowalcz2Unsafe.WorkerThread(null, arena, 0);
+                worker.execute(arena, MemorySegment.ofArray(workerRows.getBytes(StandardCharsets.UTF_8)));
+                hashMaps.add(worker.getHashMap());
+            }
+
+            // When
+            CalculateAverage_tkowalcz2Unsafe.UnsafeRawHashMap merged = CalculateAverage_tkowalcz2Unsafe.mergeTables(hashMaps);
+
+            // Then
+            Map<String, String> actual = new TreeMap<>();
+            merged.asStatistics().forEach(aggregate -> actual.put(aggregate.getCityName(), aggregate.toString()));
+            assertThat(actual).containsExactlyEntriesOf(new TreeMap<>(Map.of(
+                    "Conakry", "29.8/30.5/31.2",
+                    longCity, "-20.0/-5.0/10.0",
+                    "Napier", "-1.5/2.6/7.5")));
+        }
+    }
+
+    @Test
+    void shouldMoveCitiesToDenseTableAndBackWhenNewCityShowsUp() {
+        // Given
+        String longCity = "Llanfairpwllgwyngyllgogerychwyrndrobwllllantysiliogogogoch";
+
+        try (Arena arena = Arena.ofConfined()) {
+            CalculateAverage_tkowalcz2Unsafe.WorkerThread worker = new CalculateAverage_tkowalcz2Unsafe.WorkerThread(null, arena, 0);
+            CalculateAverage_tkowalcz2Unsafe.UnsafeRawHashMap hashMap = worker.getHashMap();
+            worker.execute(arena, segment("Napier;4.5\nConakry;31.2\n" + longCity + ";10.0\n"));
+
+            // When
+            hashMap.compactOrExpand(CalculateAverage_tkowalcz2Unsafe.UnsafeRawHashMap.COMPACT_AFTER_BYTES);
+            worker.execute(arena, segment("Napier;-1.5\nConakry;29.8\n" + longCity + ";-20.0\n"));
+
+            // Then
+            assertThat(hashMap.tableOffset).isEqualTo(CalculateAverage_tkowalcz2Unsafe.UnsafeRawHashMap.DENSE_TABLE_OFFSET);
+
+            // When
+            List<CalculateAverage_tkowalcz2Unsafe.StatisticsAggregate> statistics = worker.execute(arena, segment("Lyon;2.1\nNapier;7.5\n"));
+
+            // Then
+            assertThat(hashMap.tableOffset).isZero();
+
+            Map<String, String> actual = new TreeMap<>();
+            statistics.forEach(aggregate -> actual.put(aggregate.getCityName(), aggregate.toString()));
+            assertThat(actual).containsExactlyEntriesOf(new TreeMap<>(Map.of(
+                    "Conakry", "29.8/30.5/31.2",
+                    longCity, "-20.0/-5.0/10.0",
+                    "Lyon", "2.1/2.1/2.1",
+                    "Napier", "-1.5/3.5/7.5")));
+        }
+    }
+
+    @Test
+    void shouldAggregateSameWithSplitLayout() {
+        // Given
+        String longCity = "Llanfairpwllgwyngyllgogerychwyrndrobwllllantysiliogogogoch";
+        StringBuilder rows = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            rows.append(i % 97 == 0 ? longCity : STR."City\{i % 300}").append(';').append(i % 2 == 0 ? "-" : "").append(i % 100).append(".5\n");
+        }
+        MemorySegment inputData = segment(rows.toString());
+
+        try (Arena arena = Arena.ofConfined()) {
+            CalculateAverage_tkowalcz2Unsafe.WorkerThread worker = new CalculateAverage_tkowalcz2Unsafe.WorkerThread(null, arena, 0);
+            List<String> expected = worker.execute(arena, inputData).stream().map(aggregate -> aggregate.getCityName() + "=" + aggregate).sorted().toList();
+
+            // When
+            CalculateAverage_tkowalcz2Unsafe.SplitRawHashMap splitMap = new CalculateAverage_tkowalcz2Unsafe.SplitRawHashMap(arena);
+            long tail = CalculateAverage_tkowalcz2Unsafe.WorkerThread.executeSinglePumped(inputData, splitMap, 0, inputData.byteSize());
+            CalculateAverage_tkowalcz2Unsafe.WorkerThread.executeTail(inputData, splitMap, tail, inputData.byteSize());
+
+            // Then
+            assertThat(splitMap.cityCount()).isEqualTo(301);
+            assertThat(splitMap.asStatistics().stream().map(aggregate -> aggregate.getCityName() + "=" + aggregate).sorted().toList())
+                    .containsExactlyElementsOf(expected);
+        }
+    }
+
+    @Test
+    void shouldInstallCityWithZeroHashInSplitLayout() {
+        // Given
+        // Empty slots of the split map hold 0, which is also the tag of these names under the respective hash
+        String zeroHashCity = switch (CalculateAverage_tkowalcz2Unsafe.SplitRawHashMap.HASH.toString()) {
+            case "LANE_SUM" -> "UUUUUUUUVUUU";
+            case "PRIME_MULTIPLY" -> "aaaachddvfwn";
+            case "XOR_FOLD" -> "abcdefghabcdefgh";
+            default -> throw new IllegalStateException(CalculateAverage_tkowalcz2Unsafe.SplitRawHashMap.HASH.toString());
+        };
+        assertThat(CalculateAverage_tkowalcz2Unsafe.SplitRawHashMap.HASH.hash(cityVector(zeroHashCity))).isZero();
+
+        StringBuilder rows = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            rows.append(i % 2 == 0 ? zeroHashCity : "Hamburg").append(';').append(i % 2 == 0 ? "-" : "").append(i % 100).append(".5\n");
+        }
+        MemorySegment inputData = segment(rows.toString());
+
+        try (Arena arena = Arena.ofConfined()) {
+            CalculateAverage_tkowalcz2Unsafe.SplitRawHashMap splitMap = new CalculateAverage_tkowalcz2Unsafe.SplitRawHashMap(
+                    arena, new StatisticsStore(CalculateAverage_tkowalcz2Unsafe.SplitRawHashMap.MAX_CITIES));
+
+            // When
+            long tail = CalculateAverage_tkowalcz2Unsafe.WorkerThread.executeSinglePumped(inputData, splitMap, 0, inputData.byteSize());
+            CalculateAverage_tkowalcz2Unsafe.WorkerThread.executeTail(inputData, splitMap, tail, inputData.byteSize());
+
+            // Then
+            Map<String, String> actual = new TreeMap<>();
+            splitMap.getStore().asResults(splitMap.cityNames()).forEach((city, aggregate) -> actual.put(city, aggregate.toString()));
+            assertThat(actual).containsExactlyEntriesOf(new TreeMap<>(Map.of(
+                    "Hamburg", "1.5/50.5/99.5",
+                    zeroHashCity, "-98.5/-49.5/-0.5")));
+        }
+    }
+
+    @Test
+    void shouldMergeStatisticsStoresOfMapsWithDifferentIds() {
+        // Given
+        String longCity = "Llanfairpwllgwyngyllgogerychwyrndrobwllllantysiliogogogoch";
+        MemorySegment firstInput = segment(STR."Conakry;31.2\n\{longCity};-20.0\nLyon;2.1\nConakry;29.8\n");
+        MemorySegment secondInput = segment(STR."Napier;-1.5\n\{longCity};10.0\nConakry;30.0\n");
+
+        try (Arena arena = Arena.ofConfined()) {
+            CalculateAverage_tkowalcz2Unsafe.SplitRawHashMap first = new CalculateAverage_tkowalcz2Unsafe.SplitRawHashMap(
+                    arena, new StatisticsStore(CalculateAverage_tkowalcz2Unsafe.SplitRawHashMap.MAX_CITIES));
+            CalculateAverage_tkowalcz2Unsafe.SplitRawHashMap second = new CalculateAverage_tkowalcz2Unsafe.SplitRawHashMap(
+                    arena, new StatisticsStore(CalculateAverage_tkowalcz2Unsafe.SplitRawHashMap.MAX_CITIES));
+            CalculateAverage_tkowalcz2Unsafe.WorkerThread.executeTail(firstInput, first, 0, firstInput.byteSize());
+            CalculateAverage_tkowalcz2Unsafe.WorkerThread.executeTail(secondInput, second, 0, secondInput.byteSize());
+
+            // When
+            first.mergeFrom(second);
+
+            // Then
+            assertThat(first.cityNames()).containsExactly("Conakry", longCity, "Lyon", "Napier");
+
+            Map<String, String> actual = new TreeMap<>();
+            first.getStore().asResults(first.cityNames()).forEach((city, aggregate) -> actual.put(city, aggregate.toString()));
+            assertThat(actual).containsExactlyEntriesOf(new TreeMap<>(Map.of(
+                    "Conakry", "29.8/30.3/31.2",
+                    longCity, "-20.0/-5.0/10.0",
+                    "Lyon", "2.1/2.1/2.1",
+                    "Napier", "-1.5/-1.5/-1.5")));
+        }
+    }
+
+    @Test
+    void shouldDrainPartiallyFilledSampleBuffers() {
+        // Given
+        SampleBuffers buffers = new SampleBuffers(2, 8);
+        StatisticsStore store = new StatisticsStore(2);
+        buffers.clear(0);
+        buffers.clear(1);
+
+        // Hot station spills its int sum lanes (every 8 * 0x10000 samples) and ends with 3 buffered samples
+        for (int i = 0; i < 1_000_003; i++) {
+            buffers.add(0, i == 500_000 ? -999 : 999);
+        }
+        buffers.add(1, 15);
+        buffers.add(1, -7);
+
+        // When
+        buffers.drainInto(store, 2);
+        buffers.drainInto(store, 2);
+
+        // Then
+        assertThat(store.count(0)).isEqualTo(1_000_003);
+        assertThat(store.sum(0)).isEqualTo(999L * 1_000_002 - 999);
+        assertThat(store.min(0)).isEqualTo(-999);
+        assertThat(store.max(0)).isEqualTo(999);
+
+        assertThat(store.count(1)).isEqualTo(2);
+        assertThat(store.sum(1)).isEqualTo(8);
+        assertThat(store.min(1)).isEqualTo(-7);
+        assertThat(store.max(1)).isEqualTo(15);
+    }
+
+    @Test
+    void shouldAddConflictingRowsOfBatchLikeOneAtATime() {
+        // Given
+        StatisticsStore expected = new StatisticsStore(40);
+        StatisticsStore actual = new StatisticsStore(40);
+        StatisticsBatch batch = new StatisticsBatch(actual);
+
+        // Few stations so that almost every batch has some of them more than once, enough rows to flush int sums
+        Random random = new Random(42);
+        for (int row = 0; row < 2_100_007; row++) {
+            int id = row % 1000 == 0 ? 37 : random.nextInt(3);
+            int value = random.nextInt(1999) - 999;
+            expected.add(id, value);
+            batch.add(id, value);
+        }
+
+        // When
+        batch.flush();
+
+        // Then
+        for (int id : new int[]{ 0, 1, 2, 37 }) {
+            assertThat(actual.count(id)).as("count of %d", id).isEqualTo(expected.count(id));
+            assertThat(actual.sum(id)).as("sum of %d", id).isEqualTo(expected.sum(id));
+            assertThat(actual.min(id)).as("min of %d", id).isEqualTo(expected.min(id));
+            assertThat(actual.max(id)).as("max of %d", id).isEqualTo(expected.max(id));
+        }
+        assertThat(actual.count(3)).isZero();
+    }
+
+    @Test
+    void shouldNotOverflowSumOfHotStation() {
+        // Given
+        byte[] rows = "Hot;99.9\n".repeat(2_500_000).getBytes(StandardCharsets.UTF_8);
+
+        try (Arena arena = Arena.ofConfined()) {
+            CalculateAverage_tkowalcz2Unsafe.WorkerThread worker = new CalculateAverage_tkowalcz2Unsafe.WorkerThread(null, arena, 0);
+
+            // When
+            List<CalculateAverage_tkowalcz2Unsafe.StatisticsAggregate> actual = worker.execute(arena, MemorySegment.ofArray(rows));
+
+            // Then
+            assertThat(actual).singleElement().hasToString("99.9/99.9/99.9");
+        }
+    }
+
+    @Test
+    void shouldNotOverflowSumOfHotStationInSplitRecords() {
+        // Given
+        MemorySegment inputData = MemorySegment.ofArray("Hot;99.9\n".repeat(2_500_000).getBytes(StandardCharsets.UTF_8));
+
+        try (Arena arena = Arena.ofConfined()) {
+            CalculateAverage_tkowalcz2Unsafe.SplitRawHashMap splitMap = new CalculateAverage_tkowalcz2Unsafe.SplitRawHashMap(arena);
+
+            // When
+            long tail = CalculateAverage_tkowalcz2Unsafe.WorkerThread.executeSinglePumped(inputData, splitMap, 0, inputData.byteSize());
+            CalculateAverage_tkowalcz2Unsafe.WorkerThread.executeTail(inputData, splitMap, tail, inputData.byteSize());
+
+            // Then
+            assertThat(splitMap.asStatistics()).singleElement().hasToString("99.9/99.9/99.9");
+        }
+    }
+
+    @Test
+    void shouldNotOverflowSumWhenMergingWorkerTables() {
+        // Given
+        byte[] rows = "Hot;-99.9\n".repeat(1_500_000).getBytes(StandardCharsets.UTF_8);
+
+        try (Arena arena = Arena.ofShared()) {
+            List<CalculateAverage_tkowalcz2Unsafe.UnsafeRawHashMap> hashMaps = new ArrayList<>();
+            for (int i = 0; i < 2; i++) {
+                CalculateAverage_tkowalcz2Unsafe.WorkerThread worker = new CalculateAverage_tkowalcz2Unsafe.WorkerThread(null, arena, 0);
+                worker.execute(arena, MemorySegment.ofArray(rows));
+                hashMaps.add(worker.getHashMap());
+            }
+
+            // When
+            CalculateAverage_tkowalcz2Unsafe.UnsafeRawHashMap merged = CalculateAverage_tkowalcz2Unsafe.mergeTables(hashMaps);
+
+            // Then
+            assertThat(merged.asStatistics()).singleElement().hasToString("-99.9/-99.9/-99.9");
+        }
+    }
+
+    @Test
+    void shouldStartFromSidecarIndexWithoutInsertingCities(@TempDir Path directory) throws IOException {
+        // Given
+        String longCity = "Llanfairpwllgwyngyllgogerychwyrndrobwllllantysiliogogogoch";
+        Path file = directory.resolve("measurements.txt");
+        StringBuilder rows = new StringBuilder();
+        for (int i = 0; rows.length() < 3 * ChunkScheduler.SLICE_SIZE + 123; i++) {
+            rows.append(i % 97 == 0 ? longCity : STR."City\{i % 50}").append(';').append(i % 100).append(".5\n");
+        }
+        Files.writeString(file, rows);
+
+        try (Arena arena = Arena.ofConfined()) {
+            MemorySegment inputData = MemoryMapping.map(file.toString(), arena);
+            CalculateAverage_tkowalcz2Unsafe.WorkerThread firstRun = new CalculateAverage_tkowalcz2Unsafe.WorkerThread(null, arena, 0);
+            List<String> expected = firstRun.execute(arena, inputData).stream().map(aggregate -> aggregate.getCityName() + "=" + aggregate).sorted().toList();
+            InputIndex.write(file, inputData, firstRun.getHashMap());
+
+            // When
+            InputIndex index = InputIndex.load(file);
+            CalculateAverage_tkowalcz2Unsafe.WorkerThread nextRun = new CalculateAverage_tkowalcz2Unsafe.WorkerThread(null, arena, 0);
+            CalculateAverage_tkowalcz2Unsafe.UnsafeRawHashMap hashMap = nextRun.getHashMap();
+            hashMap.preload(index);
+            List<Integer> preloadedEntries = List.copyOf(hashMap.cityIndex);
+            List<String> actual = nextRun.execute(arena, inputData).stream().map(aggregate -> aggregate.getCityName() + "=" + aggregate).sorted().toList();
+
+            // Then
+            assertThat(index.cities()).hasSize(51);
+            assertThat(hashMap.tableOffset).isEqualTo(CalculateAverage_tkowalcz2Unsafe.UnsafeRawHashMap.DENSE_TABLE_OFFSET);
+            assertThat(hashMap.cityIndex).containsExactlyElementsOf(preloadedEntries);
+            assertThat(actual).containsExactlyElementsOf(expected);
+
+            // Row starts come from the index but slices are the same
+            assertThat(slices(new ChunkScheduler(inputData, 1, 2 * ChunkScheduler.SLICE_SIZE, index.rowStarts())))
+                    .containsExactlyElementsOf(slices(new ChunkScheduler(inputData, 1, 2 * ChunkScheduler.SLICE_SIZE)));
+        }
+
+        // When
+        Files.writeString(file, "Napier;4.5\n", StandardOpenOption.APPEND);
+
+        // Then
+        assertThat(InputIndex.load(file)).isNull();
+    }
+
+    private static List<Long> slices(ChunkScheduler scheduler) {
+        List<Long> ends = new ArrayList<>();
+        MemorySegment slice;
+        while ((slice = scheduler.nextSlice(0)) != null) {
+            ends.add(slice.address() + slice.byteSize());
+        }
+
+        return ends;
+    }
+
+    @Test
+    void shouldWriteSidecarIndexFromSplitMap(@TempDir Path directory) throws IOException {
+        // Given
+        Path file = directory.resolve("measurements.txt");
+        StringBuilder rows = new StringBuilder();
+        for (int i = 0; rows.length() < ChunkScheduler.SLICE_SIZE + 123; i++) {
+            rows.append(STR."City\{i * 7 % 50}").append(';').append(i % 100).append(".5\n");
+        }
+        Files.writeString(file, rows);
+
+        try (Arena arena = Arena.ofConfined()) {
+            MemorySegment inputData = MemoryMapping.map(file.toString(), arena);
+            CalculateAverage_tkowalcz2Unsafe.SplitRawHashMap firstRun = new CalculateAverage_tkowalcz2Unsafe.SplitRawHashMap(arena, new StatisticsStore(CalculateAverage_tkowalcz2Unsafe.SplitRawHashMap.MAX_CITIES));
+            long tail = CalculateAverage_tkowalcz2Unsafe.WorkerThread.executeSinglePumped(inputData, firstRun, 0, inputData.byteSize());
+            CalculateAverage_tkowalcz2Unsafe.WorkerThread.executeTail(inputData, firstRun, tail, inputData.byteSize());
+
+            // When
+            InputIndex.write(file, inputData, firstRun);
+            InputIndex index = InputIndex.load(file);
+            CalculateAverage_tkowalcz2Unsafe.SplitRawHashMap nextRun = new CalculateAverage_tkowalcz2Unsafe.SplitRawHashMap(arena, new StatisticsStore(CalculateAverage_tkowalcz2Unsafe.SplitRawHashMap.MAX_CITIES));
+            nextRun.preload(index);
+
+            // Then
+            assertThat(index.cities()).hasSize(50);
+            assertThat(index.denseSeed()).isZero();
+            assertThat(nextRun.cityNames()).containsExactlyElementsOf(firstRun.cityNames());
+        }
+    }
+
+    @Test
+    void shouldKeepTuningProfilePerHost(@TempDir Path directory) throws IOException {
+        // Given
+        Path profilePath = directory.resolve("tuning.properties");
+        TuningProfile avx2Host = new TuningProfile(3, 0x80000, true, "aos");
+        TuningProfile avx512Host = new TuningProfile(1, 0x400000, false, "batched");
+
+        // When
+        TuningProfile.store(profilePath, "AMD EPYC 7502P 32-Core Processor/8", avx2Host);
+        TuningProfile.store(profilePath, "Intel(R) Xeon(R) Platinum 8375C CPU @ 2.90GHz/8", avx512Host);
+
+        // Then
+        assertThat(TuningProfile.load(profilePath, "AMD EPYC 7502P 32-Core Processor/8")).contains(avx2Host);
+        assertThat(TuningProfile.load(profilePath, "Intel(R) Xeon(R) Platinum 8375C CPU @ 2.90GHz/8")).contains(avx512Host);
+        assertThat(TuningProfile.load(profilePath, "AMD EPYC 7502P 32-Core Processor/16")).isEmpty();
+        assertThat(TuningProfile.load(directory.resolve("missing.properties"), "AMD EPYC 7502P 32-Core Processor/8")).isEmpty();
+    }
+
+    @Test
+    void shouldRejectUnsupportedTuning() {
+        assertThatThrownBy(() -> new TuningProfile(4, 0x80000, true, "aos")).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> new TuningProfile(3, 0x80001, true, "aos")).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> new TuningProfile(3, 0x80000, true, "columns")).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void shouldHandOutEveryRowOnceWhenIdleWorkerSteals() {
+        // Given
+        StringBuilder rows = new StringBuilder();
+        for (int i = 0; rows.length() < 4 * ChunkScheduler.SLICE_SIZE; i++) {
+            rows.append("City").append(i % 1000).append(';').append(i % 100).append(".5\n");
+        }
+        MemorySegment inputData = MemorySegment.ofArray(rows.toString().getBytes(StandardCharsets.UTF_8));
+
+        // Single chunk for the whole input, so second worker can only get work by stealing
+        ChunkScheduler scheduler = new ChunkScheduler(inputData, 2, inputData.byteSize());
+
+        // When
+        List<MemorySegment> slices = new ArrayList<>();
+        slices.add(scheduler.nextSlice(0));
+        MemorySegment stolen = scheduler.nextSlice(1);
+        slices.add(stolen);
+        for (int worker = 0; slices.getLast() != null; worker ^= 1) {
+            slices.add(scheduler.nextSlice(worker));
+        }
+        slices.removeLast();
+
+        // Then
+        assertThat(inputData.segmentOffset(stolen)).isGreaterThan(ChunkScheduler.SLICE_SIZE);
+
+        slices.sort(Comparator.comparingLong(inputData::segmentOffset));
+        long expectedOffset = 0;
+        for (MemorySegment slice : slices) {
+            assertThat(inputData.segmentOffset(slice)).isEqualTo(expectedOffset);
+            assertThat(slice.get(ValueLayout.JAVA_BYTE, slice.byteSize() - 1)).isEqualTo((byte) '\n');
+            expectedOffset += slice.byteSize();
+        }
+        assertThat(expectedOffset).isEqualTo(inputData.byteSize());
+    }
+
+    @Test
+    void shouldLimitWorkersToCgroupQuota(@TempDir Path cgroupRoot) throws IOException {
+        assertThat(ChunkScheduler.cgroupCpuLimit(cgroupRoot)).isEqualTo(Integer.MAX_VALUE);
+
+        Files.writeString(cgroupRoot.resolve("cpu.max"), "max 100000\n");
+        assertThat(ChunkScheduler.cgroupCpuLimit(cgroupRoot)).isEqualTo(Integer.MAX_VALUE);
+
+        Files.writeString(cgroupRoot.resolve("cpu.max"), "250000 100000\n");
+        assertThat(ChunkScheduler.cgroupCpuLimit(cgroupRoot)).isEqualTo(3);
+
+        Files.delete(cgroupRoot.resolve("cpu.max"));
+        Files.createDirectory(cgroupRoot.resolve("cpu"));
+        Files.writeString(cgroupRoot.resolve("cpu").resolve("cpu.cfs_quota_us"), "400000\n");
+        Files.writeString(cgroupRoot.resolve("cpu").resolve("cpu.cfs_period_us"), "100000\n");
+        assertThat(ChunkScheduler.cgroupCpuLimit(cgroupRoot)).isEqualTo(4);
+    }
+
+    @Test
+    void shouldMapSameBytesNativelyAsFileChannel(@TempDir Path directory) throws IOException {
+        // Given
+        Path file = directory.resolve("measurements.txt");
+        StringBuilder rows = new StringBuilder();
+        for (int i = 0; rows.length() < 3 * MemoryMapping.pageSize(); i++) {
+            rows.append("City").append(i % 100).append(';').append(i % 100).append(".5\n");
+        }
+        Files.writeString(file, rows);
+
+        // Offset is not page aligned
+        long offset = MemoryMapping.pageSize() + 13;
+        long size = MemoryMapping.pageSize();
+
+        try (Arena arena = Arena.ofConfined()) {
+            // When
+            MemorySegment channelMapping = MemoryMapping.mapWithChannel(file, offset, size, arena);
+            MemorySegment nativeMapping = MemoryMapping.mapNative(
+                    file, offset, size, arena, MemoryMapping.hints("populate,SEQUENTIAL,WillNeed,HUGEPAGE"));
+            MemorySegment wholeFile = MemoryMapping.mapNative(file, 0, -1, arena, MemoryMapping.hints(""));
+
+            // Then
+            assertThat(nativeMapping.byteSize()).isEqualTo(size);
+            assertThat(nativeMapping.mismatch(channelMapping)).isEqualTo(-1);
+            assertThat(wholeFile.toArray(ValueLayout.JAVA_BYTE)).isEqualTo(Files.readAllBytes(file));
+        }
+    }
+
+    @Test
+    void shouldStitchRowsCrossingMappedWindows(@TempDir Path directory) throws IOException {
+        // Given
+        Path file = directory.resolve("measurements.txt");
+        StringBuilder rows = new StringBuilder();
+        for (int i = 0; rows.length() < 10 * MappedWindows.ROW_MARGIN + 123; i++) {
+            rows.append("City").append(i % 1000).append(';').append(i % 100).append(".5\n");
+        }
+        Files.writeString(file, rows);
+
+        MappedWindows windows = new MappedWindows(file.toString(), MappedWindows.ROW_MARGIN, false);
+
+        // When
+        StringBuilder actual = new StringBuilder();
+        while (true) {
+            try (MappedWindows.Window window = windows.next(0)) {
+                if (window == null) {
+                    break;
+                }
+
+                MemorySegment windowRows = window.rows();
+                assertThat(windowRows.get(ValueLayout.JAVA_BYTE, windowRows.byteSize() - 1)).isEqualTo((byte) '\n');
+                actual.append(new String(windowRows.toArray(ValueLayout.JAVA_BYTE), StandardCharsets.UTF_8));
+            }
+        }
+
+        // Then
+        assertThat(actual.toString()).isEqualTo(rows.toString());
+    }
+
+    @Test
+    void shouldKeepFailureOfWorkerForMain() throws InterruptedException {
+        // Given
+        UncheckedIOException readFailure = new UncheckedIOException(new IOException("No gzip member at 0"));
+        BlockReader failingReader = new BlockReader() {
+            @Override
+            public Block next(int worker) {
+                throw readFailure;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+
+        try (Arena arena = Arena.ofShared()) {
+            CalculateAverage_tkowalcz2Unsafe.WorkerThread worker = new CalculateAverage_tkowalcz2Unsafe.WorkerThread(failingReader, 0, arena, System.nanoTime());
+
+            // When
+            worker.start();
+            worker.join();
+
+            // Then
+            assertThat(worker.getFailure()).isSameAs(readFailure);
+        }
+    }
+
+    @Test
+    void shouldEndWindowAtEndOfFileWithoutNewline(@TempDir Path directory) throws IOException {
+        // Given
+        Path file = directory.resolve("measurements.txt");
+        StringBuilder rows = new StringBuilder();
+        for (int i = 0; rows.length() < MappedWindows.ROW_MARGIN - 5; i++) {
+            rows.append("City").append(i % 1000).append(';').append(i % 100).append(".5\n");
+        }
+        // Last row crosses the end of the first window and the file has no trailing newline
+        rows.append("Hamburg;12.3");
+        Files.writeString(file, rows);
+
+        MappedWindows windows = new MappedWindows(file.toString(), MappedWindows.ROW_MARGIN, false);
+
+        // When
+        StringBuilder actual = new StringBuilder();
+        while (true) {
+            try (MappedWindows.Window window = windows.next(0)) {
+                if (window == null) {
+                    break;
+                }
+
+                actual.append(new String(window.rows().toArray(ValueLayout.JAVA_BYTE), StandardCharsets.UTF_8));
+            }
+        }
+
+        // Then
+        assertThat(actual.toString()).isEqualTo(rows.toString());
+    }
+
+    @Test
+    void shouldReadEveryRowOnceWithPread(@TempDir Path directory) throws IOException {
+        // Given
+        Path file = directory.resolve("measurements.txt");
+        List<String> rows = new ArrayList<>();
+        for (int length = 0; length < 10 * PreadReader.ALIGNMENT + 123; length += rows.getLast().length() + 1) {
+            rows.add(STR."City\{rows.size() % 1000};\{rows.size() % 100}.5");
+        }
+        Files.writeString(file, String.join("\n", rows) + "\n");
+
+        // When
+        List<String> actual = new ArrayList<>();
+        try (PreadReader reader = new PreadReader(file, 2, PreadReader.ALIGNMENT, false)) {
+            for (int worker = 0; worker < 2; worker++) {
+                while (true) {
+                    try (BlockReader.Block block = reader.next(worker)) {
+                        if (block == null) {
+                            break;
+                        }
+
+                        String blockRows = new String(block.rows().toArray(ValueLayout.JAVA_BYTE), StandardCharsets.UTF_8);
+                        assertThat(blockRows).endsWith("\n");
+                        actual.addAll(Arrays.asList(blockRows.split("\n")));
+                    }
+                }
+            }
+        }
+
+        // Then
+        assertThat(actual).containsExactlyInAnyOrderElementsOf(rows);
+    }
+
+    @Test
+    void shouldReleaseWorkerWhenReadRowIsLongerThanMargin(@TempDir Path directory) throws IOException {
+        // Given
+        Path file = directory.resolve("measurements.txt");
+        byte[] input = new byte[20_000];
+        Arrays.fill(input, (byte) 'a');
+        Files.write(file, input);
+
+        try (PreadReader reader = new PreadReader(file, 1, PreadReader.ALIGNMENT, false)) {
+            // When, Then
+            assertThatThrownBy(() -> reader.next(0))
+                    .isInstanceOf(IllegalStateException.class)
+                    .hasRootCauseInstanceOf(IllegalStateException.class);
+        }
+    }
+
+    @Test
+    void shouldReadEveryRowOnceWithIoUring(@TempDir Path directory) throws IOException {
+        assumeThat(IoUringReader.unavailableReason()).isNull();
+
+        // Given
+        Path file = directory.resolve("measurements.txt");
+        List<String> rows = new ArrayList<>();
+        for (int length = 0; length < 10 * PreadReader.ALIGNMENT + 123; length += rows.getLast().length() + 1) {
+            rows.add(STR."City\{rows.size() % 1000};\{rows.size() % 100}.5");
+        }
+        Files.writeString(file, String.join("\n", rows) + "\n");
+
+        // When
+        List<String> actual = new ArrayList<>();
+        try (IoUringReader reader = new IoUringReader(file, 3, PreadReader.ALIGNMENT, false)) {
+            while (true) {
+                try (BlockReader.Block block = reader.next(0)) {
+                    if (block == null) {
+                        break;
+                    }
+
+                    String blockRows = new String(block.rows().toArray(ValueLayout.JAVA_BYTE), StandardCharsets.UTF_8);
+                    assertThat(blockRows).endsWith("\n");
+                    actual.addAll(Arrays.asList(blockRows.split("\n")));
+                }
+            }
+        }
+
+        // Then
+        assertThat(actual).containsExactlyInAnyOrderElementsOf(rows);
+    }
+
+    @Test
+    void shouldReleaseWorkersWhenRowReadWithIoUringIsLongerThanMargin(@TempDir Path directory) throws IOException {
+        assumeThat(IoUringReader.unavailableReason()).isNull();
+
+        // Given
+        Path file = directory.resolve("measurements.txt");
+        byte[] input = new byte[20_000];
+        Arrays.fill(input, (byte) 'a');
+        Files.write(file, input);
+
+        try (IoUringReader reader = new IoUringReader(file, 3, PreadReader.ALIGNMENT, false)) {
+            // When, Then
+            assertThatThrownBy(() -> reader.next(0))
+                    .isInstanceOf(IllegalStateException.class)
+                    .hasRootCauseInstanceOf(IllegalStateException.class);
+            assertThatThrownBy(() -> reader.next(1)).isInstanceOf(IllegalStateException.class);
+        }
+    }
+
+    @Test
+    void shouldCarryPartialRowsAcrossStreamedBlocks() throws IOException {
+        // Given
+        List<String> rows = new ArrayList<>();
+        for (int length = 0; length < 10 * MappedWindows.ROW_MARGIN + 123; length += rows.getLast().length() + 1) {
+            rows.add(STR."City\{rows.size() % 1000};\{rows.size() % 100}.5");
+        }
+        // Last row has no newline
+        byte[] input = String.join("\n", rows).getBytes(StandardCharsets.UTF_8);
+
+        // When
+        List<String> actual = new ArrayList<>();
+        try (StreamReader reader = new StreamReader(Channels.newChannel(new ByteArrayInputStream(input)), 2, MappedWindows.ROW_MARGIN)) {
+            while (true) {
+                try (BlockReader.Block block = reader.next(0)) {
+                    if (block == null) {
+                        break;
+                    }
+
+                    String blockRows = new String(block.rows().toArray(ValueLayout.JAVA_BYTE), StandardCharsets.UTF_8);
+                    assertThat(blockRows).endsWith("\n");
+                    actual.addAll(Arrays.asList(blockRows.split("\n")));
+                }
+            }
+        }
+
+        // Then
+        assertThat(actual).containsExactlyElementsOf(rows);
+    }
+
+    @Test
+    void shouldReleaseWorkersWhenStreamedRowIsLongerThanBlock() throws IOException {
+        // Given
+        byte[] input = new byte[20_000];
+        Arrays.fill(input, (byte) 'a');
+
+        try (StreamReader reader = new StreamReader(Channels.newChannel(new ByteArrayInputStream(input)), 2, MappedWindows.ROW_MARGIN)) {
+            // When, Then
+            assertThatThrownBy(() -> reader.next(0))
+                    .isInstanceOf(IllegalStateException.class)
+                    .hasRootCauseMessage(STR."Row is longer than block size \{MappedWindows.ROW_MARGIN}");
+            // Marker stays for other workers
+            assertThatThrownBy(() -> reader.next(1)).isInstanceOf(IllegalStateException.class);
+        }
+    }
+
+    @Test
+    void shouldReadEveryRowOfFilesMatchingGlobs(@TempDir Path directory) throws IOException {
+        // Given
+        Files.createDirectories(directory.resolve("2024/01"));
+        List<String> rows = new ArrayList<>();
+        List<Path> files = List.of(
+                directory.resolve("2024/01/day-1.txt"),
+                directory.resolve("2024/01/day-2.txt"),
+                directory.resolve("2024/day-3.txt"),
+                directory.resolve("empty.txt"));
+        for (int i = 0; i < files.size(); i++) {
+            List<String> fileRows = new ArrayList<>();
+            for (int length = 0; length < i * 3 * MappedWindows.ROW_MARGIN + 55; length += fileRows.getLast().length() + 1) {
+                fileRows.add(STR."City\{i}\{fileRows.size() % 1000};\{fileRows.size() % 100}.5");
+            }
+            if (files.get(i).endsWith("empty.txt")) {
+                fileRows.clear();
+            }
+
+            Files.writeString(files.get(i), fileRows.stream().map(row -> row + "\n").collect(Collectors.joining()));
+            rows.addAll(fileRows);
+        }
+        Files.writeString(directory.resolve("2024/01/notes.md"), "Not a measurement\n");
+
+        // When
+        List<Path> expanded = MultiFileReader.expand(STR."\{directory}/2024/**.txt", directory.resolve("empty.txt").toString());
+
+        List<String> actual = new ArrayList<>();
+        try (MultiFileReader reader = new MultiFileReader(expanded, 1, MappedWindows.ROW_MARGIN)) {
+            while (true) {
+                try (BlockReader.Block block = reader.next(0)) {
+                    if (block == null) {
+                        break;
+                    }
+
+                    String blockRows = new String(block.rows().toArray(ValueLayout.JAVA_BYTE), StandardCharsets.UTF_8);
+                    assertThat(blockRows).endsWith("\n");
+                    actual.addAll(Arrays.asList(blockRows.split("\n")));
+                }
+            }
+        }
+
+        // Then
+        assertThat(expanded).containsExactlyElementsOf(files);
+        assertThat(actual).containsExactlyElementsOf(rows);
+    }
+
+    @Test
+    void shouldRejectGlobMatchingNoFiles(@TempDir Path directory) {
+        assertThatThrownBy(() -> MultiFileReader.expand(STR."\{directory}/*.txt"))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("No files match");
+    }
+
+    @Test
+    void shouldInflateBgzfMembersIndependently(@TempDir Path directory) throws IOException {
+        // Given
+        List<String> rows = new ArrayList<>();
+        for (int length = 0; length < 3 * CreateMeasurementsFast.BGZF_MEMBER_SIZE + 123; length += rows.getLast().length() + 1) {
+            rows.add(STR."City\{rows.size() % 1000};\{rows.size() % 100}.5");
+        }
+        // Last row has no newline
+        byte[] input = String.join("\n", rows).getBytes(StandardCharsets.UTF_8);
+
+        Path bgzf = directory.resolve("measurements.txt.gz");
+        try (OutputStream out = Files.newOutputStream(bgzf)) {
+            CreateMeasurementsFast.writeBgzf(out, input);
+            out.write(CreateMeasurementsFast.BGZF_EOF);
+        }
+
+        Path gzip = directory.resolve("single-member.txt.gz");
+        try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(gzip))) {
+            out.write(input);
+        }
+
+        // When
+        List<String> actual = new ArrayList<>();
+        try (BlockReader reader = new BgzfReader(bgzf, 1, 1)) {
+            readRows(reader, actual);
+        }
+
+        List<String> fallback = new ArrayList<>();
+        try (BlockReader reader = BgzfReader.open(gzip, 1)) {
+            readRows(reader, fallback);
+        }
+
+        // Then
+        assertThat(BgzfReader.isBgzf(bgzf)).isTrue();
+        assertThat(BgzfReader.isBgzf(gzip)).isFalse();
+        assertThat(actual).containsExactlyElementsOf(rows);
+        assertThat(fallback).containsExactlyElementsOf(rows);
+    }
+
+    @Test
+    void shouldAggregateBinaryMeasurementsLikeText(@TempDir Path directory) throws IOException {
+        // Given
+        Path text = directory.resolve("measurements.txt");
+        Path binary = directory.resolve("measurements.bin");
+        StringBuilder rows = new StringBuilder();
+        // Rows do not fill the last block and the last one has no newline
+        for (int i = 0; i < 3 * 64 + 5; i++) {
+            rows.append(i % 7 == 0 ? "Zürich" : STR."City\{i % 10}").append(';').append(i % 2 == 0 ? "-" : "").append(i % 100).append('.').append(i % 10).append('\n');
+        }
+        Files.writeString(text, rows.substring(0, rows.length() - 1));
+
+        // When
+        long rowCount = BinaryMeasurements.convert(text, binary, 64);
+        TreeMap<String, CalculateAverage_tkowalcz2Unsafe.StatisticsAggregate> actual;
+        try (Arena arena = Arena.ofShared()) {
+            BinaryMeasurements measurements = BinaryMeasurements.open(binary, arena);
+            assertThat(measurements.blockCount()).isEqualTo(4);
+            actual = CalculateAverage_tkowalczBinary.aggregate(measurements, 3);
+        }
+
+        // Then
+        Map<String, List<Integer>> expected = rows.toString().lines()
+                .map(row -> row.split(";"))
+                .collect(Collectors.groupingBy(row -> row[0], TreeMap::new, Collectors.mapping(row -> Integer.parseInt(row[1].replace(".", "")), Collectors.toList())));
+        assertThat(rowCount).isEqualTo(3 * 64 + 5);
+        assertThat(actual.keySet()).containsExactlyElementsOf(expected.keySet());
+        expected.forEach((city, temperatures) -> assertThat(actual.get(city)).hasToString(new CalculateAverage_tkowalcz2Unsafe.StatisticsAggregate(
+                city,
+                temperatures.stream().mapToInt(Integer::intValue).min().orElseThrow(),
+                temperatures.stream().mapToInt(Integer::intValue).max().orElseThrow(),
+                temperatures.stream().mapToInt(Integer::intValue).sum(),
+                temperatures.size()).toString()));
+    }
+
+    @Test
+    void shouldAggregateSameThroughPipelineAsFusedParsers() {
+        // Given
+        Random random = new Random(42);
+        StringBuilder rows = new StringBuilder();
+        // Enough rows to fill the rings of every aggregator several times over, and cities to grow their stores
+        for (int i = 0; i < 200_000; i++) {
+            int temperature = random.nextInt(1999) - 999;
+            rows.append(i % 11 == 0 ? "Zürich" : STR."City\{random.nextInt(2000)}")
+                    .append(';').append(temperature < 0 ? "-" : "").append(Math.abs(temperature) / 10).append('.').append(Math.abs(temperature) % 10).append('\n');
+        }
+        byte[] bytes = rows.toString().getBytes(StandardCharsets.UTF_8);
+
+        try (Arena arena = Arena.ofShared()) {
+            MemorySegment inputData = arena.allocate(bytes.length);
+            inputData.copyFrom(MemorySegment.ofArray(bytes));
+
+            // When
+            TreeMap<String, CalculateAverage_tkowalcz2Unsafe.StatisticsAggregate> fused = new ParsePipeline(1, 0).aggregate(inputData, arena);
+            TreeMap<String, CalculateAverage_tkowalcz2Unsafe.StatisticsAggregate> pipelined = new ParsePipeline(2, 3).aggregate(inputData, arena);
+
+            // Then
+            assertThat(fused).hasSize(2001);
+            assertThat(pipelined).hasToString(fused.toString());
+        }
+    }
+
+    @Test
+    void shouldRejectMoreAggregatorsThanPartitionsCanHold() {
+        assertThatThrownBy(() -> new ParsePipeline(1, ParsePipeline.MAX_AGGREGATORS + 1))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("at most 128 aggregators");
+    }
+
+    private static void readRows(BlockReader reader, List<String> rows) {
+        while (true) {
+            try (BlockReader.Block block = reader.next(0)) {
+                if (block == null) {
+                    break;
+                }
+                if (block.rows().byteSize() == 0) {
+                    // Batch of the end of file marker
+                    continue;
+                }
+
+                String blockRows = new String(block.rows().toArray(ValueLayout.JAVA_BYTE), StandardCharsets.UTF_8);
+                assertThat(blockRows).endsWith("\n");
+                rows.addAll(Arrays.asList(blockRows.split("\n")));
+            }
+        }
+    }
+
+    @Test
+    void shouldPrefetchUpToDistanceAheadOfHandedOutChunks() throws InterruptedException {
+        long distance = 4 * Prefetcher.BATCH_SIZE;
+        try (Arena arena = Arena.ofShared()) {
+            // Every byte is a row, so chunks end exactly where they were cut
+            MemorySegment inputData = arena.allocate(16 * Prefetcher.BATCH_SIZE).fill((byte) '\n');
+            ChunkScheduler scheduler = new ChunkScheduler(inputData, 2, 2 * Prefetcher.BATCH_SIZE);
+            Prefetcher prefetcher = new Prefetcher(inputData, scheduler, 2, Prefetcher.Mode.TOUCH, distance, 1);
+            prefetcher.start();
+
+            // When
+            awaitPrefetched(prefetcher, distance);
+
+            // Worker 1 claims the first chunk, worker 0 the second one
+            prefetcher.advance(1, scheduler.nextSlice(1));
+            awaitLead(prefetcher, 1, 2 * Prefetcher.BATCH_SIZE + distance);
+            prefetcher.advance(0, scheduler.nextSlice(0));
+            awaitLead(prefetcher, 0, 2 * Prefetcher.BATCH_SIZE + distance);
+
+            // Worker 1 claims the rest (and steals from worker 0) without processing it, near the end of input
+            // prefetcher stops at its end
+            MemorySegment slice = null;
+            for (MemorySegment next; (next = scheduler.nextSlice(1)) != null;) {
+                if (slice == null || next.address() > slice.address()) {
+                    slice = next;
+                }
+            }
+            awaitPrefetched(prefetcher, inputData.byteSize());
+            prefetcher.advance(1, slice);
+            long lead = prefetcher.lead(1);
+            prefetcher.finish(0);
+            prefetcher.finish(1);
+
+            // Then
+            assertThat(lead).isEqualTo(ChunkScheduler.SLICE_SIZE);
+            assertThat(prefetcher.stop()).contains("16MB prefetched", "0 stalls");
+        }
+    }
+
+    @Test
+    void shouldCountStallOnlyWhenWorkerEntersWindowThatWasNotPrefetched() throws InterruptedException {
+        try (Arena arena = Arena.ofShared()) {
+            MemorySegment inputData = arena.allocate(16 * Prefetcher.BATCH_SIZE);
+            // Not started, so nothing gets prefetched
+            Prefetcher prefetcher = new Prefetcher(inputData, new ChunkScheduler(inputData, 2), 2, Prefetcher.Mode.TOUCH, Prefetcher.DEFAULT_DISTANCE, 1);
+
+            // When
+            prefetcher.advance(0, inputData.asSlice(0, ChunkScheduler.SLICE_SIZE));
+            prefetcher.advance(1, inputData.asSlice(8 * Prefetcher.BATCH_SIZE, ChunkScheduler.SLICE_SIZE));
+            prefetcher.advance(1, inputData.asSlice(9 * Prefetcher.BATCH_SIZE, ChunkScheduler.SLICE_SIZE));
+
+            // Then
+            assertThat(prefetcher.stop()).contains("0MB prefetched", "1 stalls");
+        }
+    }
+
+    private static void awaitPrefetched(Prefetcher prefetcher, long upTo) throws InterruptedException {
+        for (int i = 0; i < 1000 && prefetcher.prefetchedUpTo() != upTo; i++) {
+            Thread.sleep(5);
+        }
+        assertThat(prefetcher.prefetchedUpTo()).isEqualTo(upTo);
+    }
+
+    private static void awaitLead(Prefetcher prefetcher, int worker, long lead) throws InterruptedException {
+        for (int i = 0; i < 1000 && prefetcher.lead(worker) != lead; i++) {
+            Thread.sleep(5);
+        }
+        assertThat(prefetcher.lead(worker)).isEqualTo(lead);
+    }
+
+    @Test
+    void shouldRejectUnknownMappingHint() {
+        assertThatThrownBy(() -> MemoryMapping.hints("SEQUENTIAL,RANDOM")).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    private static MemorySegment segment(String rows) {
+        return MemorySegment.ofArray(rows.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static ByteVector cityVector(String city) {
+        byte[] cityBytes = Arrays.copyOf(city.getBytes(StandardCharsets.UTF_8), CalculateAverage_tkowalcz.SPECIES.length());
+        return ByteVector.fromArray(CalculateAverage_tkowalcz.SPECIES, cityBytes, 0);
+    }
+
+    // City padded with spaces to the vector size selected for this host
+    private static byte[] paddedCity(String city) {
+        byte[] cityBytes = new byte[CalculateAverage_tkowalcz.SPECIES.length()];
+        Arrays.fill(cityBytes, (byte) ' ');
+        byte[] name = city.getBytes(StandardCharsets.UTF_8);
+        System.arraycopy(name, 0, cityBytes, 0, name.length);
+        return cityBytes;
+    }
 }
@@ -0,0 +1,86 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.tkowalcz;
+
+import dev.morling.onebrc.StatisticsBatch;
+import dev.morling.onebrc.StatisticsStore;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.RunnerException;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adds {@value #SAMPLES} already parsed (station id, value) pairs to a {@link StatisticsStore} one at a time or
+ * through a {@link StatisticsBatch} of {@code StatisticsBatch.batchSize()} rows. With few stations or
+ * {@value #HOT_SHARE}% of rows going to {@value #HOT_STATIONS} hot ones almost every batch has conflicts and takes the
+ * in-register reduction, with 10k uniformly picked stations most batches do not.
+ */
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+public class BatchAggregationMicrobenchmark extends OneBrcMicrobenchmark {
+
+    private static final int SAMPLES = 1 << 20;
+    private static final int HOT_STATIONS = 4;
+    private static final int HOT_SHARE = 90;
+
+    @Param({ "413", "10000" })
+    private int stations;
+
+    @Param({ "uniform", "skewed" })
+    private String distribution;
+
+    private StatisticsStore store;
+    private StatisticsBatch batch;
+    private int[] ids;
+    private int[] values;
+
+    @Setup
+    public void setup() {
+        store = new StatisticsStore(stations);
+        batch = new StatisticsBatch(store);
+
+        Random random = new Random(42);
+        ids = new int[SAMPLES];
+        values = new int[SAMPLES];
+        for (int i = 0; i < SAMPLES; i++) {
+            boolean hot = distribution.equals("skewed") && random.nextInt(100) < HOT_SHARE;
+            ids[i] = random.nextInt(hot ? HOT_STATIONS : stations);
+            values[i] = (int) Math.max(-999, Math.min(999, random.nextGaussian() * 100));
+        }
+    }
+
+    @Benchmark
+    public StatisticsStore scalar() {
+        for (int i = 0; i < SAMPLES; i++) {
+            store.add(ids[i], values[i]);
+        }
+        return store;
+    }
+
+    @Benchmark
+    public StatisticsStore batched() {
+        for (int i = 0; i < SAMPLES; i++) {
+            batch.add(ids[i], values[i]);
+        }
+        batch.flush();
+        return store;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        run(BatchAggregationMicrobenchmark.class.getSimpleName());
+    }
+}
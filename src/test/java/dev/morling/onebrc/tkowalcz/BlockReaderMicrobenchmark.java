@@ -0,0 +1,98 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.tkowalcz;
+
+import dev.morling.onebrc.BlockReader;
+import dev.morling.onebrc.CalculateAverage_tkowalcz2Unsafe;
+import dev.morling.onebrc.IoUringReader;
+import dev.morling.onebrc.MappedWindows;
+import dev.morling.onebrc.MemoryMapping;
+import dev.morling.onebrc.PreadReader;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.RunnerException;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parses the whole input on the benchmark thread with every input of the engine:
+ * <ul>
+ * <li>mmap - whole file mapped at once,</li>
+ * <li>mmapWindow - 8MB windows mapped one after another,</li>
+ * <li>pread - 8MB blocks read into off-heap buffers through page cache,</li>
+ * <li>pread-direct - same with {@code O_DIRECT}, page cache is not used at all,</li>
+ * <li>io_uring, io_uring-direct - 8MB blocks, up to 8 reads in flight into registered buffers.</li>
+ * </ul>
+ * With {@code coldCache} page cache is dropped before every operation, which requires writing to
+ * {@code /proc/sys/vm/drop_caches} (root). Note that direct inputs read from the device either way.
+ */
+@Fork(1)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class BlockReaderMicrobenchmark extends OneBrcMicrobenchmark {
+
+    private static final Path DROP_CACHES = Path.of("/proc/sys/vm/drop_caches");
+    private static final long BLOCK_SIZE = 8 * 1024 * 1024;
+
+    @Param({ "mmap", "mmapWindow", "pread", "pread-direct", "io_uring", "io_uring-direct" })
+    private String input;
+
+    @Param({ "true", "false" })
+    private boolean coldCache;
+
+    @Setup(Level.Invocation)
+    public void dropPageCache() throws IOException {
+        if (coldCache) {
+            Files.writeString(DROP_CACHES, "3");
+        }
+    }
+
+    @Benchmark
+    public Object parseWholeFile() throws IOException {
+        try (Arena arena = Arena.ofConfined()) {
+            CalculateAverage_tkowalcz2Unsafe.WorkerThread worker;
+            if (input.equals("mmap")) {
+                worker = new CalculateAverage_tkowalcz2Unsafe.WorkerThread(MemoryMapping.map(FILE, arena), arena, System.nanoTime());
+                worker.run();
+                return worker.getHashMap();
+            }
+
+            try (BlockReader blockReader = open()) {
+                worker = new CalculateAverage_tkowalcz2Unsafe.WorkerThread(blockReader, 0, arena, System.nanoTime());
+                worker.run();
+                return worker.getHashMap();
+            }
+        }
+    }
+
+    private BlockReader open() throws IOException {
+        return switch (input) {
+            case "mmapWindow" -> new MappedWindows(FILE, BLOCK_SIZE, false);
+            case "pread" -> new PreadReader(Path.of(FILE), 1, BLOCK_SIZE, false);
+            case "pread-direct" -> new PreadReader(Path.of(FILE), 1, BLOCK_SIZE, true);
+            case "io_uring" -> new IoUringReader(Path.of(FILE), IoUringReader.DEFAULT_DEPTH, BLOCK_SIZE, false);
+            case "io_uring-direct" -> new IoUringReader(Path.of(FILE), IoUringReader.DEFAULT_DEPTH, BLOCK_SIZE, true);
+            default -> throw new IllegalArgumentException(STR."Unknown input \{input}");
+        };
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        run(BlockReaderMicrobenchmark.class.getSimpleName());
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.tkowalcz;
+
+import dev.morling.onebrc.CalculateAverage_tkowalcz2Unsafe;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.RunnerException;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * Measures the cost of city names that do not fit into a vector register. Data is generated in memory from the weather
+ * stations list with given percentage of rows using names between 33 and 100 bytes.
+ */
+@Threads(1)
+public class LongCityNameMicrobenchmark extends OneBrcMicrobenchmark {
+
+    private static final int ROWS = 10_000_000;
+
+    @Param({ "0", "10", "50", "100" })
+    private int longNamesPercentage;
+
+    private Arena arena;
+    private MemorySegment inputData;
+
+    @Setup
+    public void setup() throws IOException {
+        List<byte[]> shortNames = Files.lines(Path.of("data/weather_stations.csv"))
+                .filter(line -> !line.startsWith("#"))
+                .map(line -> line.substring(0, line.indexOf(';')))
+                .filter(name -> name.getBytes(StandardCharsets.UTF_8).length < 32)
+                .distinct()
+                .limit(400)
+                .map(name -> name.getBytes(StandardCharsets.UTF_8))
+                .toList();
+
+        byte[][] longNames = new byte[100][];
+        for (int i = 0; i < longNames.length; i++) {
+            longNames[i] = (i + " " + "Long City Name ".repeat(7)).substring(0, 33 + (i % 68)).getBytes(StandardCharsets.UTF_8);
+        }
+
+        // Two passes with the same seed: first one computes size of the data, second one writes it off-heap
+        arena = Arena.ofShared();
+        inputData = arena.allocate(generate(shortNames, longNames, null));
+        generate(shortNames, longNames, inputData);
+    }
+
+    private long generate(List<byte[]> shortNames, byte[][] longNames, MemorySegment output) {
+        SplittableRandom random = new SplittableRandom(42);
+        long offset = 0;
+        for (int i = 0; i < ROWS; i++) {
+            byte[] city = random.nextInt(100) < longNamesPercentage
+                    ? longNames[random.nextInt(longNames.length)]
+                    : shortNames.get(random.nextInt(shortNames.size()));
+
+            int temperature = random.nextInt(-999, 1000);
+            byte[] row = ((temperature < 0 ? ";-" : ";") + Math.abs(temperature) / 10 + "." + Math.abs(temperature) % 10 + "\n")
+                    .getBytes(StandardCharsets.UTF_8);
+
+            if (output != null) {
+                MemorySegment.copy(city, 0, output, ValueLayout.JAVA_BYTE, offset, city.length);
+                MemorySegment.copy(row, 0, output, ValueLayout.JAVA_BYTE, offset + city.length, row.length);
+            }
+            offset += city.length + row.length;
+        }
+
+        return offset;
+    }
+
+    @Benchmark
+    public List<CalculateAverage_tkowalcz2Unsafe.StatisticsAggregate> triplePumped() {
+        CalculateAverage_tkowalcz2Unsafe.WorkerThread workerThread = new CalculateAverage_tkowalcz2Unsafe.WorkerThread(
+                null,
+                arena,
+                0);
+
+        return workerThread.execute(arena, inputData);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        run(LongCityNameMicrobenchmark.class.getSimpleName());
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.tkowalcz;
+
+import dev.morling.onebrc.MemoryMapping;
+import dev.morling.onebrc.Prefetcher;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.RunnerException;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Maps the whole input, reads one long from every page and unmaps it again. Compares {@link java.nio.channels.FileChannel#map}
+ * with native mapping and its hints:
+ * <ul>
+ * <li>channel - what engines did so far, one minor fault per fault-around block of pages,</li>
+ * <li>native - plain mmap, should be the same as channel,</li>
+ * <li>native:POPULATE - page tables are filled in mmap call, loop itself does not fault,</li>
+ * <li>native:SEQUENTIAL,WILLNEED - read-ahead hints, matter only when the file is not in page cache,</li>
+ * <li>native:HUGEPAGE - fewer faults where the kernel has huge pages for page cache.</li>
+ * </ul>
+ * Minor and major faults taken by the benchmark thread while reading the mapping are reported per operation as
+ * secondary results. Faults done by {@code MAP_POPULATE} are counted by the kernel too, but they happen in mmap call
+ * where they are not on the critical path of a parsing loop, so they are left out. Run after
+ * {@code echo 3 > /proc/sys/vm/drop_caches} to see the cold page cache case, first iterations will show it.
+ */
+@Fork(1)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class MemoryMappingMicrobenchmark extends OneBrcMicrobenchmark {
+
+    @Param({ "channel", "native", "native:POPULATE", "native:SEQUENTIAL,WILLNEED", "native:HUGEPAGE" })
+    private String mapping;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class PageFaults {
+
+        private long operations;
+        private long minorFaults;
+        private long majorFaults;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            operations = 0;
+            minorFaults = 0;
+            majorFaults = 0;
+        }
+
+        public double minorFaultsPerOp() {
+            return operations == 0 ? 0 : (double) minorFaults / operations;
+        }
+
+        public double majorFaultsPerOp() {
+            return operations == 0 ? 0 : (double) majorFaults / operations;
+        }
+    }
+
+    @Benchmark
+    public long mapAndTouchEveryPage(PageFaults pageFaults) throws IOException {
+        long sum = 0;
+        try (Arena arena = Arena.ofConfined()) {
+            MemorySegment inputData = map(arena);
+
+            long[] before = Prefetcher.threadPageFaults();
+            int pageSize = MemoryMapping.pageSize();
+            for (long offset = 0; offset + Long.BYTES <= inputData.byteSize(); offset += pageSize) {
+                sum += inputData.get(ValueLayout.JAVA_LONG_UNALIGNED, offset);
+            }
+            long[] after = Prefetcher.threadPageFaults();
+
+            pageFaults.operations++;
+            pageFaults.minorFaults += after[0] - before[0];
+            pageFaults.majorFaults += after[1] - before[1];
+        }
+
+        return sum;
+    }
+
+    private MemorySegment map(Arena arena) throws IOException {
+        if (mapping.equals("channel")) {
+            return MemoryMapping.mapWithChannel(Path.of(FILE), 0, -1, arena);
+        }
+
+        String hints = mapping.substring("native".length()).replace(":", "");
+        return MemoryMapping.mapNative(Path.of(FILE), 0, -1, arena, MemoryMapping.hints(hints));
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        run(MemoryMappingMicrobenchmark.class.getSimpleName());
+    }
+}
@@ -1,6 +1,6 @@
 package dev.morling.onebrc.tkowalcz;
 
-import dev.morling.onebrc.IoUtil;
+import dev.morling.onebrc.MemoryMapping;
 import jdk.incubator.vector.Vector;
 import org.openjdk.jmh.annotations.*;
 import org.openjdk.jmh.profile.*;
@@ -11,11 +11,9 @@ import org.openjdk.jmh.runner.options.Options;
 import org.openjdk.jmh.runner.options.OptionsBuilder;
 
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.lang.foreign.Arena;
 import java.lang.foreign.MemorySegment;
 import java.lang.management.ManagementFactory;
-import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.util.concurrent.TimeUnit;
 
@@ -51,7 +49,8 @@ import java.util.concurrent.TimeUnit;
         "-XX:-TieredCompilation",
         "-XX:CompileThreshold=2048",
         "-XX:-UseCountedLoopSafepoints",
-        "-XX:+TrustFinalNonStaticFields"
+        "-XX:+TrustFinalNonStaticFields",
+        "--enable-native-access=ALL-UNNAMED"
 })
 @Threads(1)
 public class OneBrcMicrobenchmark {
@@ -63,21 +62,16 @@ public class OneBrcMicrobenchmark {
         return new String(array, StandardCharsets.UTF_8).replace('\n', '\\');
     }
 
+    // Implementation and hints are selected with -Dtkowalcz.mmap and -Dtkowalcz.mmapHints, see MemoryMapping
     static MemorySegment mmapDataFile(String fileName, Arena arena) throws IOException {
-        try (RandomAccessFile file = new RandomAccessFile(fileName, "r");
-                FileChannel channel = file.getChannel()) {
-            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), arena);
-        }
+        return MemoryMapping.map(fileName, arena);
     }
 
     static MemoryMappedFile mmapDataFile(String fileName) throws IOException {
-        try (RandomAccessFile file = new RandomAccessFile(fileName, "r");
-                FileChannel channel = file.getChannel()) {
-            long pointer = IoUtil.map(channel, FileChannel.MapMode.READ_ONLY, 0, channel.size());
-            return new MemoryMappedFile(
-                    pointer,
-                    channel.size());
-        }
+        MemorySegment mapping = MemoryMapping.map(fileName, Arena.global());
+        return new MemoryMappedFile(
+                mapping.address(),
+                mapping.byteSize());
     }
 
     record MemoryMappedFile(long pointer, long size) {
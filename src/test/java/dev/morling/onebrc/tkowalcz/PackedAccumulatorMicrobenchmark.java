@@ -0,0 +1,110 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.tkowalcz;
+
+import dev.morling.onebrc.CalculateAverage_tkowalcz2Unsafe;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.RunnerException;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of flushing packed count and sum into the wide area of the hash map. Measurements of 413 cities are added in
+ * blocks of {@code rowsPerFlush} rows with a flush after each block, same as worker does between windows of input:
+ * <ul>
+ * <li>0 - never flushed, the loop as it was before the wide area existed,</li>
+ * <li>599186 - 8MB window of rows 14 bytes long on average, as in measurements.txt,</li>
+ * <li>4096 - flushing far more often than needed, to show what a flush costs.</li>
+ * </ul>
+ * Entries are taken from the long city table through the public API. Their statistics have the same layout as the
+ * ones in the main table.
+ */
+@Fork(1)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class PackedAccumulatorMicrobenchmark extends OneBrcMicrobenchmark {
+
+    private static final int CITY_COUNT = 413;
+    private static final int ROWS = 1 << 21;
+
+    @Param({ "0", "599186", "4096" })
+    private int rowsPerFlush;
+
+    private Arena arena;
+    private CalculateAverage_tkowalcz2Unsafe.UnsafeRawHashMap hashMap;
+
+    private int[] mapEntryOffsets;
+    private int[] values;
+
+    @Setup
+    public void setup() {
+        arena = Arena.ofShared();
+        hashMap = new CalculateAverage_tkowalcz2Unsafe.UnsafeRawHashMap(arena);
+
+        // Names are padded so that hashing can load full vectors past the last one
+        StringBuilder cities = new StringBuilder();
+        int[] cityOffsets = new int[CITY_COUNT];
+        for (int i = 0; i < CITY_COUNT; i++) {
+            cityOffsets[i] = cities.length();
+            cities.append("City number ").append(i).append(";\n");
+        }
+        cities.append(" ".repeat(256));
+        MemorySegment cityNames = MemorySegment.ofArray(cities.toString().getBytes(StandardCharsets.UTF_8));
+
+        int[] cityEntryOffsets = new int[CITY_COUNT];
+        for (int i = 0; i < CITY_COUNT; i++) {
+            cityEntryOffsets[i] = hashMap.findLongCity(cityNames, cityOffsets[i]);
+        }
+
+        Random random = new Random(42);
+        mapEntryOffsets = new int[ROWS];
+        values = new int[ROWS];
+        for (int i = 0; i < ROWS; i++) {
+            mapEntryOffsets[i] = cityEntryOffsets[random.nextInt(CITY_COUNT)];
+            values[i] = random.nextInt(-999, 1000);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        arena.close();
+    }
+
+    @Benchmark
+    public CalculateAverage_tkowalcz2Unsafe.UnsafeRawHashMap addMeasurements() {
+        // Without flushes packed halves wrap around after a few invocations, which does not change the timing
+        int blockSize = rowsPerFlush == 0 ? ROWS : rowsPerFlush;
+        for (int start = 0; start < ROWS; start += blockSize) {
+            int end = Math.min(start + blockSize, ROWS);
+            for (int i = start; i < end; i++) {
+                hashMap.addMeasurement(mapEntryOffsets[i], values[i]);
+            }
+
+            if (rowsPerFlush != 0) {
+                hashMap.flush();
+            }
+        }
+
+        return hashMap;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        run(PackedAccumulatorMicrobenchmark.class.getSimpleName());
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.tkowalcz;
+
+import dev.morling.onebrc.CalculateAverage_tkowalcz2Unsafe.StatisticsAggregate;
+import dev.morling.onebrc.ParsePipeline;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.RunnerException;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Aggregates {@value #INPUT_SIZE} bytes of generated measurements of {@value #STATIONS} stations held in memory with
+ * a {@link ParsePipeline} of given number of parsers and aggregators. Zero aggregators is the fused engine, where
+ * parsers update statistics themselves.
+ */
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+public class PipelineMicrobenchmark extends OneBrcMicrobenchmark {
+
+    private static final int INPUT_SIZE = 32 * 1024 * 1024;
+    private static final int STATIONS = 413;
+
+    @Param({ "1", "2" })
+    private int parsers;
+
+    @Param({ "0", "1", "2" })
+    private int aggregators;
+
+    private Arena arena;
+    private MemorySegment inputData;
+
+    @Setup
+    public void setup() throws IOException {
+        List<String> names;
+        try (var lines = Files.lines(Path.of("data/weather_stations.csv"))) {
+            names = lines
+                    .filter(line -> !line.startsWith("#"))
+                    .map(line -> line.substring(0, line.indexOf(';')))
+                    .distinct()
+                    .limit(STATIONS)
+                    .toList();
+        }
+
+        Random random = new Random(42);
+        StringBuilder rows = new StringBuilder(INPUT_SIZE + 128);
+        while (rows.length() < INPUT_SIZE) {
+            int temperature = (int) Math.max(-999, Math.min(999, random.nextGaussian() * 150));
+            rows.append(names.get(random.nextInt(names.size())))
+                    .append(';').append(temperature < 0 ? "-" : "").append(Math.abs(temperature) / 10).append('.').append(Math.abs(temperature) % 10).append('\n');
+        }
+
+        byte[] bytes = rows.toString().getBytes(StandardCharsets.UTF_8);
+        arena = Arena.ofShared();
+        inputData = arena.allocate(bytes.length);
+        inputData.copyFrom(MemorySegment.ofArray(bytes));
+    }
+
+    @TearDown
+    public void tearDown() {
+        arena.close();
+    }
+
+    @Benchmark
+    public TreeMap<String, StatisticsAggregate> aggregate() {
+        return new ParsePipeline(parsers, aggregators).aggregate(inputData, arena);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        run(PipelineMicrobenchmark.class.getSimpleName());
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.tkowalcz;
+
+import dev.morling.onebrc.CalculateAverage_tkowalcz2Unsafe.SplitRawHashMap;
+import dev.morling.onebrc.CalculateAverage_tkowalcz2Unsafe.WorkerThread;
+import dev.morling.onebrc.SampleBuffers;
+import dev.morling.onebrc.StatisticsStore;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.RunnerException;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adds {@value #SAMPLES} already parsed measurements to a split map with statistics kept in its records, in a
+ * statistics store or in sample buffers of 8 and 32 samples (drained at the end of every invocation). Stations are
+ * either picked uniformly or {@value #HOT_SHARE}% of measurements go to {@value #HOT_STATIONS} hot ones, where
+ * buffers fill up and are folded most often while the scalar update keeps hitting the same min and max.
+ */
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+public class SampleBufferMicrobenchmark extends OneBrcMicrobenchmark {
+
+    private static final int SAMPLES = 1 << 20;
+    private static final int HOT_STATIONS = 4;
+    private static final int HOT_SHARE = 90;
+
+    @Param({ "413" })
+    private int stations;
+
+    @Param({ "uniform", "skewed" })
+    private String distribution;
+
+    @Param({ "records", "soa", "buffered8", "buffered32" })
+    private String statistics;
+
+    private Arena arena;
+    private SplitRawHashMap hashMap;
+    private int[] ids;
+    private int[] values;
+
+    @Setup
+    public void setup() throws IOException {
+        List<String> names;
+        try (var lines = Files.lines(Path.of("data/weather_stations.csv"))) {
+            names = lines
+                    .filter(line -> !line.startsWith("#"))
+                    .map(line -> line.substring(0, line.indexOf(';')))
+                    .distinct()
+                    .limit(stations)
+                    .toList();
+        }
+
+        arena = Arena.ofShared();
+        hashMap = switch (statistics) {
+            case "records" -> new SplitRawHashMap(arena);
+            case "soa" -> new SplitRawHashMap(arena, new StatisticsStore(SplitRawHashMap.MAX_CITIES));
+            case "buffered8" -> new SplitRawHashMap(arena, new StatisticsStore(SplitRawHashMap.MAX_CITIES), new SampleBuffers(SplitRawHashMap.MAX_CITIES, 8));
+            case "buffered32" -> new SplitRawHashMap(arena, new StatisticsStore(SplitRawHashMap.MAX_CITIES), new SampleBuffers(SplitRawHashMap.MAX_CITIES, 32));
+            default -> throw new IllegalArgumentException(statistics);
+        };
+
+        // Installs all stations, ids follow the order of names
+        StringBuilder rows = new StringBuilder();
+        names.forEach(name -> rows.append(name).append(";0.0\n"));
+        byte[] bytes = rows.toString().getBytes(StandardCharsets.UTF_8);
+        MemorySegment inputData = arena.allocate(bytes.length);
+        inputData.copyFrom(MemorySegment.ofArray(bytes));
+        WorkerThread.executeTail(inputData, hashMap, 0, inputData.byteSize());
+
+        Random random = new Random(42);
+        ids = new int[SAMPLES];
+        values = new int[SAMPLES];
+        for (int i = 0; i < SAMPLES; i++) {
+            boolean hot = distribution.equals("skewed") && random.nextInt(100) < HOT_SHARE;
+            ids[i] = random.nextInt(hot ? HOT_STATIONS : stations);
+            values[i] = (int) Math.max(-999, Math.min(999, random.nextGaussian() * 100));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        arena.close();
+    }
+
+    @Benchmark
+    public SplitRawHashMap accumulate() {
+        for (int i = 0; i < SAMPLES; i++) {
+            hashMap.addMeasurement(ids[i], values[i]);
+        }
+        hashMap.flush();
+        return hashMap;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        run(SampleBufferMicrobenchmark.class.getSimpleName());
+    }
+}
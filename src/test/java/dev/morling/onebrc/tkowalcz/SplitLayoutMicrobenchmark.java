@@ -0,0 +1,121 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.tkowalcz;
+
+import dev.morling.onebrc.CalculateAverage_tkowalcz2Unsafe.SplitRawHashMap;
+import dev.morling.onebrc.CalculateAverage_tkowalcz2Unsafe.UnsafeRawHashMap;
+import dev.morling.onebrc.CalculateAverage_tkowalcz2Unsafe.WorkerThread;
+import dev.morling.onebrc.StatisticsStore;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.RunnerException;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares layouts of the hash map in the single pumped loop: 48 byte entries of UnsafeRawHashMap, where name and
+ * statistics share an entry, against SplitRawHashMap with 8 byte slots (hash and id) and names kept apart, with either
+ * 16 byte statistics records or a StatisticsStore. All flush what they need to after every invocation. Input of 4MB is generated from the first {@code stations} names of the weather stations file, so
+ * both the challenge sized set and the 10k keys one are covered.
+ * <p>
+ * UnsafeRawHashMap moves 413 cities to its dense table after the first pass, like the engine does once no new city
+ * shows up. 10k cities do not fit there and stay in the main table.
+ */
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+public class SplitLayoutMicrobenchmark extends OneBrcMicrobenchmark {
+
+    private static final long INPUT_SIZE = 4 * 1024 * 1024;
+
+    @Param({ "413", "10000" })
+    private int stations;
+
+    @Param({ "aos", "records", "store" })
+    private String layout;
+
+    private Arena arena;
+    private MemorySegment inputData;
+    private UnsafeRawHashMap aosMap;
+    private SplitRawHashMap splitMap;
+
+    @Setup
+    public void setup() throws IOException {
+        List<String> names;
+        try (var lines = Files.lines(Path.of("data/weather_stations.csv"))) {
+            names = lines
+                    .filter(line -> !line.startsWith("#"))
+                    .map(line -> line.substring(0, line.indexOf(';')))
+                    .distinct()
+                    .limit(stations)
+                    .toList();
+        }
+
+        Random random = new Random(42);
+        StringBuilder rows = new StringBuilder();
+        while (rows.length() < INPUT_SIZE) {
+            rows.append(names.get(random.nextInt(names.size())))
+                    .append(';')
+                    .append(String.format("%.1f", random.nextGaussian() * 10))
+                    .append('\n');
+        }
+
+        arena = Arena.ofShared();
+        byte[] bytes = rows.toString().getBytes(StandardCharsets.UTF_8);
+        inputData = arena.allocate(bytes.length);
+        inputData.copyFrom(MemorySegment.ofArray(bytes));
+
+        aosMap = new UnsafeRawHashMap(arena);
+        splitMap = layout.equals("store")
+                ? new SplitRawHashMap(arena, new StatisticsStore(SplitRawHashMap.MAX_CITIES))
+                : new SplitRawHashMap(arena);
+
+        // First pass installs all cities, the first call notes how many there are and the second one sees no new ones
+        process();
+        aosMap.compactOrExpand(0);
+        aosMap.compactOrExpand(UnsafeRawHashMap.COMPACT_AFTER_BYTES);
+    }
+
+    @TearDown
+    public void tearDown() {
+        arena.close();
+    }
+
+    @Benchmark
+    public long process() {
+        if (layout.equals("aos")) {
+            long tail = WorkerThread.executeSinglePumped(inputData, aosMap, 0, inputData.byteSize());
+            WorkerThread.executeTail(inputData, aosMap, tail, inputData.byteSize());
+            aosMap.flush();
+            return tail;
+        }
+
+        long tail = WorkerThread.executeSinglePumped(inputData, splitMap, 0, inputData.byteSize());
+        WorkerThread.executeTail(inputData, splitMap, tail, inputData.byteSize());
+        splitMap.flush();
+        return tail;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        run(SplitLayoutMicrobenchmark.class.getSimpleName());
+    }
+}
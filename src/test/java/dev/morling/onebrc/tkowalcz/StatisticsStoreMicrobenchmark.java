@@ -0,0 +1,186 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.tkowalcz;
+
+import dev.morling.onebrc.CalculateAverage_tkowalcz2Unsafe.SplitRawHashMap;
+import dev.morling.onebrc.CalculateAverage_tkowalcz2Unsafe.StatisticsAggregate;
+import dev.morling.onebrc.CalculateAverage_tkowalcz2Unsafe.UnsafeRawHashMap;
+import dev.morling.onebrc.CalculateAverage_tkowalcz2Unsafe.WorkerThread;
+import dev.morling.onebrc.StatisticsStore;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.RunnerException;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of what happens after workers are done with a 10k+ station input: merging statistics of {@value #WORKERS}
+ * workers and extracting the results.
+ * <ul>
+ * <li>{@code mergeSameIds}: stores of workers preloaded from an index, a sweep of vector min, max and add,</li>
+ * <li>{@code mergeGathered}: stores with ids of their own, the same sweep reading other stores through a map of ids,</li>
+ * <li>{@code mergeSplitMaps}: whole merge of split maps that insert cities in different order, with names looked up,</li>
+ * <li>{@code extract}: results of a merged store, names decoded once and no boxed indexes,</li>
+ * <li>{@code mergeAndExtractTables}: the same for UnsafeRawHashMap, merged entry by entry and read back with
+ * {@code asStatistics}.</li>
+ * </ul>
+ * Merges keep adding into the same target, which is what a merge costs once the target has all cities.
+ */
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+public class StatisticsStoreMicrobenchmark extends OneBrcMicrobenchmark {
+
+    private static final int WORKERS = 4;
+    private static final long INPUT_SIZE = 2 * 1024 * 1024;
+
+    @Param({ "10000", "16000" })
+    private int stations;
+
+    private Arena arena;
+
+    private StatisticsStore target;
+    private StatisticsStore[] sameIdStores;
+    private StatisticsStore[] ownIdStores;
+    private int[][] otherIds;
+    private List<String> names;
+
+    private SplitRawHashMap[] splitMaps;
+    private UnsafeRawHashMap[] tables;
+
+    @Setup
+    public void setup() throws IOException {
+        try (var lines = Files.lines(Path.of("data/weather_stations.csv"))) {
+            names = lines
+                    .filter(line -> !line.startsWith("#"))
+                    .map(line -> line.substring(0, line.indexOf(';')))
+                    .distinct()
+                    .limit(stations)
+                    .toList();
+        }
+
+        Random random = new Random(42);
+        target = new StatisticsStore(SplitRawHashMap.MAX_CITIES);
+        sameIdStores = new StatisticsStore[WORKERS];
+        ownIdStores = new StatisticsStore[WORKERS];
+        otherIds = new int[WORKERS][];
+        for (int worker = 0; worker < WORKERS; worker++) {
+            sameIdStores[worker] = new StatisticsStore(SplitRawHashMap.MAX_CITIES);
+            ownIdStores[worker] = new StatisticsStore(SplitRawHashMap.MAX_CITIES);
+            otherIds[worker] = new int[target.length()];
+            Arrays.fill(otherIds[worker], ownIdStores[worker].emptyId());
+
+            // Every worker numbers stations in its own order
+            List<Integer> order = new ArrayList<>();
+            for (int id = 0; id < stations; id++) {
+                order.add(id);
+            }
+            Collections.shuffle(order, random);
+            for (int id = 0; id < stations; id++) {
+                int value = (int) (random.nextGaussian() * 100);
+                sameIdStores[worker].add(id, value);
+                ownIdStores[worker].add(order.get(id), value);
+                otherIds[worker][id] = order.get(id);
+            }
+        }
+
+        arena = Arena.ofShared();
+        splitMaps = new SplitRawHashMap[WORKERS];
+        tables = new UnsafeRawHashMap[WORKERS];
+        for (int worker = 0; worker < WORKERS; worker++) {
+            MemorySegment inputData = input(random);
+            splitMaps[worker] = new SplitRawHashMap(arena, new StatisticsStore(SplitRawHashMap.MAX_CITIES));
+            long tail = WorkerThread.executeSinglePumped(inputData, splitMaps[worker], 0, inputData.byteSize());
+            WorkerThread.executeTail(inputData, splitMaps[worker], tail, inputData.byteSize());
+
+            tables[worker] = new UnsafeRawHashMap(arena);
+            tail = WorkerThread.executeSinglePumped(inputData, tables[worker], 0, inputData.byteSize());
+            WorkerThread.executeTail(inputData, tables[worker], tail, inputData.byteSize());
+        }
+    }
+
+    // Rows of random stations, so that every worker sees them in a different order
+    private MemorySegment input(Random random) {
+        StringBuilder rows = new StringBuilder();
+        while (rows.length() < INPUT_SIZE) {
+            rows.append(names.get(random.nextInt(names.size())))
+                    .append(';')
+                    .append(String.format("%.1f", random.nextGaussian() * 10))
+                    .append('\n');
+        }
+
+        byte[] bytes = rows.toString().getBytes(StandardCharsets.UTF_8);
+        MemorySegment inputData = arena.allocate(bytes.length);
+        inputData.copyFrom(MemorySegment.ofArray(bytes));
+        return inputData;
+    }
+
+    @TearDown
+    public void tearDown() {
+        arena.close();
+    }
+
+    @Benchmark
+    public StatisticsStore mergeSameIds() {
+        for (StatisticsStore store : sameIdStores) {
+            target.mergeFrom(store);
+        }
+        return target;
+    }
+
+    @Benchmark
+    public StatisticsStore mergeGathered() {
+        for (int worker = 0; worker < WORKERS; worker++) {
+            target.mergeFrom(ownIdStores[worker], otherIds[worker]);
+        }
+        return target;
+    }
+
+    @Benchmark
+    public SplitRawHashMap mergeSplitMaps() {
+        for (int worker = 1; worker < WORKERS; worker++) {
+            splitMaps[0].mergeFrom(splitMaps[worker]);
+        }
+        return splitMaps[0];
+    }
+
+    @Benchmark
+    public TreeMap<String, StatisticsAggregate> extract() {
+        return sameIdStores[0].asResults(names);
+    }
+
+    @Benchmark
+    public List<StatisticsAggregate> mergeAndExtractTables() {
+        for (int worker = 1; worker < WORKERS; worker++) {
+            tables[0].mergeFrom(tables[worker]);
+        }
+        return tables[0].asStatistics();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        run(StatisticsStoreMicrobenchmark.class.getSimpleName());
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.tkowalcz;
+
+import dev.morling.onebrc.VectorHash;
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.Vector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.RunnerException;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link VectorHash} strategies. Cost of the hash itself is measured by {@link #hash()}, {@link #lookup()}
+ * adds probing of an open addressing table (same scheme as UnsafeRawHashMap) so that it shows the trade-off between
+ * speed of the hash and its collisions. Probe length histogram of each table is printed during setup.
+ */
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class VectorHashMicrobenchmark extends OneBrcMicrobenchmark {
+
+    private static final VectorSpecies<Byte> SPECIES = ByteVector.SPECIES_256;
+
+    @Param({ "LANE_SUM", "PRIME_MULTIPLY", "XOR_FOLD" })
+    private String strategy;
+
+    @Param({ "data/weather_stations.csv", "src/test/resources/samples/measurements-10000-unique-keys.txt" })
+    private String dataSet;
+
+    @Param({ "65536", "524288" })
+    private int tableSize;
+
+    private VectorHash vectorHash;
+    private byte[][] cities;
+    private int[] table;
+    private int tableSizeMask;
+
+    private int index;
+
+    @Setup
+    public void setup() throws IOException {
+        vectorHash = VectorHash.byName(strategy);
+        cities = loadCities(dataSet);
+
+        tableSizeMask = tableSize - 1;
+        table = new int[tableSize];
+        Arrays.fill(table, -1);
+
+        long[] probeHistogram = new long[tableSize];
+        for (int i = 0; i < cities.length; i++) {
+            probeHistogram[install(i)]++;
+        }
+
+        System.out.println();
+        System.out.println(probeHistogramToString(probeHistogram));
+    }
+
+    @Benchmark
+    public int hash() {
+        Vector<Byte> city = ByteVector.fromArray(SPECIES, cities[nextCity()], 0);
+        return vectorHash.hash(city);
+    }
+
+    @Benchmark
+    public int lookup() {
+        Vector<Byte> city = ByteVector.fromArray(SPECIES, cities[nextCity()], 0);
+
+        int slot = vectorHash.hash(city) & tableSizeMask;
+        for (int probe = 1;; probe++) {
+            Vector<Byte> candidate = ByteVector.fromArray(SPECIES, cities[table[slot]], 0);
+            if (candidate.compare(VectorOperators.EQ, city).allTrue()) {
+                return slot;
+            }
+
+            slot = (slot + probe) & tableSizeMask;
+        }
+    }
+
+    private int nextCity() {
+        if (++index == cities.length) {
+            index = 0;
+        }
+
+        return index;
+    }
+
+    // Returns number of probes needed to find an empty slot
+    private int install(int cityIndex) {
+        int slot = vectorHash.hash(ByteVector.fromArray(SPECIES, cities[cityIndex], 0)) & tableSizeMask;
+        for (int probe = 0;; probe++) {
+            if (table[slot] == -1) {
+                table[slot] = cityIndex;
+                return probe;
+            }
+
+            slot = (slot + probe + 1) & tableSizeMask;
+        }
+    }
+
+    private String probeHistogramToString(long[] probeHistogram) {
+        StringBuilder result = new StringBuilder(STR."\{strategy} \{Path.of(dataSet).getFileName()} table=\{tableSize} cities=\{cities.length} probes:");
+
+        long totalProbes = 0;
+        for (int i = 0; i < probeHistogram.length; i++) {
+            if (probeHistogram[i] != 0) {
+                result.append(STR." \{i}=\{probeHistogram[i]}");
+                totalProbes += i * probeHistogram[i];
+            }
+        }
+
+        return result.append(STR." (average \{String.format("%.3f", (double) totalProbes / cities.length)})").toString();
+    }
+
+    // Names longer than a vector take a separate path in the engines, so they are skipped here.
+    static byte[][] loadCities(String dataSet) throws IOException {
+        try (var lines = Files.lines(Path.of(dataSet))) {
+            return lines
+                    .filter(line -> !line.startsWith("#"))
+                    .map(line -> line.substring(0, line.indexOf(';')))
+                    .distinct()
+                    .map(city -> city.getBytes(StandardCharsets.UTF_8))
+                    .filter(city -> city.length < SPECIES.length())
+                    .map(city -> Arrays.copyOf(city, SPECIES.length()))
+                    .toArray(byte[][]::new);
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        run(VectorHashMicrobenchmark.class.getSimpleName());
+    }
+}
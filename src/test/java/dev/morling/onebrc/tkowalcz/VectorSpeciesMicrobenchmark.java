@@ -0,0 +1,70 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.tkowalcz;
+
+import dev.morling.onebrc.CalculateAverage_tkowalcz;
+import dev.morling.onebrc.CalculateAverage_tkowalcz2Unsafe;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.RunnerException;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.util.List;
+
+/**
+ * Runs both engines on the same file with each vector width. Species is selected once, when engine classes are
+ * initialized, so the property is set in setup before they are touched. Every parameter gets its own fork.
+ */
+@Fork(1)
+public class VectorSpeciesMicrobenchmark extends OneBrcMicrobenchmark {
+
+    @Param({ "128", "256", "512" })
+    private String vectorBits;
+
+    private Arena arena;
+    private MemorySegment inputData;
+
+    @Setup
+    public void setup() throws IOException {
+        System.setProperty("tkowalcz.vectorBits", vectorBits);
+
+        arena = Arena.ofShared();
+        inputData = mmapDataFile(FILE, arena);
+    }
+
+    @Benchmark
+    public CalculateAverage_tkowalcz.StatisticsAggregate[] doublePumped() {
+        return CalculateAverage_tkowalcz.execute(inputData);
+    }
+
+    @Benchmark
+    public List<CalculateAverage_tkowalcz2Unsafe.StatisticsAggregate> triplePumped() {
+        // Hash map is off-heap, so it is released after every invocation
+        try (Arena hashMapArena = Arena.ofConfined()) {
+            CalculateAverage_tkowalcz2Unsafe.WorkerThread workerThread = new CalculateAverage_tkowalcz2Unsafe.WorkerThread(
+                    null,
+                    hashMapArena,
+                    0);
+
+            return workerThread.execute(hashMapArena, inputData);
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        run(VectorSpeciesMicrobenchmark.class.getSimpleName());
+    }
+}